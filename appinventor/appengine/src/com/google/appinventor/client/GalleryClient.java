@@ -159,10 +159,10 @@ public class GalleryClient {
   }
  /**
   * GetMostRecent gets most recently updated apps then tells listeners
-  * @param start staring index
+  * @param cursor cursor of the previous page, null for the first page
   * @param count number of results
   */
-  public void GetMostRecent(int start, int count, final boolean refreshable) {
+  public void GetMostRecent(String cursor, int count, final boolean refreshable) {
     // Callback for when the server returns us the apps
     final Ode ode = Ode.getInstance();
     final OdeAsyncCallback<GalleryAppListResult> callback = new OdeAsyncCallback<GalleryAppListResult>(
@@ -177,14 +177,14 @@ public class GalleryClient {
       }
     };
     // This is below the call back, but of course it is done first
-    ode.getGalleryService().getRecentApps(start, count, callback);
+    ode.getGalleryService().getRecentAppsPage(cursor, count, callback);
   }
   /**
   * GetMostDownloaded gets the most downloaded apps then tells listeners
-  * @param start staring index
+  * @param cursor cursor of the previous page, null for the first page
   * @param count number of results
   */
-  public void GetMostDownloaded(int start, int count, final boolean refreshable) {
+  public void GetMostDownloaded(String cursor, int count, final boolean refreshable) {
     // Callback for when the server returns us the apps
     final Ode ode = Ode.getInstance();
     final OdeAsyncCallback<GalleryAppListResult> callback = new OdeAsyncCallback<GalleryAppListResult>(
@@ -200,7 +200,7 @@ public class GalleryClient {
     };
 
     // ok, this is below the call back, but of course it is done first
-    ode.getGalleryService().getMostDownloadedApps(start,count,callback);
+    ode.getGalleryService().getMostDownloadedAppsPage(cursor, count, callback);
   }
   /**
    * GetRemixedToList gets children list that apps remixed to then tells listeners
@@ -290,8 +290,8 @@ public class GalleryClient {
   */
   public void appWasChanged() {
     // for now, let's update the recent list, the popular list and feature list (in case one was deleted)
-    GetMostRecent(0,GalleryList.NUMAPPSTOSHOW, true);
-    GetMostDownloaded(0,GalleryList.NUMAPPSTOSHOW, true);
+    GetMostRecent(null, GalleryList.NUMAPPSTOSHOW, true);
+    GetMostDownloaded(null, GalleryList.NUMAPPSTOSHOW, true);
     GetFeatured(0, GalleryList.NUMAPPSTOSHOW, 0, true);
   }
 
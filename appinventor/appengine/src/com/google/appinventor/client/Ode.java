@@ -1268,6 +1268,19 @@ public class Ode implements EntryPoint {
 
     // Save all unsaved editors.
     editorManager.saveDirtyEditors(null);
+
+    // Write the saves that the server deferred, rather than leave them in
+    // memcache until their flush task runs.
+    projectService.flushSaves(new AsyncCallback<Void>() {
+      @Override
+      public void onSuccess(Void result) {
+      }
+
+      @Override
+      public void onFailure(Throwable caught) {
+        // The flush task writes them anyway
+      }
+    });
   }
 
   /**
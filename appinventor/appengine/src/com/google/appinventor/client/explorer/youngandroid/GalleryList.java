@@ -81,6 +81,9 @@ public class GalleryList extends Composite implements GalleryRequestListener {
   private int appFeaturedCounter = 0;
   private int appPopularCounter = 0;
   private int appSearchCounter = 0;
+  // Where the next pages of the recent and popular apps start
+  private String appRecentCursor = null;
+  private String appPopularCursor = null;
   private boolean appRecentExhausted = false;
   private boolean appFeaturedExhausted = false;
   private boolean appPopularExhausted = false;
@@ -251,11 +254,11 @@ public class GalleryList extends Composite implements GalleryRequestListener {
       } else if (request == REQUEST_RECENT) {
         generalTotalResultsLabel = new Label();
         container.add(generalTotalResultsLabel);
-        gallery.GetMostRecent(appRecentCounter, NUMAPPSTOSHOW, false);
+        gallery.GetMostRecent(null, NUMAPPSTOSHOW, false);
       } else if (request == REQUEST_MOSTDOWNLOADED) {
         generalTotalResultsLabel = new Label();
         container.add(generalTotalResultsLabel);
-        gallery.GetMostDownloaded(appPopularCounter, NUMAPPSTOSHOW, false);
+        gallery.GetMostDownloaded(null, NUMAPPSTOSHOW, false);
       } else if (request == REQUEST_FEATURED){
         generalTotalResultsLabel = new Label();
         container.add(generalTotalResultsLabel);
@@ -290,7 +293,7 @@ public class GalleryList extends Composite implements GalleryRequestListener {
               if (!appRecentExhausted) {
                 // If the next page still has apps to retrieve, do it
                 appRecentCounter += NUMAPPSTOSHOW;
-                gallery.GetMostRecent(appRecentCounter, NUMAPPSTOSHOW, false);
+                gallery.GetMostRecent(appRecentCursor, NUMAPPSTOSHOW, false);
               }
               break;
             case REQUEST_SEARCH:
@@ -304,7 +307,7 @@ public class GalleryList extends Composite implements GalleryRequestListener {
               if (!appPopularExhausted) {
                 // If the next page still has apps to retrieve, do it
                 appPopularCounter += NUMAPPSTOSHOW;
-                gallery.GetMostDownloaded(appPopularCounter, NUMAPPSTOSHOW, false);
+                gallery.GetMostDownloaded(appPopularCursor, NUMAPPSTOSHOW, false);
               }
               break;
           }
@@ -370,14 +373,19 @@ public class GalleryList extends Composite implements GalleryRequestListener {
         }
         break;
       case REQUEST_RECENT:
+        if (refreshable) {
+          // Back to the first page
+          appRecentCounter = 0;
+        }
+        appRecentCursor = appsResult.getCursor();
         appRecentTab.setGeneralTotalResultsLabel(appsResult.getTotalCount());
-        if(appsResult.getTotalCount() < NUMAPPSTOSHOW  || appRecentCounter + NUMAPPSTOSHOW >= appsResult.getTotalCount()){
+        if(appRecentCursor == null || appRecentCounter + NUMAPPSTOSHOW >= appsResult.getTotalCount()){
           appRecentTab.getButtonNext().setVisible(false);
         }else{
           appRecentTab.getButtonNext().setVisible(true);
         }
 
-        if (appsResult.getApps().size() < NUMAPPSTOSHOW) {
+        if (appRecentCursor == null) {
           // That means there's not enough apps to show (reaches the end)
           appRecentExhausted = true;
         } else {
@@ -406,13 +414,18 @@ public class GalleryList extends Composite implements GalleryRequestListener {
         galleryGF.generateHorizontalAppList(appsResult.getApps(), appSearchContent, refreshable);
         break;
       case REQUEST_MOSTDOWNLOADED:
+        if (refreshable) {
+          // Back to the first page
+          appPopularCounter = 0;
+        }
+        appPopularCursor = appsResult.getCursor();
         appPopularTab.setGeneralTotalResultsLabel(appsResult.getTotalCount());
-        if(appsResult.getTotalCount() < NUMAPPSTOSHOW || appPopularCounter + NUMAPPSTOSHOW >= appsResult.getTotalCount()){
+        if(appPopularCursor == null || appPopularCounter + NUMAPPSTOSHOW >= appsResult.getTotalCount()){
           appPopularTab.getButtonNext().setVisible(false);
         }else{
           appPopularTab.getButtonNext().setVisible(true);
         }
-        if (appsResult.getApps().size() < NUMAPPSTOSHOW) {
+        if (appPopularCursor == null) {
           // That means there's not enough apps to show (reaches the end)
           appPopularExhausted = true;
         } else {
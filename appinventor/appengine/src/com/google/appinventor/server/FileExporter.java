@@ -10,6 +10,7 @@ import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 
 import java.io.IOException;
+import java.io.OutputStream;
 
 import javax.annotation.Nullable;
 
@@ -56,6 +57,29 @@ public interface FileExporter {
                                           boolean fatalError)
       throws IOException;
 
+  /**
+   * Writes the project's source files as a zip to the given stream, streaming their contents
+   * from storage instead of collecting the zip in memory. The stream is not closed.
+   *
+   * @param userId the userId
+   * @param projectId the project id belonging to the userId
+   * @param includeProjectHistory indicates whether to include a file
+   *        containing the project's history in the zip
+   * @param includeAndroidKeystore indicates whether to include the user's android.keystore file
+   * @param fatalError set to true to cause missing GCS file to throw exception
+   * @param out the stream to write the zip to
+   * @return the number of files in the zip
+   * @throws IllegalArgumentException if download request cannot be fulfilled
+   *         (no source files), in which case nothing has been written
+   * @throws IOException if files cannot be read or written
+   */
+  int exportProjectSourceZip(String userId, long projectId,
+                             boolean includeProjectHistory,
+                             boolean includeAndroidKeystore,
+                             boolean fatalError,
+                             OutputStream out)
+      throws IOException;
+
   /**
    * Exports all of the user's projects' source files as a zip of zips.
    *
@@ -16,6 +16,7 @@ import com.google.appinventor.shared.storage.StorageUtil;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.ZipEntry;
@@ -31,6 +32,9 @@ public final class FileExporterImpl implements FileExporter {
 
   private final StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
 
+  // Exports must include the saves that are still deferred
+  private final SaveCoalescer saveCoalescer = new SaveCoalescer(storageIo);
+
   @Override
   public RawFile exportProjectOutputFile(String userId, long projectId, @Nullable String target)
       throws IOException {
@@ -64,6 +68,7 @@ public final class FileExporterImpl implements FileExporter {
                                                  @Nullable String zipName,
                                                  boolean fatalError) throws IOException {
     // Download project source files as a zip.
+    saveCoalescer.flush(userId, projectId);
     if (storageIo instanceof ObjectifyStorageIo) {
       return ((ObjectifyStorageIo)storageIo).exportProjectSourceZip(userId, projectId,
           includeProjectHistory, includeAndroidKeystore, zipName, fatalError);
@@ -72,6 +77,18 @@ public final class FileExporterImpl implements FileExporter {
     }
   }
 
+  @Override
+  public int exportProjectSourceZip(String userId, long projectId,
+                                    boolean includeProjectHistory,
+                                    boolean includeAndroidKeystore,
+                                    boolean fatalError,
+                                    OutputStream out) throws IOException {
+    // Stream project source files as a zip.
+    saveCoalescer.flush(userId, projectId);
+    return storageIo.exportProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, fatalError, out);
+  }
+
   @Override
   public ProjectSourceZip exportAllProjectsSourceZip(String userId,
       String zipName) throws IOException {
@@ -144,6 +161,7 @@ public final class FileExporterImpl implements FileExporter {
   @Override
   public RawFile exportFile(String userId, long projectId, String filePath) throws IOException {
     // Download a specific project file.
+    saveCoalescer.flush(userId, projectId);
     try {
       byte[] content = storageIo.downloadRawFile(userId, projectId, filePath);
       return new RawFile(StorageUtil.basename(filePath), content);
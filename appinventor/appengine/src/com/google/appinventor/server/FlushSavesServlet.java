@@ -0,0 +1,41 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that writes the deferred saves of a user. It is called by the task
+ * that {@link SaveCoalescer} queues when it defers a save. A failure is
+ * answered with an error, so that the task is retried and the saves that
+ * weren't written are kept until it succeeds.
+ *
+ * <p>Access is restricted to administrators, and so to the task queue, in
+ * web.xml.
+ */
+public class FlushSavesServlet extends OdeServlet {
+
+  private final transient SaveCoalescer saveCoalescer =
+      new SaveCoalescer(StorageIoInstanceHolder.INSTANCE);
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String userId = req.getParameter(SaveCoalescer.USER_ID_PARAMETER);
+    if (userId == null) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+    if (!saveCoalescer.flushAll(userId)) {
+      resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+  }
+}
@@ -0,0 +1,443 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index of gallery apps, for servers that don't have the
+ * App Engine search service.
+ *
+ * <p>The title, developer name and description of an app are split into
+ * lowercase words, and each word points at the apps it occurs in, weighted
+ * by the field it occurs in. A search matches the apps that have all of its
+ * words, either whole or as the beginning of a longer word, ranked by the
+ * sum of their weights. Words of the form {@code component:Type} instead
+ * restrict the search to the apps that use a component of that type.
+ *
+ * <p>The index can be saved to and loaded from a snapshot file.
+ *
+ */
+public class GalleryIndex {
+
+  // Weights of the fields of an app
+  private static final float TITLE_WEIGHT = 3;
+  private static final float DEVELOPER_WEIGHT = 2;
+  private static final float DESCRIPTION_WEIGHT = 1;
+
+  // A word that only begins a word of an app counts for this much of it
+  private static final float PREFIX_WEIGHT = 0.5f;
+
+  // Words shorter than this only match whole words
+  private static final int MIN_PREFIX_LENGTH = 2;
+
+  private static final String COMPONENT_PREFIX = "component:";
+
+  private static final int SNAPSHOT_VERSION = 1;
+
+  /**
+   * A page of search results.
+   */
+  public static class Page {
+    private final List<Long> galleryIds;
+    private final int totalCount;
+
+    Page(List<Long> galleryIds, int totalCount) {
+      this.galleryIds = galleryIds;
+      this.totalCount = totalCount;
+    }
+
+    /**
+     * @return the ids of the apps on this page, best match first
+     */
+    public List<Long> getGalleryIds() {
+      return galleryIds;
+    }
+
+    /**
+     * @return the number of apps that match the search
+     */
+    public int getTotalCount() {
+      return totalCount;
+    }
+  }
+
+  // What is indexed of an app
+  private static class Document {
+    final long galleryId;
+    final String title;
+    final String description;
+    final String developerName;
+    final List<String> componentTypes;
+
+    Document(long galleryId, String title, String description, String developerName,
+        List<String> componentTypes) {
+      this.galleryId = galleryId;
+      this.title = title;
+      this.description = description;
+      this.developerName = developerName;
+      this.componentTypes = componentTypes;
+    }
+  }
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // Indexed apps, by gallery id
+  private final Map<Long, Document> documents = new HashMap<Long, Document>();
+
+  // Weight of each word in each app, by word. Sorted, so that the words
+  // beginning with a prefix are next to each other.
+  private final TreeMap<String, Map<Long, Float>> words = new TreeMap<String, Map<Long, Float>>();
+
+  // Apps using each component type, by lowercase type
+  private final Map<String, Map<Long, Float>> components = new HashMap<String, Map<Long, Float>>();
+
+  /**
+   * Adds an app to the index, or replaces what is indexed of it.
+   *
+   * @param galleryId gallery id of the app
+   * @param title title of the app
+   * @param description description of the app
+   * @param developerName name of the developer of the app
+   * @param componentTypes types of the components the app uses
+   */
+  public void put(long galleryId, String title, String description, String developerName,
+      Collection<String> componentTypes) {
+    Document document = new Document(galleryId, nullToEmpty(title), nullToEmpty(description),
+        nullToEmpty(developerName), new ArrayList<String>(new TreeSet<String>(componentTypes)));
+    lock.writeLock().lock();
+    try {
+      removeDocument(galleryId);
+      documents.put(galleryId, document);
+      Map<String, Float> weights = new HashMap<String, Float>();
+      addWeights(weights, document.title, TITLE_WEIGHT);
+      addWeights(weights, document.developerName, DEVELOPER_WEIGHT);
+      addWeights(weights, document.description, DESCRIPTION_WEIGHT);
+      for (Map.Entry<String, Float> entry : weights.entrySet()) {
+        postings(words, entry.getKey()).put(galleryId, entry.getValue());
+      }
+      for (String componentType : document.componentTypes) {
+        postings(components, componentType.toLowerCase(Locale.ENGLISH)).put(galleryId, 1f);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes an app from the index.
+   *
+   * @param galleryId gallery id of the app
+   */
+  public void remove(long galleryId) {
+    lock.writeLock().lock();
+    try {
+      removeDocument(galleryId);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return the number of apps in the index
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return documents.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns a page of the apps that match a search.
+   *
+   * @param query search words
+   * @param start index of the first app of the page
+   * @param count number of apps on the page
+   * @return the page
+   */
+  public Page search(String query, int start, int count) {
+    lock.readLock().lock();
+    try {
+      final Map<Long, Float> scores = match(query);
+      List<Long> galleryIds = new ArrayList<Long>(scores.keySet());
+      // Best match first, then most recently published
+      Collections.sort(galleryIds, new Comparator<Long>() {
+        @Override
+        public int compare(Long a, Long b) {
+          int result = Float.compare(scores.get(b), scores.get(a));
+          return result != 0 ? result : b.compareTo(a);
+        }
+      });
+      int from = Math.min(Math.max(start, 0), galleryIds.size());
+      int to = Math.min(from + Math.max(count, 0), galleryIds.size());
+      return new Page(new ArrayList<Long>(galleryIds.subList(from, to)), galleryIds.size());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Saves the index to a file. The file is replaced atomically, so a reader
+   * never sees half of it.
+   *
+   * @param file snapshot file
+   * @throws IOException if the file can't be written
+   */
+  public void save(File file) throws IOException {
+    File temp = new File(file.getPath() + ".tmp");
+    try {
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(temp)));
+      try {
+        lock.readLock().lock();
+        try {
+          out.writeInt(SNAPSHOT_VERSION);
+          out.writeInt(documents.size());
+          for (Document document : documents.values()) {
+            out.writeLong(document.galleryId);
+            writeString(out, document.title);
+            writeString(out, document.description);
+            writeString(out, document.developerName);
+            out.writeInt(document.componentTypes.size());
+            for (String componentType : document.componentTypes) {
+              writeString(out, componentType);
+            }
+          }
+        } finally {
+          lock.readLock().unlock();
+        }
+      } finally {
+        out.close();
+      }
+      Files.move(temp.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      temp.delete();
+    }
+  }
+
+  /**
+   * Adds the apps saved in a snapshot file to the index.
+   *
+   * @param file snapshot file
+   * @throws IOException if the file can't be read or isn't a snapshot
+   */
+  public void load(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      int version = in.readInt();
+      if (version != SNAPSHOT_VERSION) {
+        throw new IOException("Unknown gallery index snapshot version " + version);
+      }
+      int numDocuments = in.readInt();
+      for (int i = 0; i < numDocuments; i++) {
+        long galleryId = in.readLong();
+        String title = readString(in);
+        String description = readString(in);
+        String developerName = readString(in);
+        int numComponentTypes = in.readInt();
+        List<String> componentTypes = new ArrayList<String>(numComponentTypes);
+        for (int j = 0; j < numComponentTypes; j++) {
+          componentTypes.add(readString(in));
+        }
+        put(galleryId, title, description, developerName, componentTypes);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /*
+   * Returns the score of each app that matches a search. Must be called with
+   * the read lock held.
+   */
+  private Map<Long, Float> match(String query) {
+    Map<Long, Float> scores = null;
+    for (String term : query.trim().split("\\s+")) {
+      if (term.isEmpty()) {
+        continue;
+      }
+      Map<Long, Float> termScores;
+      if (term.toLowerCase(Locale.ENGLISH).startsWith(COMPONENT_PREFIX)) {
+        String componentType =
+            term.substring(COMPONENT_PREFIX.length()).toLowerCase(Locale.ENGLISH);
+        termScores = components.get(componentType);
+        if (termScores == null) {
+          termScores = Collections.emptyMap();
+        }
+        scores = intersect(scores, termScores);
+      } else {
+        for (String word : tokenize(term)) {
+          scores = intersect(scores, matchWord(word));
+        }
+      }
+      if (scores != null && scores.isEmpty()) {
+        break;
+      }
+    }
+    return scores == null ? new HashMap<Long, Float>() : scores;
+  }
+
+  /*
+   * Returns the weight of a word in each app that has it, whole or as the
+   * beginning of a longer word.
+   */
+  private Map<Long, Float> matchWord(String word) {
+    Map<Long, Float> scores = new HashMap<Long, Float>();
+    SortedMap<String, Map<Long, Float>> matches;
+    if (word.length() < MIN_PREFIX_LENGTH) {
+      matches = words.subMap(word, true, word, true);
+    } else {
+      matches = words.subMap(word, word + Character.MAX_VALUE);
+    }
+    for (Map.Entry<String, Map<Long, Float>> entry : matches.entrySet()) {
+      float factor = entry.getKey().equals(word) ? 1 : PREFIX_WEIGHT;
+      for (Map.Entry<Long, Float> posting : entry.getValue().entrySet()) {
+        float weight = posting.getValue() * factor;
+        Float score = scores.get(posting.getKey());
+        if (score == null || score < weight) {
+          scores.put(posting.getKey(), weight);
+        }
+      }
+    }
+    return scores;
+  }
+
+  /*
+   * Returns the apps in both maps of scores, with the sum of their scores.
+   * A null map of scores matches every app.
+   */
+  private static Map<Long, Float> intersect(Map<Long, Float> scores, Map<Long, Float> more) {
+    Map<Long, Float> result = new HashMap<Long, Float>();
+    if (scores == null) {
+      result.putAll(more);
+      return result;
+    }
+    if (scores.size() > more.size()) {
+      Map<Long, Float> swap = scores;
+      scores = more;
+      more = swap;
+    }
+    for (Map.Entry<Long, Float> entry : scores.entrySet()) {
+      Float score = more.get(entry.getKey());
+      if (score != null) {
+        result.put(entry.getKey(), entry.getValue() + score);
+      }
+    }
+    return result;
+  }
+
+  /*
+   * Removes an app from the postings. Must be called with the write lock
+   * held.
+   */
+  private void removeDocument(long galleryId) {
+    Document document = documents.remove(galleryId);
+    if (document == null) {
+      return;
+    }
+    List<String> documentWords = new ArrayList<String>();
+    documentWords.addAll(tokenize(document.title));
+    documentWords.addAll(tokenize(document.developerName));
+    documentWords.addAll(tokenize(document.description));
+    for (String word : documentWords) {
+      removePosting(words, word, galleryId);
+    }
+    for (String componentType : document.componentTypes) {
+      removePosting(components, componentType.toLowerCase(Locale.ENGLISH), galleryId);
+    }
+  }
+
+  private static void removePosting(Map<String, Map<Long, Float>> index, String key,
+      long galleryId) {
+    Map<Long, Float> postings = index.get(key);
+    if (postings != null) {
+      postings.remove(galleryId);
+      if (postings.isEmpty()) {
+        index.remove(key);
+      }
+    }
+  }
+
+  private static Map<Long, Float> postings(Map<String, Map<Long, Float>> index, String key) {
+    Map<Long, Float> postings = index.get(key);
+    if (postings == null) {
+      postings = new HashMap<Long, Float>();
+      index.put(key, postings);
+    }
+    return postings;
+  }
+
+  private static void addWeights(Map<String, Float> weights, String text, float weight) {
+    for (String word : tokenize(text)) {
+      Float sum = weights.get(word);
+      weights.put(word, sum == null ? weight : sum + weight);
+    }
+  }
+
+  /*
+   * Splits text into lowercase words of letters and digits.
+   */
+  static List<String> tokenize(String text) {
+    List<String> tokens = new ArrayList<String>();
+    String lower = text.toLowerCase(Locale.ENGLISH);
+    int start = -1;
+    for (int i = 0; i <= lower.length(); i++) {
+      boolean wordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+      if (wordChar && start < 0) {
+        start = i;
+      } else if (!wordChar && start >= 0) {
+        tokens.add(lower.substring(start, i));
+        start = -1;
+      }
+    }
+    return tokens;
+  }
+
+  private static String nullToEmpty(String s) {
+    return s == null ? "" : s;
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(Charsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+}
@@ -5,8 +5,17 @@
 // http://www.apache.org/licenses/LICENSE-2.0
 
 package com.google.appinventor.server;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,11 +32,20 @@ import com.google.appengine.api.search.ScoredDocument;
 import com.google.appengine.api.search.SearchException;
 import com.google.appengine.api.search.SearchServiceFactory;
 import com.google.appengine.api.search.StatusCode;
+import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.properties.json.ServerJsonParser;
 import com.google.appinventor.server.storage.GalleryStorageIo;
 import com.google.appinventor.server.storage.GalleryStorageIoInstanceHolder;
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+import com.google.appinventor.shared.properties.json.JSONArray;
+import com.google.appinventor.shared.properties.json.JSONObject;
+import com.google.appinventor.shared.properties.json.JSONValue;
 import com.google.appinventor.shared.rpc.project.GalleryApp;
 import com.google.appinventor.shared.rpc.project.GalleryAppListResult;
-import com.googlecode.objectify.NotFoundException;
+import com.google.appinventor.shared.youngandroid.YoungAndroidSourceAnalyzer;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 
 // see sample at https://developers.google.com/appengine/docs/java/search/
@@ -40,11 +58,50 @@ public class GallerySearchIndex {
       GalleryStorageIoInstanceHolder.INSTANCE;
   private static volatile GallerySearchIndex  instance= null;
 
+  // The search service doesn't return results past this offset
+  private static final int MAX_OFFSET = 1000;
+
+  private static final Flag<Integer> searchCacheSeconds =
+      Flag.createFlag("gallery.search.cache.seconds", 30);
+
+  // Recent results, by search words and page. Popular searches are repeated
+  // many times over a short while.
+  private final Cache<String, GalleryAppListResult> results = CacheBuilder.newBuilder()
+      .maximumSize(1000)
+      .expireAfterWrite(searchCacheSeconds.get(), TimeUnit.SECONDS)
+      .build();
+
+  // "appengine" for the App Engine search service, or "local" for an index
+  // in memory, for self-hosted servers
+  private static final Flag<String> searchBackend =
+      Flag.createFlag("gallery.search.backend", "appengine");
+
+  // Where the local index is saved, so that a restart doesn't rebuild it
+  private static final Flag<String> snapshotFile =
+      Flag.createFlag("gallery.search.snapshot", "");
+
+  // Seconds between a change to the local index and saving it
+  private static final int SNAPSHOT_DELAY_SECONDS = 10;
+
+  // Apps read at a time when the local index is rebuilt
+  private static final int REBUILD_PAGE_SIZE = 100;
+
+  // Index in memory, or null to use the search service
+  private final GalleryIndex localIndex;
+
+  private ScheduledExecutorService snapshotExecutor;
+  private final AtomicBoolean snapshotScheduled = new AtomicBoolean();
+
   /**
    * The default constructor of GallerySearchIndex
    */
   private GallerySearchIndex () {
-
+    if ("local".equals(searchBackend.get())) {
+      localIndex = new GalleryIndex();
+      loadLocalIndex();
+    } else {
+      localIndex = null;
+    }
   }
 
   /**
@@ -53,7 +110,9 @@ public class GallerySearchIndex {
   public static GallerySearchIndex getInstance () {
     if (instance == null) {
       synchronized (GallerySearchIndex.class) {
-        instance = new GallerySearchIndex();
+        if (instance == null) {
+          instance = new GallerySearchIndex();
+        }
       }
     }
     return instance;
@@ -64,6 +123,13 @@ public class GallerySearchIndex {
    * @param app galleryapp
    */
   public void indexApp (GalleryApp app) {
+    if (localIndex != null) {
+      localIndex.put(app.getGalleryAppId(), app.getTitle(), app.getDescription(),
+          app.getDeveloperName(), getComponentTypes(app));
+      results.invalidateAll();
+      scheduleSnapshot();
+      return;
+    }
     // take the title, description, and the user name and index it
     // need to build up a string with all meta data
     String indexWords = app.getTitle()+" "+app.getDescription() + " " + app.getDeveloperName();
@@ -77,6 +143,7 @@ public class GallerySearchIndex {
 
     try {
       index.put(doc);
+      results.invalidateAll();
     } catch (PutException e) {
       if (StatusCode.TRANSIENT_ERROR.equals(e.getOperationResult().getCode())) {
           // retry putting the document
@@ -89,9 +156,16 @@ public class GallerySearchIndex {
    * @param galleryId gallery id
    */
   public void unIndexApp(long galleryId) {
+    if (localIndex != null) {
+      localIndex.remove(galleryId);
+      results.invalidateAll();
+      scheduleSnapshot();
+      return;
+    }
     Index index = getIndex();
     try {
       index.delete(String.valueOf(galleryId));
+      results.invalidateAll();
     } catch (DeleteException e) {
       LOG.info("error deleting index entry");
     }
@@ -107,47 +181,180 @@ public class GallerySearchIndex {
    * @return GalleryAppListResult gallery applist result
    */
   public GalleryAppListResult find (String searchWords, int start, int count) {
-    //TODO page sliced has not implemented yet
-    final List<GalleryApp> apps = new ArrayList<GalleryApp>();
-    final Result<Integer> size = new Result<Integer>();
+    String cacheKey = searchWords + ":" + start + ":" + count;
+    GalleryAppListResult cached = results.getIfPresent(cacheKey);
+    if (cached != null) {
+      return cached;
+    }
+
+    List<GalleryApp> apps = new ArrayList<GalleryApp>();
+    int size = 0;
+    if (localIndex != null) {
+      GalleryIndex.Page page = localIndex.search(searchWords, start, count);
+      apps = galleryStorageIo.getGalleryApps(page.getGalleryIds());
+      size = page.getTotalCount() - unIndexMissingApps(page.getGalleryIds(), apps);
+      GalleryAppListResult result = new GalleryAppListResult(apps, size, searchWords);
+      results.put(cacheKey, result);
+      return result;
+    }
+    if (start > MAX_OFFSET) {
+      // Past the results the search service pages through
+      return new GalleryAppListResult(apps, size, searchWords);
+    }
     try {
+      // Only the page we want, and only the ids of its documents: the apps
+      // themselves come from the datastore.
       Query query = Query.newBuilder()
-          .setOptions(QueryOptions.newBuilder().
-              //setLimit(10).
-              // for deployed apps, uncomment the line below to demo snippeting.
-              // This will not work on the dev_appserver.
-              // setFieldsToSnippet("content").
-              build())
+          .setOptions(QueryOptions.newBuilder()
+              .setOffset(start)
+              .setLimit(count)
+              .setReturningIdsOnly(true)
+              .build())
           .build(searchWords);
       LOG.info("Sending query " + query);
-      Results<ScoredDocument> results = getIndex().search(query);
-
-      // Iterate over the documents in the results
-      for (ScoredDocument document : results) {
-        LOG.info("Find:" + document.getId());
-      }
+      Results<ScoredDocument> found = getIndex().search(query);
 
-      // Iterate over the documents in the results
-      int index = 0;
-      for (ScoredDocument document : results) {
-        if((index++) < start) continue;
-        if(count == 0) break;
-        count--;
-        try{
-          GalleryApp app = galleryStorageIo.getGalleryApp(Long.parseLong(document.getId()));
-          apps.add(app);
-        }catch(NotFoundException e){
-          LOG.log(Level.SEVERE, "Didn't Find GalleryAppData.id: " + document.getId());
-          unIndexApp(Long.parseLong(document.getId()));
-        }
+      List<Long> galleryIds = new ArrayList<Long>();
+      for (ScoredDocument document : found) {
+        galleryIds.add(Long.parseLong(document.getId()));
       }
-      size.t = (int) results.getNumberFound();
+      apps = galleryStorageIo.getGalleryApps(galleryIds);
+      size = (int) found.getNumberFound() - unIndexMissingApps(galleryIds, apps);
     } catch (SearchException e) {
       if (StatusCode.TRANSIENT_ERROR.equals(e.getOperationResult().getCode())) {
         // retry
       }
+      return new GalleryAppListResult(apps, size, searchWords);
+    }
+    GalleryAppListResult result = new GalleryAppListResult(apps, size, searchWords);
+    results.put(cacheKey, result);
+    return result;
+  }
+
+  /*
+   * Drops the index entries of the apps that were found in the index but not
+   * in storage, and returns how many there were.
+   */
+  private int unIndexMissingApps(List<Long> galleryIds, List<GalleryApp> apps) {
+    if (apps.size() == galleryIds.size()) {
+      return 0;
+    }
+    Set<Long> missing = new HashSet<Long>(galleryIds);
+    for (GalleryApp app : apps) {
+      missing.remove(app.getGalleryAppId());
+    }
+    for (long galleryId : missing) {
+      LOG.log(Level.SEVERE, "Didn't Find GalleryAppData.id: " + galleryId);
+      unIndexApp(galleryId);
+    }
+    return missing.size();
+  }
+
+  /*
+   * Fills the local index from its snapshot or, failing that, from the
+   * active apps in storage.
+   */
+  private void loadLocalIndex() {
+    String snapshot = snapshotFile.get();
+    if (!snapshot.isEmpty() && new File(snapshot).exists()) {
+      try {
+        localIndex.load(new File(snapshot));
+        LOG.info("Loaded " + localIndex.size() + " apps into the gallery index");
+        return;
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to load gallery index snapshot " + snapshot, e);
+      }
+    }
+    String cursor = null;
+    do {
+      GalleryAppListResult page =
+          galleryStorageIo.getRecentGalleryApps(cursor, REBUILD_PAGE_SIZE);
+      for (GalleryApp app : page.getApps()) {
+        localIndex.put(app.getGalleryAppId(), app.getTitle(), app.getDescription(),
+            app.getDeveloperName(), getComponentTypes(app));
+      }
+      cursor = page.getCursor();
+    } while (cursor != null);
+    LOG.info("Indexed " + localIndex.size() + " apps into the gallery index");
+    scheduleSnapshot();
+  }
+
+  /*
+   * Saves the local index a little while after it changes, so that a burst
+   * of changes is saved once.
+   */
+  private void scheduleSnapshot() {
+    if (snapshotFile.get().isEmpty() || !snapshotScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    synchronized (this) {
+      if (snapshotExecutor == null) {
+        snapshotExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "GalleryIndexSnapshot");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      }
+    }
+    snapshotExecutor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        snapshotScheduled.set(false);
+        try {
+          localIndex.save(new File(snapshotFile.get()));
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Unable to save gallery index snapshot", e);
+        }
+      }
+    }, SNAPSHOT_DELAY_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /*
+   * Returns the types of the components used in the screens of an app's
+   * project, or none if they can't be read.
+   */
+  private static Set<String> getComponentTypes(GalleryApp app) {
+    Set<String> componentTypes = new HashSet<String>();
+    try {
+      StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
+      String userId = app.getDeveloperId();
+      List<String> formFiles = new ArrayList<String>();
+      for (String fileId : storageIo.getProjectSourceFiles(userId, app.getProjectId())) {
+        if (fileId.endsWith(YoungAndroidSourceAnalyzer.FORM_PROPERTIES_EXTENSION)) {
+          formFiles.add(fileId);
+        }
+      }
+      if (formFiles.isEmpty()) {
+        return componentTypes;
+      }
+      ServerJsonParser jsonParser = new ServerJsonParser();
+      for (String source : storageIo.downloadFiles(userId, app.getProjectId(), formFiles,
+          "UTF-8").values()) {
+        JSONObject properties =
+            YoungAndroidSourceAnalyzer.parseSourceFile(source, jsonParser);
+        collectComponentTypes(properties.get("Properties").asObject(), componentTypes);
+      }
+    } catch (RuntimeException e) {
+      // The project is gone or one of its screens is broken
+      LOG.log(Level.INFO, "Unable to read components of gallery app "
+          + app.getGalleryAppId(), e);
+    }
+    return componentTypes;
+  }
+
+  private static void collectComponentTypes(JSONObject componentProperties,
+      Set<String> componentTypes) {
+    componentTypes.add(componentProperties.get("$Type").asString().getString());
+    JSONValue components = componentProperties.get("$Components");
+    if (components != null) {
+      JSONArray array = components.asArray();
+      for (JSONValue component : array.getElements()) {
+        collectComponentTypes(component.asObject(), componentTypes);
+      }
     }
-    return new GalleryAppListResult(apps, size.t, searchWords);
   }
 
   /**
@@ -158,9 +365,4 @@ public class GallerySearchIndex {
     Index index = SearchServiceFactory.getSearchService().getIndex(indexSpec);
     return index;
   }
-  // Create a final object of this class to hold a modifiable result value that
-  // can be used in a method of an inner class.
-  private class Result<T> {
-    T t;
-  }
-}
\ No newline at end of file
+}
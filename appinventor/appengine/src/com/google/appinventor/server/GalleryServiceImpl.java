@@ -159,6 +159,18 @@ public class GalleryServiceImpl extends OdeRemoteServiceServlet implements Galle
     return galleryStorageIo.getRecentGalleryApps(start,count);
   }
 
+  /**
+   * Returns a page of the most recently updated galleryApps and the total
+   * number of them
+   * @param cursor the cursor of the previous page, or null for the first page
+   * @param count number of apps to return
+   * @return list of GalleryApps, with the cursor of the next page
+   */
+  @Override
+  public GalleryAppListResult getRecentAppsPage(String cursor, int count) {
+    return galleryStorageIo.getRecentGalleryApps(cursor, count);
+  }
+
   /**
    * Returns a wrapped class which contains list of featured gallery app
    * @param start start index
@@ -236,6 +248,18 @@ public class GalleryServiceImpl extends OdeRemoteServiceServlet implements Galle
     return galleryStorageIo.getMostDownloadedApps(start,count);
   }
 
+  /**
+   * Returns a page of the most downloaded gallery apps and the total number
+   * of them
+   * @param cursor the cursor of the previous page, or null for the first page
+   * @param count number of apps to return
+   * @return list of GalleryApps, with the cursor of the next page
+   */
+  @Override
+  public GalleryAppListResult getMostDownloadedAppsPage(String cursor, int count) {
+    return galleryStorageIo.getMostDownloadedApps(cursor, count);
+  }
+
   /**
    * Deletes a new gallery app
    * @param galleryId id of app to delete
@@ -0,0 +1,44 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.JobRetries;
+import com.google.appinventor.server.util.CacheHeaders;
+import com.google.appinventor.server.util.CacheHeadersImpl;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet for monitoring the retries of datastore jobs. Reports the retries,
+ * contention and failures of each job type on this instance, in the
+ * Prometheus text format.
+ *
+ * <p>Access is restricted to administrators in web.xml.
+ */
+public class JobStatsServlet extends OdeServlet {
+
+  // Object used to safely set cache headers in responses
+  private static final CacheHeaders CACHE_HEADERS = new CacheHeadersImpl();
+
+  // Content type for response header
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    CACHE_HEADERS.setNotCacheable(resp);
+    resp.setContentType(CONTENT_TYPE);
+
+    StringBuilder sb = new StringBuilder();
+    JobRetries.writeStats(sb);
+    PrintWriter out = resp.getWriter();
+    out.write(sb.toString());
+  }
+}
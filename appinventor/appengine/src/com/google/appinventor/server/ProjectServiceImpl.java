@@ -29,6 +29,7 @@ import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
 import com.google.appinventor.shared.util.Base64Util;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
@@ -41,6 +42,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.channels.Channels;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -63,6 +65,11 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
   private final transient YoungAndroidProjectService youngAndroidProject =
       new YoungAndroidProjectService(storageIo);
 
+  // Defers the auto-saves of files that were just written. The methods below
+  // that read or write the files of a project flush its deferred saves first,
+  // as does the FileExporterImpl used to build and export projects.
+  private final transient SaveCoalescer saveCoalescer = new SaveCoalescer(storageIo);
+
   /**
    * Creates a new project.
    * @param projectType  type of new project
@@ -189,6 +196,7 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
   @Override
   public UserProject copyProject(long oldProjectId, String newName){
     final String userId = userInfoProvider.getUserId();
+    saveCoalescer.flush(userId, oldProjectId);
     long projectId = getProjectRpcImpl(userId, oldProjectId).
         copyProject(userId, oldProjectId, newName);
     return makeUserProject(userId, projectId);
@@ -201,6 +209,7 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
   @Override
   public void deleteProject(long projectId) {
     final String userId = userInfoProvider.getUserId();
+    saveCoalescer.flush(userId, projectId);
     getProjectRpcImpl(userId, projectId).deleteProject(userId, projectId);
   }
 
@@ -294,6 +303,7 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
   public long deleteFile(String sessionId, long projectId, String fileId) throws InvalidSessionException {
     validateSessionId(sessionId);
     final String userId = userInfoProvider.getUserId();
+    saveCoalescer.flush(userId, projectId);
     return getProjectRpcImpl(userId, projectId).deleteFile(userId, projectId, fileId);
   }
 
@@ -309,6 +319,7 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
   public long deleteFiles(String sessionId, long projectId, String directory) throws InvalidSessionException {
     validateSessionId(sessionId);
     final String userId = userInfoProvider.getUserId();
+    saveCoalescer.flush(userId, projectId);
     return getProjectRpcImpl(userId, projectId).deleteFiles(userId, projectId,
         directory);
   }
@@ -327,6 +338,7 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
   @Override
   public String load(long projectId, String fileId) {
     final String userId = userInfoProvider.getUserId();
+    saveCoalescer.flush(userId, projectId);
     return getProjectRpcImpl(userId, projectId).load(userId, projectId, fileId);
   }
 
@@ -347,6 +359,7 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
   @Override
   public ChecksumedLoadFile load2(long projectId, String fileId) throws ChecksumedFileException {
     final String userId = userInfoProvider.getUserId();
+    saveCoalescer.flush(userId, projectId);
     return getProjectRpcImpl(userId, projectId).load2(userId, projectId, fileId);
   }
 
@@ -376,6 +389,7 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
   @Override
   public byte [] loadraw(long projectId, String fileId) {
     final String userId = userInfoProvider.getUserId();
+    saveCoalescer.flush(userId, projectId);
     return getProjectRpcImpl(userId, projectId).loadraw(userId, projectId, fileId);
   }
 
@@ -391,6 +405,7 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
   @Override
   public String loadraw2(long projectId, String fileId) {
     final String userId = userInfoProvider.getUserId();
+    saveCoalescer.flush(userId, projectId);
     return getProjectRpcImpl(userId, projectId).loadraw2(userId, projectId, fileId);
   }
 
@@ -402,14 +417,30 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
    */
   @Override
   public List<FileDescriptorWithContent> load(List<FileDescriptor> files) {
-    List<FileDescriptorWithContent> result = Lists.newArrayList();
     final String userId = userInfoProvider.getUserId();
+    // Load the files of each project with a single batch read
+    Map<Long, List<String>> fileIds = Maps.newLinkedHashMap();
+    for (FileDescriptor file : files) {
+      List<String> projectFileIds = fileIds.get(file.getProjectId());
+      if (projectFileIds == null) {
+        projectFileIds = Lists.newArrayList();
+        fileIds.put(file.getProjectId(), projectFileIds);
+      }
+      projectFileIds.add(file.getFileId());
+    }
+    Map<Long, Map<String, String>> contents = Maps.newHashMap();
+    for (Map.Entry<Long, List<String>> entry : fileIds.entrySet()) {
+      long projectId = entry.getKey();
+      saveCoalescer.flush(userId, projectId);
+      contents.put(projectId,
+          getProjectRpcImpl(userId, projectId).load(userId, projectId, entry.getValue()));
+    }
+    List<FileDescriptorWithContent> result = Lists.newArrayList();
     for (FileDescriptor file : files) {
       long projectId = file.getProjectId();
       String fileId = file.getFileId();
       result.add(new FileDescriptorWithContent(
-          projectId, fileId,
-          getProjectRpcImpl(userId, projectId).load(userId, projectId, fileId)));
+          projectId, fileId, contents.get(projectId).get(fileId)));
     }
     return result;
   }
@@ -430,6 +461,7 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
     validateSessionId(sessionId);
     // Log parameters except for content
     final String userId = userInfoProvider.getUserId();
+    saveCoalescer.flush(userId, projectId);
     return getProjectRpcImpl(userId, projectId).save(userId, projectId, fileId,
         content);
   }
@@ -437,7 +469,9 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
   /**
    * Saves the content of the file associated with a node in the project tree.
    * This version takes a "force" argument which if false will result in an
-   * exception of a trivial (empty) blocks workspace is attempted to be saved
+   * exception of a trivial (empty) blocks workspace is attempted to be saved.
+   * Saves of a file that was written very recently are deferred, see
+   * {@link SaveCoalescer}.
    *
    * @param sessionId session id
    * @param projectId  project ID
@@ -454,8 +488,7 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
     validateSessionId(sessionId);
     // Log parameters except for content
     final String userId = userInfoProvider.getUserId();
-    return getProjectRpcImpl(userId, projectId).save2(userId, projectId, fileId, force,
-        content);
+    return saveCoalescer.save2(userId, projectId, fileId, force, content);
   }
 
   /**
@@ -471,15 +504,41 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
       BlocksTruncatedException {
     validateSessionId(sessionId);
     final String userId = userInfoProvider.getUserId();
-    long date = 0;
+    // Save the files of each project with a single batch write
+    Map<Long, Map<String, String>> contents = Maps.newLinkedHashMap();
+    long lastProjectId = 0;
     for (FileDescriptorWithContent fileAndContent : filesAndContent) {
-     long projectId = fileAndContent.getProjectId();
-     date = getProjectRpcImpl(userId, projectId).
-         save(userId, projectId, fileAndContent.getFileId(), fileAndContent.getContent());
+      lastProjectId = fileAndContent.getProjectId();
+      Map<String, String> projectContents = contents.get(lastProjectId);
+      if (projectContents == null) {
+        projectContents = Maps.newLinkedHashMap();
+        contents.put(lastProjectId, projectContents);
+      }
+      projectContents.put(fileAndContent.getFileId(), fileAndContent.getContent());
+    }
+    long date = 0;
+    for (Map.Entry<Long, Map<String, String>> entry : contents.entrySet()) {
+      long projectId = entry.getKey();
+      saveCoalescer.flush(userId, projectId);
+      long projectDate = getProjectRpcImpl(userId, projectId).
+          save(userId, projectId, entry.getValue());
+      if (projectId == lastProjectId) {
+        date = projectDate;
+      }
     }
     return date;
   }
 
+  /**
+   * Writes the saves of the user that were deferred, see
+   * {@link SaveCoalescer}. Saves that arrive after it are deferred again and
+   * written by their flush task.
+   */
+  @Override
+  public void flushSaves() {
+    saveCoalescer.flushAll(userInfoProvider.getUserId());
+  }
+
   /**
    * Invokes a build command for the project on the back-end.
    *
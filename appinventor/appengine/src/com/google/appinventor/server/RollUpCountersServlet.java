@@ -0,0 +1,43 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.GalleryStorageIo;
+import com.google.appinventor.server.storage.GalleryStorageIoInstanceHolder;
+import com.google.appinventor.server.storage.ObjectifyGalleryStorageIo;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that rolls up the download and like counters of a gallery app. It
+ * is called by the task that {@link ObjectifyGalleryStorageIo} queues when
+ * it reads counters that are due to be rolled up. A failure is answered
+ * with an error, so that the task is retried.
+ *
+ * <p>Access is restricted to administrators, and so to the task queue, in
+ * web.xml.
+ */
+public class RollUpCountersServlet extends OdeServlet {
+
+  private final transient GalleryStorageIo galleryStorageIo =
+      GalleryStorageIoInstanceHolder.INSTANCE;
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    long galleryId;
+    try {
+      galleryId = Long.parseLong(req.getParameter(ObjectifyGalleryStorageIo.GALLERY_ID_PARAMETER));
+    } catch (NumberFormatException e) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+    galleryStorageIo.rollUpCounters(galleryId);
+  }
+}
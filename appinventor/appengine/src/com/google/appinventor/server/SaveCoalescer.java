@@ -0,0 +1,386 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.storage.StorageUtil;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces the auto-saves of project files.
+ *
+ * <p>The editors save a file every few seconds while the user is working on
+ * it. Once a file has been written to storage, later saves of it within
+ * save.coalesce.window.ms are deferred instead: they are kept in memcache,
+ * where they replace each other, and only the latest is written when the
+ * window is over. So a file that is being edited is written about once per
+ * window rather than once per save, and a deferred save costs no datastore
+ * operation at all.
+ *
+ * <p>A task queued with the first deferred save writes the deferred saves of
+ * the user at the end of the window, together and with one update of the
+ * date of each project, whether or not the user keeps working. A deferred
+ * save is only dropped from memcache once it has been written, and the task
+ * is retried until then. The client also flushes its deferred saves when its
+ * window is closed, see {@link ProjectServiceImpl#flushSaves}.
+ *
+ * <p>Deferred saves are kept in memcache only for the length of the window.
+ * If memcache evicts them before the task writes them, the saves of that
+ * window are lost, but the editor still holds the content and writes it with
+ * its next save. That is the price of not writing the datastore per save.
+ *
+ * <p>Reading, building or exporting a project, and writing or deleting its
+ * files by other means, must first {@link #flush} the deferred saves of the
+ * project.
+ *
+ */
+public class SaveCoalescer {
+
+  private static final Logger LOG = Logger.getLogger(SaveCoalescer.class.getName());
+
+  private static final Flag<Integer> windowMs = Flag.createFlag("save.coalesce.window.ms", 10000);
+
+  /**
+   * Url of the servlet that flushes the deferred saves of a user.
+   */
+  public static final String FLUSH_URL = "/admin/flushsaves";
+
+  /**
+   * Parameter of the flush request with the id of the user.
+   */
+  public static final String USER_ID_PARAMETER = "userId";
+
+  private static final String CACHE_KEY_PREFIX = "pendingSaves:";
+
+  // Longer than any window
+  private static final int CACHE_SECONDS = 60 * 60;
+
+  // Memcache values are limited to 1MB, so the deferred saves of a user are
+  // kept under this many characters, and saves beyond it are written through
+  private static final int MAX_DEFERRED_CHARS = 256 * 1024;
+
+  // Saving a blocks file this small may be refused as a truncated workspace,
+  // which the client must hear about, so it is never deferred. See
+  // ObjectifyStorageIo.setFileContent.
+  private static final int MIN_DEFERRED_BLOCKS_CHARS = 125;
+
+  private static final int MAX_UPDATE_ATTEMPTS = 5;
+
+  // A deferred save of a file
+  private static class PendingSave implements Serializable {
+    final long projectId;
+    final String fileId;
+    final boolean force;
+    final String content;
+
+    PendingSave(long projectId, String fileId, boolean force, String content) {
+      this.projectId = projectId;
+      this.fileId = fileId;
+      this.force = force;
+      this.content = content;
+    }
+
+    boolean sameAs(PendingSave other) {
+      return other != null && force == other.force && content.equals(other.content);
+    }
+  }
+
+  // The saves of a user, kept in memcache
+  private static class PendingSaves implements Serializable {
+    // When each file was last written, by file key
+    final Map<String, Long> written = new HashMap<String, Long>();
+    // Deferred saves, by file key
+    final LinkedHashMap<String, PendingSave> pending = new LinkedHashMap<String, PendingSave>();
+    // When the queued flush task is due, or 0
+    long flushDue;
+
+    int pendingChars() {
+      int chars = 0;
+      for (PendingSave save : pending.values()) {
+        chars += save.content.length();
+      }
+      return chars;
+    }
+  }
+
+  // A change to the saves of a user
+  private interface Update {
+    /**
+     * @return whether saves was changed
+     */
+    boolean apply(PendingSaves saves);
+  }
+
+  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+  private final StorageIo storageIo;
+
+  /**
+   * Creates a coalescer that writes to the given storage.
+   *
+   * @param storageIo storage of the projects
+   */
+  public SaveCoalescer(StorageIo storageIo) {
+    this.storageIo = storageIo;
+  }
+
+  /**
+   * Saves the content of a file, or defers it if the file was written less
+   * than a window ago. Same as {@link StorageIo#uploadFile} or, if force is
+   * true, {@link StorageIo#uploadFileForce}.
+   *
+   * <p>For a deferred save, the date returned is the time of the save, which
+   * is what the project's date will be about when the save is written. The
+   * date stored with the project is only updated by the flush, up to a window
+   * later, and is a little later than the date returned.
+   *
+   * @param userId the user id
+   * @param projectId project ID
+   * @param fileId file ID
+   * @param force whether to write an empty blocks workspace
+   * @param content content to be saved
+   * @return modification date for project
+   * @throws BlocksTruncatedException if force is false and the content is an
+   *     empty blocks workspace that would replace blocks
+   */
+  public long save2(String userId, long projectId, String fileId, boolean force,
+      String content) throws BlocksTruncatedException {
+    final int window = windowMs.get();
+    final String fileKey = fileKey(projectId, fileId);
+    final long now = System.currentTimeMillis();
+    final PendingSave save = new PendingSave(projectId, fileId, force, content);
+    final boolean deferrable = window > 0 && content.length() <= MAX_DEFERRED_CHARS
+        && !(fileId.endsWith(".bky") && content.length() < MIN_DEFERRED_BLOCKS_CHARS);
+    final boolean[] deferred = new boolean[1];
+    final boolean[] queueFlush = new boolean[1];
+
+    boolean updated = window > 0 && update(userId, new Update() {
+      @Override
+      public boolean apply(PendingSaves saves) {
+        // This save replaces any deferred save of the file
+        saves.pending.remove(fileKey);
+        Long written = saves.written.get(fileKey);
+        deferred[0] = deferrable && written != null && now - written < window
+            && saves.pendingChars() + save.content.length() <= MAX_DEFERRED_CHARS;
+        if (deferred[0]) {
+          saves.pending.put(fileKey, save);
+          queueFlush[0] = saves.flushDue < now;
+          if (queueFlush[0]) {
+            saves.flushDue = now + window;
+          }
+        } else {
+          saves.written.put(fileKey, now);
+        }
+        // Forget files that haven't been written for a while
+        Iterator<Map.Entry<String, Long>> it = saves.written.entrySet().iterator();
+        while (it.hasNext()) {
+          Map.Entry<String, Long> entry = it.next();
+          if (now - entry.getValue() >= window && !saves.pending.containsKey(entry.getKey())) {
+            it.remove();
+          }
+        }
+        return true;
+      }
+    });
+
+    if (updated && deferred[0]) {
+      if (queueFlush[0] && !queueFlushTask(userId, window)) {
+        // Without the task, nothing would write the deferred saves
+        flushAll(userId);
+      }
+      return now;
+    }
+    if (force) {
+      return storageIo.uploadFileForce(projectId, fileId, userId, content,
+          StorageUtil.DEFAULT_CHARSET);
+    } else {
+      return storageIo.uploadFile(projectId, fileId, userId, content,
+          StorageUtil.DEFAULT_CHARSET);
+    }
+  }
+
+  /**
+   * Writes the deferred saves of a project.
+   *
+   * @param userId the user id
+   * @param projectId project ID
+   * @return whether all of them were written
+   */
+  public boolean flush(String userId, long projectId) {
+    return flushPending(userId, projectId);
+  }
+
+  /**
+   * Writes all the deferred saves of a user.
+   *
+   * @param userId the user id
+   * @return whether all of them were written
+   */
+  public boolean flushAll(String userId) {
+    return flushPending(userId, null);
+  }
+
+  /*
+   * Writes the deferred saves of a project, or of all projects if projectId
+   * is null. The saves of each project are written together, and dropped
+   * from memcache once written, unless they were replaced meanwhile. Returns
+   * whether all of them were written.
+   */
+  private boolean flushPending(String userId, Long projectId) {
+    PendingSaves current;
+    try {
+      current = (PendingSaves) memcache.get(cacheKey(userId));
+    } catch (RuntimeException e) {
+      LOG.log(Level.SEVERE, "Unable to read deferred saves of user " + userId, e);
+      return false;
+    }
+    if (current == null) {
+      return true;
+    }
+
+    // Group the saves by project and force
+    Map<String, Map<String, PendingSave>> batches =
+        new LinkedHashMap<String, Map<String, PendingSave>>();
+    for (Map.Entry<String, PendingSave> entry : current.pending.entrySet()) {
+      PendingSave save = entry.getValue();
+      if (projectId == null || save.projectId == projectId) {
+        String batchKey = save.projectId + ":" + save.force;
+        Map<String, PendingSave> batch = batches.get(batchKey);
+        if (batch == null) {
+          batch = new LinkedHashMap<String, PendingSave>();
+          batches.put(batchKey, batch);
+        }
+        batch.put(entry.getKey(), save);
+      }
+    }
+    if (batches.isEmpty()) {
+      return true;
+    }
+
+    boolean flushed = true;
+    final Map<String, PendingSave> written = new HashMap<String, PendingSave>();
+    for (Map<String, PendingSave> batch : batches.values()) {
+      PendingSave first = batch.values().iterator().next();
+      Map<String, String> contents = new LinkedHashMap<String, String>();
+      for (PendingSave save : batch.values()) {
+        contents.put(save.fileId, save.content);
+      }
+      try {
+        storageIo.uploadFiles(first.projectId, userId, first.force, contents,
+            StorageUtil.DEFAULT_CHARSET);
+        written.putAll(batch);
+      } catch (BlocksTruncatedException e) {
+        // Small blocks files aren't deferred, so this shouldn't happen. It
+        // would be refused again, so it is dropped.
+        LOG.log(Level.SEVERE, "Deferred save of project " + first.projectId
+            + " refused as truncated blocks", e);
+        written.putAll(batch);
+      } catch (RuntimeException e) {
+        // Kept, to be written by the retried task or the next flush
+        LOG.log(Level.SEVERE, "Unable to write deferred saves of project "
+            + first.projectId + " for user " + userId, e);
+        flushed = false;
+      }
+    }
+    if (written.isEmpty()) {
+      return false;
+    }
+
+    final long now = System.currentTimeMillis();
+    boolean dropped = update(userId, new Update() {
+      @Override
+      public boolean apply(PendingSaves saves) {
+        for (Map.Entry<String, PendingSave> entry : written.entrySet()) {
+          // A save made since the read replaces the written one
+          if (entry.getValue().sameAs(saves.pending.get(entry.getKey()))) {
+            saves.pending.remove(entry.getKey());
+          }
+          // Later saves of the file are deferred again
+          saves.written.put(entry.getKey(), now);
+        }
+        return true;
+      }
+    });
+    // Writing them again later does no harm, but the flush isn't done
+    return flushed && dropped;
+  }
+
+  /*
+   * Queues the task that flushes the deferred saves of a user at the end of
+   * the window.
+   */
+  private boolean queueFlushTask(String userId, int window) {
+    try {
+      QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(FLUSH_URL)
+          .param(USER_ID_PARAMETER, userId)
+          .countdownMillis(window));
+      return true;
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Unable to queue flush of deferred saves", e);
+      return false;
+    }
+  }
+
+  /*
+   * Applies an update to the saves of a user in memcache, retrying when
+   * another request changes them at the same time. Returns whether the
+   * update was applied and stored.
+   */
+  private boolean update(String userId, Update update) {
+    String cacheKey = cacheKey(userId);
+    Expiration expiration = Expiration.byDeltaSeconds(CACHE_SECONDS);
+    try {
+      for (int attempt = 0; attempt < MAX_UPDATE_ATTEMPTS; attempt++) {
+        IdentifiableValue current = memcache.getIdentifiable(cacheKey);
+        if (current == null || current.getValue() == null) {
+          PendingSaves saves = new PendingSaves();
+          if (!update.apply(saves)) {
+            return false;
+          }
+          if (memcache.put(cacheKey, saves, expiration, SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+            return true;
+          }
+        } else {
+          PendingSaves saves = (PendingSaves) current.getValue();
+          if (!update.apply(saves)) {
+            return false;
+          }
+          if (memcache.putIfUntouched(cacheKey, current, saves, expiration)) {
+            return true;
+          }
+        }
+      }
+      LOG.warning("Too much contention on the saves of user " + userId);
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Unable to update the saves of user " + userId, e);
+    }
+    return false;
+  }
+
+  private static String cacheKey(String userId) {
+    return CACHE_KEY_PREFIX + userId;
+  }
+
+  private static String fileKey(long projectId, String fileId) {
+    return projectId + "/" + fileId;
+  }
+}
@@ -18,6 +18,7 @@ import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.appinventor.shared.util.Base64Util;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * The base class for classes that provide project services for a specific
@@ -160,6 +161,19 @@ public abstract class CommonProjectService {
     return storageIo.downloadFile(userId, projectId, fileId, StorageUtil.DEFAULT_CHARSET);
   }
 
+  /**
+   * Loads the contents of several files of a project at once.
+   *
+   * @param userId the user id
+   * @param projectId  project root node ID
+   * @param fileIds  project nodes whose sources should be loaded
+   *
+   * @return  map from file ID to file content, in the order of fileIds
+   */
+  public Map<String, String> load(String userId, long projectId, List<String> fileIds) {
+    return storageIo.downloadFiles(userId, projectId, fileIds, StorageUtil.DEFAULT_CHARSET);
+  }
+
   /**
    * Loads the file information associated with a node in the project tree. The
    * actual return value depends on the file kind. Source (text) files should
@@ -247,6 +261,25 @@ public abstract class CommonProjectService {
     }
   }
 
+  /**
+   * Saves the contents of several files of a project at once. Like
+   * {@link #save(String, long, String, String)}, this always sets force to true.
+   *
+   * @param userId the user id
+   * @param projectId  project root node ID
+   * @param contents  map from file ID to the content to be saved
+   * @return modification date for project
+   */
+  public long save(String userId, long projectId, Map<String, String> contents) {
+    try {
+      return storageIo.uploadFiles(projectId, userId, true, contents,
+          StorageUtil.DEFAULT_CHARSET);
+    } catch (BlocksTruncatedException e) {
+      // Won't happen because it isn't thrown when the force argument is true
+      return 0;
+    }
+  }
+
   /**
    * Saves the content of the file associated with a node in the project tree.
    * if force is false, an error is thrown if an attempt is made to save a
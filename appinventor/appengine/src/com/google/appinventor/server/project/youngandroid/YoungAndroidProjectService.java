@@ -28,7 +28,6 @@ import com.google.appinventor.shared.rpc.project.NewProjectParameters;
 import com.google.appinventor.shared.rpc.project.Project;
 import com.google.appinventor.shared.rpc.project.ProjectNode;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
-import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.rpc.project.TextFile;
 import com.google.appinventor.shared.rpc.project.youngandroid.NewYoungAndroidProjectParameters;
@@ -47,9 +46,12 @@ import com.google.appinventor.shared.settings.SettingsConstants;
 import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.appinventor.shared.youngandroid.YoungAndroidSourceAnalyzer;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
 import com.google.common.io.CharStreams;
+import com.google.common.io.CountingOutputStream;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -79,7 +81,6 @@ import java.util.logging.Logger;
  */
 public final class YoungAndroidProjectService extends CommonProjectService {
 
-  private static int currentProgress = 0;
   private static final Logger LOG = Logger.getLogger(YoungAndroidProjectService.class.getName());
 
   // The value of this flag can be changed in appengine-web.xml
@@ -531,7 +532,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       storageIo.deleteFile(userId, projectId, buildOutputFile);
     }
     URL buildServerUrl = null;
-    ProjectSourceZip zipFile = null;
+    CountingOutputStream zipOutputStream = null;
     try {
       buildServerUrl = new URL(getBuildServerUrlStr(
           user.getUserEmail(),
@@ -542,14 +543,17 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       connection.setDoOutput(true);
       connection.setRequestMethod("POST");
 
-      BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
+      // The zip is written straight into the request, as its files are read from storage, rather
+      // than being collected in memory first.
+      zipOutputStream = new CountingOutputStream(
+          new BufferedOutputStream(connection.getOutputStream()));
       FileExporter fileExporter = new FileExporterImpl();
-      zipFile = fileExporter.exportProjectSourceZip(userId, projectId, false,
-          /* includeAndroidKeystore */ true,
-          projectName + ".aia", true);
-      bufferedOutputStream.write(zipFile.getContent());
-      bufferedOutputStream.flush();
-      bufferedOutputStream.close();
+      try {
+        fileExporter.exportProjectSourceZip(userId, projectId, false,
+            /* includeAndroidKeystore */ true, true, zipOutputStream);
+      } finally {
+        zipOutputStream.close();
+      }
 
       int responseCode = 0;
       responseCode = connection.getResponseCode();
@@ -593,7 +597,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     } catch (IOException e) {
       // As of App Engine 1.9.0 we get these when UrlFetch is asked to send too much data
       Throwable wrappedException = e;
-      int zipFileLength = zipFile.getContent().length;
+      long zipFileLength = (zipOutputStream == null) ? 0 : zipOutputStream.getCount();
       if (zipFileLength >= (5 * 1024 * 1024) /* 5 MB */) {
         String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
         wrappedException = new IllegalArgumentException(
@@ -611,8 +615,8 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       // In particular, we often see RequestTooLargeException (if the zip is too
       // big) and ApiProxyException. There may be others.
       Throwable wrappedException = e;
-      if (e instanceof ApiProxy.RequestTooLargeException && zipFile != null) {
-        int zipFileLength = zipFile.getContent().length;
+      if (e instanceof ApiProxy.RequestTooLargeException && zipOutputStream != null) {
+        long zipFileLength = zipOutputStream.getCount();
         if (zipFileLength >= (5 * 1024 * 1024) /* 5 MB */) {
           String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
           wrappedException = new IllegalArgumentException(
@@ -644,6 +648,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       throws UnsupportedEncodingException, EncryptionException {
     return "http://" + buildServerHost.get() + "/buildserver/build-all-from-zip-async"
            + "?uname=" + URLEncoder.encode(userName, "UTF-8")
+           + "&buildId=" + getBuildId(userId, projectId, fileName)
            + (sendGitVersion.get()
                ? "&gitBuildVersion="
                  + URLEncoder.encode(GitBuildId.getVersion(), "UTF-8")
@@ -656,6 +661,21 @@ public final class YoungAndroidProjectService extends CommonProjectService {
                                "UTF-8");
   }
 
+  private String getBuildStatusUrlStr(String userId, long projectId, String fileName) {
+    return "http://" + buildServerHost.get() + "/buildserver/build-status/"
+        + getBuildId(userId, projectId, fileName);
+  }
+
+  /*
+   * Returns the id under which the build server tracks the build of the given project and
+   * target. The same id is sent when the build is requested and when its progress is asked for,
+   * so it doesn't need to be stored. It is a hash, so it doesn't reveal the user or the project.
+   */
+  private static String getBuildId(String userId, long projectId, String fileName) {
+    return Hashing.sha1().hashString(userId + "/" + projectId + "/" + fileName, Charsets.UTF_8)
+        .toString();
+  }
+
   private String getCurrentHost() {
     if (Server.isProductionServer()) {
       String applicationVersionId = SystemProperty.applicationVersion.get();
@@ -700,8 +720,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     String userId = user.getUserId();
     String buildOutputFileName = BUILD_FOLDER + '/' + target + '/' + "build.out";
     List<String> outputFiles = storageIo.getProjectOutputFiles(userId, projectId);
-    updateCurrentProgress(user, projectId, target);
-    RpcResult buildResult = new RpcResult(-1, ""+currentProgress, ""); // Build not finished
+    RpcResult buildResult = null;
     for (String outputFile : outputFiles) {
       if (buildOutputFileName.equals(outputFile)) {
         String outputStr = storageIo.downloadFile(userId, projectId, outputFile, "UTF-8");
@@ -717,51 +736,41 @@ public final class YoungAndroidProjectService extends CommonProjectService {
         break;
       }
     }
+    if (buildResult == null) {
+      // Build not finished
+      buildResult = new RpcResult(-1, "" + getCurrentProgress(user, projectId, target), "");
+    }
     return buildResult;
   }
 
   /**
-   * Check if there are any build progress available for the given user's project
+   * Asks the build server for the progress of the build of the given user's project.
    *
    * @param user the User that owns the {@code projectId}.
    * @param projectId  project id to be built
    * @param target  build target (optional, implementation dependent)
+   * @return the progress of the build in percent, or 0 if it is not known
    */
-  public void updateCurrentProgress(User user, long projectId, String target) {
+  private int getCurrentProgress(User user, long projectId, String target) {
+    String outputFileDir = BUILD_FOLDER + '/' + target;
     try {
-      String userId = user.getUserId();
-      String projectName = storageIo.getProjectName(userId, projectId);
-      String outputFileDir = BUILD_FOLDER + '/' + target;
-      URL buildServerUrl = null;
-      ProjectSourceZip zipFile = null;
-
-      buildServerUrl = new URL(getBuildServerUrlStr(user.getUserEmail(),
-        userId, projectId, outputFileDir));
-      HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
-      connection.setDoOutput(true);
-      connection.setRequestMethod("POST");
-
-      int responseCode = connection.getResponseCode();
-        if (responseCode == HttpURLConnection.HTTP_OK) {
-          try {
-            String content = readContent(connection.getInputStream());
-            if (content != null && !content.isEmpty()) {
-              LOG.info("The current progress is " + content + "%.");
-              currentProgress = Integer.parseInt(content);
-            }
-          } catch (IOException e) {
-            // No content. That's ok.
-          }
-         }
-      } catch (MalformedURLException e) {
-        // that's ok, nothing to do
-      } catch (IOException e) {
-        // that's ok, nothing to do
-      } catch (EncryptionException e) {
-        // that's ok, nothing to do
-      } catch (RuntimeException e) {
-        // that's ok, nothing to do
+      URL buildStatusUrl = new URL(getBuildStatusUrlStr(user.getUserId(), projectId,
+          outputFileDir));
+      HttpURLConnection connection = (HttpURLConnection) buildStatusUrl.openConnection();
+      connection.setRequestMethod("GET");
+      if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+        String content = readContent(connection.getInputStream());
+        if (content != null && !content.isEmpty()) {
+          LOG.info("The current progress is " + content + "%.");
+          return Integer.parseInt(content.trim());
+        }
       }
+    } catch (IOException e) {
+      // that's ok, nothing to do
+    } catch (RuntimeException e) {
+      // that's ok, nothing to do
+    }
+    return 0;
   }
 
   // Nicely format floating number using only two decimal places
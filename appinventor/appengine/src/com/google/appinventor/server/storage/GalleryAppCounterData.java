@@ -0,0 +1,28 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import javax.persistence.Id;
+
+/**
+ * One shard of the download and like counters of a gallery app.
+ *
+ * <p>Downloads and likes are counted in a shard picked at random, each in its
+ * own entity group, so that they don't contend on the GalleryAppData of a
+ * popular app. The counts are those not yet rolled up into GalleryAppData.
+ * See ObjectifyGalleryStorageIo.rollUpCounters.
+ */
+public class GalleryAppCounterData {
+  // galleryId + "-" + shard number
+  @Id String id;
+  long galleryId;
+  int downloads;
+  int unreadDownloads;
+  // Likes less unlikes, so these can be negative
+  int likes;
+  int unreadLikes;
+}
@@ -31,6 +31,12 @@ public class GalleryAppData {
   @Indexed public int numDownloads;
   @Indexed public int unreadLikes;
   @Indexed public int unreadDownloads;
+  // Rolled up from GalleryAppLikeData and the GalleryAppCounterData shards,
+  // once likesCounted is set
+  @Indexed public int numLikes;
+  boolean likesCounted;
+  // When the GalleryAppCounterData shards were last rolled up into this
+  long countersRolledUp;
   long projectId;
   int status;
 
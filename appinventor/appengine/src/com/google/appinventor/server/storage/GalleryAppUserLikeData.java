@@ -0,0 +1,28 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import javax.persistence.Id;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Parent;
+
+import com.google.appinventor.server.storage.StoredData.UserData;
+
+/**
+ * A like of a gallery app by a user.
+ *
+ * <p>Likes are kept in the entity group of the user who liked the app, keyed
+ * by the id of the app, so that liking doesn't contend on the entity group of
+ * a popular app, and a user likes an app at most once. Likes made before
+ * them are GalleryAppLikeData in the entity group of the app.
+ */
+public class GalleryAppUserLikeData {
+  // The gallery id of the app
+  @Id Long id;
+  @Parent Key<UserData> userKey;
+}
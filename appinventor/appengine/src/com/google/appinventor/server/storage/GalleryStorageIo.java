@@ -36,6 +36,14 @@ public interface GalleryStorageIo {
    */
   GalleryApp getGalleryApp(long galleryId);
 
+  /**
+   * Returns gallery apps, fetched together
+   * @param galleryIds ids of gallery apps you want
+   * @return list of {@link GalleryApp}, in the order of galleryIds, without
+   *     those that don't exist
+   */
+  List<GalleryApp> getGalleryApps(List<Long> galleryIds);
+
   /**
    * creates a new gallery app
    * @param title title of new app
@@ -71,6 +79,15 @@ public interface GalleryStorageIo {
    */
   GalleryAppListResult getRecentGalleryApps(int start, int count);
 
+  /**
+   * Returns a page of the most recently updated galleryApps and the total
+   * number of them
+   * @param cursor the cursor of the previous page, or null for the first page
+   * @param count number of apps you want
+   * @return list of {@link GalleryApp}, with the cursor of the next page
+   */
+  GalleryAppListResult getRecentGalleryApps(String cursor, int count);
+
   /**
    * Returns a wrapped class which contains a list of most downloaded
    * gallery apps and total number of results in database
@@ -80,6 +97,15 @@ public interface GalleryStorageIo {
    */
   GalleryAppListResult getMostDownloadedApps(int start, int count);
 
+  /**
+   * Returns a page of the most downloaded gallery apps and the total number
+   * of them
+   * @param cursor the cursor of the previous page, or null for the first page
+   * @param count number of apps you want
+   * @return list of {@link GalleryApp}, with the cursor of the next page
+   */
+  GalleryAppListResult getMostDownloadedApps(String cursor, int count);
+
   /**
    *Returns a wrapped class which contains a list of featured gallery app
    * @param start start index
@@ -292,6 +318,12 @@ public interface GalleryStorageIo {
    */
   boolean checkIfSendAppStats(String userId, long galleryId, String adminEmail, String currentHost);
 
+  /**
+   * roll up the counts of downloads and likes of an app that are kept apart
+   * @param galleryId id of gallery app
+   */
+  void rollUpCounters(long galleryId);
+
   /**
    * store moderation action
    * @param reportId report id
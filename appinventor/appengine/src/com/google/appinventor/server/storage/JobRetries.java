@@ -0,0 +1,293 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.server.flags.Flag;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Paces the retries of datastore jobs and keeps statistics about them.
+ *
+ * <p>A failed job is retried after a delay that grows exponentially with the
+ * number of retries, up to a maximum, and is chosen at random below that
+ * bound ("full jitter"), so that jobs contending for the same entity group
+ * spread out instead of colliding again. Each run of a job has a retry
+ * budget: a maximum number of retries and a maximum time spent retrying.
+ *
+ * <p>Statistics are kept per job type, which is the method that created the
+ * job, for example "ObjectifyStorageIo.uploadRawFiles".
+ *
+ * @see ObjectifyStorageIo#runJobWithRetries
+ */
+public final class JobRetries {
+
+  private static final Flag<Integer> initialBackoffMsFlag =
+      Flag.createFlag("job.retry.initial.backoff.ms", 20);
+  private static final Flag<Integer> maxBackoffMsFlag =
+      Flag.createFlag("job.retry.max.backoff.ms", 1000);
+  private static final Flag<Integer> budgetMsFlag =
+      Flag.createFlag("job.retry.budget.ms", 5000);
+
+  // The names and descriptions of the counters, in the order of JobStats.getCounters().
+  private static final String[][] COUNTERS = {
+    { "runs", "Runs of datastore jobs." },
+    { "retries", "Retries of datastore jobs." },
+    { "contentions", "Attempts of datastore jobs that failed because of contention." },
+    { "failures", "Runs of datastore jobs that exhausted their retry budget." },
+    { "backoff_ms", "Time spent waiting between retries of datastore jobs, in milliseconds." },
+  };
+
+  // Upper bounds of the buckets of the histogram of retries per run.
+  private static final int[] RETRY_BUCKETS = { 0, 1, 2, 3, 5, 10 };
+
+  private static final ConcurrentMap<String, JobStats> stats =
+      new ConcurrentHashMap<String, JobStats>();
+
+  private static final ConcurrentMap<Class<?>, String> jobTypes =
+      new ConcurrentHashMap<Class<?>, String>();
+
+  private final int maxRetries;
+  private final long initialBackoffMs;
+  private final long maxBackoffMs;
+  private final long budgetMs;
+  private final Random random = new Random();
+
+  /**
+   * The statistics of one job type.
+   */
+  public static final class JobStats {
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong contentions = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong backoffMs = new AtomicLong();
+    private final AtomicLongArray retryHistogram = new AtomicLongArray(RETRY_BUCKETS.length + 1);
+
+    /** Returns the number of runs, whether or not they succeeded. */
+    public long getRuns() {
+      return runs.get();
+    }
+
+    /** Returns the total number of retries. */
+    public long getRetries() {
+      return retries.get();
+    }
+
+    /** Returns the number of attempts that failed because of contention. */
+    public long getContentions() {
+      return contentions.get();
+    }
+
+    /** Returns the number of runs that gave up after exhausting their retry budget. */
+    public long getFailures() {
+      return failures.get();
+    }
+
+    /** Returns the total time spent waiting between retries, in milliseconds. */
+    public long getBackoffMs() {
+      return backoffMs.get();
+    }
+
+    /**
+     * Returns the cumulative histogram of retries per run: the number of runs
+     * with at most {@link JobRetries#getRetryBuckets()}[i] retries, followed by the
+     * total number of runs.
+     */
+    public long[] getRetryHistogram() {
+      long[] histogram = new long[RETRY_BUCKETS.length + 1];
+      long count = 0;
+      for (int i = 0; i < histogram.length; i++) {
+        count += retryHistogram.get(i);
+        histogram[i] = count;
+      }
+      return histogram;
+    }
+
+    private long[] getCounters() {
+      return new long[] { getRuns(), getRetries(), getContentions(), getFailures(),
+          getBackoffMs() };
+    }
+
+    private void recordRun(int retryCount) {
+      int bucket = 0;
+      while (bucket < RETRY_BUCKETS.length && retryCount > RETRY_BUCKETS[bucket]) {
+        bucket++;
+      }
+      retryHistogram.incrementAndGet(bucket);
+      runs.incrementAndGet();
+    }
+  }
+
+  /**
+   * Creates a JobRetries with the backoff and budget configured by the
+   * job.retry.* flags.
+   *
+   * @param maxRetries the maximum number of retries of one run of a job
+   */
+  JobRetries(int maxRetries) {
+    this(maxRetries, initialBackoffMsFlag.get(), maxBackoffMsFlag.get(), budgetMsFlag.get());
+  }
+
+  @VisibleForTesting
+  JobRetries(int maxRetries, long initialBackoffMs, long maxBackoffMs, long budgetMs) {
+    this.maxRetries = maxRetries;
+    this.initialBackoffMs = initialBackoffMs;
+    this.maxBackoffMs = maxBackoffMs;
+    this.budgetMs = budgetMs;
+  }
+
+  /**
+   * Returns the type of the given job, the method that created it.
+   */
+  static String getJobType(Object job) {
+    Class<?> jobClass = job.getClass();
+    String jobType = jobTypes.get(jobClass);
+    if (jobType == null) {
+      Method method = jobClass.getEnclosingMethod();
+      jobType = (method == null) ? jobClass.getSimpleName()
+          : method.getDeclaringClass().getSimpleName() + "." + method.getName();
+      jobTypes.put(jobClass, jobType);
+    }
+    return jobType;
+  }
+
+  /**
+   * Records that an attempt of a job failed because of contention.
+   */
+  void recordContention(String jobType) {
+    getStats(jobType).contentions.incrementAndGet();
+  }
+
+  /**
+   * Records that a run of a job succeeded.
+   *
+   * @param jobType the type of the job
+   * @param retryCount the number of retries it took
+   */
+  void recordSuccess(String jobType, int retryCount) {
+    getStats(jobType).recordRun(retryCount);
+  }
+
+  /**
+   * Waits before retrying a job, unless its retry budget is exhausted, in
+   * which case the run is recorded as failed.
+   *
+   * @param jobType the type of the job
+   * @param retryCount the number of the retry about to be made, starting at 1
+   * @param startMillis when the run of the job started
+   * @return whether the job should be retried
+   */
+  boolean backOff(String jobType, int retryCount, long startMillis) {
+    JobStats jobStats = getStats(jobType);
+    long delayMs = getBackoffMs(retryCount);
+    long elapsedMs = System.currentTimeMillis() - startMillis;
+    if (retryCount > maxRetries || elapsedMs + delayMs > budgetMs) {
+      jobStats.failures.incrementAndGet();
+      jobStats.recordRun(retryCount - 1);
+      return false;
+    }
+    jobStats.retries.incrementAndGet();
+    if (delayMs > 0) {
+      try {
+        Thread.sleep(delayMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        jobStats.failures.incrementAndGet();
+        jobStats.recordRun(retryCount - 1);
+        return false;
+      }
+      jobStats.backoffMs.addAndGet(delayMs);
+    }
+    return true;
+  }
+
+  /**
+   * Returns a random delay before the given retry, between 0 and the
+   * exponentially growing bound.
+   */
+  @VisibleForTesting
+  long getBackoffMs(int retryCount) {
+    long bound = initialBackoffMs << Math.min(Math.max(retryCount - 1, 0), 20);
+    bound = Math.min(bound, maxBackoffMs);
+    if (bound <= 0) {
+      return 0;
+    }
+    synchronized (random) {
+      return (long) (random.nextDouble() * (bound + 1));
+    }
+  }
+
+  private static JobStats getStats(String jobType) {
+    JobStats jobStats = stats.get(jobType);
+    if (jobStats == null) {
+      JobStats newStats = new JobStats();
+      jobStats = stats.putIfAbsent(jobType, newStats);
+      if (jobStats == null) {
+        jobStats = newStats;
+      }
+    }
+    return jobStats;
+  }
+
+  /**
+   * Returns the statistics of all job types that have run on this instance,
+   * sorted by job type.
+   */
+  public static SortedMap<String, JobStats> getStats() {
+    return new TreeMap<String, JobStats>(stats);
+  }
+
+  /**
+   * Returns the upper bounds of the buckets of
+   * {@link JobStats#getRetryHistogram()}.
+   */
+  public static int[] getRetryBuckets() {
+    return RETRY_BUCKETS.clone();
+  }
+
+  /**
+   * Appends the statistics of all job types in the Prometheus text format.
+   */
+  public static void writeStats(StringBuilder sb) {
+    SortedMap<String, JobStats> allStats = getStats();
+    for (int i = 0; i < COUNTERS.length; i++) {
+      String name = "appinventor_job_" + COUNTERS[i][0] + "_total";
+      sb.append("# HELP ").append(name).append(' ').append(COUNTERS[i][1]).append('\n');
+      sb.append("# TYPE ").append(name).append(" counter\n");
+      for (Map.Entry<String, JobStats> entry : allStats.entrySet()) {
+        sb.append(name).append("{job=\"").append(entry.getKey()).append("\"} ")
+            .append(entry.getValue().getCounters()[i]).append('\n');
+      }
+    }
+
+    String name = "appinventor_job_retries_per_run";
+    sb.append("# HELP ").append(name).append(" Retries per run of datastore jobs.\n");
+    sb.append("# TYPE ").append(name).append(" histogram\n");
+    for (Map.Entry<String, JobStats> entry : allStats.entrySet()) {
+      long[] histogram = entry.getValue().getRetryHistogram();
+      for (int i = 0; i < histogram.length; i++) {
+        String le = (i < RETRY_BUCKETS.length) ? Integer.toString(RETRY_BUCKETS[i]) : "+Inf";
+        sb.append(name).append("_bucket{job=\"").append(entry.getKey())
+            .append("\",le=\"").append(le).append("\"} ").append(histogram[i]).append('\n');
+      }
+      sb.append(name).append("_sum{job=\"").append(entry.getKey()).append("\"} ")
+          .append(entry.getValue().getRetries()).append('\n');
+      sb.append(name).append("_count{job=\"").append(entry.getKey()).append("\"} ")
+          .append(histogram[histogram.length - 1]).append('\n');
+    }
+  }
+}
@@ -0,0 +1,1634 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.server.CrashReport;
+import com.google.appinventor.server.FileExporter;
+import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.Motd;
+import com.google.appinventor.shared.rpc.Nonce;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
+import com.google.appinventor.shared.rpc.project.RawFile;
+import com.google.appinventor.shared.rpc.project.TextFile;
+import com.google.appinventor.shared.rpc.project.UserProject;
+import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
+import com.google.appinventor.shared.rpc.user.User;
+import com.google.appinventor.shared.storage.StorageUtil;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * Implements the StorageIo interface using files on local disk, for
+ * self-hosted servers that don't use the App Engine datastore, memcache,
+ * Blobstore or GCS.
+ *
+ * <p>The metadata of each user and project is kept in a properties file,
+ * read once and then held in memory. The content of each file is kept in a
+ * file of its own. Every write goes to a temporary file that is renamed into
+ * place, so readers never see a partial write. Large files are exported
+ * through memory-mapped buffers, without a copy on the heap, and recently
+ * used contents are kept in a bounded in-process cache.
+ *
+ * <p>The storage directory is laid out as follows, with user ids and file
+ * names URL-encoded, and names too long for the file system shortened with a
+ * hash:
+ * <pre>
+ *   users/&lt;user id&gt;/user.properties
+ *   users/&lt;user id&gt;/files/&lt;file name&gt;
+ *   projects/&lt;project id&gt;/project.properties
+ *   projects/&lt;project id&gt;/files/&lt;file name&gt;
+ *   counters.properties, motd.properties, nonces.properties,
+ *   rendezvous.properties, whitelist, feedback.log, corruption.log
+ * </pre>
+ *
+ * <p>Select it by setting storage.backend to "local" and local.storage.dir to
+ * the storage directory in appengine-web.xml.
+ */
+public class LocalStorageIo implements StorageIo {
+  private static final Flag<String> storageDir = Flag.createFlag("local.storage.dir", "");
+  private static final Flag<Integer> cacheSizeMb = Flag.createFlag("local.storage.cache.mb", 64);
+  static final Flag<Boolean> requireTos = Flag.createFlag("require.tos", false);
+
+  private static final Logger LOG = Logger.getLogger(LocalStorageIo.class.getName());
+
+  private static final String DEFAULT_ENCODING = "UTF-8";
+
+  private static final long MOTD_ID = 1;
+
+  // Files at least this large are exported through a memory-mapped buffer.
+  private static final int MAP_THRESHOLD = 64 * 1024;
+
+  // Nonces are removed this long after they were stored. See cleanupNonces().
+  private static final long NONCE_RETENTION_MS = 3 * 3600 * 1000L;
+
+  // The longest file name most file systems allow, in bytes. Escaped names
+  // are ASCII, so this is also their longest length in characters.
+  private static final int MAX_NAME_LENGTH = 255;
+
+  // Separates the beginning of a shortened name from the hash of the whole
+  // name. URL encoding never produces it, so shortened names can be told
+  // apart.
+  private static final char HASH_SEPARATOR = '~';
+
+  private static final String NEXT_PROJECT_ID = "nextProjectId";
+
+  private static final String FILE_PREFIX = "file.";
+  private static final String SOURCE = "source";
+  private static final String TARGET = "target";
+
+  private final File usersDir;
+  private final File projectsDir;
+  private final File countersFile;
+  private final File motdFile;
+  private final File noncesFile;
+  private final File rendezvousFile;
+  private final File whitelistFile;
+  private final File feedbackFile;
+  private final File corruptionFile;
+
+  // Users and projects that have been read, by id.
+  private final ConcurrentMap<String, UserRecord> users =
+      new ConcurrentHashMap<String, UserRecord>();
+  private final ConcurrentMap<Long, ProjectRecord> projects =
+      new ConcurrentHashMap<Long, ProjectRecord>();
+
+  // Guarded by this. Saved in the counters file, so that the ids of deleted
+  // projects aren't given out again after a restart.
+  private long nextProjectId;
+
+  // Contents of recently used project files, by project id and file name.
+  private final Cache<String, byte[]> contentCache;
+
+  // Guarded by this.
+  private final Properties nonces;
+  private final Properties rendezvous;
+
+  /*
+   * The metadata of a user. Guarded by itself.
+   */
+  private static final class UserRecord {
+    final String id;
+    String email = "";
+    String name;
+    String link = "";
+    int emailFrequency = User.DEFAULT_EMAIL_NOTIFICATION_FREQUENCY;
+    int type = User.USER;
+    boolean tosAccepted = false;
+    String sessionId;
+    String settings = "";
+    long visited;
+    final Set<Long> projectIds = new LinkedHashSet<Long>();
+    // Files that have been added, whether or not they have content yet.
+    final Set<String> fileNames = new LinkedHashSet<String>();
+
+    UserRecord(String id) {
+      this.id = id;
+    }
+  }
+
+  /*
+   * The metadata of a project. Guarded by itself.
+   */
+  private static final class ProjectRecord {
+    final long id;
+    String name;
+    String type;
+    String settings;
+    String history;
+    long dateCreated;
+    long dateModified;
+    long galleryId = UserProject.NOTPUBLISHED;
+    long attributionId = UserProject.FROMSCRATCH;
+    // The role of each file, SOURCE or TARGET, in the order the files were added.
+    final Map<String, String> fileRoles = new LinkedHashMap<String, String>();
+
+    ProjectRecord(long id) {
+      this.id = id;
+    }
+  }
+
+  /**
+   * Creates a LocalStorageIo that keeps its data in the directory given by
+   * the local.storage.dir flag.
+   */
+  public LocalStorageIo() {
+    this(new File(storageDir.get()));
+  }
+
+  @VisibleForTesting
+  LocalStorageIo(File root) {
+    usersDir = new File(root, "users");
+    projectsDir = new File(root, "projects");
+    countersFile = new File(root, "counters.properties");
+    motdFile = new File(root, "motd.properties");
+    noncesFile = new File(root, "nonces.properties");
+    rendezvousFile = new File(root, "rendezvous.properties");
+    whitelistFile = new File(root, "whitelist");
+    feedbackFile = new File(root, "feedback.log");
+    corruptionFile = new File(root, "corruption.log");
+    usersDir.mkdirs();
+    projectsDir.mkdirs();
+
+
+    contentCache = CacheBuilder.newBuilder()
+        .maximumWeight(cacheSizeMb.get() * 1024L * 1024L)
+        .weigher(new Weigher<String, byte[]>() {
+          @Override
+          public int weigh(String key, byte[] content) {
+            return content.length;
+          }
+        })
+        .build();
+
+    try {
+      nonces = readProperties(noncesFile);
+      rendezvous = readProperties(rendezvousFile);
+      nextProjectId = readNextProjectId();
+      initMotd();
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Opening local storage " + root, e);
+    }
+  }
+
+  // User management
+
+  @Override
+  public User getUser(String userId) {
+    return getUser(userId, null);
+  }
+
+  /*
+   * Note that the User returned by this method will always have isAdmin set to
+   * false. We leave it to the caller to determine whether the user has admin
+   * priviledges.
+   */
+  @Override
+  public User getUser(String userId, String email) {
+    UserRecord user = getOrCreateUser(userId, email);
+    synchronized (user) {
+      if (email != null && !email.equals(user.email)) {
+        user.email = email;
+        writeUser(user);
+      }
+      return new User(user.id, user.email, user.name, user.link, user.emailFrequency,
+          user.tosAccepted || !requireTos.get(), false, user.type, user.sessionId);
+    }
+  }
+
+  @Override
+  public void setTosAccepted(String userId) {
+    UserRecord user = findUser(userId);
+    if (user != null) {
+      synchronized (user) {
+        user.tosAccepted = true;
+        writeUser(user);
+      }
+    }
+  }
+
+  @Override
+  public void setUserEmail(String userId, String email) {
+    UserRecord user = findUser(userId);
+    if (user != null) {
+      synchronized (user) {
+        user.email = email;
+        writeUser(user);
+      }
+    }
+  }
+
+  @Override
+  public void setUserName(String userId, String name) {
+    UserRecord user = findUser(userId);
+    if (user != null) {
+      synchronized (user) {
+        user.name = name;
+        writeUser(user);
+      }
+    }
+  }
+
+  @Override
+  public void setUserLink(String userId, String link) {
+    UserRecord user = findUser(userId);
+    if (user != null) {
+      synchronized (user) {
+        user.link = link;
+        writeUser(user);
+      }
+    }
+  }
+
+  @Override
+  public void setUserEmailFrequency(String userId, int emailFrequency) {
+    UserRecord user = findUser(userId);
+    if (user != null) {
+      synchronized (user) {
+        user.emailFrequency = emailFrequency;
+        writeUser(user);
+      }
+    }
+  }
+
+  @Override
+  public void setUserSessionId(String userId, String sessionId) {
+    UserRecord user = findUser(userId);
+    if (user != null) {
+      synchronized (user) {
+        user.sessionId = sessionId;
+        writeUser(user);
+      }
+    }
+  }
+
+  @Override
+  public String loadSettings(String userId) {
+    UserRecord user = findUser(userId);
+    if (user == null) {
+      return "";
+    }
+    synchronized (user) {
+      return user.settings;
+    }
+  }
+
+  @Override
+  public String getUserName(String userId) {
+    UserRecord user = findUser(userId);
+    if (user == null) {
+      return "unknown";
+    }
+    synchronized (user) {
+      return user.name;
+    }
+  }
+
+  @Override
+  public String getUserLink(String userId) {
+    UserRecord user = findUser(userId);
+    if (user == null) {
+      return "unknown";
+    }
+    synchronized (user) {
+      return user.link;
+    }
+  }
+
+  @Override
+  public int getUserEmailFrequency(String userId) {
+    UserRecord user = findUser(userId);
+    if (user == null) {
+      return User.DEFAULT_EMAIL_NOTIFICATION_FREQUENCY;
+    }
+    synchronized (user) {
+      return user.emailFrequency;
+    }
+  }
+
+  @Override
+  public void storeSettings(String userId, String settings) {
+    UserRecord user = findUser(userId);
+    if (user != null) {
+      synchronized (user) {
+        user.settings = settings;
+        user.visited = System.currentTimeMillis(); // Indicate that this person was active now
+        writeUser(user);
+      }
+    }
+  }
+
+  // Project management
+
+  @Override
+  public long createProject(String userId, Project project, String projectSettings) {
+    long projectId = allocateProjectId();
+    ProjectRecord pd = new ProjectRecord(projectId);
+    long date = System.currentTimeMillis();
+    pd.dateCreated = date;
+    pd.dateModified = date;
+    pd.history = project.getProjectHistory();
+    pd.name = project.getProjectName();
+    pd.settings = projectSettings;
+    pd.type = project.getProjectType();
+    try {
+      for (TextFile file : project.getSourceFiles()) {
+        pd.fileRoles.put(file.getFileName(), SOURCE);
+        writeAtomically(projectFile(projectId, file.getFileName()),
+            file.getContent().getBytes(DEFAULT_ENCODING));
+      }
+      for (RawFile file : project.getRawSourceFiles()) {
+        pd.fileRoles.put(file.getFileName(), SOURCE);
+        writeAtomically(projectFile(projectId, file.getFileName()), file.getContent());
+      }
+      writeProperties(toProperties(pd), projectPropertiesFile(projectId));
+    } catch (IOException e) {
+      deleteRecursively(projectDir(projectId));
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId), e);
+    }
+    projects.put(projectId, pd);
+
+    UserRecord user = getOrCreateUser(userId, null);
+    synchronized (user) {
+      user.projectIds.add(projectId);
+      writeUser(user);
+    }
+    return projectId;
+  }
+
+  @Override
+  public void deleteProject(String userId, long projectId) {
+    UserRecord user = findUser(userId);
+    if (user != null) {
+      synchronized (user) {
+        user.projectIds.remove(projectId);
+        writeUser(user);
+      }
+    }
+    ProjectRecord pd = findProject(projectId);
+    if (pd != null) {
+      synchronized (pd) {
+        for (String fileName : pd.fileRoles.keySet()) {
+          contentCache.invalidate(cacheKey(projectId, fileName));
+        }
+        pd.fileRoles.clear();
+        projects.remove(projectId);
+        deleteRecursively(projectDir(projectId));
+      }
+    }
+  }
+
+  @Override
+  public List<Long> getProjects(String userId) {
+    UserRecord user = findUser(userId);
+    if (user == null) {
+      return new ArrayList<Long>();
+    }
+    synchronized (user) {
+      return new ArrayList<Long>(user.projectIds);
+    }
+  }
+
+  @Override
+  public void setProjectGalleryId(String userId, long projectId, long galleryId) {
+    ProjectRecord pd = findProject(projectId);
+    if (pd != null) {
+      synchronized (pd) {
+        pd.galleryId = galleryId;
+        writeProject(pd);
+      }
+    }
+  }
+
+  @Override
+  public void setProjectAttributionId(String userId, long projectId, long attributionId) {
+    ProjectRecord pd = findProject(projectId);
+    if (pd != null) {
+      synchronized (pd) {
+        pd.attributionId = attributionId;
+        writeProject(pd);
+      }
+    }
+  }
+
+  @Override
+  public String loadProjectSettings(String userId, long projectId) {
+    checkProjectOwner(userId, projectId);
+    ProjectRecord pd = findProject(projectId);
+    if (pd == null) {
+      return "";
+    }
+    synchronized (pd) {
+      return pd.settings;
+    }
+  }
+
+  @Override
+  public void storeProjectSettings(String userId, long projectId, String settings) {
+    ProjectRecord pd = findProject(projectId);
+    if (pd != null) {
+      synchronized (pd) {
+        pd.settings = settings;
+        writeProject(pd);
+      }
+    }
+  }
+
+  @Override
+  public String getProjectType(String userId, long projectId) {
+    // We only have one project type, no need to ask about it
+    return YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE;
+  }
+
+  @Override
+  public UserProject getUserProject(String userId, long projectId) {
+    ProjectRecord pd = findProject(projectId);
+    if (pd == null) {
+      return null;
+    }
+    synchronized (pd) {
+      return new UserProject(projectId, pd.name, pd.type, pd.dateCreated, pd.dateModified,
+          pd.galleryId, pd.attributionId);
+    }
+  }
+
+  @Override
+  public String getProjectName(String userId, long projectId) {
+    ProjectRecord pd = findProject(projectId);
+    if (pd == null) {
+      return "";
+    }
+    synchronized (pd) {
+      return pd.name;
+    }
+  }
+
+  @Override
+  public long getProjectDateModified(String userId, long projectId) {
+    ProjectRecord pd = findProject(projectId);
+    if (pd == null) {
+      return UserProject.NOTPUBLISHED;
+    }
+    synchronized (pd) {
+      return pd.dateModified;
+    }
+  }
+
+  @Override
+  public String getProjectHistory(String userId, long projectId) {
+    checkProjectOwner(userId, projectId);
+    ProjectRecord pd = findProject(projectId);
+    if (pd == null) {
+      return "";
+    }
+    synchronized (pd) {
+      return pd.history;
+    }
+  }
+
+  @Override
+  public long getProjectDateCreated(String userId, long projectId) {
+    ProjectRecord pd = findProject(projectId);
+    if (pd == null) {
+      return UserProject.NOTPUBLISHED;
+    }
+    synchronized (pd) {
+      return pd.dateCreated;
+    }
+  }
+
+  @Override
+  public long getProjectGalleryId(String userId, long projectId) {
+    ProjectRecord pd = findProject(projectId);
+    if (pd == null) {
+      return UserProject.NOTPUBLISHED;
+    }
+    synchronized (pd) {
+      return pd.galleryId;
+    }
+  }
+
+  @Override
+  public long getProjectAttributionId(long projectId) {
+    ProjectRecord pd = findProject(projectId);
+    if (pd == null) {
+      return UserProject.FROMSCRATCH;
+    }
+    synchronized (pd) {
+      return pd.attributionId;
+    }
+  }
+
+  // User file management
+
+  @Override
+  public void addFilesToUser(String userId, String... fileNames) {
+    UserRecord user = getOrCreateUser(userId, null);
+    synchronized (user) {
+      Collections.addAll(user.fileNames, fileNames);
+      writeUser(user);
+    }
+  }
+
+  @Override
+  public List<String> getUserFiles(String userId) {
+    UserRecord user = findUser(userId);
+    if (user == null) {
+      return new ArrayList<String>();
+    }
+    synchronized (user) {
+      return new ArrayList<String>(user.fileNames);
+    }
+  }
+
+  @Override
+  public void uploadUserFile(String userId, String fileName, String content, String encoding) {
+    try {
+      uploadRawUserFile(userId, fileName, content.getBytes(encoding));
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, "
+          + collectUserErrorInfo(userId, fileName), e);
+    }
+  }
+
+  @Override
+  public void uploadRawUserFile(String userId, String fileName, byte[] content) {
+    UserRecord user = findUser(userId);
+    Preconditions.checkState(user != null);
+    synchronized (user) {
+      Preconditions.checkState(user.fileNames.contains(fileName));
+      try {
+        writeAtomically(userFile(userId, fileName), content);
+      } catch (IOException e) {
+        throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId, fileName), e);
+      }
+    }
+  }
+
+  @Override
+  public String downloadUserFile(String userId, String fileName, String encoding) {
+    try {
+      return new String(downloadRawUserFile(userId, fileName), encoding);
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, " +
+          collectUserErrorInfo(userId, fileName), e);
+    }
+  }
+
+  @Override
+  public byte[] downloadRawUserFile(String userId, String fileName) {
+    UserRecord user = findUser(userId);
+    if (user != null) {
+      synchronized (user) {
+        if (user.fileNames.contains(fileName)) {
+          try {
+            return readFile(userFile(userId, fileName));
+          } catch (IOException e) {
+            throw CrashReport.createAndLogError(LOG, null,
+                collectUserErrorInfo(userId, fileName), e);
+          }
+        }
+      }
+    }
+    throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId, fileName),
+        new FileNotFoundException(fileName));
+  }
+
+  @Override
+  public void deleteUserFile(String userId, String fileName) {
+    UserRecord user = findUser(userId);
+    if (user != null) {
+      synchronized (user) {
+        if (user.fileNames.remove(fileName)) {
+          userFile(userId, fileName).delete();
+          writeUser(user);
+        }
+      }
+    }
+  }
+
+  @Override
+  public int getMaxJobSizeBytes() {
+    // Same as ObjectifyStorageIo
+    return 5 * 1024 * 1024;
+  }
+
+  // Project file management
+
+  @Override
+  public void addSourceFilesToProject(String userId, long projectId, boolean changeModDate,
+      String... fileNames) {
+    checkProjectOwner(userId, projectId);
+    addFilesToProject(projectId, SOURCE, changeModDate, fileNames);
+  }
+
+  @Override
+  public void addOutputFilesToProject(String userId, long projectId, String... fileNames) {
+    checkProjectOwner(userId, projectId);
+    addFilesToProject(projectId, TARGET, false, fileNames);
+  }
+
+  private void addFilesToProject(long projectId, String role, boolean changeModDate,
+      String... fileNames) {
+    ProjectRecord pd = getProject(projectId);
+    synchronized (pd) {
+      for (String fileName : fileNames) {
+        checkFileRole(pd, fileName, role);
+      }
+      for (String fileName : fileNames) {
+        if (!pd.fileRoles.containsKey(fileName)) {
+          pd.fileRoles.put(fileName, role);
+        }
+      }
+      if (changeModDate) {
+        updateProjectModDate(pd);
+      }
+      writeProject(pd);
+    }
+  }
+
+  @Override
+  public void removeSourceFilesFromProject(String userId, long projectId, boolean changeModDate,
+      String... fileNames) {
+    removeFilesFromProject(projectId, SOURCE, changeModDate, fileNames);
+  }
+
+  @Override
+  public void removeOutputFilesFromProject(String userId, long projectId, String... fileNames) {
+    removeFilesFromProject(projectId, TARGET, false, fileNames);
+  }
+
+  private void removeFilesFromProject(long projectId, String role, boolean changeModDate,
+      String... fileNames) {
+    ProjectRecord pd = getProject(projectId);
+    synchronized (pd) {
+      for (String fileName : fileNames) {
+        checkFileRole(pd, fileName, role);
+      }
+      for (String fileName : fileNames) {
+        if (pd.fileRoles.remove(fileName) != null) {
+          contentCache.invalidate(cacheKey(projectId, fileName));
+          projectFile(projectId, fileName).delete();
+        }
+      }
+      if (changeModDate) {
+        updateProjectModDate(pd);
+      }
+      writeProject(pd);
+    }
+  }
+
+  private void checkFileRole(ProjectRecord pd, String fileName, String role) {
+    String oldRole = pd.fileRoles.get(fileName);
+    if (oldRole != null && !oldRole.equals(role)) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(null, pd.id, fileName),
+          new IllegalStateException("File role change is not supported"));
+    }
+  }
+
+  @Override
+  public List<String> getProjectSourceFiles(String userId, long projectId) {
+    checkProjectOwner(userId, projectId);
+    return getProjectFiles(projectId, SOURCE);
+  }
+
+  @Override
+  public List<String> getProjectOutputFiles(String userId, long projectId) {
+    checkProjectOwner(userId, projectId);
+    return getProjectFiles(projectId, TARGET);
+  }
+
+  private List<String> getProjectFiles(long projectId, String role) {
+    List<String> fileList = new ArrayList<String>();
+    ProjectRecord pd = findProject(projectId);
+    if (pd != null) {
+      synchronized (pd) {
+        for (Map.Entry<String, String> entry : pd.fileRoles.entrySet()) {
+          if (entry.getValue().equals(role)) {
+            fileList.add(entry.getKey());
+          }
+        }
+      }
+    }
+    return fileList;
+  }
+
+  @Override
+  public long uploadFile(long projectId, String fileName, String userId, String content,
+      String encoding) throws BlocksTruncatedException {
+    try {
+      return uploadRawFile(projectId, fileName, userId, false, content.getBytes(encoding));
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
+          + collectProjectErrorInfo(null, projectId, fileName), e);
+    }
+  }
+
+  @Override
+  public long uploadFileForce(long projectId, String fileName, String userId, String content,
+      String encoding) {
+    try {
+      return uploadRawFileForce(projectId, fileName, userId, content.getBytes(encoding));
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
+          + collectProjectErrorInfo(null, projectId, fileName), e);
+    }
+  }
+
+  @Override
+  public long uploadRawFileForce(long projectId, String fileName, String userId,
+      byte[] content) {
+    try {
+      return uploadRawFile(projectId, fileName, userId, true, content);
+    } catch (BlocksTruncatedException e) {
+      // Won't get here, exception isn't thrown when force is true
+      return 0;
+    }
+  }
+
+  @Override
+  public long uploadRawFile(long projectId, String fileName, String userId, boolean force,
+      byte[] content) throws BlocksTruncatedException {
+    return uploadRawFiles(projectId, userId, force, Collections.singletonMap(fileName, content));
+  }
+
+  @Override
+  public long uploadFiles(long projectId, String userId, boolean force,
+      Map<String, String> contents, String encoding) throws BlocksTruncatedException {
+    Map<String, byte[]> rawContents = new LinkedHashMap<String, byte[]>();
+    for (Map.Entry<String, String> entry : contents.entrySet()) {
+      try {
+        rawContents.put(entry.getKey(), entry.getValue().getBytes(encoding));
+      } catch (UnsupportedEncodingException e) {
+        throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
+            + collectProjectErrorInfo(userId, projectId, entry.getKey()), e);
+      }
+    }
+    return uploadRawFiles(projectId, userId, force, rawContents);
+  }
+
+  private long uploadRawFiles(long projectId, String userId, boolean force,
+      Map<String, byte[]> contents) throws BlocksTruncatedException {
+    ProjectRecord pd = findProject(projectId);
+    Preconditions.checkState(pd != null);
+    synchronized (pd) {
+      // Check all the files before changing anything, so that a failed check
+      // leaves the project as it was
+      for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+        String fileName = entry.getKey();
+        // <Screen>.yail files are missing when user converts AI1 project to AI2
+        // instead of blowing up, they are added below
+        Preconditions.checkState(pd.fileRoles.containsKey(fileName)
+            || fileName.endsWith(".yail"));
+        // Likely this is an empty blocks workspace, so refuse to overwrite previous content
+        // unless force is true
+        if (!force && entry.getValue().length < 125 && fileName.endsWith(".bky")
+            && projectFile(projectId, fileName).length() > 120) {
+          throw new BlocksTruncatedException();
+        }
+      }
+      for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+        String fileName = entry.getKey();
+        if (!pd.fileRoles.containsKey(fileName)) {
+          pd.fileRoles.put(fileName, SOURCE);
+        }
+        try {
+          writeAtomically(projectFile(projectId, fileName), entry.getValue());
+        } catch (IOException e) {
+          contentCache.invalidate(cacheKey(projectId, fileName));
+          throw CrashReport.createAndLogError(LOG, null,
+              collectProjectErrorInfo(userId, projectId, fileName), e);
+        }
+        contentCache.put(cacheKey(projectId, fileName), entry.getValue());
+      }
+      long modDate = updateProjectModDate(pd);
+      writeProject(pd);
+      return modDate;
+    }
+  }
+
+  /*
+   * Updates the modification date of a project and returns it. Like
+   * ObjectifyStorageIo, the date is only moved forward when it is more than a
+   * minute old, to avoid needless writes. The caller writes the project.
+   */
+  private long updateProjectModDate(ProjectRecord pd) {
+    long modDate = System.currentTimeMillis();
+    if (modDate > (pd.dateModified + 1000*60)) {
+      pd.dateModified = modDate;
+    }
+    return pd.dateModified;
+  }
+
+  @Override
+  public long deleteFile(String userId, long projectId, String fileName) {
+    checkProjectOwner(userId, projectId);
+    ProjectRecord pd = findProject(projectId);
+    if (pd == null) {
+      return 0;
+    }
+    synchronized (pd) {
+      pd.fileRoles.remove(fileName);
+      contentCache.invalidate(cacheKey(projectId, fileName));
+      projectFile(projectId, fileName).delete();
+      long modDate = updateProjectModDate(pd);
+      writeProject(pd);
+      return modDate;
+    }
+  }
+
+  @Override
+  public String downloadFile(String userId, long projectId, String fileName, String encoding) {
+    try {
+      return new String(downloadRawFile(userId, projectId, fileName), encoding);
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, "
+          + collectProjectErrorInfo(userId, projectId, fileName), e);
+    }
+  }
+
+  @Override
+  public Map<String, String> downloadFiles(String userId, long projectId, List<String> fileNames,
+      String encoding) {
+    checkProjectOwner(userId, projectId);
+    Map<String, String> files = new LinkedHashMap<String, String>();
+    for (String fileName : fileNames) {
+      try {
+        files.put(fileName, new String(readProjectFile(userId, projectId, fileName), encoding));
+      } catch (UnsupportedEncodingException e) {
+        throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, "
+            + collectProjectErrorInfo(userId, projectId, fileName), e);
+      }
+    }
+    return files;
+  }
+
+  @Override
+  public byte[] downloadRawFile(String userId, long projectId, String fileName) {
+    checkProjectOwner(userId, projectId);
+    return readProjectFile(userId, projectId, fileName);
+  }
+
+  /*
+   * Returns the content of a project file, from the cache if it is there.
+   */
+  private byte[] readProjectFile(String userId, long projectId, String fileName) {
+    String cacheKey = cacheKey(projectId, fileName);
+    byte[] content = contentCache.getIfPresent(cacheKey);
+    if (content != null) {
+      return content;
+    }
+    ProjectRecord pd = findProject(projectId);
+    if (pd != null) {
+      synchronized (pd) {
+        if (pd.fileRoles.containsKey(fileName)) {
+          try {
+            content = readFile(projectFile(projectId, fileName));
+          } catch (IOException e) {
+            throw CrashReport.createAndLogError(LOG, null,
+                collectProjectErrorInfo(userId, projectId, fileName), e);
+          }
+          contentCache.put(cacheKey, content);
+          return content;
+        }
+      }
+    }
+    throw CrashReport.createAndLogError(LOG, null,
+        collectProjectErrorInfo(userId, projectId, fileName),
+        new FileNotFoundException("No data for " + fileName));
+  }
+
+  @Override
+  public void recordCorruption(String userId, long projectId, String fileId, String message) {
+    appendLine(corruptionFile, Joiner.on('\t').useForNull("").join(
+        new Date(), userId, projectId, fileId, message));
+  }
+
+  // Export
+
+  @Override
+  public ProjectSourceZip exportProjectSourceZip(String userId, long projectId,
+                                                 boolean includeProjectHistory,
+                                                 boolean includeAndroidKeystore,
+                                                 @Nullable String zipName,
+                                                 boolean fatalError) throws IOException {
+    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    int fileCount = exportProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, fatalError, zipFile);
+    String projectName = getProjectName(userId, projectId);
+    if (zipName == null) {
+      zipName = projectName + ".aia";
+    }
+    ProjectSourceZip projectSourceZip =
+        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount);
+    projectSourceZip.setMetadata(projectName);
+    return projectSourceZip;
+  }
+
+  @Override
+  public int exportProjectSourceZip(String userId, long projectId,
+                                    boolean includeProjectHistory,
+                                    boolean includeAndroidKeystore,
+                                    boolean fatalError,
+                                    OutputStream outputStream) throws IOException {
+    List<String> fileNames = new ArrayList<String>();
+    String projectHistory = null;
+    ProjectRecord pd = findProject(projectId);
+    if (pd != null) {
+      synchronized (pd) {
+        for (Map.Entry<String, String> entry : pd.fileRoles.entrySet()) {
+          // Skip legacy remix history files that were previous stored with the project
+          if (entry.getValue().equals(SOURCE)
+              && !entry.getKey().equals(FileExporter.REMIX_INFORMATION_FILE_PATH)) {
+            fileNames.add(entry.getKey());
+          }
+        }
+        if (includeProjectHistory && !Strings.isNullOrEmpty(pd.history)) {
+          projectHistory = pd.history;
+        }
+      }
+    }
+    if (fileNames.isEmpty()) {
+      // Nothing has been written yet, so the zip can still be abandoned.
+      throw new IllegalArgumentException("No files to download");
+    }
+
+    ZipOutputStream out = new ZipOutputStream(outputStream);
+    int fileCount = 0;
+    for (String fileName : fileNames) {
+      out.putNextEntry(new ZipEntry(fileName));
+      byte[] cached = contentCache.getIfPresent(cacheKey(projectId, fileName));
+      if (cached != null) {
+        out.write(cached);
+      } else {
+        copyFile(projectFile(projectId, fileName), out);
+      }
+      out.closeEntry();
+      fileCount++;
+    }
+    if (projectHistory != null) {
+      byte[] data = projectHistory.getBytes(StorageUtil.DEFAULT_CHARSET);
+      out.putNextEntry(new ZipEntry(FileExporter.REMIX_INFORMATION_FILE_PATH));
+      out.write(data, 0, data.length);
+      out.closeEntry();
+      fileCount++;
+    }
+    if (includeAndroidKeystore) {
+      File keystore = userFile(userId, StorageUtil.ANDROID_KEYSTORE_FILENAME);
+      if (keystore.length() > 0) {
+        out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
+        copyFile(keystore, out);
+        out.closeEntry();
+        fileCount++;
+      }
+    }
+    // Finish the zip, but leave the caller's stream open.
+    out.finish();
+    return fileCount;
+  }
+
+  // Miscellaneous
+
+  @Override
+  public Motd getCurrentMotd() {
+    try {
+      Properties motd = readProperties(motdFile);
+      return new Motd(MOTD_ID, motd.getProperty("caption"), motd.getProperty("content"));
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, null, e);
+    }
+  }
+
+  private void initMotd() throws IOException {
+    if (!motdFile.exists()) {
+      Properties motd = new Properties();
+      motd.setProperty("caption", "Hello!");
+      motd.setProperty("content", "Welcome to the experimental App Inventor system from MIT. " +
+          "This is still a prototype.  It would be a good idea to frequently back up " +
+          "your projects to local storage.");
+      writeProperties(motd, motdFile);
+    }
+  }
+  /*
+   * Returns the next project id from the counters file. Storage written
+   * before there was a counters file continues after its highest project id.
+   */
+  private long readNextProjectId() throws IOException {
+    long next = Long.parseLong(readProperties(countersFile).getProperty(NEXT_PROJECT_ID, "1"));
+    String[] projectDirs = projectsDir.list();
+    if (projectDirs != null) {
+      for (String projectDir : projectDirs) {
+        try {
+          next = Math.max(next, Long.parseLong(projectDir) + 1);
+        } catch (NumberFormatException e) {
+          // Not a project
+        }
+      }
+    }
+    return next;
+  }
+
+  /*
+   * Returns a new project id. The id after it is saved before it is used.
+   */
+  private synchronized long allocateProjectId() {
+    long projectId = nextProjectId;
+    Properties counters = new Properties();
+    counters.setProperty(NEXT_PROJECT_ID, Long.toString(projectId + 1));
+    try {
+      writeProperties(counters, countersFile);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Saving the next project id", e);
+    }
+    nextProjectId = projectId + 1;
+    return projectId;
+  }
+
+
+  @Override
+  public String findUserByEmail(String email) throws NoSuchElementException {
+    String[] userDirs = usersDir.list();
+    if (userDirs != null) {
+      for (String userDir : userDirs) {
+        String userId = userIdOfDir(userDir);
+        UserRecord user = (userId == null) ? null : findUser(userId);
+        if (user != null) {
+          synchronized (user) {
+            if (email.equals(user.email)) {
+              return user.id;
+            }
+          }
+        }
+      }
+    }
+    throw new NoSuchElementException("Couldn't find a user with email " + email);
+  }
+
+  @Override
+  public synchronized String findIpAddressByKey(String key) {
+    String value = rendezvous.getProperty(key);
+    return (value == null) ? null : value.substring(value.indexOf('\t') + 1);
+  }
+
+  @Override
+  public synchronized void storeIpAddressByKey(String key, String ipAddress) {
+    // The time is kept so old entries can be cleaned up
+    rendezvous.setProperty(key, System.currentTimeMillis() + "\t" + ipAddress);
+    try {
+      writeProperties(rendezvous, rendezvousFile);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, null, e);
+    }
+  }
+
+  @Override
+  public boolean checkWhiteList(String email) {
+    if (!whitelistFile.exists()) {
+      return false;
+    }
+    try {
+      for (String line : Files.readLines(whitelistFile, Charsets.UTF_8)) {
+        if (line.trim().equalsIgnoreCase(email)) {
+          return true;
+        }
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to read " + whitelistFile, e);
+    }
+    return false;
+  }
+
+  @Override
+  public void storeFeedback(String notes, String foundIn, String faultData, String comments,
+      String datestamp, String email, String projectId) {
+    appendLine(feedbackFile, Joiner.on('\t').useForNull("").join(
+        datestamp, email, projectId, foundIn, notes, comments, faultData));
+  }
+
+  // Nonce Management Routines.
+  // The Nonce is used to map to userId and ProjectId and is used
+  // for non-authenticated access to a built APK file.
+
+  @Override
+  public synchronized Nonce getNoncebyValue(String nonceValue) {
+    String value = nonces.getProperty(nonceValue);
+    if (value == null) {
+      return null;
+    }
+    List<String> fields = Splitter.on('\t').limit(3).splitToList(value);
+    return new Nonce(nonceValue, fields.get(2), Long.parseLong(fields.get(1)),
+        new Date(Long.parseLong(fields.get(0))));
+  }
+
+  @Override
+  public synchronized void storeNonce(String nonceValue, String userId, long projectId) {
+    nonces.setProperty(nonceValue, System.currentTimeMillis() + "\t" + projectId + "\t" + userId);
+    try {
+      writeProperties(nonces, noncesFile);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, null, e);
+    }
+  }
+
+  // Cleanup expired nonces which are older then 3 hours. Normal Nonce lifetime
+  // is 2 hours. So for one hour they persist and return "link expired" instead of
+  // "link not found" (after the object itself is removed).
+  @Override
+  public synchronized void cleanupNonces() {
+    long expired = System.currentTimeMillis() - NONCE_RETENTION_MS;
+    boolean removed = false;
+    for (String nonceValue : nonces.stringPropertyNames()) {
+      String value = nonces.getProperty(nonceValue);
+      if (Long.parseLong(value.substring(0, value.indexOf('\t'))) < expired) {
+        nonces.remove(nonceValue);
+        removed = true;
+      }
+    }
+    if (removed) {
+      try {
+        writeProperties(nonces, noncesFile);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Exception during cleanupNonces", e);
+      }
+    }
+  }
+
+  // Users and projects
+
+  /*
+   * Returns the user with the given id, or null if there is none.
+   */
+  private UserRecord findUser(String userId) {
+    UserRecord user = users.get(userId);
+    if (user == null) {
+      File file = userPropertiesFile(userId);
+      if (!file.exists()) {
+        return null;
+      }
+      try {
+        user = fromUserProperties(userId, readProperties(file));
+      } catch (IOException e) {
+        throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
+      }
+      UserRecord other = users.putIfAbsent(userId, user);
+      if (other != null) {
+        user = other;
+      }
+    }
+    return user;
+  }
+
+  private UserRecord getOrCreateUser(String userId, String email) {
+    UserRecord user = findUser(userId);
+    if (user == null) {
+      UserRecord newUser = new UserRecord(userId);
+      newUser.email = (email == null) ? "" : email;
+      newUser.name = User.getDefaultName(email);
+      user = users.putIfAbsent(userId, newUser);
+      if (user == null) {
+        user = newUser;
+        synchronized (user) {
+          writeUser(user);
+        }
+      }
+    }
+    return user;
+  }
+
+  private void writeUser(UserRecord user) {
+    Properties properties = new Properties();
+    properties.setProperty("id", user.id);
+    properties.setProperty("email", user.email);
+    if (user.name != null) {
+      properties.setProperty("name", user.name);
+    }
+    properties.setProperty("link", user.link);
+    properties.setProperty("emailFrequency", Integer.toString(user.emailFrequency));
+    properties.setProperty("type", Integer.toString(user.type));
+    properties.setProperty("tosAccepted", Boolean.toString(user.tosAccepted));
+    if (user.sessionId != null) {
+      properties.setProperty("sessionId", user.sessionId);
+    }
+    properties.setProperty("settings", user.settings);
+    properties.setProperty("visited", Long.toString(user.visited));
+    properties.setProperty("projects", Joiner.on(',').join(user.projectIds));
+    for (String fileName : user.fileNames) {
+      properties.setProperty(FILE_PREFIX + fileName, "");
+    }
+    try {
+      writeProperties(properties, userPropertiesFile(user.id));
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(user.id), e);
+    }
+  }
+
+  private static UserRecord fromUserProperties(String userId, Properties properties) {
+    UserRecord user = new UserRecord(userId);
+    user.email = properties.getProperty("email", "");
+    user.name = properties.getProperty("name");
+    user.link = properties.getProperty("link", "");
+    user.emailFrequency = Integer.parseInt(properties.getProperty("emailFrequency",
+        Integer.toString(User.DEFAULT_EMAIL_NOTIFICATION_FREQUENCY)));
+    user.type = Integer.parseInt(properties.getProperty("type", Integer.toString(User.USER)));
+    user.tosAccepted = Boolean.parseBoolean(properties.getProperty("tosAccepted"));
+    user.sessionId = properties.getProperty("sessionId");
+    user.settings = properties.getProperty("settings", "");
+    user.visited = Long.parseLong(properties.getProperty("visited", "0"));
+    for (String projectId : Splitter.on(',').omitEmptyStrings()
+        .split(properties.getProperty("projects", ""))) {
+      user.projectIds.add(Long.parseLong(projectId));
+    }
+    for (String key : properties.stringPropertyNames()) {
+      if (key.startsWith(FILE_PREFIX)) {
+        user.fileNames.add(key.substring(FILE_PREFIX.length()));
+      }
+    }
+    return user;
+  }
+
+  /*
+   * Returns the project with the given id, or null if there is none.
+   */
+  private ProjectRecord findProject(long projectId) {
+    ProjectRecord pd = projects.get(projectId);
+    if (pd == null) {
+      File file = projectPropertiesFile(projectId);
+      if (!file.exists()) {
+        return null;
+      }
+      try {
+        pd = fromProjectProperties(projectId, readProperties(file));
+      } catch (IOException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(null, projectId, null), e);
+      }
+      ProjectRecord other = projects.putIfAbsent(projectId, pd);
+      if (other != null) {
+        pd = other;
+      }
+    }
+    return pd;
+  }
+
+  private ProjectRecord getProject(long projectId) {
+    ProjectRecord pd = findProject(projectId);
+    if (pd == null) {
+      throw CrashReport.createAndLogError(LOG, null, null,
+          new IllegalArgumentException("project " + projectId + " doesn't exist"));
+    }
+    return pd;
+  }
+
+  private void writeProject(ProjectRecord pd) {
+    try {
+      writeProperties(toProperties(pd), projectPropertiesFile(pd.id));
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(null, pd.id, null), e);
+    }
+  }
+
+  private static Properties toProperties(ProjectRecord pd) {
+    Properties properties = new Properties();
+    properties.setProperty("name", Strings.nullToEmpty(pd.name));
+    properties.setProperty("type", Strings.nullToEmpty(pd.type));
+    if (pd.settings != null) {
+      properties.setProperty("settings", pd.settings);
+    }
+    if (pd.history != null) {
+      properties.setProperty("history", pd.history);
+    }
+    properties.setProperty("dateCreated", Long.toString(pd.dateCreated));
+    properties.setProperty("dateModified", Long.toString(pd.dateModified));
+    properties.setProperty("galleryId", Long.toString(pd.galleryId));
+    properties.setProperty("attributionId", Long.toString(pd.attributionId));
+    // Properties don't keep their order, so the order of the files is recorded separately.
+    int index = 0;
+    for (Map.Entry<String, String> entry : pd.fileRoles.entrySet()) {
+      properties.setProperty(FILE_PREFIX + entry.getKey(), (index++) + "\t" + entry.getValue());
+    }
+    return properties;
+  }
+
+  private static ProjectRecord fromProjectProperties(long projectId, Properties properties) {
+    ProjectRecord pd = new ProjectRecord(projectId);
+    pd.name = properties.getProperty("name");
+    pd.type = properties.getProperty("type");
+    pd.settings = properties.getProperty("settings");
+    pd.history = properties.getProperty("history");
+    pd.dateCreated = Long.parseLong(properties.getProperty("dateCreated", "0"));
+    pd.dateModified = Long.parseLong(properties.getProperty("dateModified", "0"));
+    pd.galleryId = Long.parseLong(properties.getProperty("galleryId",
+        Long.toString(UserProject.NOTPUBLISHED)));
+    pd.attributionId = Long.parseLong(properties.getProperty("attributionId",
+        Long.toString(UserProject.FROMSCRATCH)));
+    Map<Integer, String[]> files = new TreeMap<Integer, String[]>();
+    for (String key : properties.stringPropertyNames()) {
+      if (key.startsWith(FILE_PREFIX)) {
+        String value = properties.getProperty(key);
+        int tab = value.indexOf('\t');
+        files.put(Integer.parseInt(value.substring(0, tab)),
+            new String[] { key.substring(FILE_PREFIX.length()), value.substring(tab + 1) });
+      }
+    }
+    for (String[] file : files.values()) {
+      pd.fileRoles.put(file[0], file[1]);
+    }
+    return pd;
+  }
+
+  private void checkProjectOwner(String userId, long projectId) {
+    if (!getProjects(userId).contains(projectId)) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId),
+          new UnauthorizedAccessException(userId, projectId, null));
+    }
+  }
+
+  // Files
+
+  private File userDir(String userId) {
+    return new File(usersDir, escape(userId));
+  }
+
+  private File userPropertiesFile(String userId) {
+    return new File(userDir(userId), "user.properties");
+  }
+
+  private File userFile(String userId, String fileName) {
+    return new File(new File(userDir(userId), "files"), escape(fileName));
+  }
+
+  private File projectDir(long projectId) {
+    return new File(projectsDir, Long.toString(projectId));
+  }
+
+  private File projectPropertiesFile(long projectId) {
+    return new File(projectDir(projectId), "project.properties");
+  }
+
+  private File projectFile(long projectId, String fileName) {
+    return new File(new File(projectDir(projectId), "files"), escape(fileName));
+  }
+
+  private static String cacheKey(long projectId, String fileName) {
+    return projectId + "/" + fileName;
+  }
+
+  /*
+   * Turns a user id or file name into a single, safe, path component. If the
+   * escaped name is too long for a file name, its beginning is kept, followed
+   * by a hash of the whole name.
+   */
+  @VisibleForTesting
+  static String escape(String name) {
+    String escaped;
+    try {
+      escaped = URLEncoder.encode(name, DEFAULT_ENCODING).replace("*", "%2A");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+    // Names starting with a dot are reserved for temporary files, and for "." and ".."
+    if (escaped.startsWith(".")) {
+      escaped = "%2E" + escaped.substring(1);
+    }
+    if (escaped.length() > MAX_NAME_LENGTH) {
+      String hash = Hashing.sha1().hashString(name, Charsets.UTF_8).toString();
+      int keep = MAX_NAME_LENGTH - hash.length() - 1;
+      // Don't cut an escape in two
+      int percent = escaped.lastIndexOf('%', keep - 1);
+      if (percent >= 0 && percent > keep - 3) {
+        keep = percent;
+      }
+      escaped = escaped.substring(0, keep) + HASH_SEPARATOR + hash;
+    }
+    return escaped;
+  }
+
+  /*
+   * Returns the id of the user with the given directory, or null if it isn't
+   * known. The ids of users whose directory names were shortened are read
+   * from their properties.
+   */
+  private String userIdOfDir(String userDir) {
+    if (userDir.indexOf(HASH_SEPARATOR) < 0) {
+      return unescape(userDir);
+    }
+    try {
+      return readProperties(new File(new File(usersDir, userDir), "user.properties"))
+          .getProperty("id");
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Reading user directory " + userDir, e);
+    }
+  }
+
+  private static String unescape(String escaped) {
+    try {
+      return URLDecoder.decode(escaped, DEFAULT_ENCODING);
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /*
+   * Returns the content of a file, or an empty array if it doesn't exist, which
+   * is the case for files that were added but never uploaded.
+   */
+  private static byte[] readFile(File file) throws IOException {
+    if (!file.exists()) {
+      return new byte[0];
+    }
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      // The content is returned on the heap anyway, so a plain read is all it takes
+      FileChannel channel = in.getChannel();
+      byte[] content = new byte[(int) channel.size()];
+      ByteBuffer buffer = ByteBuffer.wrap(content);
+      while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        // Keep reading
+      }
+      return content;
+    } finally {
+      in.close();
+    }
+  }
+
+  /*
+   * Copies the content of a file to a stream, through a memory-mapped buffer
+   * for large files, without holding a copy of it on the heap.
+   */
+  private static void copyFile(File file, OutputStream out) throws IOException {
+    if (!file.exists()) {
+      return;
+    }
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = in.getChannel();
+      long size = channel.size();
+      if (size >= MAP_THRESHOLD) {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        WritableByteChannel outChannel = Channels.newChannel(out);
+        while (buffer.hasRemaining()) {
+          outChannel.write(buffer);
+        }
+      } else {
+        InputStream stream = Channels.newInputStream(channel);
+        ByteStreams.copy(stream, out);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /*
+   * Writes a file by writing a temporary file next to it and renaming that
+   * into place, so readers see either the old or the new content.
+   */
+  private static void writeAtomically(File file, byte[] content) throws IOException {
+    File dir = file.getParentFile();
+    dir.mkdirs();
+    File temp = File.createTempFile(".tmp", null, dir);
+    try {
+      FileOutputStream out = new FileOutputStream(temp);
+      try {
+        out.write(content);
+        out.getChannel().force(false);
+      } finally {
+        out.close();
+      }
+      java.nio.file.Files.move(temp.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      temp.delete();
+    }
+  }
+
+  private static Properties readProperties(File file) throws IOException {
+    Properties properties = new Properties();
+    if (file.exists()) {
+      InputStream in = new FileInputStream(file);
+      try {
+        properties.load(in);
+      } finally {
+        in.close();
+      }
+    }
+    return properties;
+  }
+
+  private static void writeProperties(Properties properties, File file) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    properties.store(out, null);
+    writeAtomically(file, out.toByteArray());
+  }
+
+  private static synchronized void appendLine(File file, String line) {
+    try {
+      Files.append(line.replace('\n', ' ') + "\n", file, Charsets.UTF_8);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Appending to " + file, e);
+    }
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+
+  private static String collectUserErrorInfo(final String userId) {
+    return collectUserErrorInfo(userId, CrashReport.NOT_AVAILABLE);
+  }
+
+  private static String collectUserErrorInfo(final String userId, String fileName) {
+    return "user=" + userId + ", file=" + fileName;
+  }
+
+  private static String collectProjectErrorInfo(final String userId, final long projectId,
+      final String fileName) {
+    return "user=" + userId + ", project=" + projectId + ", file=" + fileName;
+  }
+
+  private static String collectUserProjectErrorInfo(final String userId, final long projectId) {
+    return "user=" + userId + ", project=" + projectId;
+  }
+}
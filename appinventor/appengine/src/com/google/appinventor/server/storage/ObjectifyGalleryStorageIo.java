@@ -6,18 +6,32 @@
 
 package com.google.appinventor.server.storage;
 
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.ConcurrentModificationException;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.google.appengine.api.files.FileService;
 import com.google.appengine.api.files.FileServiceFactory;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.appinventor.server.CrashReport;
 import com.google.appinventor.server.GalleryEmail;
 import com.google.appinventor.server.GallerySearchIndex;
 import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.storage.StoredData.UserData;
 import com.google.appinventor.shared.rpc.project.GalleryApp;
 import com.google.appinventor.shared.rpc.project.GalleryAppListResult;
 import com.google.appinventor.shared.rpc.project.GalleryAppReport;
@@ -28,10 +42,15 @@ import com.google.appinventor.shared.rpc.project.Email;
 import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.user.User;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.NotFoundException;
 import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyOpts;
 import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Query;
 
 /**
  * Implements the GalleryStorageIo interface using Objectify as the underlying data
@@ -52,6 +71,69 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
   // TODO(user): need a way to modify this. Also, what is really a good value?
   private static final int MAX_JOB_RETRIES = 10;
 
+  // Paces retries of jobs, see runJobWithRetries
+  private final JobRetries jobRetries = new JobRetries(MAX_JOB_RETRIES);
+
+  // Number of shards of the download and like counters of each app. Don't
+  // lower it, the counts in the dropped shards would be lost.
+  private static final Flag<Integer> counterShards =
+      Flag.createFlag("gallery.counter.shards", 10);
+  // How often the shards of an app are rolled up into its GalleryAppData
+  private static final Flag<Integer> counterRollupSeconds =
+      Flag.createFlag("gallery.counter.rollup.seconds", 300);
+  // How long the sums of the shards of an app are cached
+  private static final Flag<Integer> counterCacheSeconds =
+      Flag.createFlag("gallery.counter.cache.seconds", 60);
+
+  // A cross-group transaction can span 25 entity groups: an app and its shards
+  private static final int MAX_COUNTER_SHARDS = 24;
+
+  private static final String COUNTERS_CACHE_PREFIX = "galleryCounters:";
+
+  /**
+   * Url of the servlet that rolls up the counter shards of an app.
+   */
+  public static final String ROLL_UP_COUNTERS_URL = "/admin/rollupcounters";
+
+  /**
+   * Parameter of the roll up request with the gallery id of the app.
+   */
+  public static final String GALLERY_ID_PARAMETER = "galleryId";
+
+  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  private final Random random = new Random();
+
+  // How long the first pages of the recent and most downloaded apps are cached
+  private static final Flag<Integer> listingCacheSeconds =
+      Flag.createFlag("gallery.listing.cache.seconds", 30);
+
+  // The number of active apps is kept in memcache, and counted again when it
+  // expires, in case an update of it was lost
+  private static final String ACTIVE_APPS_CACHE_KEY = "galleryActiveApps";
+  private static final int ACTIVE_APPS_CACHE_SECONDS = 3600;
+
+  // First pages of the app listings, by order and page size. They are the
+  // most requested pages by far. The page size comes from the client, so
+  // only a few are kept.
+  private static final int MAX_CACHED_FIRST_PAGES = 10;
+  private final Cache<String, GalleryAppListResult> firstPages = CacheBuilder.newBuilder()
+      .maximumSize(MAX_CACHED_FIRST_PAGES)
+      .expireAfterWrite(listingCacheSeconds.get(), TimeUnit.SECONDS)
+      .build();
+
+  // Counts of the downloads and likes of an app
+  private static class Counters implements Serializable {
+    int downloads;
+    int unreadDownloads;
+    int likes;
+    int unreadLikes;
+
+    boolean isZero() {
+      return downloads == 0 && unreadDownloads == 0 && likes == 0 && unreadLikes == 0;
+    }
+  }
+
   // Use this class to define the work of a job that can be retried. The
   // "datastore" argument to run() is the Objectify object for this job
   // (created with ObjectifyService.beginTransaction()). Note that all operations
@@ -82,6 +164,8 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     ObjectifyService.register(GalleryAppData.class);
     ObjectifyService.register(GalleryCommentData.class);
     ObjectifyService.register(GalleryAppLikeData.class);
+    ObjectifyService.register(GalleryAppUserLikeData.class);
+    ObjectifyService.register(GalleryAppCounterData.class);
     ObjectifyService.register(GalleryAppFeatureData.class);
     ObjectifyService.register(GalleryAppAttributionData.class);
     ObjectifyService.register(GalleryAppReportData.class);
@@ -157,6 +241,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
       throw CrashReport.createAndLogError(LOG, null,
           "gallery error", e);
     }
+    activeAppsChanged(1);
     GalleryApp gApp = new GalleryApp();
     makeGalleryApp(galleryAppData.t, gApp);
     return gApp;
@@ -192,8 +277,12 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
       makeGalleryApp(appData, gApp);
       apps.add(gApp);
     }
-    int totalCount = datastore.query(GalleryAppData.class).order("-dateModified").filter("active", true).count();
-    return new GalleryAppListResult(apps, totalCount);
+    return new GalleryAppListResult(apps, getNumActiveApps());
+  }
+
+  @Override
+  public GalleryAppListResult getRecentGalleryApps(String cursor, int count) {
+    return getActiveApps("-dateModified", cursor, count);
   }
   /**
    * Returns a wrapped class which contains a list of most downloaded
@@ -215,8 +304,75 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
       makeGalleryApp(appData, gApp);
       apps.add(gApp);
     }
-    int totalCount = datastore.query(GalleryAppData.class).order("-numDownloads").filter("active", true).count();
-    return new GalleryAppListResult(apps, totalCount);
+    return new GalleryAppListResult(apps, getNumActiveApps());
+  }
+
+  @Override
+  public GalleryAppListResult getMostDownloadedApps(String cursor, int count) {
+    return getActiveApps("-numDownloads", cursor, count);
+  }
+
+  /*
+   * Returns a page of the active apps in the given order, starting at a
+   * cursor rather than an offset so that the datastore doesn't have to skip
+   * over the earlier pages.
+   */
+  private GalleryAppListResult getActiveApps(String order, String cursor, int count) {
+    boolean firstPage = Strings.isNullOrEmpty(cursor);
+    String cacheKey = order + ":" + count;
+    if (firstPage) {
+      GalleryAppListResult result = firstPages.getIfPresent(cacheKey);
+      if (result != null) {
+        return result;
+      }
+    }
+
+    Objectify datastore = ObjectifyService.begin();
+    Query<GalleryAppData> query =
+        datastore.query(GalleryAppData.class).order(order).filter("active", true).limit(count);
+    if (!firstPage) {
+      query.startCursor(Cursor.fromWebSafeString(cursor));
+    }
+    List<GalleryApp> apps = new ArrayList<GalleryApp>();
+    QueryResultIterator<GalleryAppData> iterator = query.iterator();
+    while (iterator.hasNext()) {
+      GalleryApp gApp = new GalleryApp();
+      makeGalleryApp(iterator.next(), gApp);
+      apps.add(gApp);
+    }
+    GalleryAppListResult result = new GalleryAppListResult(apps, getNumActiveApps());
+    if (apps.size() == count) {
+      result.setCursor(iterator.getCursor().toWebSafeString());
+    }
+    if (firstPage) {
+      firstPages.put(cacheKey, result);
+    }
+    return result;
+  }
+
+  /*
+   * Returns the number of active apps, from memcache if it is there.
+   */
+  private int getNumActiveApps() {
+    Number num = (Number) memcache.get(ACTIVE_APPS_CACHE_KEY);
+    if (num == null) {
+      num = ObjectifyService.begin().query(GalleryAppData.class).filter("active", true).count();
+      memcache.put(ACTIVE_APPS_CACHE_KEY, num,
+          Expiration.byDeltaSeconds(ACTIVE_APPS_CACHE_SECONDS));
+    }
+    return num.intValue();
+  }
+
+  /*
+   * Updates the number of active apps after apps were published, activated
+   * or deactivated, and drops the first pages of the listings on this instance.
+   */
+  private void activeAppsChanged(int delta) {
+    if (delta != 0) {
+      // Does nothing if it isn't cached, it will be counted when needed
+      memcache.increment(ACTIVE_APPS_CACHE_KEY, delta);
+    }
+    firstPages.invalidateAll();
   }
 
   /**
@@ -316,12 +472,9 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
-          if (galleryAppData != null) {
-            galleryAppData.numDownloads = galleryAppData.numDownloads + 1;
-            galleryAppData.unreadDownloads = galleryAppData.unreadDownloads + 1;
-            datastore.put(galleryAppData);
-          }
+          // Count it in a shard, the app's GalleryAppData would serialize
+          // all downloads of the app
+          addToCounterShard(datastore, galleryId, 1, 0);
         }
       });
     } catch (ObjectifyException e) {
@@ -360,6 +513,8 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null, "error in galleryStorageIo", e);
     }
+    // The app moves to the top of the recent apps
+    activeAppsChanged(0);
   }
 
   /**
@@ -388,6 +543,34 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     return (gApp);
   }
 
+  /**
+   * Returns gallery apps, fetched together
+   * @param galleryIds ids of gallery apps you want
+   * @return list of {@link GalleryApp}, in the order of galleryIds, without
+   *     those that don't exist
+   */
+  @Override
+  public List<GalleryApp> getGalleryApps(List<Long> galleryIds) {
+    List<GalleryApp> apps = new ArrayList<GalleryApp>();
+    List<Key<GalleryAppData>> keys = new ArrayList<Key<GalleryAppData>>();
+    for (long galleryId : galleryIds) {
+      keys.add(galleryKey(galleryId));
+    }
+    // Each app is its own entity group, so the batch get can't run in a
+    // transaction, just like the queries listing apps
+    Objectify datastore = ObjectifyService.begin();
+    Map<Key<GalleryAppData>, GalleryAppData> appDatas = datastore.get(keys);
+    for (Key<GalleryAppData> key : keys) {
+      GalleryAppData appData = appDatas.get(key);
+      if (appData != null) {
+        GalleryApp gApp = new GalleryApp();
+        makeGalleryApp(appData, gApp);
+        apps.add(gApp);
+      }
+    }
+    return apps;
+  }
+
   /**
    * deletes an app
    * @param galleryId the id of gallery app to be deleted
@@ -421,13 +604,16 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     }
     */
     //for now, we only set app to inactive status.
+    final Result<Boolean> deactivated = new Result<Boolean>();
     try {
         runJobWithRetries(new JobRetryHelper() {
           @Override
           public void run(Objectify datastore) {
             // delete the GalleryApp
+            deactivated.t = false;
             GalleryAppData appData = datastore.find(galleryKey(galleryId));
             if(appData != null){
+              deactivated.t = appData.active;
               appData.active = false;
               datastore.put(appData);
             }
@@ -436,6 +622,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
        } catch (ObjectifyException e) {
         throw CrashReport.createAndLogError(LOG, null,"gallery remove error", e);
       }
+    activeAppsChanged(deactivated.t ? -1 : 0);
   }
 
 
@@ -513,33 +700,38 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    */
   @Override
   public int increaseLikes(final long galleryId,final String userId) {
-    final Result<Integer> numLikes = new Result<Integer>();
+    // Reading the app outside of the transaction keeps likes of a popular app
+    // from contending on its entity group
+    GalleryAppData appData = ObjectifyService.begin().find(galleryKey(galleryId));
+    if (appData == null || findLegacyLike(galleryId, userId) != null) {
+      return getNumLikes(galleryId);
+    }
     try {
+      if (!appData.likesCounted) {
+        // From now on the likes of the app are only counted in its shards
+        rollUpCounterShards(galleryId);
+      }
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
-          if (galleryAppData != null) {
+          Key<GalleryAppUserLikeData> likeKey = userLikeKey(galleryId, userId);
+          if (datastore.find(likeKey) == null) {
             // Forge the like data entry
-            Key<GalleryAppData> galleryKey = galleryKey(galleryId);
-            GalleryAppLikeData likeData = new GalleryAppLikeData();
-            likeData.galleryKey = galleryKey(galleryId);
-            likeData.userId = userId;
+            GalleryAppUserLikeData likeData = new GalleryAppUserLikeData();
+            likeData.id = galleryId;
+            likeData.userKey = userKey(userId);
             datastore.put(likeData);
 
-            // Retrieve the current number of likes
-            numLikes.t = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
-
-            // Increase app's unread like count
-            galleryAppData.unreadLikes = galleryAppData.unreadLikes + 1;
-            datastore.put(galleryAppData);
+            // Increase app's like and unread like counts
+            addToCounterShard(datastore, galleryId, 0, 1);
           }
         }
-      });
+      }, true);
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null, "error in galleryStorageIo.increaseLike", e);
     }
-    return numLikes.t;
+    memcache.delete(countersCacheKey(galleryId));
+    return getNumLikes(galleryId);
   }
 
   /**
@@ -551,35 +743,43 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    */
   @Override
   public int decreaseLikes(final long galleryId, final String userId) {
-    final Result<Integer> numLikes = new Result<Integer>();
+    GalleryAppData appData = ObjectifyService.begin().find(galleryKey(galleryId));
+    if (appData == null) {
+      return 0;
+    }
     try {
+      if (!appData.likesCounted) {
+        rollUpCounterShards(galleryId);
+      }
+      final GalleryAppLikeData legacyLike = findLegacyLike(galleryId, userId);
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
-          if (galleryAppData != null) {
-            Key<GalleryAppData> galleryKey = galleryKey(galleryId);
-            for (GalleryAppLikeData likeData : datastore.query(GalleryAppLikeData.class).ancestor(galleryKey)) {
-              if(likeData.userId.equals(userId)){
-                datastore.delete(likeData);
-                break;
-              }
-            }
-            numLikes.t = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
-
-            // Increase app's unread like count
-            if (galleryAppData.unreadLikes > 0) {
-              galleryAppData.unreadLikes = galleryAppData.unreadLikes - 1;
-              datastore.put(galleryAppData);
+          Key<GalleryAppUserLikeData> likeKey = userLikeKey(galleryId, userId);
+          if (datastore.find(likeKey) != null) {
+            datastore.delete(likeKey);
+          } else if (legacyLike != null) {
+            // Only unliking an app liked before likes were kept with users
+            // touches the entity group of the app
+            Key<GalleryAppLikeData> legacyKey = new Key<GalleryAppLikeData>(
+                galleryKey(galleryId), GalleryAppLikeData.class, legacyLike.id);
+            if (datastore.find(legacyKey) == null) {
+              return;
             }
+            datastore.delete(legacyKey);
+          } else {
+            return;
           }
+          // Decrease app's like and unread like counts
+          addToCounterShard(datastore, galleryId, 0, -1);
         }
-      });
+      }, true);
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           "error in galleryStorageIo.decreaseLike", e);
     }
-    return numLikes.t;
+    memcache.delete(countersCacheKey(galleryId));
+    return getNumLikes(galleryId);
   }
 
   /**
@@ -590,20 +790,11 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    * @return the num of like
    */
   public int getNumLikes(final long galleryId) {
-    final Result<Integer> num = new Result<Integer>();
-    try {
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          Key<GalleryAppData> galleryKey = galleryKey(galleryId);
-          num.t = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
-        }
-      });
-    } catch (ObjectifyException e) {
-      throw CrashReport.createAndLogError(LOG, null,
-          "error in galleryStorageIo.getNumLike", e);
+    GalleryAppData appData = ObjectifyService.begin().find(galleryKey(galleryId));
+    if (appData == null) {
+      return 0;
     }
-    return num.t;
+    return getCounters(appData).likes;
   }
 
   /**
@@ -615,30 +806,23 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    */
   @Override
   public boolean isLikedByUser(final long galleryId, final String userId) {
-    final Result<Boolean> bool = new Result<Boolean>();
-    try {
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          boolean find = false;
-          Key<GalleryAppData> galleryKey = galleryKey(galleryId);
-          for (GalleryAppLikeData likeData : datastore.query(GalleryAppLikeData.class).ancestor(galleryKey)) {
-            if(likeData.userId.equals(userId)){
-              find = true;
-              bool.t = true;
-              break;
-            }
-          }
-          if(!find){
-            bool.t = false;
-          }
-        }
-      });
-    } catch (ObjectifyException e) {
-      throw CrashReport.createAndLogError(LOG, null,
-          "error in galleryStorageIo.isLikedByUser", e);
+    return ObjectifyService.begin().find(userLikeKey(galleryId, userId)) != null
+        || findLegacyLike(galleryId, userId) != null;
+  }
+
+  /*
+   * Returns the like of an app by a user made before likes were kept with
+   * users, or null if there is none.
+   */
+  private GalleryAppLikeData findLegacyLike(long galleryId, String userId) {
+    Objectify datastore = ObjectifyService.begin();
+    for (GalleryAppLikeData likeData :
+        datastore.query(GalleryAppLikeData.class).ancestor(galleryKey(galleryId))) {
+      if (likeData.userId.equals(userId)) {
+        return likeData;
+      }
     }
-    return bool.t;
+    return null;
   }
 
   /**
@@ -934,6 +1118,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
   @Override
   public boolean deactivateGalleryApp(final long galleryId) {
     final Result<Boolean> success = new Result<Boolean>();
+    final Result<Boolean> active = new Result<Boolean>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
@@ -946,6 +1131,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
               appData.active = !appData.active;
               datastore.put(appData);
               success.t = true;
+              active.t = appData.active;
               if(appData.active){
                 GalleryApp gApp = new GalleryApp();
                 makeGalleryApp(appData, gApp);
@@ -959,6 +1145,9 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null, "error in galleryStorageIo.markReportAsResolved", e);
     }
+    if (success.t) {
+      activeAppsChanged(active.t ? 1 : -1);
+    }
     return success.t;
   }
   /**
@@ -1149,16 +1338,163 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     User developer = storageIo.getUser(appData.userId);
     galleryApp.setDeveloperName(developer.getUserName());
     galleryApp.setDeveloperId(appData.userId);
-    galleryApp.setDownloads(appData.numDownloads);
-    galleryApp.setUnreadDownloads(appData.unreadDownloads);
-    galleryApp.setUnreadLikes(appData.unreadLikes);
+    Counters counters = getCounters(appData);
+    galleryApp.setDownloads(counters.downloads);
+    galleryApp.setUnreadDownloads(counters.unreadDownloads);
+    galleryApp.setUnreadLikes(counters.unreadLikes);
     galleryApp.setCreationDate(appData.dateCreated);
     galleryApp.setUpdateDate(appData.dateModified);
     galleryApp.setActive(appData.active);
     galleryApp.setMoreInfo(appData.moreInfo);
     galleryApp.setCredit(appData.credit);
 
-    galleryApp.setLikes(getNumLikes(appData.id));
+    galleryApp.setLikes(counters.likes);
+  }
+
+  /*
+   * Returns the counts of the downloads and likes of an app: those rolled up
+   * into its GalleryAppData plus those still in its counter shards. The sums
+   * of the shards are cached for counterCacheSeconds. When the shards
+   * haven't been rolled up for counterRollupSeconds, a task is queued to
+   * roll them up, as a read shouldn't run a cross-group transaction.
+   */
+  private Counters getCounters(GalleryAppData appData) {
+    String cacheKey = countersCacheKey(appData.id);
+    Counters pending = (Counters) memcache.get(cacheKey);
+    if (pending == null) {
+      pending = sumCounterShards(
+          ObjectifyService.begin().get(counterShardKeys(appData.id)).values());
+      long rollupMillis = counterRollupSeconds.get() * 1000L;
+      if (!appData.likesCounted || (!pending.isZero()
+          && System.currentTimeMillis() - appData.countersRolledUp > rollupMillis)) {
+        // At most once for each time the sums are cached
+        queueRollUpTask(appData.id);
+      }
+      memcache.put(cacheKey, pending, Expiration.byDeltaSeconds(counterCacheSeconds.get()));
+    }
+
+    Counters counters = new Counters();
+    counters.downloads = appData.numDownloads + pending.downloads;
+    counters.unreadDownloads = appData.unreadDownloads + pending.unreadDownloads;
+    counters.unreadLikes = Math.max(0, appData.unreadLikes + pending.unreadLikes);
+    if (appData.likesCounted) {
+      counters.likes = Math.max(0, appData.numLikes + pending.likes);
+    } else {
+      // Not rolled up yet, count them the old way. Likes are only counted
+      // in the shards alone once the app is rolled up.
+      counters.likes = ObjectifyService.begin().query(GalleryAppLikeData.class)
+          .ancestor(galleryKey(appData.id)).count();
+    }
+    return counters;
+  }
+
+  /**
+   * Rolls up the counts of downloads and likes of an app kept in its counter
+   * shards. Called by the task queued when the counts are read.
+   *
+   * @param galleryId id of gallery app
+   */
+  @Override
+  public void rollUpCounters(long galleryId) {
+    try {
+      rollUpCounterShards(galleryId);
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          "error in galleryStorageIo.rollUpCounters", e);
+    }
+  }
+
+  /*
+   * Queues the task that rolls up the counter shards of an app.
+   */
+  private void queueRollUpTask(long galleryId) {
+    try {
+      QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(ROLL_UP_COUNTERS_URL)
+          .param(GALLERY_ID_PARAMETER, String.valueOf(galleryId)));
+    } catch (RuntimeException e) {
+      // The next read of the counts after they leave the cache will try again
+      LOG.log(Level.WARNING, "Unable to queue roll up of the counters of gallery app "
+          + galleryId, e);
+    }
+  }
+
+  /*
+   * Adds the counts in the counter shards of an app to its GalleryAppData
+   * and deletes the shards, in one cross-group transaction. Returns the
+   * updated GalleryAppData, or null if there is no such app.
+   */
+  private GalleryAppData rollUpCounterShards(final long galleryId) throws ObjectifyException {
+    final Result<GalleryAppData> result = new Result<GalleryAppData>();
+    runJobWithRetries(new JobRetryHelper() {
+      @Override
+      public void run(Objectify datastore) {
+        Key<GalleryAppData> galleryKey = galleryKey(galleryId);
+        GalleryAppData appData = datastore.find(galleryKey);
+        result.t = appData;
+        if (appData == null) {
+          return;
+        }
+        Map<Key<GalleryAppCounterData>, GalleryAppCounterData> shards =
+            datastore.get(counterShardKeys(galleryId));
+        Counters pending = sumCounterShards(shards.values());
+        appData.numDownloads += pending.downloads;
+        appData.unreadDownloads += pending.unreadDownloads;
+        appData.unreadLikes = Math.max(0, appData.unreadLikes + pending.unreadLikes);
+        if (appData.likesCounted) {
+          appData.numLikes = Math.max(0, appData.numLikes + pending.likes);
+        } else {
+          // First roll up of this app. Any likes in the shards were made before
+          // it, and are also in the like data.
+          appData.numLikes = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
+          appData.likesCounted = true;
+        }
+        appData.countersRolledUp = System.currentTimeMillis();
+        datastore.put(appData);
+        datastore.delete(shards.keySet());
+      }
+    }, true);
+    memcache.delete(countersCacheKey(galleryId));
+    return result.t;
+  }
+
+  /*
+   * Adds downloads and likes to a counter shard of an app, picked at random.
+   * The shard is in an entity group of its own, so jobs calling this from
+   * the app's entity group must be cross-group.
+   */
+  private void addToCounterShard(Objectify datastore, long galleryId, int downloads, int likes) {
+    Key<GalleryAppCounterData> shardKey =
+        counterShardKey(galleryId, random.nextInt(getNumCounterShards()));
+    GalleryAppCounterData shard = datastore.find(shardKey);
+    if (shard == null) {
+      shard = new GalleryAppCounterData();
+      shard.id = shardKey.getName();
+      shard.galleryId = galleryId;
+    }
+    shard.downloads += downloads;
+    shard.unreadDownloads += downloads;
+    shard.likes += likes;
+    shard.unreadLikes += likes;
+    datastore.put(shard);
+  }
+
+  private static Counters sumCounterShards(Collection<GalleryAppCounterData> shards) {
+    Counters counters = new Counters();
+    for (GalleryAppCounterData shard : shards) {
+      counters.downloads += shard.downloads;
+      counters.unreadDownloads += shard.unreadDownloads;
+      counters.likes += shard.likes;
+      counters.unreadLikes += shard.unreadLikes;
+    }
+    return counters;
+  }
+
+  private static int getNumCounterShards() {
+    return Math.max(1, Math.min(counterShards.get(), MAX_COUNTER_SHARDS));
+  }
+
+  private static String countersCacheKey(long galleryId) {
+    return COUNTERS_CACHE_PREFIX + galleryId;
   }
 
   private static String collectGalleryAppErrorInfo(final String galleryAppId) {
@@ -1169,6 +1505,27 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     return new Key<GalleryAppData>(GalleryAppData.class, galleryId);
   }
 
+  private Key<UserData> userKey(String userId) {
+    return new Key<UserData>(UserData.class, userId);
+  }
+
+  private Key<GalleryAppUserLikeData> userLikeKey(long galleryId, String userId) {
+    return new Key<GalleryAppUserLikeData>(userKey(userId), GalleryAppUserLikeData.class,
+        galleryId);
+  }
+
+  private Key<GalleryAppCounterData> counterShardKey(long galleryId, int shard) {
+    return new Key<GalleryAppCounterData>(GalleryAppCounterData.class, galleryId + "-" + shard);
+  }
+
+  private List<Key<GalleryAppCounterData>> counterShardKeys(long galleryId) {
+    List<Key<GalleryAppCounterData>> keys = new ArrayList<Key<GalleryAppCounterData>>();
+    for (int shard = 0; shard < getNumCounterShards(); shard++) {
+      keys.add(counterShardKey(galleryId, shard));
+    }
+    return keys;
+  }
+
   private Key<GalleryAppFeatureData> galleryFeatureKey(long galleryId) {
     return new Key<GalleryAppFeatureData>(GalleryAppFeatureData.class, galleryId);
   }
@@ -1264,23 +1621,43 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    * Call job.run() in a transaction and commit the transaction if no exceptions
    * occur. If we get a {@link java.util.ConcurrentModificationException}
    * or {@link com.google.appinventor.server.storage.ObjectifyException}
-   * we will retry the job (at most {@code MAX_JOB_RETRIES times}).
-   * Any other exception will cause the job to fail immediately.
+   * we will retry the job (at most {@code MAX_JOB_RETRIES times}, and within
+   * the retry budget of {@link JobRetries}), after a randomized exponential
+   * backoff. Any other exception will cause the job to fail immediately.
    * @param job
    * @throws ObjectifyException
    */
   @VisibleForTesting
   void runJobWithRetries(JobRetryHelper job) throws ObjectifyException {
+    runJobWithRetries(job, false);
+  }
+
+  /**
+   * Like {@link #runJobWithRetries(JobRetryHelper)}, optionally in a
+   * cross-group transaction, which can span up to 25 entity groups.
+   * @param job
+   * @param crossGroup whether to use a cross-group transaction
+   * @throws ObjectifyException
+   */
+  @VisibleForTesting
+  void runJobWithRetries(JobRetryHelper job, boolean crossGroup) throws ObjectifyException {
+    String jobType = JobRetries.getJobType(job);
+    long startMillis = System.currentTimeMillis();
     int tries = 0;
-    while (tries <= MAX_JOB_RETRIES) {
-      Objectify datastore = ObjectifyService.beginTransaction();
+    while (true) {
+      Objectify datastore = crossGroup
+          ? ObjectifyService.begin(new ObjectifyOpts().setBeginTransaction(true)
+              .setTransactionOptions(TransactionOptions.Builder.withXG(true)))
+          : ObjectifyService.beginTransaction();
       try {
         job.run(datastore);
         datastore.getTxn().commit();
-        break;
+        jobRetries.recordSuccess(jobType, tries);
+        return;
       } catch (ConcurrentModificationException ex) {
         job.onNonFatalError();
-        LOG.log(Level.WARNING, "Optimistic concurrency failure", ex);
+        jobRetries.recordContention(jobType);
+        LOG.log(Level.WARNING, "Optimistic concurrency failure in " + jobType, ex);
       } catch (ObjectifyException oe) {
         // maybe this should be a fatal error? I think the only thing
         // that creates this exception (other than this method) is uploadToBlobstore
@@ -1295,9 +1672,9 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
         }
       }
       tries++;
-    }
-    if (tries > MAX_JOB_RETRIES) {
-      throw new ObjectifyException("Couldn't commit job after max retries.");
+      if (!jobRetries.backOff(jobType, tries, startMillis)) {
+        throw new ObjectifyException("Couldn't commit job after max retries.");
+      }
     }
   }
 
@@ -1312,6 +1689,18 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     final Result<Boolean> send = new Result<Boolean>();
     try {
       final User user = storageIo.getUser(userId);
+      // Check the cached counts first, to only roll up the counter shards when
+      // an email is due
+      GalleryAppData appData = ObjectifyService.begin().find(galleryKey(galleryId));
+      if (appData == null) {
+        return false;
+      }
+      Counters counters = getCounters(appData);
+      if (counters.unreadDownloads + counters.unreadLikes < user.getUserEmailFrequency()) {
+        return false;
+      }
+      // The unread counts are cleared in the GalleryAppData, so they must all be there
+      rollUpCounterShards(galleryId);
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
@@ -1319,7 +1708,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
           if(galleryAppData.unreadDownloads + galleryAppData.unreadLikes >= user.getUserEmailFrequency()){
             String title = prepareAppStatsEmailTitle(galleryAppData.title);
             String body = prepareAppStatsEmailBody(galleryAppData.title, galleryAppData.numDownloads,
-                getNumLikes(galleryId), currentHost, galleryId);
+                galleryAppData.numLikes, currentHost, galleryId);
             boolean success = new GalleryEmail().sendEmail(adminEmail, user.getUserEmail(), title, body);
             if(success){
               send.t = true;
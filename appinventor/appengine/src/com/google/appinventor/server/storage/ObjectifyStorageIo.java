@@ -43,6 +43,7 @@ import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjec
 import com.google.appinventor.shared.rpc.user.User;
 import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.io.ByteSource;
@@ -72,9 +73,16 @@ import java.io.UnsupportedEncodingException;
 import java.nio.channels.Channels;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
@@ -102,6 +110,9 @@ public class ObjectifyStorageIo implements  StorageIo {
   // TODO(user): need a way to modify this. Also, what is really a good value?
   private static final int MAX_JOB_RETRIES = 10;
 
+  // Paces retries of jobs, see runJobWithRetries
+  private final JobRetries jobRetries = new JobRetries(MAX_JOB_RETRIES);
+
   private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
 
   private final GcsService gcsService;
@@ -110,6 +121,11 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   private static final long TWENTYFOURHOURS = 24*3600*1000; // 24 hours in milliseconds
 
+  // When a project is exported, the contents of this many GCS files are fetched ahead of the one
+  // being written to the zip, in blocks of this size.
+  private static final int EXPORT_PREFETCH_FILES = 4;
+  private static final int EXPORT_PREFETCH_BLOCK_SIZE = 256 * 1024;
+
   private final boolean useGcs = Flag.createFlag("use.gcs", false).get();
 
 
@@ -1411,120 +1427,91 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public long uploadRawFile(final long projectId, final String fileName, final String userId,
       final boolean force, final byte[] content) throws BlocksTruncatedException {
+    return uploadRawFiles(projectId, userId, force, Collections.singletonMap(fileName, content));
+  }
+
+  @Override
+  public long uploadFiles(final long projectId, final String userId, final boolean force,
+      final Map<String, String> contents, final String encoding)
+      throws BlocksTruncatedException {
+    Map<String, byte[]> rawContents = new LinkedHashMap<String, byte[]>();
+    for (Map.Entry<String, String> entry : contents.entrySet()) {
+      try {
+        rawContents.put(entry.getKey(), entry.getValue().getBytes(encoding));
+      } catch (UnsupportedEncodingException e) {
+        throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
+            + collectProjectErrorInfo(userId, projectId, entry.getKey()), e);
+      }
+    }
+    return uploadRawFiles(projectId, userId, force, rawContents);
+  }
+
+  /*
+   * Uploads several files of a project. The FileData of all the files are fetched with one batch
+   * get and stored with one batch put, and the project modification date is updated once.
+   */
+  private long uploadRawFiles(final long projectId, final String userId, final boolean force,
+      final Map<String, byte[]> contents) throws BlocksTruncatedException {
     final Result<Long> modTime = new Result<Long>();
-    final boolean useBlobstore = useBlobstoreForFile(fileName, content.length);
-    final boolean useGCS = useGCSforFile(fileName, content.length);
-    final Result<String> oldBlobstorePath = new Result<String>();
-    final boolean considerBackup = (useGcs?((fileName.contains("src/") && fileName.endsWith(".blk")) // AI1 Blocks Files
-        || (fileName.contains("src/") && fileName.endsWith(".bky")) // Blockly files
-        || (fileName.contains("src/") && fileName.endsWith(".scm"))) // Form Definitions
-      :false);
+    boolean useBlobstore = false;
+    for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+      useBlobstore |= useBlobstoreForFile(entry.getKey(), entry.getValue().length);
+    }
+    final Set<String> oldBlobstorePaths = new HashSet<String>();
+    final String fileNames = Joiner.on(", ").join(contents.keySet());
 
     try {
       runJobWithRetries(new JobRetryHelper() {
-        FileData fd;
+        final List<FileData> updated = new ArrayList<FileData>();
 
         @Override
         public void run(Objectify datastore) throws ObjectifyException {
-          Key<FileData> key = projectFileKey(projectKey(projectId), fileName);
-          fd = (FileData) memcache.get(key.getString());
-          if (fd == null) {
-            fd = datastore.find(projectFileKey(projectKey(projectId), fileName));
-          } else {
-            LOG.log(Level.INFO, "Fetched " + key.getString() + " from memcache.");
-          }
-
-          // <Screen>.yail files are missing when user converts AI1 project to AI2
-          // instead of blowing up, just create a <Screen>.yail file
-          if (fd == null && fileName.endsWith(".yail")){
-            fd = createProjectFile(datastore, projectKey(projectId), FileData.RoleEnum.SOURCE, fileName);
-          }
-
-          Preconditions.checkState(fd != null);
-
-          if ((content.length < 125) && (fileName.endsWith(".bky"))) { // Likely this is an empty blocks workspace
-            if (!force) {            // force is true if we *really* want to save it!
-              checkForBlocksTruncation(fd); // See if we had previous content and throw and exception if so
+          updated.clear();
+          Key<ProjectData> projectKey = projectKey(projectId);
+          Map<String, FileData> fileData = getFileData(datastore, projectId, contents.keySet());
+          // Check all the files before writing any content, so that a failed
+          // check leaves the project as it was
+          List<FileData> files = new ArrayList<FileData>();
+          for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+            String fileName = entry.getKey();
+            FileData fd = fileData.get(fileName);
+
+            // <Screen>.yail files are missing when user converts AI1 project to AI2
+            // instead of blowing up, just create a <Screen>.yail file
+            if (fd == null && fileName.endsWith(".yail")){
+              fd = createProjectFile(datastore, projectKey, FileData.RoleEnum.SOURCE, fileName);
             }
-          }
 
-          if (fd.isBlob) {
-            // mark the old blobstore blob for deletion
-           oldBlobstorePath.t = fd.blobstorePath;
-          }
-          if (useGCS) {
-            fd.isGCS = true;
-            fd.gcsName = makeGCSfileName(fileName, projectId);
-            try {
-              GcsOutputChannel outputChannel =
-                gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName), GcsFileOptions.getDefaultInstance());
-              outputChannel.write(ByteBuffer.wrap(content));
-              outputChannel.close();
-            } catch (IOException e) {
-              throw CrashReport.createAndLogError(LOG, null,
-                collectProjectErrorInfo(userId, projectId, fileName), e);
-            }
-            // If the content was previously stored in the datastore, clear it out.
-            fd.content = null;
-            fd.isBlob = false;  // in case we are converting from a blob
-            fd.blobstorePath = null;
-          } else if (useBlobstore) {
-            try {
-              fd.blobstorePath = uploadToBlobstore(content, makeBlobName(projectId, fileName));
-            } catch (BlobWriteException e) {
-              // Note that this makes the BlobWriteException fatal. The job will
-              // not be retried if we get this exception.
-              throw CrashReport.createAndLogError(LOG, null,
-                  collectProjectErrorInfo(userId, projectId, fileName), e);
-            }
-            // If the content was previously stored in the datastore or GCS, clear it out.
-            fd.isBlob = true;
-            fd.isGCS = false;
-            fd.gcsName = null;
-            fd.content = null;
-          } else {
-            if (fd.isGCS) {     // Was a GCS file, must have gotten smaller
-              try {             // and is now stored in the data store
-                gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName));
-              } catch (IOException e) {
-                throw CrashReport.createAndLogError(LOG, null,
-                  collectProjectErrorInfo(userId, projectId, fileName), e);
+            Preconditions.checkState(fd != null);
+
+            // Likely this is an empty blocks workspace
+            if ((entry.getValue().length < 125) && (fileName.endsWith(".bky"))) {
+              if (!force) {            // force is true if we *really* want to save it!
+                checkForBlocksTruncation(fd); // See if we had previous content and throw and exception if so
               }
-              fd.isGCS = false;
-              fd.gcsName = null;
             }
-            // Note, Don't have to do anything if the file was in the
-            // Blobstore and shrank because the code above (3 lines
-            // into the function) already handles removing the old
-            // contents from the Blobstore.
-            fd.isBlob = false;
-            fd.blobstorePath = null;
-            fd.content = content;
+            files.add(fd);
           }
-          if (considerBackup) {
-            if ((fd.lastBackup + TWENTYFOURHOURS) < System.currentTimeMillis()) {
-              try {
-                String gcsName = makeGCSfileName(fileName + "." + formattedTime() + ".backup", projectId);
-                GcsOutputChannel outputChannel =
-                    gcsService.createOrReplace((new GcsFilename(GCS_BUCKET_NAME, gcsName)), GcsFileOptions.getDefaultInstance());
-                outputChannel.write(ByteBuffer.wrap(content));
-                outputChannel.close();
-                fd.lastBackup = System.currentTimeMillis();
-              } catch (IOException e) {
-                throw CrashReport.createAndLogError(LOG, null,
-                    collectProjectErrorInfo(userId, projectId, fileName + "(backup)"), e);
-              }
-            }
+          for (FileData fd : files) {
+            setFileContent(fd, projectId, userId, contents.get(fd.fileName), oldBlobstorePaths);
+            updated.add(fd);
           }
-          datastore.put(fd);
-          memcache.put(key.getString(), fd); // Store the updated data in memcache
+          datastore.put(updated);
+          // Store the updated data in memcache
+          Map<String, FileData> cached = new HashMap<String, FileData>();
+          for (FileData fd : updated) {
+            cached.put(projectFileKey(projectKey, fd.fileName).getString(), fd);
+          }
+          memcache.putAll(cached);
           modTime.t = updateProjectModDate(datastore, projectId);
         }
 
         @Override
         public void onNonFatalError() {
-          if (fd != null && fd.blobstorePath != null) {
-            oldBlobstorePath.t = fd.blobstorePath;
+          for (FileData fd : updated) {
+            if (fd.blobstorePath != null) {
+               oldBlobstorePaths.add(fd.blobstorePath);
+            }
           }
         }
       }, useBlobstore);        // Use transaction for blobstore, otherwise we don't need one
@@ -1534,19 +1521,104 @@ public class ObjectifyStorageIo implements  StorageIo {
       // above but that caused an exception where the app engine datastore claimed to be doing
       // operations on multiple entity groups within the same transaction.  Apparently the blobstore
       // operations are, at least partially, also datastore operations.
-      if (oldBlobstorePath.t != null) {
-        deleteBlobstoreFile(oldBlobstorePath.t);
+      for (String oldBlobstorePath : oldBlobstorePaths) {
+        deleteBlobstoreFile(oldBlobstorePath);
       }
     } catch (ObjectifyException e) {
       if (e.getMessage().startsWith("Blocks")) { // Convert Exception
         throw new BlocksTruncatedException();
       }
       throw CrashReport.createAndLogError(LOG, null,
-          collectProjectErrorInfo(userId, projectId, fileName), e);
+          collectProjectErrorInfo(userId, projectId, fileNames), e);
     }
     return modTime.t;
   }
 
+  /*
+   * Stores new content for a file, in GCS, the blobstore or the datastore depending on its name
+   * and size. Blobstore paths that are no longer used are added to oldBlobstorePaths. The
+   * FileData itself is not put. The caller checks for blocks truncation first.
+   */
+  private void setFileContent(FileData fd, long projectId, String userId,
+      byte[] content, Set<String> oldBlobstorePaths) throws ObjectifyException {
+    String fileName = fd.fileName;
+    boolean useBlobstore = useBlobstoreForFile(fileName, content.length);
+    boolean useGCS = useGCSforFile(fileName, content.length);
+    boolean considerBackup = (useGcs?((fileName.contains("src/") && fileName.endsWith(".blk")) // AI1 Blocks Files
+        || (fileName.contains("src/") && fileName.endsWith(".bky")) // Blockly files
+        || (fileName.contains("src/") && fileName.endsWith(".scm"))) // Form Definitions
+      :false);
+
+    if (fd.isBlob) {
+      // mark the old blobstore blob for deletion
+     oldBlobstorePaths.add(fd.blobstorePath);
+    }
+    if (useGCS) {
+      fd.isGCS = true;
+      fd.gcsName = makeGCSfileName(fileName, projectId);
+      try {
+        GcsOutputChannel outputChannel =
+          gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName), GcsFileOptions.getDefaultInstance());
+        outputChannel.write(ByteBuffer.wrap(content));
+        outputChannel.close();
+      } catch (IOException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+      }
+      // If the content was previously stored in the datastore, clear it out.
+      fd.content = null;
+      fd.isBlob = false;  // in case we are converting from a blob
+      fd.blobstorePath = null;
+    } else if (useBlobstore) {
+      try {
+        fd.blobstorePath = uploadToBlobstore(content, makeBlobName(projectId, fileName));
+      } catch (BlobWriteException e) {
+        // Note that this makes the BlobWriteException fatal. The job will
+        // not be retried if we get this exception.
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fileName), e);
+      }
+      // If the content was previously stored in the datastore or GCS, clear it out.
+      fd.isBlob = true;
+      fd.isGCS = false;
+      fd.gcsName = null;
+      fd.content = null;
+    } else {
+      if (fd.isGCS) {     // Was a GCS file, must have gotten smaller
+        try {             // and is now stored in the data store
+          gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName));
+        } catch (IOException e) {
+          throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fileName), e);
+        }
+        fd.isGCS = false;
+        fd.gcsName = null;
+      }
+      // Note, Don't have to do anything if the file was in the
+      // Blobstore and shrank because the code above (3 lines
+      // into the function) already handles removing the old
+      // contents from the Blobstore.
+      fd.isBlob = false;
+      fd.blobstorePath = null;
+      fd.content = content;
+    }
+    if (considerBackup) {
+      if ((fd.lastBackup + TWENTYFOURHOURS) < System.currentTimeMillis()) {
+        try {
+          String gcsName = makeGCSfileName(fileName + "." + formattedTime() + ".backup", projectId);
+          GcsOutputChannel outputChannel =
+              gcsService.createOrReplace((new GcsFilename(GCS_BUCKET_NAME, gcsName)), GcsFileOptions.getDefaultInstance());
+          outputChannel.write(ByteBuffer.wrap(content));
+          outputChannel.close();
+          fd.lastBackup = System.currentTimeMillis();
+        } catch (IOException e) {
+          throw CrashReport.createAndLogError(LOG, null,
+              collectProjectErrorInfo(userId, projectId, fileName + "(backup)"), e);
+        }
+      }
+    }
+  }
+
   protected void deleteBlobstoreFile(String blobstorePath) {
     // It would be nice if there were an AppEngineFile.delete() method but alas there isn't, so we
     // have to get the BlobKey and delete via the BlobstoreService.
@@ -1704,102 +1776,166 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   @Override
   public byte[] downloadRawFile(final String userId, final long projectId, final String fileName) {
+    return downloadRawFiles(userId, projectId, Collections.singletonList(fileName)).get(fileName);
+  }
+
+  @Override
+  public Map<String, String> downloadFiles(final String userId, final long projectId,
+      final List<String> fileNames, final String encoding) {
+    Map<String, String> files = new LinkedHashMap<String, String>();
+    for (Map.Entry<String, byte[]> entry :
+        downloadRawFiles(userId, projectId, fileNames).entrySet()) {
+      try {
+        files.put(entry.getKey(), new String(entry.getValue(), encoding));
+      } catch (UnsupportedEncodingException e) {
+        throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, "
+            + collectProjectErrorInfo(userId, projectId, entry.getKey()), e);
+      }
+    }
+    return files;
+  }
+
+  /*
+   * Downloads several files of a project, in the given order. The FileData of all the files are
+   * fetched with one batch get.
+   */
+  private Map<String, byte[]> downloadRawFiles(final String userId, final long projectId,
+      final List<String> fileNames) {
     if (!getProjects(userId).contains(projectId)) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId),
           new UnauthorizedAccessException(userId, projectId, null));
     }
-    final Result<byte[]> result = new Result<byte[]>();
-    final Result<FileData> fd = new Result<FileData>();
+    final Result<Map<String, FileData>> fd = new Result<Map<String, FileData>>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          Key<FileData> fileKey = projectFileKey(projectKey(projectId), fileName);
-          fd.t = (FileData) memcache.get(fileKey.getString());
-          if (fd.t == null) {
-            fd.t = datastore.find(fileKey);
-          }
+          fd.t = getFileData(datastore, projectId, fileNames);
         }
       }, false); // Transaction not needed
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
-          collectProjectErrorInfo(userId, projectId, fileName), e);
+          collectProjectErrorInfo(userId, projectId, Joiner.on(", ").join(fileNames)), e);
     }
-    // read the blob/GCS File outside of the job
-    FileData fileData = fd.t;
-    if (fileData != null) {
-      if (fileData.isGCS) {     // It's in the Cloud Store
-        try {
-          int count;
-          boolean npfHappened = false;
-          boolean recovered = false;
-          for (count = 0; count < 5; count++) {
-            GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fileData.gcsName);
-            int bytesRead = 0;
-            int fileSize = 0;
-            ByteBuffer resultBuffer;
+    // read the blob/GCS Files outside of the job
+    Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+    for (String fileName : fileNames) {
+      FileData fileData = fd.t.get(fileName);
+      if (fileData == null) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fileName),
+            new FileNotFoundException("No data for " + fileName));
+      }
+      result.put(fileName, getFileContent(userId, projectId, fileData));
+    }
+    return result;
+  }
+
+  /*
+   * Fetches the FileData of the given files of a project, from memcache when cached and otherwise
+   * with one batch get from the datastore. Files that don't exist are left out.
+   */
+  private Map<String, FileData> getFileData(Objectify datastore, long projectId,
+      Collection<String> fileNames) {
+    Key<ProjectData> projectKey = projectKey(projectId);
+    Map<String, Key<FileData>> keys = new LinkedHashMap<String, Key<FileData>>();
+    for (String fileName : fileNames) {
+      Key<FileData> key = projectFileKey(projectKey, fileName);
+      keys.put(key.getString(), key);
+    }
+    Map<String, FileData> fileData = new HashMap<String, FileData>();
+    List<Key<FileData>> uncached = new ArrayList<Key<FileData>>();
+    Map<String, Object> cached = memcache.getAll(keys.keySet());
+    for (Map.Entry<String, Key<FileData>> entry : keys.entrySet()) {
+      FileData fd = (FileData) cached.get(entry.getKey());
+      if (fd != null) {
+        fileData.put(fd.fileName, fd);
+      } else {
+        uncached.add(entry.getValue());
+      }
+    }
+    if (!uncached.isEmpty()) {
+      for (FileData fd : datastore.get(uncached).values()) {
+        fileData.put(fd.fileName, fd);
+      }
+    }
+    return fileData;
+  }
+
+  /*
+   * Returns the content of a file, reading it from GCS or the blobstore if it is stored there.
+   * Must be called outside of any transaction.
+   */
+  private byte[] getFileContent(String userId, long projectId, FileData fileData) {
+    final Result<byte[]> result = new Result<byte[]>();
+    String fileName = fileData.fileName;
+    if (fileData.isGCS) {     // It's in the Cloud Store
+      try {
+        int count;
+        boolean npfHappened = false;
+        boolean recovered = false;
+        for (count = 0; count < 5; count++) {
+          GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fileData.gcsName);
+          int bytesRead = 0;
+          int fileSize = 0;
+          ByteBuffer resultBuffer;
+          try {
+            fileSize = (int) gcsService.getMetadata(gcsFileName).getLength();
+            resultBuffer = ByteBuffer.allocate(fileSize);
+            GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
             try {
-              fileSize = (int) gcsService.getMetadata(gcsFileName).getLength();
-              resultBuffer = ByteBuffer.allocate(fileSize);
-              GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
-              try {
-                while (bytesRead < fileSize) {
-                  bytesRead += readChannel.read(resultBuffer);
-                  if (bytesRead < fileSize) {
-                    LOG.log(Level.INFO, "readChannel: bytesRead = " + bytesRead + " fileSize = " + fileSize);
-                  }
+              while (bytesRead < fileSize) {
+                bytesRead += readChannel.read(resultBuffer);
+                if (bytesRead < fileSize) {
+                  LOG.log(Level.INFO, "readChannel: bytesRead = " + bytesRead + " fileSize = " + fileSize);
                 }
-                recovered = true;
-                result.t = resultBuffer.array();
-                break;          // We got the data, break out of the loop!
-              } finally {
-                readChannel.close();
               }
-            } catch (NullPointerException e) {
-              // This happens if the object in GCS is non-existent, which would happen
-              // when people uploaded a zero length object. As of this change, we now
-              // store zero length objects into GCS, but there are plenty of older objects
-              // that are missing in GCS.
-              LOG.log(Level.WARNING, "downloadrawfile: NPF recorded for " + fileData.gcsName);
-              npfHappened = true;
-              resultBuffer = ByteBuffer.allocate(0);
+              recovered = true;
               result.t = resultBuffer.array();
+              break;          // We got the data, break out of the loop!
+            } finally {
+              readChannel.close();
             }
+          } catch (NullPointerException e) {
+            // This happens if the object in GCS is non-existent, which would happen
+            // when people uploaded a zero length object. As of this change, we now
+            // store zero length objects into GCS, but there are plenty of older objects
+            // that are missing in GCS.
+            LOG.log(Level.WARNING, "downloadrawfile: NPF recorded for " + fileData.gcsName);
+            npfHappened = true;
+            resultBuffer = ByteBuffer.allocate(0);
+            result.t = resultBuffer.array();
           }
+        }
 
-          // report out on how things went above
-          if (npfHappened) {    // We lost at least once
-            if (recovered) {
-              LOG.log(Level.WARNING, "recovered from NPF in downloadrawfile filename = " + fileData.gcsName +
-                " count = " + count);
-            } else {
-              LOG.log(Level.WARNING, "FATAL NPF in downloadrawfile filename = " + fileData.gcsName);
-            }
+        // report out on how things went above
+        if (npfHappened) {    // We lost at least once
+          if (recovered) {
+            LOG.log(Level.WARNING, "recovered from NPF in downloadrawfile filename = " + fileData.gcsName +
+              " count = " + count);
+          } else {
+            LOG.log(Level.WARNING, "FATAL NPF in downloadrawfile filename = " + fileData.gcsName);
           }
-
-        } catch (IOException e) {
-          throw CrashReport.createAndLogError(LOG, null,
-              collectProjectErrorInfo(userId, projectId, fileName), e);
-        }
-      } else if (fileData.isBlob) {
-        try {
-          result.t = getBlobstoreBytes(fileData.blobstorePath);
-        } catch (BlobReadException e) {
-          throw CrashReport.createAndLogError(LOG, null,
-              collectProjectErrorInfo(userId, projectId, fileName), e);
-        }
-      } else {
-        if (fileData.content == null) {
-          result.t = new byte[0];
-        } else {
-          result.t = fileData.content;
         }
+
+      } catch (IOException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fileName), e);
+      }
+    } else if (fileData.isBlob) {
+      try {
+        result.t = getBlobstoreBytes(fileData.blobstorePath);
+      } catch (BlobReadException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fileName), e);
       }
     } else {
-      throw CrashReport.createAndLogError(LOG, null,
-          collectProjectErrorInfo(userId, projectId, fileName),
-          new FileNotFoundException("No data for " + fileName));
+      if (fileData.content == null) {
+        result.t = new byte[0];
+      } else {
+        result.t = fileData.content;
+      }
     }
     return result.t;
   }
@@ -1822,6 +1958,30 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
+  /*
+   * Copies the contents of the given blob to the given stream, without holding them in memory.
+   */
+  private void writeBlobstoreFile(String blobstorePath, OutputStream out)
+      throws BlobReadException, IOException {
+    AppEngineFile blobstoreFile = new AppEngineFile(blobstorePath);
+    BlobKey blobKey = fileService.getBlobKey(blobstoreFile);
+    if (blobKey == null) {
+      throw new BlobReadException("getBlobKey() returned null for " + blobstorePath);
+    }
+    InputStream blobInputStream;
+    try {
+      blobInputStream = new BlobstoreInputStream(blobKey);
+    } catch (IOException e) {
+      throw new BlobReadException(e, "Error trying to read blob from " + blobstorePath
+          + ", blobkey = " + blobKey);
+    }
+    try {
+      ByteStreams.copy(blobInputStream, out);
+    } finally {
+      blobInputStream.close();
+    }
+  }
+
   /**
    *  Exports project files as a zip archive
    * @param userId a user Id (the request is made on behalf of this user)
@@ -1838,22 +1998,60 @@ public class ObjectifyStorageIo implements  StorageIo {
                                                  final boolean includeAndroidKeystore,
                                                  @Nullable String zipName,
                                                  final boolean fatalError) throws IOException {
-    final Result<Integer> fileCount = new Result<Integer>();
-    fileCount.t = 0;
+    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    ZipOutputStream out = new ZipOutputStream(zipFile);
+    Result<String> projectName = new Result<String>();
+    int fileCount = writeProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, fatalError, out, projectName);
+    out.close();
+
+    if (zipName == null) {
+      zipName = projectName.t + ".aia";
+    }
+    ProjectSourceZip projectSourceZip =
+        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount);
+    projectSourceZip.setMetadata(projectName.t);
+    return projectSourceZip;
+  }
+
+  @Override
+  public int exportProjectSourceZip(String userId, long projectId,
+                                    boolean includeProjectHistory,
+                                    boolean includeAndroidKeystore,
+                                    boolean fatalError,
+                                    OutputStream outputStream) throws IOException {
+    ZipOutputStream out = new ZipOutputStream(outputStream);
+    int fileCount = writeProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, fatalError, out, new Result<String>());
+    // Finish the zip, but leave the caller's stream open.
+    out.finish();
+    return fileCount;
+  }
+
+  /*
+   * Writes the files of a project to the given zip, streaming their contents from storage, and
+   * returns the number of files written. The contents of the next few GCS files are fetched
+   * while the current one is written.
+   */
+  private int writeProjectSourceZip(final String userId, final long projectId,
+                                    final boolean includeProjectHistory,
+                                    final boolean includeAndroidKeystore,
+                                    final boolean fatalError,
+                                    ZipOutputStream out,
+                                    final Result<String> projectName) throws IOException {
+    int fileCount = 0;
     final Result<String> projectHistory = new Result<String>();
     projectHistory.t = null;
+    final Result<byte[]> androidKeystore = new Result<byte[]>();
+    androidKeystore.t = null;
     // We collect up all the file data for the project in a transaction but
     // then we read the data and write the zip file outside of the transaction
     // to avoid problems reading blobs in a transaction with the wrong
     // entity group.
     final List<FileData> fileData = new ArrayList<FileData>();
-    final Result<String> projectName = new Result<String>();
     projectName.t = null;
     String fileName = null;
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    final ZipOutputStream out = new ZipOutputStream(zipFile);
-
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
@@ -1880,146 +2078,141 @@ public class ObjectifyStorageIo implements  StorageIo {
           }
         }
       }, true);
+    } catch (ObjectifyException e) {
+      CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+      throw new IOException("Reflecting exception for userid " + userId +
+          " projectId " + projectId + ", original exception " + e.getMessage());
+    }
+
+    if (fileData.isEmpty()) {
+      // Nothing has been written yet, so the zip can still be abandoned.
+      throw new IllegalArgumentException("No files to download");
+    }
 
-      // Process the file contents outside of the job since we can't read
-      // blobs in the job.
-      for (FileData fd : fileData) {
+    if (includeAndroidKeystore) {
+      try {
+        runJobWithRetries(new JobRetryHelper() {
+            @Override
+            public void run(Objectify datastore) {
+              Key<UserData> userKey = userKey(userId);
+              for (UserFileData ufd : datastore.query(UserFileData.class).ancestor(userKey)) {
+                if (ufd.fileName.equals(StorageUtil.ANDROID_KEYSTORE_FILENAME) &&
+                    (ufd.content.length > 0)) {
+                  androidKeystore.t = ufd.content;
+                }
+              }
+            }
+        }, true);
+      } catch (ObjectifyException e) {
+        throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
+      }
+    }
+
+    // Process the file contents outside of the job since we can't read
+    // blobs in the job.
+    GcsInputChannel[] gcsChannels = new GcsInputChannel[fileData.size()];
+    int prefetched = 0;
+    try {
+      for (int i = 0; i < fileData.size(); i++) {
+        // Start fetching the next GCS files before writing this one.
+        while (prefetched < fileData.size() && prefetched <= i + EXPORT_PREFETCH_FILES) {
+          FileData fd = fileData.get(prefetched);
+          if (fd.isGCS) {
+            fileName = fd.fileName;
+            gcsChannels[prefetched] = openPrefetchingGcsChannel(fd, fatalError);
+          }
+          prefetched++;
+        }
+
+        FileData fd = fileData.get(i);
         fileName = fd.fileName;
-        byte[] data = null;
+        out.putNextEntry(new ZipEntry(fileName));
         if (fd.isBlob) {
           try {
-            data = getBlobstoreBytes(fd.blobstorePath);
+            writeBlobstoreFile(fd.blobstorePath, out);
           } catch (BlobReadException e) {
             throw CrashReport.createAndLogError(LOG, null,
                 collectProjectErrorInfo(userId, projectId, fileName), e);
           }
         } else if (fd.isGCS) {
-          try {
-            int count;
-            boolean npfHappened = false;
-            boolean recovered = false;
-            for (count = 0; count < 5; count++) {
-              GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fd.gcsName);
-              int bytesRead = 0;
-              int fileSize = 0;
-              ByteBuffer resultBuffer;
-              try {
-                fileSize = (int) gcsService.getMetadata(gcsFileName).getLength();
-                resultBuffer = ByteBuffer.allocate(fileSize);
-                GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
-                try {
-                  while (bytesRead < fileSize) {
-                    bytesRead += readChannel.read(resultBuffer);
-                    if (bytesRead < fileSize) {
-                      LOG.log(Level.INFO, "readChannel: bytesRead = " + bytesRead + " fileSize = " + fileSize);
-                    }
-                  }
-                  recovered = true;
-                  data = resultBuffer.array();
-                  break;        // We got the data, break out of the loop!
-                } finally {
-                  readChannel.close();
-                }
-              } catch (NullPointerException e) {
-                // This happens if the object in GCS is non-existent, which would happen
-                // when people uploaded a zero length object. As of this change, we now
-                // store zero length objects into GCS, but there are plenty of older objects
-                // that are missing in GCS.
-                LOG.log(Level.WARNING, "exportProjectFile: NPF recorded for " + fd.gcsName);
-                npfHappened = true;
-                resultBuffer = ByteBuffer.allocate(0);
-                data = resultBuffer.array();
-              }
-            }
-
-            // report out on how things went above
-            if (npfHappened) {    // We lost at least once
-              if (recovered) {
-                LOG.log(Level.WARNING, "recovered from NPF in exportProjectFile filename = " + fd.gcsName +
-                  " count = " + count);
-              } else {
-                LOG.log(Level.WARNING, "FATAL NPF in exportProjectFile filename = " + fd.gcsName);
-                if (fatalError) {
-                  throw new IOException("FATAL Error reading file from GCS filename = " + fd.gcsName);
-                }
-              }
+          GcsInputChannel channel = gcsChannels[i];
+          gcsChannels[i] = null;
+          if (channel != null) {
+            try {
+              ByteStreams.copy(Channels.newInputStream(channel), out);
+            } catch (IOException e) {
+              throw CrashReport.createAndLogError(LOG, null,
+                  collectProjectErrorInfo(userId, projectId, fileName), e);
+            } finally {
+              channel.close();
             }
-          } catch (IOException e) {
-            throw CrashReport.createAndLogError(LOG, null,
-              collectProjectErrorInfo(userId, projectId, fileName), e);
           }
-        } else {
-          data = fd.content;
-        }
-        if (data == null) {     // This happens if file creation is interrupted
-          data = new byte[0];
+        } else if (fd.content != null) {  // null if file creation is interrupted
+          out.write(fd.content, 0, fd.content.length);
         }
-        out.putNextEntry(new ZipEntry(fileName));
-        out.write(data, 0, data.length);
         out.closeEntry();
-        fileCount.t++;
+        fileCount++;
       }
       if (projectHistory.t != null) {
         byte[] data = projectHistory.t.getBytes(StorageUtil.DEFAULT_CHARSET);
         out.putNextEntry(new ZipEntry(FileExporter.REMIX_INFORMATION_FILE_PATH));
         out.write(data, 0, data.length);
         out.closeEntry();
-        fileCount.t++;
+        fileCount++;
       }
-    } catch (ObjectifyException e) {
-      CrashReport.createAndLogError(LOG, null,
-          collectProjectErrorInfo(userId, projectId, fileName), e);
-      throw new IOException("Reflecting exception for userid " + userId +
-          " projectId " + projectId + ", original exception " + e.getMessage());
     } catch (RuntimeException e) {
       CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileName), e);
       throw new IOException("Reflecting exception for userid " + userId +
           " projectId " + projectId + ", original exception " + e.getMessage());
+    } finally {
+      // Close the channels of files that were fetched but not written.
+      for (GcsInputChannel channel : gcsChannels) {
+        if (channel != null) {
+          channel.close();
+        }
+      }
     }
 
-    if (fileCount.t == 0) {
-      // can't close out since will get a ZipException due to the lack of files
-      throw new IllegalArgumentException("No files to download");
+    if (androidKeystore.t != null) {
+      out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
+      out.write(androidKeystore.t, 0, androidKeystore.t.length);
+      out.closeEntry();
+      fileCount++;
     }
+    return fileCount;
+  }
 
-    if (includeAndroidKeystore) {
-      try {
-        runJobWithRetries(new JobRetryHelper() {
-            @Override
-            public void run(Objectify datastore) {
-              try {
-                Key<UserData> userKey = userKey(userId);
-                for (UserFileData ufd : datastore.query(UserFileData.class).ancestor(userKey)) {
-                  if (ufd.fileName.equals(StorageUtil.ANDROID_KEYSTORE_FILENAME) &&
-                      (ufd.content.length > 0)) {
-                    out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
-                    out.write(ufd.content, 0, ufd.content.length);
-                    out.closeEntry();
-                    fileCount.t++;
-                  }
-                }
-              } catch (IOException e) {
-                throw CrashReport.createAndLogError(LOG, null,
-                    collectProjectErrorInfo(userId, projectId,
-                        StorageUtil.ANDROID_KEYSTORE_FILENAME), e);
-              }
-            }
-        }, true);
-      } catch (ObjectifyException e) {
-        throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
+  /*
+   * Opens a channel that starts fetching the contents of the given GCS file in the background.
+   * Returns null if the file doesn't exist in GCS and fatalError is false, in which case it is
+   * exported as an empty file.
+   */
+  private GcsInputChannel openPrefetchingGcsChannel(FileData fd, boolean fatalError)
+      throws IOException {
+    GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fd.gcsName);
+    int count;
+    for (count = 0; count < 5; count++) {
+      // getMetadata returns null if the object in GCS is non-existent, which would happen
+      // when people uploaded a zero length object. As of this change, we now
+      // store zero length objects into GCS, but there are plenty of older objects
+      // that are missing in GCS.
+      if (gcsService.getMetadata(gcsFileName) != null) {
+        if (count > 0) {
+          LOG.log(Level.WARNING, "recovered from NPF in exportProjectFile filename = "
+              + fd.gcsName + " count = " + count);
+        }
+        return gcsService.openPrefetchingReadChannel(gcsFileName, 0,
+            EXPORT_PREFETCH_BLOCK_SIZE);
       }
+      LOG.log(Level.WARNING, "exportProjectFile: NPF recorded for " + fd.gcsName);
     }
-
-    out.close();
-
-    if (zipName == null) {
-      zipName = projectName.t + ".aia";
+    LOG.log(Level.WARNING, "FATAL NPF in exportProjectFile filename = " + fd.gcsName);
+    if (fatalError) {
+      throw new IOException("FATAL Error reading file from GCS filename = " + fd.gcsName);
     }
-    ProjectSourceZip projectSourceZip =
-        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount.t);
-    projectSourceZip.setMetadata(projectName.t);
-    return projectSourceZip;
+    return null;
   }
 
   @Override
@@ -2249,8 +2442,9 @@ public class ObjectifyStorageIo implements  StorageIo {
   /**
    * Call job.run() if we get a {@link java.util.ConcurrentModificationException}
    * or {@link com.google.appinventor.server.storage.ObjectifyException}
-   * we will retry the job (at most {@code MAX_JOB_RETRIES times}).
-   * Any other exception will cause the job to fail immediately.
+   * we will retry the job (at most {@code MAX_JOB_RETRIES times}, and within
+   * the retry budget of {@link JobRetries}), after a randomized exponential
+   * backoff. Any other exception will cause the job to fail immediately.
    * If useTransaction is true, create a transaction and run the job in
    * that transaction. If the job terminates normally, commit the transaction.
    *
@@ -2266,8 +2460,10 @@ public class ObjectifyStorageIo implements  StorageIo {
    */
   @VisibleForTesting
   void runJobWithRetries(JobRetryHelper job, boolean useTransaction) throws ObjectifyException {
+    String jobType = JobRetries.getJobType(job);
+    long startMillis = System.currentTimeMillis();
     int tries = 0;
-    while (tries <= MAX_JOB_RETRIES) {
+    while (true) {
       Objectify datastore;
       if (useTransaction) {
         datastore = ObjectifyService.beginTransaction();
@@ -2279,10 +2475,12 @@ public class ObjectifyStorageIo implements  StorageIo {
         if (useTransaction) {
           datastore.getTxn().commit();
         }
-        break;
+        jobRetries.recordSuccess(jobType, tries);
+        return;
       } catch (ConcurrentModificationException ex) {
         job.onNonFatalError();
-        LOG.log(Level.WARNING, "Optimistic concurrency failure", ex);
+        jobRetries.recordContention(jobType);
+        LOG.log(Level.WARNING, "Optimistic concurrency failure in " + jobType, ex);
       } catch (ObjectifyException oe) {
         String message = oe.getMessage();
         if (message != null && message.startsWith("Blocks")) { // This one is fatal!
@@ -2301,9 +2499,9 @@ public class ObjectifyStorageIo implements  StorageIo {
         }
       }
       tries++;
-    }
-    if (tries > MAX_JOB_RETRIES) {
-      throw new ObjectifyException("Couldn't commit job after max retries.");
+      if (!jobRetries.backOff(jobType, tries, startMillis)) {
+        throw new ObjectifyException("Couldn't commit job after max retries.");
+      }
     }
   }
 
@@ -15,8 +15,10 @@ import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.user.User;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 import javax.annotation.Nullable;
@@ -458,6 +460,19 @@ public interface StorageIo {
    */
   long uploadRawFileForce(long projectId, String fileId, String userId, byte[] content);
 
+  /**
+   * Uploads several files of a project at once, updating the project
+   * modification date once.
+   * @param projectId  project ID
+   * @param userId the user who owns the files
+   * @param force write files even if they are trivial workspaces
+   * @param contents  map from file ID to file content
+   * @param encoding encoding of contents
+   * @return modification date for project
+   */
+  long uploadFiles(long projectId, String userId, boolean force, Map<String, String> contents,
+      String encoding) throws BlocksTruncatedException;
+
   /**
    * Deletes a file.
    * @param userId a user Id (the request is made on behalf of this user)
@@ -478,6 +493,18 @@ public interface StorageIo {
    */
   String downloadFile(String userId, long projectId, String fileId, String encoding);
 
+  /**
+   * Downloads the text data of several files of a project at once.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param fileIds  file IDs
+   * @param encoding  encoding of text files
+   *
+   * @return  map from file ID to text file content, in the order of fileIds
+   */
+  Map<String, String> downloadFiles(String userId, long projectId, List<String> fileIds,
+      String encoding);
+
   /**
    * Records a "corruption" record so we can analyze if corruption is
    * happening.
@@ -525,6 +552,24 @@ public interface StorageIo {
                                           @Nullable String zipName,
                                           boolean fatalError) throws IOException;
 
+  /**
+   *  Exports project files as a zip archive written to the given stream, without holding the
+   *  archive in memory. The stream is not closed.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param includeProjectHistory  whether or not to include the project history
+   * @param includeAndroidKeystore  whether or not to include the Android keystore
+   * @param fatalError set true to cause missing GCS file to throw exception
+   * @param out  the stream to write the zip archive to
+   *
+   * @return  the number of files in the zip archive
+   */
+  int exportProjectSourceZip(String userId, long projectId,
+                             boolean includeProjectHistory,
+                             boolean includeAndroidKeystore,
+                             boolean fatalError,
+                             OutputStream out) throws IOException;
+
   /**
    * Find a user's id given their email address. Note that this query is case
    * sensitive!
@@ -6,16 +6,26 @@
 
 package com.google.appinventor.server.storage;
 
+import com.google.appinventor.server.flags.Flag;
+
 /**
  * Holds the singleton StorageIo subclass object. We introduce this class
  * so that we can switch out the underlying StorageIo subclass without changing
  * the references in the code to the INSTANCE.
- * 
+ *
+ * <p>The storage.backend flag selects the subclass: "objectify" (the default)
+ * for the App Engine datastore, or "local" for {@link LocalStorageIo}.
+ *
  * @author sharon@google.com (Sharon Perl)
  *
  */
 public class StorageIoInstanceHolder {
-  public static final StorageIo INSTANCE = new ObjectifyStorageIo();
+  private static final Flag<String> storageBackend =
+      Flag.createFlag("storage.backend", "objectify");
+
+  public static final StorageIo INSTANCE = "local".equals(storageBackend.get())
+      ? new LocalStorageIo()
+      : new ObjectifyStorageIo();
   
   private StorageIoInstanceHolder() {} // not to be instantiated
     
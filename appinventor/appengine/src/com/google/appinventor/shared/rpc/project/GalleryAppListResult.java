@@ -20,6 +20,7 @@ public class GalleryAppListResult implements IsSerializable{
   List<GalleryApp> apps;    //sliced results
   int totalCount;           //total number of all suitable results
   String keyword;           //search keyword, only for searching
+  String cursor;            //where the next page starts, null if there is none
   /**
    * default constructor
    */
@@ -72,6 +73,14 @@ public class GalleryAppListResult implements IsSerializable{
     this.keyword = keyword;
   }
 
+  /**
+   * setCursor based on given cursor
+   * @param cursor where the next page starts
+   */
+  public void setCursor(String cursor){
+    this.cursor = cursor;
+  }
+
   /**
    * @return apps list of GalleryApp
    */
@@ -92,4 +101,11 @@ public class GalleryAppListResult implements IsSerializable{
   public String getKeyword(){
     return keyword;
   }
+
+  /**
+   * @return cursor where the next page starts, or null if this is the last page
+   */
+  public String getCursor(){
+    return cursor;
+  }
 }
@@ -84,6 +84,16 @@ public interface GalleryService extends RemoteService {
    */
   GalleryAppListResult getRecentApps(int start, int count);
 
+  /**
+   * Returns a page of the most recently updated galleryApps and the total
+   * number of them. Unlike {@link #getRecentApps(int, int)}, this doesn't
+   * skip over the earlier pages.
+   * @param cursor the cursor of the previous page, or null for the first page
+   * @param count number of apps to return
+   * @return list of GalleryApps, with the cursor of the next page
+   */
+  GalleryAppListResult getRecentAppsPage(String cursor, int count);
+
   /**
    * Returns a wrapped class which contains a list of most downloaded
    * gallery apps and total number of results in database
@@ -93,6 +103,16 @@ public interface GalleryService extends RemoteService {
    */
   GalleryAppListResult getMostDownloadedApps(int start, int count);
 
+  /**
+   * Returns a page of the most downloaded gallery apps and the total number
+   * of them. Unlike {@link #getMostDownloadedApps(int, int)}, this doesn't
+   * skip over the earlier pages.
+   * @param cursor the cursor of the previous page, or null for the first page
+   * @param count number of apps to return
+   * @return list of GalleryApps, with the cursor of the next page
+   */
+  GalleryAppListResult getMostDownloadedAppsPage(String cursor, int count);
+
   /**
    * Returns a wrapped class which contains a list of featured gallery app
    * @param start start index
@@ -69,6 +69,11 @@ public interface GalleryServiceAsync {
    */
   void getRecentApps(int start, int count, AsyncCallback<GalleryAppListResult> callback);
 
+  /**
+   * @see @link{@link GalleryService#getRecentAppsPage(String, int)
+   */
+  void getRecentAppsPage(String cursor, int count, AsyncCallback<GalleryAppListResult> callback);
+
   /**
    * @see @link{@link GalleryService#getFeaturedApp(int, int)
    */
@@ -89,6 +94,12 @@ public interface GalleryServiceAsync {
    */
   void getMostDownloadedApps(int start, int count, AsyncCallback<GalleryAppListResult> callback);
 
+  /**
+   * @see @link{@link GalleryService#getMostDownloadedAppsPage(String, int)
+   */
+  void getMostDownloadedAppsPage(String cursor, int count,
+      AsyncCallback<GalleryAppListResult> callback);
+
   /**
    * @see @link{@link GalleryService#getDeveloperApps(String, int, int)
    */
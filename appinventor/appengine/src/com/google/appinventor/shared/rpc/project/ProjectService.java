@@ -252,6 +252,12 @@ public interface ProjectService extends RemoteService {
   public long save(String sessionId, List<FileDescriptorWithContent> filesAndContent) throws InvalidSessionException,
       BlocksTruncatedException;
 
+  /**
+   * Writes the saves of the user that were deferred, see save2. Called when
+   * the user's window is closed.
+   */
+  void flushSaves();
+
   /**
    * Invokes a build command for the project on the back-end.
    *
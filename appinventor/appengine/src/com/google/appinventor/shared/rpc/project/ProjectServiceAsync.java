@@ -136,6 +136,11 @@ public interface ProjectServiceAsync {
    */
   void save(String sessionId, List<FileDescriptorWithContent> filesAndContent, AsyncCallback<Long> callback);
 
+  /**
+   * @see ProjectService#flushSaves()
+   */
+  void flushSaves(AsyncCallback<Void> callback);
+
   /**
    * @see ProjectService#build(long, String, String)
    */
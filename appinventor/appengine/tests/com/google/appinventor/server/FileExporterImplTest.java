@@ -125,6 +125,27 @@ public class FileExporterImplTest extends LocalDatastoreTestCase {
         StorageUtil.DEFAULT_CHARSET));
   }
 
+  public void testExportProjectSourceZipToStream() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int fileCount = exporter.exportProjectSourceZip(USER_ID, projectId, true, false, false, out);
+    ProjectSourceZip project = new ProjectSourceZip(PROJECT_NAME + ".aia", out.toByteArray(),
+        fileCount);
+    Map<String, byte[]> content = testExportProjectSourceZipHelper(project);
+    assertEquals(3, content.size());
+    assertTrue(content.containsKey(FileExporter.REMIX_INFORMATION_FILE_PATH));
+  }
+
+  public void testExportProjectSourceZipToStreamWithNonExistingProject() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      exporter.exportProjectSourceZip(USER_ID, projectId + 1, false, false, false, out);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Nothing is written when there is nothing to export.
+      assertEquals(0, out.size());
+    }
+  }
+
   public void testExportProjectSourceZipWithNonExistingProject() throws IOException {
     try {
       exporter.exportProjectSourceZip(USER_ID, projectId + 1, false, false, null, false);
@@ -0,0 +1,103 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link GalleryIndex}.
+ *
+ */
+public class GalleryIndexTest extends TestCase {
+
+  private GalleryIndex index;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    index = new GalleryIndex();
+    index.put(1, "Paint Pot", "Draw on a canvas with your finger", "alice",
+        Arrays.asList("Form", "Canvas", "Button"));
+    index.put(2, "Ball Bounce", "A ball bounces around the canvas", "bob",
+        Arrays.asList("Form", "Canvas", "Ball"));
+    index.put(3, "Talk To Me", "Say what you type", "painter",
+        Arrays.asList("Form", "TextToSpeech", "Button"));
+  }
+
+  public void testTokenize() {
+    assertEquals(Arrays.asList("hello", "world", "2"), GalleryIndex.tokenize("Hello, World-2!"));
+    assertEquals(Collections.emptyList(), GalleryIndex.tokenize("  --  "));
+  }
+
+  public void testSearchMatchesAllWords() {
+    assertEquals(Arrays.asList(2L, 1L), index.search("canvas", 0, 10).getGalleryIds());
+    assertEquals(Arrays.asList(2L), index.search("ball canvas", 0, 10).getGalleryIds());
+    assertEquals(0, index.search("ball speech", 0, 10).getTotalCount());
+    assertEquals(0, index.search("", 0, 10).getTotalCount());
+  }
+
+  public void testTitleRanksAboveDescription() {
+    // 4 has "canvas" in its title, 1 and 2 only in their descriptions
+    index.put(4, "Canvas Fun", "Nothing else", "carol", Collections.<String>emptyList());
+    assertEquals(Arrays.asList(4L, 2L, 1L), index.search("canvas", 0, 10).getGalleryIds());
+  }
+
+  public void testPrefixMatching() {
+    // "pain" begins "paint" and "painter"; whole words rank above prefixes
+    assertEquals(Arrays.asList(1L, 3L), index.search("pain", 0, 10).getGalleryIds());
+    index.put(4, "Pain", "", "dave", Collections.<String>emptyList());
+    assertEquals(Arrays.asList(4L, 1L, 3L), index.search("pain", 0, 10).getGalleryIds());
+    // Single letters only match whole words
+    assertEquals(0, index.search("p", 0, 10).getTotalCount());
+  }
+
+  public void testComponentFilter() {
+    assertEquals(Arrays.asList(3L, 1L), index.search("component:button", 0, 10).getGalleryIds());
+    assertEquals(Arrays.asList(1L),
+        index.search("canvas component:Button", 0, 10).getGalleryIds());
+    assertEquals(0, index.search("component:Sound", 0, 10).getTotalCount());
+  }
+
+  public void testPaging() {
+    GalleryIndex.Page page = index.search("component:form", 1, 1);
+    assertEquals(3, page.getTotalCount());
+    assertEquals(Arrays.asList(2L), page.getGalleryIds());
+    assertTrue(index.search("component:form", 5, 10).getGalleryIds().isEmpty());
+  }
+
+  public void testUpdateAndRemove() {
+    index.put(2, "Bouncing Ball", "Round and round", "bob",
+        Collections.<String>emptyList());
+    assertEquals(Arrays.asList(1L), index.search("canvas", 0, 10).getGalleryIds());
+    assertEquals(Arrays.asList(2L), index.search("round", 0, 10).getGalleryIds());
+
+    index.remove(1);
+    assertEquals(2, index.size());
+    assertEquals(0, index.search("canvas", 0, 10).getTotalCount());
+    assertEquals(0, index.search("component:canvas", 0, 10).getTotalCount());
+  }
+
+  public void testSnapshot() throws Exception {
+    File file = File.createTempFile("galleryindex", ".snapshot");
+    try {
+      index.save(file);
+      GalleryIndex loaded = new GalleryIndex();
+      loaded.load(file);
+      assertEquals(3, loaded.size());
+      assertEquals(index.search("canvas", 0, 10).getGalleryIds(),
+          loaded.search("canvas", 0, 10).getGalleryIds());
+      assertEquals(index.search("component:ball", 0, 10).getGalleryIds(),
+          loaded.search("component:ball", 0, 10).getGalleryIds());
+    } finally {
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,63 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.GalleryStorageIo;
+import com.google.appinventor.server.storage.GalleryStorageIoInstanceHolder;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+import com.google.appinventor.shared.rpc.project.GalleryApp;
+import com.google.appinventor.shared.rpc.project.GalleryAppListResult;
+
+/**
+ * Tests for {@link GallerySearchIndex} with the local index.
+ *
+ */
+public class GallerySearchIndexTest extends LocalDatastoreTestCase {
+
+  private static final String USER_ID = "200";
+
+  private GalleryStorageIo galleryStorage;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    System.setProperty("gallery.search.backend", "local");
+    galleryStorage = GalleryStorageIoInstanceHolder.INSTANCE;
+    StorageIoInstanceHolder.INSTANCE.getUser(USER_ID);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    System.clearProperty("gallery.search.backend");
+    super.tearDown();
+  }
+
+  public void testFindLocal() {
+    GallerySearchIndex searchIndex = GallerySearchIndex.getInstance();
+    for (int i = 0; i < 4; i++) {
+      searchIndex.indexApp(galleryStorage.createGalleryApp("Marble Game " + i,
+          "Marble" + i + ".aia", "Roll a marble", "", "", i + 1, USER_ID));
+    }
+    // An app that is indexed but not stored is left out, and unindexed
+    GalleryApp missing = new GalleryApp();
+    missing.setGalleryAppId(999999L);
+    missing.setTitle("Marble Game");
+    missing.setDescription("");
+    missing.setDeveloperName("");
+    searchIndex.indexApp(missing);
+
+    GalleryAppListResult result = searchIndex.find("marble", 0, 10);
+    assertEquals(4, result.getTotalCount());
+    assertEquals(4, result.getApps().size());
+    for (GalleryApp app : result.getApps()) {
+      assertTrue(app.getTitle().startsWith("Marble Game"));
+    }
+    // Not counted in later searches either
+    assertEquals(4, searchIndex.find("marble game", 0, 2).getTotalCount());
+    assertEquals(0, searchIndex.find("marbles", 0, 10).getApps().size());
+  }
+}
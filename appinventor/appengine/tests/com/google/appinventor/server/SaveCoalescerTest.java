@@ -0,0 +1,159 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.common.testutils.TestUtils;
+import com.google.appinventor.server.storage.LocalStorageIo;
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.TextFile;
+import com.google.appinventor.shared.storage.StorageUtil;
+import com.google.common.io.Files;
+
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.utils.config.GenerationDirectory;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * Tests for {@link SaveCoalescer}.
+ *
+ */
+public class SaveCoalescerTest extends TestCase {
+  private static final String APPENGINE_GENERATED_DIR = TestUtils.APP_INVENTOR_ROOT_DIR +
+      "/appengine/build/tests/appengine-generated";
+  private static final String USER_ID = "300";
+  private static final String FILE_NAME = "src/com/yourdomain/Screen1.scm";
+  private static final String CONTENT1 = "#|\n$JSON\n{\"Source\":\"Form\",\"Version\":1}\n|#";
+  private static final String CONTENT2 = "#|\n$JSON\n{\"Source\":\"Form\",\"Version\":2}\n|#";
+  private static final String CONTENT3 = "#|\n$JSON\n{\"Source\":\"Form\",\"Version\":3}\n|#";
+
+  // Storage that counts its writes, and can be made to fail writing several
+  // files at once, as flushes do
+  private static class CountingStorageIo extends LocalStorageIo {
+    int writes;
+    boolean failUploads;
+
+    @Override
+    public long uploadFile(long projectId, String fileName, String userId, String content,
+        String encoding) throws BlocksTruncatedException {
+      writes++;
+      return super.uploadFile(projectId, fileName, userId, content, encoding);
+    }
+
+    @Override
+    public long uploadFiles(long projectId, String userId, boolean force,
+        Map<String, String> contents, String encoding) throws BlocksTruncatedException {
+      if (failUploads) {
+        throw new IllegalStateException("Storage unavailable");
+      }
+      writes++;
+      return super.uploadFiles(projectId, userId, force, contents, encoding);
+    }
+  }
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+      new LocalMemcacheServiceTestConfig(), new LocalTaskQueueTestConfig());
+
+  private File root;
+  private CountingStorageIo storage;
+  private SaveCoalescer saveCoalescer;
+  private long projectId;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    System.setProperty(GenerationDirectory.GENERATED_DIR_PROPERTY, APPENGINE_GENERATED_DIR);
+    helper.setUp();
+    // Every save after the first is deferred
+    System.setProperty("save.coalesce.window.ms", "60000");
+    root = Files.createTempDir();
+    System.setProperty("local.storage.dir", root.getPath());
+    storage = new CountingStorageIo();
+    saveCoalescer = new SaveCoalescer(storage);
+
+    storage.getUser(USER_ID);
+    Project project = new Project("Coalesced");
+    project.setProjectType("FakeProjectType");
+    project.addTextFile(new TextFile(FILE_NAME, CONTENT1));
+    projectId = storage.createProject(USER_ID, project, "");
+    storage.writes = 0;
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    System.clearProperty("save.coalesce.window.ms");
+    System.clearProperty("local.storage.dir");
+    deleteRecursively(root);
+    super.tearDown();
+    helper.tearDown();
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+
+  private String stored() {
+    return storage.downloadFile(USER_ID, projectId, FILE_NAME, StorageUtil.DEFAULT_CHARSET);
+  }
+
+  public void testDeferral() throws Exception {
+    saveCoalescer.save2(USER_ID, projectId, FILE_NAME, false, CONTENT2);
+    assertEquals(CONTENT2, stored());
+    assertEquals(1, storage.writes);
+    // Saved again within the window, without writing storage
+    saveCoalescer.save2(USER_ID, projectId, FILE_NAME, false, CONTENT3);
+    saveCoalescer.save2(USER_ID, projectId, FILE_NAME, false, CONTENT2);
+    saveCoalescer.save2(USER_ID, projectId, FILE_NAME, false, CONTENT3);
+    assertEquals(CONTENT2, stored());
+    assertEquals(1, storage.writes);
+
+    // The flush task writes the latest save once
+    assertTrue(saveCoalescer.flushAll(USER_ID));
+    assertEquals(CONTENT3, stored());
+    assertEquals(2, storage.writes);
+    // Nothing is written twice
+    assertTrue(saveCoalescer.flushAll(USER_ID));
+    assertEquals(2, storage.writes);
+  }
+
+  public void testFlushOnLoad() throws Exception {
+    saveCoalescer.save2(USER_ID, projectId, FILE_NAME, false, CONTENT2);
+    saveCoalescer.save2(USER_ID, projectId, FILE_NAME, false, CONTENT3);
+    // Loading the project flushes it first
+    assertTrue(saveCoalescer.flush(USER_ID, projectId));
+    assertEquals(CONTENT3, stored());
+    // Other projects have nothing to flush
+    storage.failUploads = true;
+    assertTrue(saveCoalescer.flush(USER_ID, projectId + 1));
+  }
+
+  public void testFlushFailure() throws Exception {
+    saveCoalescer.save2(USER_ID, projectId, FILE_NAME, false, CONTENT2);
+    saveCoalescer.save2(USER_ID, projectId, FILE_NAME, false, CONTENT3);
+
+    storage.failUploads = true;
+    assertFalse(saveCoalescer.flushAll(USER_ID));
+    assertEquals(CONTENT2, stored());
+
+    // The deferred save is kept until it is written
+    storage.failUploads = false;
+    assertTrue(saveCoalescer.flushAll(USER_ID));
+    assertEquals(CONTENT3, stored());
+  }
+}
@@ -0,0 +1,80 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link JobRetries}.
+ *
+ */
+public class JobRetriesTest extends TestCase {
+
+  public void testBackoffIsBoundedAndGrows() {
+    JobRetries jobRetries = new JobRetries(10, 10, 100, 5000);
+    for (int i = 0; i < 100; i++) {
+      long first = jobRetries.getBackoffMs(1);
+      assertTrue(first >= 0 && first <= 10);
+      long third = jobRetries.getBackoffMs(3);
+      assertTrue(third >= 0 && third <= 40);
+      long tenth = jobRetries.getBackoffMs(10);
+      assertTrue(tenth >= 0 && tenth <= 100);
+    }
+  }
+
+  public void testRetryCountLimit() {
+    JobRetries jobRetries = new JobRetries(2, 0, 0, 5000);
+    long start = System.currentTimeMillis();
+    assertTrue(jobRetries.backOff("testRetryCountLimit", 1, start));
+    assertTrue(jobRetries.backOff("testRetryCountLimit", 2, start));
+    assertFalse(jobRetries.backOff("testRetryCountLimit", 3, start));
+
+    JobRetries.JobStats stats = JobRetries.getStats().get("testRetryCountLimit");
+    assertEquals(2, stats.getRetries());
+    assertEquals(1, stats.getFailures());
+    assertEquals(1, stats.getRuns());
+  }
+
+  public void testRetryTimeBudget() {
+    JobRetries jobRetries = new JobRetries(10, 0, 0, 1000);
+    long start = System.currentTimeMillis() - 2000;
+    assertFalse(jobRetries.backOff("testRetryTimeBudget", 1, start));
+    assertEquals(1, JobRetries.getStats().get("testRetryTimeBudget").getFailures());
+  }
+
+  public void testStats() {
+    JobRetries jobRetries = new JobRetries(10, 0, 0, 5000);
+    jobRetries.recordSuccess("testStats", 0);
+    jobRetries.recordContention("testStats");
+    jobRetries.recordSuccess("testStats", 1);
+    jobRetries.recordSuccess("testStats", 4);
+
+    JobRetries.JobStats stats = JobRetries.getStats().get("testStats");
+    assertEquals(3, stats.getRuns());
+    assertEquals(1, stats.getContentions());
+    // Buckets: <= 0, 1, 2, 3, 5, 10, +Inf
+    long[] histogram = stats.getRetryHistogram();
+    assertEquals(1, histogram[0]);
+    assertEquals(2, histogram[1]);
+    assertEquals(2, histogram[3]);
+    assertEquals(3, histogram[4]);
+    assertEquals(3, histogram[histogram.length - 1]);
+
+    StringBuilder sb = new StringBuilder();
+    JobRetries.writeStats(sb);
+    String text = sb.toString();
+    assertTrue(text.contains("appinventor_job_runs_total{job=\"testStats\"} 3\n"));
+    assertTrue(text.contains("appinventor_job_contentions_total{job=\"testStats\"} 1\n"));
+    assertTrue(text.contains(
+        "appinventor_job_retries_per_run_bucket{job=\"testStats\",le=\"1\"} 2\n"));
+  }
+
+  public void testJobType() {
+    Object job = new Object() { };
+    assertEquals("JobRetriesTest.testJobType", JobRetries.getJobType(job));
+  }
+}
@@ -0,0 +1,431 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.server.FileExporter;
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.Nonce;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
+import com.google.appinventor.shared.rpc.project.RawFile;
+import com.google.appinventor.shared.rpc.project.TextFile;
+import com.google.appinventor.shared.rpc.project.UserProject;
+import com.google.appinventor.shared.rpc.user.User;
+import com.google.appinventor.shared.storage.StorageUtil;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link LocalStorageIo}.
+ *
+ */
+public class LocalStorageIoTest extends TestCase {
+
+  private static final String SETTINGS = "{settings: \"none\"}";
+  private static final String FAKE_PROJECT_TYPE = "FakeProjectType";
+  private static final String PROJECT_NAME = "Project1";
+  private static final String FILE_NAME1 = "File1.src";
+  private static final String FILE_NAME2 = "src/File2.blk";
+  private static final String RAW_FILE_NAME1 = "assets/File1.jpg";
+  private static final String FILE_NAME_OUTPUT = "File.apk";
+  private static final String BLOCKS_FILE_NAME = "src/com/yourdomain/Screen1.bky";
+  private static final String FILE_CONTENT1 = "The quick onyx goblin jumps over the lazy dwarf";
+  private static final String FILE_CONTENT2 = "This Pangram contains four a's, one b, two c's, "
+      + "one d, thirty e's, six f's, five g's, seven h's, eleven i's, one j, one k, two l's, "
+      + "two m's, eighteen n's, fifteen o's, two p's, one q, five r's, twenty-seven s's, "
+      + "eighteen t's, two u's, seven v's, eight w's, two x's, three y's, & one z.";
+  private static final byte[] RAW_FILE_CONTENT1 = { (byte) 0, (byte) 1, (byte) 32, (byte) 255};
+  private static final byte[] FILE_CONTENT_OUTPUT = { (byte) 0, (byte) 1, (byte) 32, (byte) 255};
+  private static final String HISTORY = "1:History";
+
+  private File root;
+  private LocalStorageIo storage;
+  private Project project;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    root = Files.createTempDir();
+    storage = new LocalStorageIo(root);
+
+    project = new Project(PROJECT_NAME);
+    project.setProjectType(FAKE_PROJECT_TYPE);
+    project.setProjectHistory(HISTORY);
+    project.addTextFile(new TextFile(FILE_NAME1, FILE_CONTENT1));
+    project.addRawFile(new RawFile(RAW_FILE_NAME1, RAW_FILE_CONTENT1));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    deleteRecursively(root);
+    super.tearDown();
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+
+  public void testGetUser() {
+    final String USER_ID = "500";
+    final String USER_EMAIL = "user500@test.com";
+    final String USER_EMAIL_NEW = "newuser500@test.com";
+
+    User user1 = storage.getUser(USER_ID, USER_EMAIL);
+    assertEquals(USER_ID, user1.getUserId());
+    assertEquals(USER_EMAIL, user1.getUserEmail());
+
+    User user2 = storage.getUser(USER_ID);
+    assertEquals(USER_EMAIL, user2.getUserEmail());
+
+    User user3 = storage.getUser(USER_ID, USER_EMAIL_NEW);
+    assertEquals(USER_EMAIL_NEW, user3.getUserEmail());
+    assertEquals(USER_ID, storage.findUserByEmail(USER_EMAIL_NEW));
+  }
+
+  public void testSetTosAccepted() {
+    final String USER_ID = "100";
+    LocalStorageIo.requireTos.setForTest(true);
+    try {
+      User user = storage.getUser(USER_ID);
+      assertEquals(false, user.getUserTosAccepted());
+      storage.setTosAccepted(USER_ID);
+      assertEquals(true, storage.getUser(USER_ID).getUserTosAccepted());
+    } finally {
+      LocalStorageIo.requireTos.setForTest(false);
+    }
+  }
+
+  public void testStoreLoadSettings() {
+    final String USER_ID = "300";
+    assertEquals("", storage.loadSettings(USER_ID));
+    storage.getUser(USER_ID);
+    storage.storeSettings(USER_ID, SETTINGS);
+    assertEquals(SETTINGS, storage.loadSettings(USER_ID));
+  }
+
+  public void testCreateDeleteProject() {
+    final String USER_ID = "400";
+    storage.getUser(USER_ID);
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    assertEquals(Arrays.asList(projectId), storage.getProjects(USER_ID));
+    assertEquals(PROJECT_NAME, storage.getProjectName(USER_ID, projectId));
+    assertEquals(SETTINGS, storage.loadProjectSettings(USER_ID, projectId));
+    assertEquals(Arrays.asList(FILE_NAME1, RAW_FILE_NAME1),
+        storage.getProjectSourceFiles(USER_ID, projectId));
+    UserProject userProject = storage.getUserProject(USER_ID, projectId);
+    assertEquals(FAKE_PROJECT_TYPE, userProject.getProjectType());
+    assertEquals(userProject.getDateCreated(), userProject.getDateModified());
+
+    storage.deleteProject(USER_ID, projectId);
+    assertTrue(storage.getProjects(USER_ID).isEmpty());
+    assertNull(storage.getUserProject(USER_ID, projectId));
+    assertTrue(storage.createProject(USER_ID, project, SETTINGS) > projectId);
+  }
+
+  public void testUploadBeforeAdd() throws BlocksTruncatedException {
+    final String USER_ID = "800";
+    storage.getUser(USER_ID);
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    try {
+      storage.uploadFile(projectId, FILE_NAME2, USER_ID, "does not matter",
+          StorageUtil.DEFAULT_CHARSET);
+      fail("Allowed upload before add");
+    } catch (IllegalStateException ignored) {
+      // File upload should be preceded by add
+    }
+    try {
+      storage.uploadRawUserFile(USER_ID, FILE_NAME2, "does not matter".getBytes());
+      fail("Allowed upload before add");
+    } catch (IllegalStateException ignored) {
+      // File upload should be preceded by add
+    }
+  }
+
+  public void testMuliRoleFile() {
+    final String USER_ID = "1000";
+    storage.getUser(USER_ID);
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    try {
+      storage.addOutputFilesToProject(USER_ID, projectId, FILE_NAME1);
+      fail("File role changed");
+    } catch (IllegalStateException ignored) {
+      // File role change is not allowed
+    }
+  }
+
+  public void testAddRemoveFile() throws BlocksTruncatedException {
+    final String USER_ID = "1200";
+    storage.getUser(USER_ID);
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME2);
+    storage.uploadFile(projectId, FILE_NAME2, USER_ID, FILE_CONTENT2, StorageUtil.DEFAULT_CHARSET);
+    storage.addOutputFilesToProject(USER_ID, projectId, FILE_NAME_OUTPUT);
+    storage.uploadRawFile(projectId, FILE_NAME_OUTPUT, USER_ID, true, FILE_CONTENT_OUTPUT);
+
+    assertTrue(storage.getProjectSourceFiles(USER_ID, projectId).contains(FILE_NAME2));
+    assertEquals(Arrays.asList(FILE_NAME_OUTPUT),
+        storage.getProjectOutputFiles(USER_ID, projectId));
+    assertEquals(FILE_CONTENT2, storage.downloadFile(USER_ID, projectId, FILE_NAME2,
+        StorageUtil.DEFAULT_CHARSET));
+    assertTrue(Arrays.equals(FILE_CONTENT_OUTPUT,
+        storage.downloadRawFile(USER_ID, projectId, FILE_NAME_OUTPUT)));
+
+    storage.removeSourceFilesFromProject(USER_ID, projectId, false, FILE_NAME2);
+    assertFalse(storage.getProjectSourceFiles(USER_ID, projectId).contains(FILE_NAME2));
+    storage.removeOutputFilesFromProject(USER_ID, projectId, FILE_NAME_OUTPUT);
+    assertTrue(storage.getProjectOutputFiles(USER_ID, projectId).isEmpty());
+    try {
+      storage.downloadRawFile(USER_ID, projectId, FILE_NAME_OUTPUT);
+      fail();
+    } catch (RuntimeException e) {
+      // expected
+    }
+  }
+
+  public void testUploadDownloadFiles() throws BlocksTruncatedException {
+    final String USER_ID = "1250";
+    storage.getUser(USER_ID);
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME2);
+    Map<String, String> contents = new LinkedHashMap<String, String>();
+    contents.put(FILE_NAME2, FILE_CONTENT2);
+    contents.put(FILE_NAME1, FILE_CONTENT2);
+    long modDate =
+        storage.uploadFiles(projectId, USER_ID, true, contents, StorageUtil.DEFAULT_CHARSET);
+    assertEquals(modDate, storage.getProjectDateModified(USER_ID, projectId));
+
+    Map<String, String> downloaded = storage.downloadFiles(USER_ID, projectId,
+        Arrays.asList(FILE_NAME1, FILE_NAME2), StorageUtil.DEFAULT_CHARSET);
+    assertEquals(Arrays.asList(FILE_NAME1, FILE_NAME2),
+        new ArrayList<String>(downloaded.keySet()));
+    assertEquals(FILE_CONTENT2, downloaded.get(FILE_NAME1));
+    assertEquals(FILE_CONTENT2, downloaded.get(FILE_NAME2));
+  }
+
+  public void testBlocksTruncated() throws BlocksTruncatedException {
+    final String USER_ID = "1300";
+    storage.getUser(USER_ID);
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, BLOCKS_FILE_NAME);
+    storage.uploadFile(projectId, BLOCKS_FILE_NAME, USER_ID, FILE_CONTENT2,
+        StorageUtil.DEFAULT_CHARSET);
+    try {
+      storage.uploadFile(projectId, BLOCKS_FILE_NAME, USER_ID, "<xml/>",
+          StorageUtil.DEFAULT_CHARSET);
+      fail("Allowed truncating blocks");
+    } catch (BlocksTruncatedException expected) {
+      // Empty workspaces don't overwrite blocks unless forced
+    }
+    assertEquals(FILE_CONTENT2, storage.downloadFile(USER_ID, projectId, BLOCKS_FILE_NAME,
+        StorageUtil.DEFAULT_CHARSET));
+    storage.uploadFileForce(projectId, BLOCKS_FILE_NAME, USER_ID, "<xml/>",
+        StorageUtil.DEFAULT_CHARSET);
+    assertEquals("<xml/>", storage.downloadFile(USER_ID, projectId, BLOCKS_FILE_NAME,
+        StorageUtil.DEFAULT_CHARSET));
+  }
+
+  public void testBlocksTruncatedLeavesProjectUnchanged() throws BlocksTruncatedException {
+    final String USER_ID = "1310";
+    final String YAIL_FILE_NAME = "src/com/yourdomain/Screen1.yail";
+    storage.getUser(USER_ID);
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, BLOCKS_FILE_NAME);
+    storage.uploadFile(projectId, BLOCKS_FILE_NAME, USER_ID, FILE_CONTENT2,
+        StorageUtil.DEFAULT_CHARSET);
+    Map<String, String> contents = new LinkedHashMap<String, String>();
+    contents.put(YAIL_FILE_NAME, "(yail)");
+    contents.put(BLOCKS_FILE_NAME, "<xml/>");
+    try {
+      storage.uploadFiles(projectId, USER_ID, false, contents, StorageUtil.DEFAULT_CHARSET);
+      fail("Allowed truncating blocks");
+    } catch (BlocksTruncatedException expected) {
+      // The yail file must not have been added
+    }
+    assertFalse(storage.getProjectSourceFiles(USER_ID, projectId).contains(YAIL_FILE_NAME));
+  }
+
+  public void testAddRemoveUserFile() {
+    final String USER_ID = "1100";
+    storage.getUser(USER_ID);
+    storage.addFilesToUser(USER_ID, FILE_NAME1);
+    storage.uploadUserFile(USER_ID, FILE_NAME1, FILE_CONTENT1, StorageUtil.DEFAULT_CHARSET);
+    storage.addFilesToUser(USER_ID, FILE_NAME_OUTPUT);
+    storage.uploadRawUserFile(USER_ID, FILE_NAME_OUTPUT, FILE_CONTENT_OUTPUT);
+
+    assertEquals(Arrays.asList(FILE_NAME1, FILE_NAME_OUTPUT), storage.getUserFiles(USER_ID));
+    assertEquals(FILE_CONTENT1, storage.downloadUserFile(USER_ID, FILE_NAME1,
+        StorageUtil.DEFAULT_CHARSET));
+    assertTrue(Arrays.equals(FILE_CONTENT_OUTPUT,
+        storage.downloadRawUserFile(USER_ID, FILE_NAME_OUTPUT)));
+
+    storage.deleteUserFile(USER_ID, FILE_NAME1);
+    assertEquals(Arrays.asList(FILE_NAME_OUTPUT), storage.getUserFiles(USER_ID));
+  }
+
+  public void testWrongUserThrowsException() {
+    final String USER_ID = "1600";
+    final String USER_ID2 = "1700";
+    storage.getUser(USER_ID);
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT1,
+        storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1)));
+    try {
+      storage.downloadRawFile(USER_ID2, projectId, RAW_FILE_NAME1);
+      fail();
+    } catch (Exception e) {
+      assertTrue(e instanceof UnauthorizedAccessException
+                 || e.getCause() instanceof UnauthorizedAccessException);
+    }
+  }
+
+  public void testExportProjectSourceZip() throws IOException {
+    final String USER_ID = "1800";
+    storage.getUser(USER_ID);
+    storage.addFilesToUser(USER_ID, StorageUtil.ANDROID_KEYSTORE_FILENAME);
+    storage.uploadRawUserFile(USER_ID, StorageUtil.ANDROID_KEYSTORE_FILENAME,
+        FILE_CONTENT_OUTPUT);
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    storage.addOutputFilesToProject(USER_ID, projectId, FILE_NAME_OUTPUT);
+    storage.uploadRawFileForce(projectId, FILE_NAME_OUTPUT, USER_ID, FILE_CONTENT_OUTPUT);
+
+    ProjectSourceZip zip = storage.exportProjectSourceZip(USER_ID, projectId, true, true, null,
+        false);
+    assertEquals(PROJECT_NAME + ".aia", zip.getFileName());
+    Map<String, byte[]> content = unzip(zip.getContent());
+    assertEquals(4, zip.getFileCount());
+    assertEquals(FILE_CONTENT1, new String(content.get(FILE_NAME1), StorageUtil.DEFAULT_CHARSET));
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT1, content.get(RAW_FILE_NAME1)));
+    assertEquals(HISTORY, new String(content.get(FileExporter.REMIX_INFORMATION_FILE_PATH),
+        StorageUtil.DEFAULT_CHARSET));
+    assertTrue(Arrays.equals(FILE_CONTENT_OUTPUT,
+        content.get(StorageUtil.ANDROID_KEYSTORE_FILENAME)));
+    assertFalse(content.containsKey(FILE_NAME_OUTPUT));
+
+    try {
+      storage.exportProjectSourceZip(USER_ID, projectId + 1, false, false, null, false);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testReopen() throws BlocksTruncatedException {
+    final String USER_ID = "1900";
+    final String USER_EMAIL = "user1900@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    storage.storeSettings(USER_ID, SETTINGS);
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME2);
+    storage.uploadFile(projectId, FILE_NAME2, USER_ID, FILE_CONTENT2, StorageUtil.DEFAULT_CHARSET);
+    storage.setProjectGalleryId(USER_ID, projectId, 42);
+    storage.storeNonce("nonce", USER_ID, projectId);
+
+    LocalStorageIo reopened = new LocalStorageIo(root);
+    assertEquals(USER_EMAIL, reopened.getUser(USER_ID).getUserEmail());
+    assertEquals(SETTINGS, reopened.loadSettings(USER_ID));
+    assertEquals(Arrays.asList(projectId), reopened.getProjects(USER_ID));
+    assertEquals(Arrays.asList(FILE_NAME1, RAW_FILE_NAME1, FILE_NAME2),
+        reopened.getProjectSourceFiles(USER_ID, projectId));
+    assertEquals(FILE_CONTENT2, reopened.downloadFile(USER_ID, projectId, FILE_NAME2,
+        StorageUtil.DEFAULT_CHARSET));
+    assertEquals(42, reopened.getProjectGalleryId(USER_ID, projectId));
+    assertEquals(HISTORY, reopened.getProjectHistory(USER_ID, projectId));
+    Nonce nonce = reopened.getNoncebyValue("nonce");
+    assertEquals(USER_ID, nonce.getUserId());
+    assertEquals(projectId, nonce.getProjectId());
+    assertTrue(reopened.createProject(USER_ID, project, SETTINGS) > projectId);
+  }
+
+  public void testProjectIdsNotReused() {
+    final String USER_ID = "2000";
+    storage.getUser(USER_ID);
+    storage.createProject(USER_ID, project, SETTINGS);
+    long newest = storage.createProject(USER_ID, project, SETTINGS);
+    storage.deleteProject(USER_ID, newest);
+
+    LocalStorageIo reopened = new LocalStorageIo(root);
+    assertTrue(reopened.createProject(USER_ID, project, SETTINGS) > newest);
+  }
+
+  public void testEscape() {
+    assertEquals("src%2Fcom%2Fyourdomain%2FScreen1.scm",
+        LocalStorageIo.escape("src/com/yourdomain/Screen1.scm"));
+    assertEquals("%2E.", LocalStorageIo.escape(".."));
+    assertEquals("a%2Ab", LocalStorageIo.escape("a*b"));
+    assertEquals("%7E", LocalStorageIo.escape("~"));
+  }
+
+  private static String repeat(String s, int times) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < times; i++) {
+      sb.append(s);
+    }
+    return sb.toString();
+  }
+
+  public void testEscapeLongNames() {
+    String longName = "assets/" + repeat("a", 300) + ".png";
+    String escaped = LocalStorageIo.escape(longName);
+    assertTrue(escaped.length() <= 255);
+    assertTrue(escaped.startsWith("assets%2Faaa"));
+    // Names that only differ past the part kept are told apart
+    assertFalse(escaped.equals(LocalStorageIo.escape(longName + "x")));
+
+    // Escapes of non-ASCII characters aren't cut in two
+    for (int i = 0; i < 3; i++) {
+      escaped = LocalStorageIo.escape(repeat("a", i) + repeat("\u00e9", 100));
+      assertTrue(escaped.length() <= 255);
+      assertTrue(escaped.substring(0, escaped.indexOf('~')).matches("a*(%[0-9A-F]{2})*"));
+    }
+  }
+
+  public void testLongNames() throws BlocksTruncatedException {
+    final String USER_ID = repeat("user", 100);
+    final String USER_EMAIL = "longuser@test.com";
+    final String FILE_NAME = "src/" + repeat("\u00e9", 100) + ".src";
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME);
+    storage.uploadFile(projectId, FILE_NAME, USER_ID, FILE_CONTENT1,
+        StorageUtil.DEFAULT_CHARSET);
+
+    LocalStorageIo reopened = new LocalStorageIo(root);
+    assertEquals(USER_ID, reopened.findUserByEmail(USER_EMAIL));
+    assertEquals(Arrays.asList(projectId), reopened.getProjects(USER_ID));
+    assertEquals(FILE_CONTENT1, reopened.downloadFile(USER_ID, projectId, FILE_NAME,
+        StorageUtil.DEFAULT_CHARSET));
+  }
+
+  private static Map<String, byte[]> unzip(byte[] zip) throws IOException {
+    ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip));
+    Map<String, byte[]> content = new HashMap<String, byte[]>();
+    ZipEntry zipEntry;
+    while ((zipEntry = zis.getNextEntry()) != null) {
+      content.put(zipEntry.getName(), ByteStreams.toByteArray(zis));
+    }
+    return content;
+  }
+}
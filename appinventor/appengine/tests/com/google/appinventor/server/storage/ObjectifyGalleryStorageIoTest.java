@@ -0,0 +1,213 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.appinventor.shared.rpc.project.GalleryApp;
+import com.google.appinventor.shared.rpc.project.GalleryAppListResult;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests for {@link ObjectifyGalleryStorageIo}.
+ *
+ */
+public class ObjectifyGalleryStorageIoTest extends LocalDatastoreTestCase {
+
+  private static final String USER_ID = "100";
+  private static final String LIKER1 = "101";
+  private static final String LIKER2 = "102";
+
+  private ObjectifyGalleryStorageIo galleryStorage;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    galleryStorage = new ObjectifyGalleryStorageIo();
+    StorageIoInstanceHolder.INSTANCE.getUser(USER_ID);
+    // Counters read are always due to be rolled up
+    System.setProperty("gallery.counter.rollup.seconds", "0");
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    System.clearProperty("gallery.counter.rollup.seconds");
+    super.tearDown();
+  }
+
+  private int countShards() {
+    return ObjectifyService.begin().query(GalleryAppCounterData.class).count();
+  }
+
+  private GalleryApp createApp(String title) {
+    return galleryStorage.createGalleryApp(title, title + ".aia", "About " + title, "", "",
+        1, USER_ID);
+  }
+
+  public void testGetGalleryApps() {
+    // More apps than a cross-group transaction can read
+    List<Long> galleryIds = new ArrayList<Long>();
+    for (int i = 0; i < 30; i++) {
+      galleryIds.add(createApp("App" + i).getGalleryAppId());
+    }
+    List<Long> wanted = new ArrayList<Long>(galleryIds);
+    // Reversed, with an app that doesn't exist in the middle
+    Collections.reverse(wanted);
+    wanted.add(15, 999999L);
+
+    List<GalleryApp> apps = galleryStorage.getGalleryApps(wanted);
+    assertEquals(galleryIds.size(), apps.size());
+    for (int i = 0; i < apps.size(); i++) {
+      long galleryId = galleryIds.get(galleryIds.size() - 1 - i);
+      assertEquals(galleryId, apps.get(i).getGalleryAppId());
+      assertEquals(galleryStorage.getGalleryApp(galleryId).getTitle(), apps.get(i).getTitle());
+    }
+    assertTrue(galleryStorage.getGalleryApps(Arrays.<Long>asList()).isEmpty());
+  }
+
+  // The ids of the apps in a listing, read a page at a time
+  private List<Long> readListing(boolean recent, int pageSize, List<Integer> pageSizes) {
+    List<Long> galleryIds = new ArrayList<Long>();
+    String cursor = null;
+    do {
+      GalleryAppListResult page = recent
+          ? galleryStorage.getRecentGalleryApps(cursor, pageSize)
+          : galleryStorage.getMostDownloadedApps(cursor, pageSize);
+      pageSizes.add(page.getApps().size());
+      for (GalleryApp app : page.getApps()) {
+        galleryIds.add(app.getGalleryAppId());
+      }
+      cursor = page.getCursor();
+    } while (cursor != null);
+    return galleryIds;
+  }
+
+  public void testListingPages() {
+    Set<Long> galleryIds = new HashSet<Long>();
+    for (int i = 0; i < 5; i++) {
+      galleryIds.add(createApp("App" + i).getGalleryAppId());
+    }
+
+    // The last page is short
+    List<Integer> pageSizes = new ArrayList<Integer>();
+    List<Long> listed = readListing(true, 2, pageSizes);
+    assertEquals(Arrays.asList(2, 2, 1), pageSizes);
+    assertEquals(5, listed.size());
+    assertEquals(galleryIds, new HashSet<Long>(listed));
+
+    // A full last page is followed by an empty one
+    pageSizes.clear();
+    listed = readListing(false, 5, pageSizes);
+    assertEquals(Arrays.asList(5, 0), pageSizes);
+    assertEquals(galleryIds, new HashSet<Long>(listed));
+
+    // Deleted apps aren't listed
+    long deleted = listed.get(2);
+    galleryStorage.deleteApp(deleted);
+    galleryIds.remove(deleted);
+    pageSizes.clear();
+    listed = readListing(true, 2, pageSizes);
+    assertEquals(Arrays.asList(2, 2, 0), pageSizes);
+    assertEquals(galleryIds, new HashSet<Long>(listed));
+  }
+
+  public void testActiveAppCount() {
+    createApp("App1");
+    GalleryAppListResult first = galleryStorage.getRecentGalleryApps(null, 10);
+    assertEquals(1, first.getTotalCount());
+    // The count is kept in memcache, and the first page on this instance
+    assertEquals(1, ((Number) MemcacheServiceFactory.getMemcacheService()
+        .get("galleryActiveApps")).intValue());
+    assertSame(first, galleryStorage.getRecentGalleryApps(null, 10));
+
+    // Publishing updates both
+    long galleryId = createApp("App2").getGalleryAppId();
+    assertEquals(2, ((Number) MemcacheServiceFactory.getMemcacheService()
+        .get("galleryActiveApps")).intValue());
+    GalleryAppListResult recent = galleryStorage.getRecentGalleryApps(null, 10);
+    assertEquals(2, recent.getTotalCount());
+    assertEquals(2, recent.getApps().size());
+    assertEquals(2, galleryStorage.getMostDownloadedApps(null, 10).getTotalCount());
+
+    // So does deleting, once
+    galleryStorage.deleteApp(galleryId);
+    galleryStorage.deleteApp(galleryId);
+    recent = galleryStorage.getRecentGalleryApps(null, 10);
+    assertEquals(1, recent.getTotalCount());
+    assertEquals(1, recent.getApps().size());
+
+    // Counted again when memcache loses it
+    MemcacheServiceFactory.getMemcacheService().clearAll();
+    createApp("App3");
+    assertEquals(2, galleryStorage.getRecentGalleryApps("", 10).getTotalCount());
+  }
+
+  public void testLikes() {
+    long galleryId = createApp("Liked").getGalleryAppId();
+    assertEquals(0, galleryStorage.getNumLikes(galleryId));
+    assertEquals(1, galleryStorage.increaseLikes(galleryId, LIKER1));
+    // Liking again doesn't count
+    assertEquals(1, galleryStorage.increaseLikes(galleryId, LIKER1));
+    assertEquals(2, galleryStorage.increaseLikes(galleryId, LIKER2));
+    assertTrue(galleryStorage.isLikedByUser(galleryId, LIKER1));
+    assertEquals(2, galleryStorage.getGalleryApp(galleryId).getLikes());
+
+    assertEquals(1, galleryStorage.decreaseLikes(galleryId, LIKER1));
+    assertFalse(galleryStorage.isLikedByUser(galleryId, LIKER1));
+    // Unliking again doesn't count
+    assertEquals(1, galleryStorage.decreaseLikes(galleryId, LIKER1));
+    assertEquals(1, galleryStorage.getNumLikes(galleryId));
+  }
+
+  public void testReadsDontRollUp() {
+    long galleryId = createApp("Counted").getGalleryAppId();
+    galleryStorage.incrementDownloads(galleryId);
+    galleryStorage.increaseLikes(galleryId, LIKER1);
+    assertTrue(countShards() > 0);
+
+    // Reading leaves rolling up to the task it queues
+    GalleryApp app = galleryStorage.getGalleryApp(galleryId);
+    assertEquals(1, app.getLikes());
+    assertEquals(1, app.getDownloads());
+    assertTrue(countShards() > 0);
+
+    galleryStorage.rollUpCounters(galleryId);
+    assertEquals(0, countShards());
+    app = galleryStorage.getGalleryApp(galleryId);
+    assertEquals(1, app.getLikes());
+    assertEquals(1, app.getDownloads());
+  }
+
+  public void testLegacyLikes() {
+    long galleryId = createApp("Liked Before").getGalleryAppId();
+    // A like made when likes were kept with the app
+    GalleryAppLikeData legacyLike = new GalleryAppLikeData();
+    legacyLike.galleryKey = new Key<GalleryAppData>(GalleryAppData.class, galleryId);
+    legacyLike.userId = LIKER1;
+    ObjectifyService.begin().put(legacyLike);
+
+    assertEquals(1, galleryStorage.getNumLikes(galleryId));
+    assertTrue(galleryStorage.isLikedByUser(galleryId, LIKER1));
+    assertEquals(1, galleryStorage.increaseLikes(galleryId, LIKER1));
+    assertEquals(2, galleryStorage.increaseLikes(galleryId, LIKER2));
+
+    assertEquals(1, galleryStorage.decreaseLikes(galleryId, LIKER1));
+    assertFalse(galleryStorage.isLikedByUser(galleryId, LIKER1));
+    galleryStorage.rollUpCounters(galleryId);
+    assertEquals(1, galleryStorage.getNumLikes(galleryId));
+    assertTrue(galleryStorage.isLikedByUser(galleryId, LIKER2));
+  }
+}
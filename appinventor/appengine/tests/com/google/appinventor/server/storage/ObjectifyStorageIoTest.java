@@ -35,7 +35,9 @@ import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Tests for {@link ObjectifyStorageIo}.
@@ -386,6 +388,65 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     assertFalse(storage.getProjectOutputFiles(USER_ID, projectId).contains(FILE_NAME_OUTPUT));
   }
 
+  public void testUploadDownloadFiles() throws BlocksTruncatedException {
+    final String USER_ID = "1250";
+    storage.getUser(USER_ID);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    Map<String, String> contents = new LinkedHashMap<String, String>();
+    contents.put(FILE_NAME2, FILE_CONTENT2);
+    contents.put(FILE_NAME1, FILE_CONTENT1);
+    try {
+      storage.uploadFiles(projectId, USER_ID, true, contents, StorageUtil.DEFAULT_CHARSET);
+      fail("Allowed upload before add");
+    } catch (IllegalStateException ignored) {
+      // File upload should be preceded by add
+    }
+
+    storage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME1, FILE_NAME2);
+    long modDate =
+        storage.uploadFiles(projectId, USER_ID, true, contents, StorageUtil.DEFAULT_CHARSET);
+    assertEquals(modDate, storage.getProjectDateModified(USER_ID, projectId));
+
+    Map<String, String> downloaded = storage.downloadFiles(USER_ID, projectId,
+        Arrays.asList(FILE_NAME1, FILE_NAME2), StorageUtil.DEFAULT_CHARSET);
+    assertEquals(Arrays.asList(FILE_NAME1, FILE_NAME2),
+        new ArrayList<String>(downloaded.keySet()));
+    assertEquals(FILE_CONTENT1, downloaded.get(FILE_NAME1));
+    assertEquals(FILE_CONTENT2, downloaded.get(FILE_NAME2));
+    assertEquals(FILE_CONTENT2, storage.downloadFile(USER_ID, projectId, FILE_NAME2,
+        StorageUtil.DEFAULT_CHARSET));
+  }
+
+  public void testBlocksTruncatedLeavesProjectUnchanged() throws BlocksTruncatedException {
+    final String USER_ID = "1260";
+    final String BLOCKS_FILE_NAME = "src/com/yourdomain/Screen1.bky";
+    final String YAIL_FILE_NAME = "src/com/yourdomain/Screen1.yail";
+    storage.getUser(USER_ID);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME1, BLOCKS_FILE_NAME);
+    storage.uploadFile(projectId, FILE_NAME1, USER_ID, FILE_CONTENT1,
+        StorageUtil.DEFAULT_CHARSET);
+    storage.uploadFile(projectId, BLOCKS_FILE_NAME, USER_ID, FILE_CONTENT2,
+        StorageUtil.DEFAULT_CHARSET);
+
+    // The blocks file comes after files that would otherwise be written
+    Map<String, String> contents = new LinkedHashMap<String, String>();
+    contents.put(FILE_NAME1, "does not matter");
+    contents.put(YAIL_FILE_NAME, "(yail)");
+    contents.put(BLOCKS_FILE_NAME, "<xml/>");
+    try {
+      storage.uploadFiles(projectId, USER_ID, false, contents, StorageUtil.DEFAULT_CHARSET);
+      fail("Allowed truncating blocks");
+    } catch (BlocksTruncatedException expected) {
+      // Empty workspaces don't overwrite blocks unless forced
+    }
+    assertEquals(FILE_CONTENT1, storage.downloadFile(USER_ID, projectId, FILE_NAME1,
+        StorageUtil.DEFAULT_CHARSET));
+    assertEquals(FILE_CONTENT2, storage.downloadFile(USER_ID, projectId, BLOCKS_FILE_NAME,
+        StorageUtil.DEFAULT_CHARSET));
+    assertFalse(storage.getProjectSourceFiles(USER_ID, projectId).contains(YAIL_FILE_NAME));
+  }
+
   public void testAddRemoveUserFile() {
     // Note that neither FILE_NAME1 nor FILE_NAME_OUTPUT should exist
     // at the start of this test
@@ -206,6 +206,13 @@ Blockly.ReplMgr.resetYail = function(code) {
 // pollphone processes the queue using Ajax calls. The completion of each
 // Ajax call looks to process the next entry in the queue. This continues
 // until the queue is empty.
+//
+// Companions that support it are instead sent forms over a WebSocket
+// (the "channel") that stays open while we are connected. Everything
+// queued while the previous batch is with the phone is sent as one
+// batch, and return values come back on the same channel as they
+// happen instead of by polling. If the channel cannot be opened we fall
+// back to the Ajax calls.
 
 Blockly.ReplMgr.putYail = (function() {
     var rs;
@@ -213,6 +220,8 @@ Blockly.ReplMgr.putYail = (function() {
     var conn;                   // XMLHttpRequest Object sending to Phone
     var rxhr;                   // XMLHttpRequest Object listening for returns
     var phonereceiving = false;
+    var channel;                // WebSocket to the phone, when it supports one
+    var inflight;               // The batch sent on the channel we await a reply to
     var engine = {
         // Enqueue form for the phone
         'putYail' : function(code, block, success, failure) {
@@ -245,6 +254,14 @@ Blockly.ReplMgr.putYail = (function() {
                 engine.doversioncheck();
                 return;
             }
+            if (!rs.nochannel) {
+                if (channel) {
+                    engine.sendbatch();
+                } else {
+                    engine.openchannel();
+                }
+                return;
+            }
             if (!phonereceiving) {
                 engine.receivefromphone();
             }
@@ -364,6 +381,105 @@ Blockly.ReplMgr.putYail = (function() {
             };
             conn.send();
         },
+        'openchannel' : function() {
+            var opened = false;
+            try {
+                channel = new WebSocket(rs.channelurl);
+            } catch (err) {
+                console.log("openchannel: " + err);
+                channel = null;
+                rs.nochannel = true;
+                engine.pollphone();
+                return;
+            }
+            channel.onopen = function() {
+                opened = true;
+                engine.pollphone();
+            };
+            channel.onmessage = function(event) {
+                engine.receivefromchannel(event.data);
+            };
+            channel.onclose = function() {
+                var batch = inflight;
+                channel = null;
+                inflight = null;
+                if (!opened) {  // Older Companion, use Ajax calls instead
+                    rs.nochannel = true;
+                    engine.pollphone();
+                    return;
+                }
+                console.log("putYail(channel): closed");
+                if (batch) {
+                    for (var i = 0; i < batch.length; i++) {
+                        if (batch[i].failure) {
+                            batch[i].failure(Blockly.Msg.REPL_NETWORK_CONNECTION_ERROR);
+                        }
+                    }
+                }
+                var dialog = new Blockly.ReplMgr.Dialog(Blockly.Msg.REPL_NETWORK_ERROR, Blockly.Msg.REPL_NETWORK_ERROR_RESTART, Blockly.Msg.REPL_OK, null, 0,
+                    function() {
+                        dialog.hide();
+                        context.hardreset(context.formName);
+                    });
+                engine.resetcompanion();
+            };
+        },
+        'sendbatch' : function() {
+            if (inflight || channel.readyState != WebSocket.OPEN) {
+                return;         // We are called again once the reply or the channel is here
+            }
+            var batch = rs.phoneState.phoneQueue;
+            if (!batch || batch.length === 0) {
+                rs.phoneState.ioRunning = false;
+                return;
+            }
+            rs.phoneState.phoneQueue = [];
+            var evals = [];
+            for (var i = 0; i < batch.length; i++) {
+                var blockid = batch[i].block ? String(batch[i].block.id) : "-1";
+                var seq = rs.seq_count + i;
+                evals.push({
+                    'seq' : seq,
+                    'mac' : Blockly.ReplMgr.hmac(batch[i].code + seq + blockid),
+                    'blockid' : blockid,
+                    'code' : batch[i].code
+                });
+            }
+            inflight = batch;
+            channel.send(goog.json.serialize(evals));
+        },
+        'receivefromchannel' : function(message) {
+            var json = goog.json.parse(message);
+            if (json.type == 'reply') {
+                var batch = inflight;
+                var result = json.result;
+                inflight = null;
+                for (var i = 0; i < batch.length; i++) {
+                    if (result.status != 'OK') {
+                        if (batch[i].failure)
+                            batch[i].failure(Blockly.Msg.REPL_ERROR_FROM_COMPANION);
+                    } else {
+                        if (batch[i].success)
+                            batch[i].success();
+                    }
+                }
+                if (result.values)
+                    context.processRetvals(result.values);
+                rs.seq_count += batch.length;
+                engine.pollphone(); // And on to the next batch!
+            } else if (json.status == 'OK') {
+                context.processRetvals(json.values);
+            }
+        },
+        'closechannel' : function() {
+            if (channel) {
+                channel.onclose = null;
+                channel.onmessage = null;
+                channel.close();
+            }
+            channel = null;
+            inflight = null;
+        },
         "receivefromphone" : function() {
             phonereceiving = true;
             console.log("receivefromphone called.");
@@ -395,6 +511,7 @@ Blockly.ReplMgr.putYail = (function() {
             console.log("reseting companion");
             rs.state = Blockly.ReplMgr.rsState.IDLE;
             rs.connection = null;
+            engine.closechannel();
             context.resetYail();
 //   hardreset is now done in the handler for the network error dialog OK
 //   button.
@@ -433,6 +550,7 @@ Blockly.ReplMgr.putYail = (function() {
         }
     };
     engine.putYail.reset = engine.reset;
+    engine.putYail.closechannel = engine.closechannel;
     return engine.putYail;
 })();
 
@@ -842,6 +960,7 @@ Blockly.ReplMgr.startRepl = function(already, emulator, usb) {
     var refreshAssets = window.parent.AssetManager_refreshAssets;
     var rs = window.parent.ReplState;
     rs.didversioncheck = false; // Re-check
+    rs.nochannel = false;       // Try the channel first, the Companion may have changed
     if (rs.phoneState) {
         rs.phoneState.initialized = false; // Make sure we re-send the yail to the Companion
     }
@@ -854,6 +973,7 @@ Blockly.ReplMgr.startRepl = function(already, emulator, usb) {
             rs.replcode = "emulator";          // Must match code in Companion Source
             rs.url = 'http://127.0.0.1:8001/_newblocks';
             rs.rurl = 'http://127.0.0.1:8001/_values';
+            rs.channelurl = 'ws://127.0.0.1:8001/_channel';
             rs.versionurl = 'http://127.0.0.1:8001/_getversion';
             rs.baseurl = 'http://127.0.0.1:8001/';
             rs.seq_count = 1;
@@ -879,6 +999,7 @@ Blockly.ReplMgr.startRepl = function(already, emulator, usb) {
         if (window.parent.ReplState.state == this.rsState.RENDEZVOUS) {
             window.parent.ReplState.dialog.hide();
         }
+        this.putYail.closechannel();
         this.resetYail();
         window.parent.ReplState.state = this.rsState.IDLE;
         this.hardreset(this.formName);       // Tell aiStarter to kill off adb
@@ -913,6 +1034,7 @@ Blockly.ReplMgr.getFromRendezvous = function() {
                 var json = goog.json.parse(xmlhttp.response);
                 rs.url = 'http://' + json.ipaddr + ':8001/_newblocks';
                 rs.rurl = 'http://' + json.ipaddr + ':8001/_values';
+                rs.channelurl = 'ws://' + json.ipaddr + ':8001/_channel';
                 rs.versionurl = 'http://' + json.ipaddr + ':8001/_getversion';
                 rs.baseurl = 'http://' + json.ipaddr + ':8001/';
                 rs.state = Blockly.ReplMgr.rsState.CONNECTED;
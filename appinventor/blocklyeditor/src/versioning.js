@@ -2042,7 +2042,10 @@ Blockly.Versioning.AllUpgradeMaps =
     3: "ai1CantDoUpgrade", // Just indicates we couldn't do upgrade even if we wanted to
 
     // AI2: Added method XMLTextDecode
-    4: "noUpgrade"
+    4: "noUpgrade",
+
+    // AI2: Added property UseCache
+    5: "noUpgrade"
 
   }, // End Web upgraders
 
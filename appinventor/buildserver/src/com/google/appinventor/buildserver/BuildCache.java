@@ -0,0 +1,235 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A content addressed cache of build outputs on disk.
+ *
+ * <p>Each entry is a directory, stored under a key that is a hash of everything the output was
+ * built from (see {@link #key}). Entries never change once they are stored. When the cache grows
+ * beyond its size limit, the least recently used entries are deleted.</p>
+ *
+ * <p>Entries are copied into the cache under a temporary name and then renamed, so a build never
+ * sees a partially written entry. Entries are only deleted while no build is reading from the
+ * cache.</p>
+ */
+final class BuildCache {
+  private static final String TMP_PREFIX = "tmp-";
+
+  private final File directory;
+  private final long maxBytes;
+
+  // Sizes of the entries, in least recently used order. Guarded by lock.
+  private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f,
+      true);
+  private long sizeBytes = 0;
+
+  // Readers hold the read lock while copying an entry out of the cache. Adding and deleting
+  // entries needs the write lock.
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private final AtomicInteger hits = new AtomicInteger(0);
+  private final AtomicInteger misses = new AtomicInteger(0);
+  private final AtomicInteger evictions = new AtomicInteger(0);
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildCache.class.getName());
+
+  /**
+   * Creates a BuildCache, picking up the entries left in the directory by a previous run.
+   *
+   * @param directory  the directory to keep the entries in
+   * @param maxBytes  the size the entries may use on disk, in bytes
+   */
+  BuildCache(File directory, long maxBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    directory.mkdirs();
+    File[] files = directory.listFiles();
+    if (files == null) {
+      files = new File[0];
+    }
+    // The modification time of an entry is the last time it was used.
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        long difference = a.lastModified() - b.lastModified();
+        return (difference < 0) ? -1 : (difference > 0) ? 1 : 0;
+      }
+    });
+    for (File file : files) {
+      if (file.getName().startsWith(TMP_PREFIX)) {
+        // Left behind by a store that didn't finish.
+        deleteQuietly(file);
+      } else if (file.isDirectory()) {
+        long size = FileUtils.sizeOfDirectory(file);
+        entries.put(file.getName(), size);
+        sizeBytes += size;
+      }
+    }
+    evict();
+  }
+
+  /**
+   * Returns the key for an output built from the given inputs.
+   */
+  static String key(String... inputs) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (String input : inputs) {
+      // Hash the length too, so that ("ab", "c") and ("a", "bc") have different keys.
+      hasher.putInt(input.length()).putString(input, Charsets.UTF_8);
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Returns a hash of the contents of a file, to use as an input of {@link #key}.
+   */
+  static String hash(File file) throws IOException {
+    return com.google.common.io.Files.hash(file, Hashing.sha1()).toString();
+  }
+
+  /**
+   * Copies the contents of the entry with the given key into a directory.
+   *
+   * @param key  the key of the entry
+   * @param destination  the directory to copy the entry into
+   * @return whether the entry was found and copied
+   */
+  boolean restore(String key, File destination) {
+    lock.readLock().lock();
+    try {
+      File entry = new File(directory, key);
+      boolean found;
+      synchronized (entries) {
+        // Looking up the entry marks it as the most recently used one.
+        found = entries.get(key) != null;
+      }
+      if (found) {
+        FileUtils.copyDirectory(entry, destination);
+        entry.setLastModified(System.currentTimeMillis());
+        hits.incrementAndGet();
+        return true;
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to restore build cache entry " + key, e);
+    } finally {
+      lock.readLock().unlock();
+    }
+    misses.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Copies a directory into the cache as the entry with the given key. If the cache already has
+   * an entry with that key, it is kept.
+   *
+   * @param key  the key of the entry
+   * @param source  the directory to copy into the cache
+   */
+  void store(String key, File source) {
+    File tmp = new File(directory, TMP_PREFIX + UUID.randomUUID());
+    try {
+      FileUtils.copyDirectory(source, tmp);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to store build cache entry " + key, e);
+      deleteQuietly(tmp);
+      return;
+    }
+    long size = FileUtils.sizeOfDirectory(tmp);
+    lock.writeLock().lock();
+    try {
+      synchronized (entries) {
+        if (!entries.containsKey(key)) {
+          if (tmp.renameTo(new File(directory, key))) {
+            entries.put(key, size);
+            sizeBytes += size;
+            evict();
+            return;
+          }
+          LOG.warning("Unable to rename " + tmp + " to build cache entry " + key);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    deleteQuietly(tmp);
+  }
+
+  /*
+   * Deletes the least recently used entries until the cache fits in maxBytes. Called with the
+   * write lock held, or before the cache is shared.
+   */
+  private void evict() {
+    synchronized (entries) {
+      Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+      while (sizeBytes > maxBytes && iterator.hasNext()) {
+        Map.Entry<String, Long> entry = iterator.next();
+        iterator.remove();
+        sizeBytes -= entry.getValue();
+        deleteQuietly(new File(directory, entry.getKey()));
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  private static void deleteQuietly(File file) {
+    try {
+      FileUtils.deleteDirectory(file);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to delete " + file, e);
+    }
+  }
+
+  long getMaxBytes() {
+    return maxBytes;
+  }
+
+  long getSizeBytes() {
+    synchronized (entries) {
+      return sizeBytes;
+    }
+  }
+
+  int getEntryCount() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  int getHits() {
+    return hits.get();
+  }
+
+  int getMisses() {
+    return misses.get();
+  }
+
+  int getEvictions() {
+    return evictions.get();
+  }
+}
@@ -0,0 +1,198 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Latency and size histograms for the stages of a build, which the build server exports in the
+ * Prometheus text format on /buildserver/metrics.
+ *
+ * <p>Stage names are the labels of the histograms, for example "kawa" or "dx".</p>
+ */
+final class BuildMetrics {
+  // Bucket bounds for durations, in seconds.
+  private static final double[] DURATION_BUCKETS = {
+      0.1, 0.25, 0.5, 1, 2.5, 5, 10, 20, 30, 60, 120, 300, 600 };
+
+  // Bucket bounds for memory sizes, in bytes.
+  private static final double[] MEMORY_BUCKETS = {
+      64e6, 128e6, 256e6, 512e6, 768e6, 1e9, 1.5e9, 2e9, 3e9, 4e9 };
+
+  // Time spent in each stage of a build.
+  private static final ConcurrentMap<String, Histogram> stageDurations =
+      new ConcurrentSkipListMap<String, Histogram>();
+
+  // Time spent waiting to enter a stage that limits how many builds may run it at once.
+  private static final ConcurrentMap<String, Histogram> stageWaits =
+      new ConcurrentSkipListMap<String, Histogram>();
+
+  // Peak resident memory of the child processes started by builds, per command.
+  private static final ConcurrentMap<String, Histogram> childPeakRss =
+      new ConcurrentHashMap<String, Histogram>();
+
+  // Time builds spent in the build queue.
+  private static final Histogram queueWait = new Histogram(DURATION_BUCKETS);
+
+  private BuildMetrics() {
+  }
+
+  /**
+   * Records how long a build spent in a stage.
+   *
+   * @param stage  the name of the stage
+   * @param millis  the time spent, in milliseconds
+   */
+  static void recordStage(String stage, long millis) {
+    getHistogram(stageDurations, stage, DURATION_BUCKETS).observe(millis / 1000.0);
+  }
+
+  /**
+   * Records how long a build waited to enter a stage.
+   *
+   * @param stage  the name of the stage
+   * @param millis  the time waited, in milliseconds
+   */
+  static void recordStageWait(String stage, long millis) {
+    getHistogram(stageWaits, stage, DURATION_BUCKETS).observe(millis / 1000.0);
+  }
+
+  /**
+   * Records how long a build waited in the build queue.
+   *
+   * @param millis  the time waited, in milliseconds
+   */
+  static void recordQueueWait(long millis) {
+    queueWait.observe(millis / 1000.0);
+  }
+
+  /**
+   * Records the peak resident memory of a child process.
+   *
+   * @param command  the name of the program the process ran, for example "java" or "aapt"
+   * @param bytes  the peak resident memory, in bytes
+   */
+  static void recordChildPeakRss(String command, long bytes) {
+    getHistogram(childPeakRss, command, MEMORY_BUCKETS).observe(bytes);
+  }
+
+  private static Histogram getHistogram(ConcurrentMap<String, Histogram> histograms,
+      String label, double[] buckets) {
+    Histogram histogram = histograms.get(label);
+    if (histogram == null) {
+      histograms.putIfAbsent(label, new Histogram(buckets));
+      histogram = histograms.get(label);
+    }
+    return histogram;
+  }
+
+  /**
+   * Appends the histograms, in the Prometheus text format, to the given StringBuilder.
+   */
+  static void writeHistograms(StringBuilder sb) {
+    writeHistograms(sb, "buildserver_stage_duration_seconds",
+        "Time spent in each stage of a build.", "stage", stageDurations);
+    writeHistograms(sb, "buildserver_stage_wait_seconds",
+        "Time spent waiting to enter a stage.", "stage", stageWaits);
+    writeHistograms(sb, "buildserver_child_process_peak_rss_bytes",
+        "Peak resident memory of child processes.", "command", childPeakRss);
+    writeHeader(sb, "buildserver_queue_wait_seconds", "Time builds spent in the build queue.",
+        "histogram");
+    queueWait.write(sb, "buildserver_queue_wait_seconds", "");
+  }
+
+  private static void writeHistograms(StringBuilder sb, String name, String help,
+      String labelName, Map<String, Histogram> histograms) {
+    writeHeader(sb, name, help, "histogram");
+    for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+      entry.getValue().write(sb, name, labelName + "=\"" + entry.getKey() + "\",");
+    }
+  }
+
+  /**
+   * Appends a gauge, in the Prometheus text format, to the given StringBuilder.
+   */
+  static void writeGauge(StringBuilder sb, String name, String help, double value) {
+    writeHeader(sb, name, help, "gauge");
+    sb.append(name).append(' ').append(format(value)).append('\n');
+  }
+
+  /**
+   * Appends a counter, in the Prometheus text format, to the given StringBuilder.
+   */
+  static void writeCounter(StringBuilder sb, String name, String help, double value) {
+    writeHeader(sb, name, help, "counter");
+    sb.append(name).append(' ').append(format(value)).append('\n');
+  }
+
+  /**
+   * Returns hits / (hits + misses), or 0 if there were neither.
+   */
+  static double ratio(long hits, long misses) {
+    return (hits + misses == 0) ? 0 : (double) hits / (hits + misses);
+  }
+
+  private static void writeHeader(StringBuilder sb, String name, String help, String type) {
+    sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static String format(double value) {
+    if (value == Math.rint(value) && !Double.isInfinite(value)) {
+      return Long.toString((long) value);
+    }
+    return Double.toString(value);
+  }
+
+  /*
+   * A histogram with fixed buckets.
+   */
+  private static class Histogram {
+    private final double[] bounds;
+    // counts[i] is the number of observations in bucket i, not including the buckets below it.
+    // The last count is for observations above all the bounds. Guarded by this.
+    private final long[] counts;
+    private double sum = 0;
+    private long count = 0;
+
+    Histogram(double[] bounds) {
+      this.bounds = bounds;
+      this.counts = new long[bounds.length + 1];
+    }
+
+    synchronized void observe(double value) {
+      int i = 0;
+      while (i < bounds.length && value > bounds[i]) {
+        i++;
+      }
+      counts[i]++;
+      sum += value;
+      count++;
+    }
+
+    synchronized void write(StringBuilder sb, String name, String labels) {
+      long cumulative = 0;
+      for (int i = 0; i < bounds.length; i++) {
+        cumulative += counts[i];
+        sb.append(name).append("_bucket{").append(labels)
+            .append("le=\"").append(format(bounds[i])).append("\"} ")
+            .append(cumulative).append('\n');
+      }
+      sb.append(name).append("_bucket{").append(labels).append("le=\"+Inf\"} ")
+          .append(count).append('\n');
+      String plainLabels = labels.isEmpty() ? ""
+          : "{" + labels.substring(0, labels.length() - 1) + "}";
+      sb.append(name).append("_sum").append(plainLabels).append(' ').append(format(sum))
+          .append('\n');
+      sb.append(name).append("_count").append(plainLabels).append(' ').append(count)
+          .append('\n');
+    }
+  }
+}
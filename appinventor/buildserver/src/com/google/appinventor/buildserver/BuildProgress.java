@@ -0,0 +1,179 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * The progress of one build: its state, how far it has got, in percent, and the stage it is in.
+ *
+ * <p>Builds started by the build server are registered under a build id, so their progress can
+ * be looked up while they wait and run, and for a while after they finish. A BuildProgress that
+ * isn't registered just tracks a build nobody asks about, for example one started by
+ * {@link Main}.</p>
+ */
+final class BuildProgress {
+  /**
+   * The states of a build.
+   */
+  enum State {
+    QUEUED, RUNNING, FINISHED
+  }
+
+  // How long a finished build can still be looked up.
+  private static final long RETENTION_MS = 10 * 60 * 1000;
+
+  // The build ids a requester may choose.
+  private static final Pattern BUILD_ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+  private static final ConcurrentMap<String, BuildProgress> registeredBuilds =
+      new ConcurrentHashMap<String, BuildProgress>();
+
+  private final String buildId;
+  private volatile State state = State.QUEUED;
+  private volatile int progress = 0;
+  private volatile String stage = "queued";
+  private volatile long finishTimeMillis = 0;
+  private volatile QueuingExecutor.QueuedTask queuedTask;
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildProgress.class.getName());
+
+  /**
+   * Creates a BuildProgress that isn't registered.
+   */
+  BuildProgress() {
+    this(null);
+  }
+
+  private BuildProgress(String buildId) {
+    this.buildId = buildId;
+  }
+
+  /**
+   * Creates and registers the progress of a new build. A build registered earlier under the same
+   * id can no longer be looked up.
+   *
+   * @param buildId  the id chosen by the requester, or null to create a new one
+   * @return the progress of the new build
+   * @throws IllegalArgumentException if the given build id is not valid
+   */
+  static BuildProgress register(String buildId) {
+    if (buildId == null || buildId.isEmpty()) {
+      buildId = UUID.randomUUID().toString();
+    } else if (!isValidBuildId(buildId)) {
+      throw new IllegalArgumentException("Invalid build id: " + buildId);
+    }
+    removeExpired();
+    BuildProgress buildProgress = new BuildProgress(buildId);
+    registeredBuilds.put(buildId, buildProgress);
+    return buildProgress;
+  }
+
+  /**
+   * Removes this build, for example because it was rejected, so it can no longer be looked up.
+   */
+  void unregister() {
+    if (buildId != null) {
+      registeredBuilds.remove(buildId, this);
+    }
+  }
+
+  /**
+   * Returns the progress of the build registered under the given id, or null if there is none.
+   */
+  static BuildProgress get(String buildId) {
+    return (buildId == null) ? null : registeredBuilds.get(buildId);
+  }
+
+  static boolean isValidBuildId(String buildId) {
+    return BUILD_ID_PATTERN.matcher(buildId).matches();
+  }
+
+  static int getRegisteredCount() {
+    return registeredBuilds.size();
+  }
+
+  private static void removeExpired() {
+    long now = System.currentTimeMillis();
+    Iterator<BuildProgress> iterator = registeredBuilds.values().iterator();
+    while (iterator.hasNext()) {
+      BuildProgress buildProgress = iterator.next();
+      if (buildProgress.state == State.FINISHED
+          && now - buildProgress.finishTimeMillis > RETENTION_MS) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Sets the task of this build in the build queue, which tells its queue position.
+   */
+  void setQueuedTask(QueuingExecutor.QueuedTask queuedTask) {
+    this.queuedTask = queuedTask;
+  }
+
+  /**
+   * Records that the build has started running.
+   */
+  void start() {
+    state = State.RUNNING;
+    stage = "starting";
+  }
+
+  /**
+   * Records how far the build has got.
+   *
+   * @param progress  the progress in percent
+   * @param stage  the stage the build is now in, for example "dx"
+   */
+  void setProgress(int progress, String stage) {
+    this.progress = progress;
+    this.stage = stage;
+    LOG.info("The current progress" + (buildId == null ? "" : " of build " + buildId)
+        + " is " + progress + "% (" + stage + ")");
+  }
+
+  /**
+   * Records that the build has finished, whether or not it succeeded.
+   */
+  void finish() {
+    finishTimeMillis = System.currentTimeMillis();
+    progress = 100;
+    stage = "finished";
+    state = State.FINISHED;
+  }
+
+  String getBuildId() {
+    return buildId;
+  }
+
+  State getState() {
+    return state;
+  }
+
+  int getProgress() {
+    return progress;
+  }
+
+  String getStage() {
+    return stage;
+  }
+
+  /**
+   * Returns the position of the build in the build queue, or 0 if it is not waiting.
+   */
+  int getQueuePosition() {
+    QueuingExecutor.QueuedTask task = queuedTask;
+    return (state != State.QUEUED || task == null) ? 0 : task.getQueuePosition();
+  }
+}
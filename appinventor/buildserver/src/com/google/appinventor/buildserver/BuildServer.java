@@ -7,7 +7,7 @@ package com.google.appinventor.buildserver;
 
 import com.google.appinventor.common.version.GitBuildId;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.io.ByteStreams;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 
 import com.sun.grizzly.http.SelectorThread;
@@ -20,12 +20,12 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.spi.StringArrayOptionHandler;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
@@ -49,6 +49,7 @@ import java.util.zip.ZipOutputStream;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
@@ -79,6 +80,34 @@ public class BuildServer {
       usage = "Maximum number of builds that can run in parallel. O means unlimited.")
     int maxSimultaneousBuilds = 0;  // The default is unlimited.
 
+    @Option(name = "--maxQueuedBuilds",
+      usage = "Maximum number of builds that can wait for a free build slot. 0 means builds are rejected when all slots are busy.")
+    int maxQueuedBuilds = 0;
+
+    @Option(name = "--maxSimultaneousKawaCompiles",
+      usage = "Maximum number of Kawa compiles that can run in parallel. 0 means based on processors and memory.")
+    int maxSimultaneousKawaCompiles = 0;
+
+    @Option(name = "--maxSimultaneousDx",
+      usage = "Maximum number of DX runs that can run in parallel. 0 means based on processors and memory.")
+    int maxSimultaneousDx = 0;
+
+    @Option(name = "--residentKawaCompilers",
+      usage = "Number of Kawa compiler processes to keep running between builds, so runtime.scm is loaded only once. 0 means start a new Kawa process for every build.")
+    int residentKawaCompilers = 0;
+
+    @Option(name = "--residentYailGenerators",
+      usage = "Number of YailGenerator processes to keep running between builds. The screens of a build are generated in parallel on them. 0 means start a new YailGenerator process for every screen.")
+    int residentYailGenerators = 0;
+
+    @Option(name = "--keystorePoolSize",
+      usage = "Number of key pairs for new project keystores to generate ahead of time, so first builds don't wait for one. 0 means every new keystore generates its key pair during the build.")
+    int keystorePoolSize = 20;
+
+    @Option(name = "--keystorePoolRefillPerMinute",
+      usage = "Maximum number of key pairs generated per minute to refill the keystore pool. 0 means no limit.")
+    int keystorePoolRefillPerMinute = 30;
+
     @Option(name = "--port",
       usage = "The port number to bind to on the local machine.")
     int port = 9990;
@@ -95,6 +124,26 @@ public class BuildServer {
             usage = "the directory to cache the pre-dexed libraries")
     String dexCacheDir = null;
 
+    @Option(name = "--dexCacheSizeMb",
+            usage = "Maximum disk space used by the pre-dexed libraries, in MB. The least recently used ones are deleted when they use more.")
+    int dexCacheSizeMb = 1024;
+
+    @Option(name = "--buildCacheDir",
+            usage = "the directory to cache the compiled classes of screens between builds. If not specified, every build compiles all screens.")
+    String buildCacheDir = null;
+
+    @Option(name = "--buildCacheSizeMb",
+            usage = "Maximum disk space used by the build cache, in MB.")
+    int buildCacheSizeMb = 2048;
+
+    @Option(name = "--maxHeapUsagePercent",
+            usage = "New builds wait in the build queue while more than this percentage of the heap is still in use after a garbage collection.")
+    int maxHeapUsagePercent = 85;
+
+    @Option(name = "--minAvailableMemoryMb",
+            usage = "New builds wait in the build queue while less than this much memory is available for child processes, in MB. 0 means the value of --childProcessRamMb. Outside Linux only the free memory is known, which leaves out reclaimable caches.")
+    int minAvailableMemoryMb = 0;
+
   }
 
   private static final CommandLineOptions commandLineOptions = new CommandLineOptions();
@@ -109,6 +158,21 @@ public class BuildServer {
   private static final MediaType ZIP_MEDIA_TYPE =
     new MediaType("application", "zip", ImmutableMap.of("charset", "utf-8"));
 
+  // Response headers telling the requester where an accepted build is in the build queue.
+  static final String QUEUE_POSITION_HEADER = "X-Build-Queue-Position";
+  static final String QUEUE_ETA_HEADER = "X-Build-Queue-Eta-Seconds";
+
+  // Response headers telling the requester which build a response is about and what it is doing.
+  static final String BUILD_ID_HEADER = "X-Build-Id";
+  static final String BUILD_STATE_HEADER = "X-Build-State";
+  static final String BUILD_STAGE_HEADER = "X-Build-Stage";
+
+  // The content type of the Prometheus text format.
+  private static final String METRICS_CONTENT_TYPE = "text/plain; version=0.0.4";
+
+  // The size of the chunks in which build results are sent to the callback url.
+  private static final int CALLBACK_CHUNK_SIZE = 64 * 1024;
+
   private static final AtomicInteger buildCount = new AtomicInteger(0);
 
   // The number of build requests for this server run
@@ -126,11 +190,17 @@ public class BuildServer {
   //The number of failed build requests for this server run
   private static int maximumActiveBuildTasks = 0;
 
-  // The build executor used to limit the number of simultaneous builds.
+  // How often the memory monitor samples the memory available for child processes.
+  private static final long MEMORY_SAMPLE_INTERVAL_MS = 5000;
+
+  // The build executor used to limit the number of simultaneous builds and queue the rest.
   // NOTE(lizlooney) - the buildExecutor must be created after the command line options are
   // processed in main(). If it is created here, the number of simultaneous builds will always be
   // the default value, even if the --maxSimultaneousBuilds option is on the command line.
-  private static NonQueuingExecutor buildExecutor;
+  private static QueuingExecutor buildExecutor;
+
+  // Holds back new builds while memory is low. Created in main() along with the buildExecutor.
+  private static MemoryMonitor memoryMonitor;
 
   // The input zip file. It will be deleted in cleanUp.
   private File inputZip;
@@ -213,6 +283,12 @@ public class BuildServer {
     variables.put("max-memory", runtime.maxMemory() + "");
     variables.put("used-heap", memoryBean.getHeapMemoryUsage().getUsed() + "");
     variables.put("used-non-heap", memoryBean.getNonHeapMemoryUsage().getUsed() + "");
+    variables.put("live-heap-after-gc", memoryMonitor.getLiveHeapBytes() + "");
+    variables.put("available-physical-memory", memoryMonitor.getAvailableBytes() + "");
+    variables.put("garbage-collections-seen", memoryMonitor.getGcCount() + "");
+    variables.put("memory-low", memoryMonitor.isLow() + "");
+    variables.put("memory-low-events", memoryMonitor.getLowMemoryEvents() + "");
+    variables.put("admitting-builds", buildExecutor.isAdmitting() + "");
 
     // Build requests
     variables.put("count-async-build-requests", asyncBuildRequests.get() + "");
@@ -231,6 +307,73 @@ public class BuildServer {
     maximumActiveBuildTasks = Math.max(maximumActiveBuildTasks, buildExecutor.getActiveTaskCount());
     variables.put("maximum-simultaneous-build-tasks-occurred", maximumActiveBuildTasks + "");
     variables.put("active-build-tasks", buildExecutor.getActiveTaskCount() + "");
+    variables.put("maximum-queued-build-tasks-allowed", buildExecutor.getMaxQueuedTasks() + "");
+    variables.put("maximum-queued-build-tasks-occurred",
+        buildExecutor.getMaximumQueuedTaskCount() + "");
+    variables.put("queued-build-tasks", buildExecutor.getQueuedTaskCount() + "");
+    variables.put("average-build-task-time-in-ms", buildExecutor.getAverageTaskMillis() + "");
+    variables.put("tracked-builds", BuildProgress.getRegisteredCount() + "");
+
+    // Build stages
+    for (StageLimiter stage : new StageLimiter[] { Compiler.getKawaStage(), Compiler.getDxStage() }) {
+      String prefix = stage.getName().toLowerCase() + "-stage-";
+      variables.put(prefix + "maximum-simultaneous-allowed", stage.getMaxConcurrent() + "");
+      variables.put(prefix + "active", stage.getActiveCount() + "");
+      variables.put(prefix + "waiting", stage.getWaitingCount() + "");
+      variables.put(prefix + "entries", stage.getEntryCount() + "");
+      variables.put(prefix + "total-wait-in-ms", stage.getTotalWaitMillis() + "");
+      variables.put(prefix + "maximum-wait-in-ms", stage.getMaxWaitMillis() + "");
+    }
+
+    // Resident Kawa compilers
+    KawaCompilerPool kawaCompilerPool = Compiler.getKawaCompilerPool();
+    if (kawaCompilerPool != null) {
+      variables.put("resident-kawa-compilers-allowed", kawaCompilerPool.getMaxWorkers() + "");
+      variables.put("resident-kawa-compilers-disabled", kawaCompilerPool.isDisabled() + "");
+      variables.put("resident-kawa-compilers", kawaCompilerPool.getWorkerCount() + "");
+      variables.put("idle-resident-kawa-compilers", kawaCompilerPool.getIdleWorkerCount() + "");
+      variables.put("started-resident-kawa-compilers", kawaCompilerPool.getStartedWorkers() + "");
+      variables.put("resident-kawa-compiles", kawaCompilerPool.getResidentCompiles() + "");
+      variables.put("fallback-kawa-compiles", kawaCompilerPool.getFallbackCompiles() + "");
+    }
+    if (commandLineOptions.dexCacheDir != null) {
+      variables.put("dex-cache-maximum-size-in-bytes", DexExecTask.getMaxDexCacheBytes() + "");
+      variables.put("dex-cache-size-in-bytes", DexExecTask.getDexCacheBytes() + "");
+      variables.put("dex-cache-hits", DexExecTask.getDexCacheHits() + "");
+      variables.put("dex-cache-misses", DexExecTask.getDexCacheMisses() + "");
+      variables.put("dex-cache-evictions", DexExecTask.getDexCacheEvictions() + "");
+      variables.put("dex-cache-corruptions", DexExecTask.getDexCacheCorruptions() + "");
+      variables.put("dex-cache-bytes-written", DexExecTask.getDexCacheBytesWritten() + "");
+    }
+    BuildCache buildCache = Compiler.getBuildCache();
+    if (buildCache != null) {
+      variables.put("build-cache-maximum-size-in-bytes", buildCache.getMaxBytes() + "");
+      variables.put("build-cache-size-in-bytes", buildCache.getSizeBytes() + "");
+      variables.put("build-cache-entries", buildCache.getEntryCount() + "");
+      variables.put("build-cache-hits", buildCache.getHits() + "");
+      variables.put("build-cache-misses", buildCache.getMisses() + "");
+      variables.put("build-cache-evictions", buildCache.getEvictions() + "");
+    }
+    YailGeneratorPool yailGeneratorPool = ProjectBuilder.getYailGeneratorPool();
+    if (yailGeneratorPool != null) {
+      variables.put("resident-yail-generators-allowed", yailGeneratorPool.getMaxWorkers() + "");
+      variables.put("resident-yail-generators-disabled", yailGeneratorPool.isDisabled() + "");
+      variables.put("resident-yail-generators", yailGeneratorPool.getWorkerCount() + "");
+      variables.put("idle-resident-yail-generators", yailGeneratorPool.getIdleWorkerCount() + "");
+      variables.put("started-resident-yail-generators",
+          yailGeneratorPool.getStartedWorkers() + "");
+      variables.put("resident-yail-generations", yailGeneratorPool.getResidentRequests() + "");
+      variables.put("fallback-yail-generations", yailGeneratorPool.getFallbackRequests() + "");
+    }
+    KeyStorePool keyStorePool = ProjectBuilder.getKeyStorePool();
+    if (keyStorePool != null) {
+      variables.put("keystore-pool-size", keyStorePool.getSize() + "");
+      variables.put("keystore-pool-refill-per-minute", keyStorePool.getRefillPerMinute() + "");
+      variables.put("keystore-pool-available", keyStorePool.getAvailable() + "");
+      variables.put("keystore-pool-generated", keyStorePool.getGenerated() + "");
+      variables.put("keystore-pool-hits", keyStorePool.getHits() + "");
+      variables.put("keystore-pool-misses", keyStorePool.getMisses() + "");
+    }
 
     StringBuilder html = new StringBuilder();
     html.append("<html><body><tt>");
@@ -242,6 +385,84 @@ public class BuildServer {
     return Response.ok(html.toString(), MediaType.TEXT_HTML_TYPE).build();
   }
 
+  /**
+   * Returns the build server metrics in the Prometheus text format: histograms of the time spent
+   * in each build stage, in the build queue and waiting for the Kawa and DX stages, of the peak
+   * memory of child processes, and the build counters and cache hit ratios.
+   */
+  @GET
+  @Path("metrics")
+  @Produces(METRICS_CONTENT_TYPE)
+  public Response metrics() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    BuildMetrics.writeHistograms(sb);
+
+    BuildMetrics.writeCounter(sb, "buildserver_async_build_requests_total",
+        "Asynchronous build requests received.", asyncBuildRequests.get());
+    BuildMetrics.writeCounter(sb, "buildserver_rejected_async_build_requests_total",
+        "Asynchronous build requests rejected.", rejectedAsyncBuildRequests.get());
+    BuildMetrics.writeCounter(sb, "buildserver_successful_builds_total",
+        "Builds that succeeded.", successfulBuildRequests.get());
+    BuildMetrics.writeCounter(sb, "buildserver_failed_builds_total",
+        "Builds that failed.", failedBuildRequests.get());
+    BuildMetrics.writeGauge(sb, "buildserver_active_builds",
+        "Builds running now.", buildExecutor.getActiveTaskCount());
+    BuildMetrics.writeGauge(sb, "buildserver_queued_builds",
+        "Builds waiting in the build queue.", buildExecutor.getQueuedTaskCount());
+    BuildMetrics.writeGauge(sb, "buildserver_used_heap_bytes",
+        "Heap memory used by the build server.",
+        ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+    BuildMetrics.writeGauge(sb, "buildserver_live_heap_bytes",
+        "Heap memory in use after the last garbage collection.",
+        memoryMonitor.getLiveHeapBytes());
+    BuildMetrics.writeGauge(sb, "buildserver_available_memory_bytes",
+        "Memory available for child processes.", memoryMonitor.getAvailableBytes());
+    BuildMetrics.writeGauge(sb, "buildserver_memory_low",
+        "1 while new builds are held back because memory is low.",
+        memoryMonitor.isLow() ? 1 : 0);
+    BuildMetrics.writeCounter(sb, "buildserver_memory_low_events_total",
+        "Times memory became low.", memoryMonitor.getLowMemoryEvents());
+
+    if (commandLineOptions.dexCacheDir != null) {
+      BuildMetrics.writeGauge(sb, "buildserver_dex_cache_hit_ratio",
+          "Fraction of pre-dexed library lookups that hit the dex cache.",
+          BuildMetrics.ratio(DexExecTask.getDexCacheHits(), DexExecTask.getDexCacheMisses()));
+      BuildMetrics.writeGauge(sb, "buildserver_dex_cache_size_bytes",
+          "Size of the pre-dexed libraries on disk.", DexExecTask.getDexCacheBytes());
+    }
+    BuildCache buildCache = Compiler.getBuildCache();
+    if (buildCache != null) {
+      BuildMetrics.writeGauge(sb, "buildserver_build_cache_hit_ratio",
+          "Fraction of build cache lookups that hit.",
+          BuildMetrics.ratio(buildCache.getHits(), buildCache.getMisses()));
+      BuildMetrics.writeGauge(sb, "buildserver_build_cache_size_bytes",
+          "Size of the build cache on disk.", buildCache.getSizeBytes());
+    }
+    KawaCompilerPool kawaCompilerPool = Compiler.getKawaCompilerPool();
+    if (kawaCompilerPool != null) {
+      BuildMetrics.writeGauge(sb, "buildserver_resident_kawa_compile_ratio",
+          "Fraction of Kawa compiles done by a resident compiler.",
+          BuildMetrics.ratio(kawaCompilerPool.getResidentCompiles(),
+              kawaCompilerPool.getFallbackCompiles()));
+    }
+    YailGeneratorPool yailGeneratorPool = ProjectBuilder.getYailGeneratorPool();
+    if (yailGeneratorPool != null) {
+      BuildMetrics.writeGauge(sb, "buildserver_resident_yail_generation_ratio",
+          "Fraction of screens generated by a resident YailGenerator.",
+          BuildMetrics.ratio(yailGeneratorPool.getResidentRequests(),
+              yailGeneratorPool.getFallbackRequests()));
+    }
+    KeyStorePool keyStorePool = ProjectBuilder.getKeyStorePool();
+    if (keyStorePool != null) {
+      BuildMetrics.writeGauge(sb, "buildserver_keystore_pool_hit_ratio",
+          "Fraction of new keystores made from a pre-generated key pair.",
+          BuildMetrics.ratio(keyStorePool.getHits(), keyStorePool.getMisses()));
+      BuildMetrics.writeGauge(sb, "buildserver_keystore_pool_available",
+          "Pre-generated key pairs ready for new keystores.", keyStorePool.getAvailable());
+    }
+    return Response.ok(sb.toString(), METRICS_CONTENT_TYPE).build();
+  }
+
   /**
    * Indicate that the server is shutting down.
    *
@@ -378,7 +599,17 @@ public class BuildServer {
    * @param gitBuildVersion  The value of GitBuildId.getVersion() sent from
    *     YoungAndroidProjectService.build.
    * @param callbackUrlStr An url to send the build results back to.
+   * @param buildId  An id for the build, made of letters, digits, '-' and '_'. If not given, the
+   *     build server creates one. Either way, it is returned in the {@value #BUILD_ID_HEADER}
+   *     header and the progress of the build can be read from build-status/{buildId}.
    * @param inputZipFile  The zip file representing the App Inventor source code.
+   * If all build slots are busy, the build is queued and the response carries the
+   * {@value #QUEUE_POSITION_HEADER} and {@value #QUEUE_ETA_HEADER} headers. A build is only
+   * rejected when the queue is full as well.
+   *
+   * An empty input zip file doesn't start a build. The response carries the progress of the
+   * build with the given buildId instead, or 0 if there is no such build.
+   *
    * @return a status response, typically OK (200) or SERVICE_UNAVAILABLE (503).
    */
   @POST
@@ -388,6 +619,7 @@ public class BuildServer {
     @QueryParam("uname") final String userName,
     @QueryParam("callback") final String callbackUrlStr,
     @QueryParam("gitBuildVersion") final String gitBuildVersion,
+    @QueryParam("buildId") String buildId,
     final File inputZipFile) throws IOException {
     // Set the inputZip field so we can delete the input zip file later in
     // cleanUp.
@@ -398,6 +630,9 @@ public class BuildServer {
     //for the request for update part, the file should be empty
     if (inputZip.length() == 0L) {
       cleanUp();
+      BuildProgress buildProgress = BuildProgress.get(buildId);
+      return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
+        .entity("" + (buildProgress == null ? 0 : buildProgress.getProgress())).build();
     } else {
       if (getShutdownState() == ShutdownState.DOWN) {
         LOG.info("request received while shutdown completely");
@@ -442,58 +677,55 @@ public class BuildServer {
         }
       }
 
+      final BuildProgress buildProgress;
+      try {
+        buildProgress = BuildProgress.register(buildId);
+      } catch (IllegalArgumentException e) {
+        rejectedAsyncBuildRequests.incrementAndGet();
+        cleanUp();
+        return Response.status(Response.Status.BAD_REQUEST).type(MediaType.TEXT_PLAIN_TYPE).entity(e.getMessage()).build();
+      }
+      projectBuilder = new ProjectBuilder(buildProgress);
+
       Runnable buildTask = new Runnable() {
           @Override
           public void run() {
             int count = buildCount.incrementAndGet();
+            buildProgress.start();
             try {
-              LOG.info("START NEW BUILD " + count);
+              LOG.info("START NEW BUILD " + count + " (" + buildProgress.getBuildId() + ")");
               checkMemory();
-              buildAndCreateZip(userName, inputZipFile);
+              Result buildResult = build(userName, inputZipFile);
               // Send zip back to the callbackUrl
               LOG.info("CallbackURL: " + callbackUrlStr);
-              URL callbackUrl = new URL(callbackUrlStr);
-              HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
-              connection.setDoOutput(true);
-              connection.setRequestMethod("POST");
-              // Make sure we aren't misinterpreted as
-              // form-url-encoded
-              connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
-              connection.setConnectTimeout(60000);
-              connection.setReadTimeout(60000);
-              BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
-              try {
-                BufferedInputStream bufferedInputStream = new BufferedInputStream(
-                  new FileInputStream(outputZip));
-                try {
-                  ByteStreams.copy(bufferedInputStream,bufferedOutputStream);
-                  checkMemory();
-                  bufferedOutputStream.flush();
-                } finally {
-                  bufferedInputStream.close();
-                }
-              } finally {
-                bufferedOutputStream.close();
-              }
-              if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {LOG.severe("Bad Response Code!: "+ connection.getResponseCode());
+              long uploadStart = System.currentTimeMillis();
+              int responseCode = postZip(new URL(callbackUrlStr), buildResult, outputApk,
+                  outputKeystore);
+              checkMemory();
+              BuildMetrics.recordStage("callback_upload",
+                  System.currentTimeMillis() - uploadStart);
+              if (responseCode != HttpURLConnection.HTTP_OK) {LOG.severe("Bad Response Code!: "+ responseCode);
                 // TODO(user) Maybe do some retries
               }
             } catch (Exception e) {
               // TODO(user): Maybe send a failure callback
               LOG.severe("Exception: " + e.getMessage()+ " and the length is of inputZip is "+ inputZip.length());
             } finally {
+              buildProgress.finish();
               cleanUp();
               checkMemory();
               LOG.info("BUILD " + count + " FINISHED");
             }
           }
         };
+      QueuingExecutor.QueuedTask queuedTask;
       try {
-        buildExecutor.execute(buildTask);
+        queuedTask = buildExecutor.submit(userName, buildTask);
       } catch (RejectedExecutionException e) {
         // This request was rejected because all threads in the build
-        // executor are busy.
+        // executor are busy, or memory is low, and the build queue is full.
         rejectedAsyncBuildRequests.incrementAndGet();
+        buildProgress.unregister();
         cleanUp();
         // Here, we use SERVICE_UNAVAILABLE (response code 503), which
         // means (according to rfc2616, section 10) "The server is
@@ -503,25 +735,104 @@ public class BuildServer {
         // alleviated after some delay."
         return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE).entity("The build server is currently at maximum capacity.").build();
       }
+      buildProgress.setQueuedTask(queuedTask);
+      int queuePosition = queuedTask.getQueuePosition();
+      if (queuePosition > 0) {
+        LOG.info("Build for " + userName + " queued at position " + queuePosition);
+      }
+      return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
+        .header(BUILD_ID_HEADER, buildProgress.getBuildId())
+        .header(QUEUE_POSITION_HEADER, queuePosition)
+        .header(QUEUE_ETA_HEADER, buildExecutor.estimateWaitMillis(queuePosition) / 1000)
+        .entity("" + buildProgress.getProgress()).build();
     }
+  }
+
+  /**
+   * Returns the progress of a build started by build-all-from-zip-async, in percent. The response
+   * also carries the {@value #BUILD_STATE_HEADER} header, which is QUEUED, RUNNING or FINISHED,
+   * the {@value #BUILD_STAGE_HEADER} header, for example "kawa" or "dx", and, while the build is
+   * queued, the {@value #QUEUE_POSITION_HEADER} and {@value #QUEUE_ETA_HEADER} headers.
+   *
+   * Finished builds can be looked up for a while after they finish.
+   *
+   * @param buildId  the id of the build
+   * @return OK (200) with the progress, or NOT_FOUND (404) if there is no build with the given id
+   */
+  @GET
+  @Path("build-status/{buildId}")
+  @Produces(MediaType.TEXT_PLAIN)
+  public Response buildStatus(@PathParam("buildId") String buildId) {
+    BuildProgress buildProgress = BuildProgress.get(buildId);
+    if (buildProgress == null) {
+      return Response.status(Response.Status.NOT_FOUND).type(MediaType.TEXT_PLAIN_TYPE).entity("Unknown build id: " + buildId).build();
+    }
+    int queuePosition = buildProgress.getQueuePosition();
     return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
-      .entity("" + projectBuilder.getProgress()).build();
+      .header(BUILD_ID_HEADER, buildId)
+      .header(BUILD_STATE_HEADER, buildProgress.getState())
+      .header(BUILD_STAGE_HEADER, buildProgress.getStage())
+      .header(QUEUE_POSITION_HEADER, queuePosition)
+      .header(QUEUE_ETA_HEADER, buildExecutor.estimateWaitMillis(queuePosition) / 1000)
+      .entity("" + buildProgress.getProgress()).build();
   }
 
   private void buildAndCreateZip(String userName, File inputZipFile)
     throws IOException, JSONException {
     Result buildResult = build(userName, inputZipFile);
-    boolean buildSucceeded = buildResult.succeeded();
     outputZip = File.createTempFile(inputZipFile.getName(), ".zip");
     outputZip.deleteOnExit();  // In case build server is killed before cleanUp executes.
-    ZipOutputStream zipOutputStream =
-      new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputZip)));
+    OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(outputZip));
+    try {
+      writeZip(buildResult, outputApk, outputKeystore, outputStream);
+    } finally {
+      outputStream.close();
+    }
+  }
+
+  /**
+   * Posts the zip file with the build results to a callback url. The zip is written straight into
+   * the request body, which is sent in chunks, so neither the zip nor the body is ever held in a
+   * file or in memory.
+   *
+   * @return the response code of the callback
+   */
+  static int postZip(URL callbackUrl, Result buildResult, File outputApk, File outputKeystore)
+    throws IOException, JSONException {
+    HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
+    connection.setDoOutput(true);
+    connection.setRequestMethod("POST");
+    connection.setChunkedStreamingMode(CALLBACK_CHUNK_SIZE);
+    // Make sure we aren't misinterpreted as
+    // form-url-encoded
+    connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
+    connection.setConnectTimeout(60000);
+    connection.setReadTimeout(60000);
+    BufferedOutputStream bufferedOutputStream =
+      new BufferedOutputStream(connection.getOutputStream(), CALLBACK_CHUNK_SIZE);
+    try {
+      writeZip(buildResult, outputApk, outputKeystore, bufferedOutputStream);
+    } finally {
+      bufferedOutputStream.close();
+    }
+    return connection.getResponseCode();
+  }
+
+  /*
+   * Writes the zip file with the build results: the APK and keystore, if the build succeeded,
+   * and build.out.
+   */
+  private static void writeZip(Result buildResult, File outputApk, File outputKeystore,
+    OutputStream outputStream) throws IOException, JSONException {
+    boolean buildSucceeded = buildResult.succeeded();
+    ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream);
     if (buildSucceeded) {
       if (outputKeystore != null) {
         zipOutputStream.putNextEntry(new ZipEntry(outputKeystore.getName()));
         Files.copy(outputKeystore, zipOutputStream);
       }
-      zipOutputStream.putNextEntry(new ZipEntry(outputApk.getName()));
+      // The APK is already compressed, so it is stored as is rather than compressed again.
+      zipOutputStream.putNextEntry(createStoredEntry(outputApk));
       Files.copy(outputApk, zipOutputStream);
       successfulBuildRequests.getAndIncrement();
     } else {
@@ -533,11 +844,20 @@ public class BuildServer {
     PrintStream zipPrintStream = new PrintStream(zipOutputStream);
     zipPrintStream.print(buildOutputJson);
     zipPrintStream.flush();
+    zipOutputStream.finish();
     zipOutputStream.flush();
-    zipOutputStream.close();
   }
 
-  private String genBuildOutput(Result buildResult) throws JSONException {
+  private static ZipEntry createStoredEntry(File file) throws IOException {
+    ZipEntry entry = new ZipEntry(file.getName());
+    entry.setMethod(ZipEntry.STORED);
+    entry.setSize(file.length());
+    entry.setCompressedSize(file.length());
+    entry.setCrc(Files.hash(file, Hashing.crc32()).padToLong());
+    return entry;
+  }
+
+  private static String genBuildOutput(Result buildResult) throws JSONException {
     JSONObject buildOutputJsonObj = new JSONObject();
     buildOutputJsonObj.put("result", buildResult.getResult());
     buildOutputJsonObj.put("error", buildResult.getError());
@@ -591,9 +911,10 @@ public class BuildServer {
     }
   }
 
+  // Logs the memory in use. This doesn't force a garbage collection; the memoryMonitor holds
+  // back new builds when too much memory is still in use after one.
   private static void checkMemory() {
     MemoryMXBean mBean = ManagementFactory.getMemoryMXBean();
-    mBean.gc();
     LOG.info("Build " + buildCount + " current used memory: "
       + mBean.getHeapMemoryUsage().getUsed() + " bytes");
   }
@@ -612,7 +933,28 @@ public class BuildServer {
     }
 
     // Now that the command line options have been processed, we can create the buildExecutor.
-    buildExecutor = new NonQueuingExecutor(commandLineOptions.maxSimultaneousBuilds);
+    buildExecutor = new QueuingExecutor(commandLineOptions.maxSimultaneousBuilds,
+        commandLineOptions.maxQueuedBuilds);
+    int minAvailableMemoryMb = (commandLineOptions.minAvailableMemoryMb == 0)
+        ? commandLineOptions.childProcessRamMb
+        : commandLineOptions.minAvailableMemoryMb;
+    memoryMonitor = new MemoryMonitor(commandLineOptions.maxHeapUsagePercent,
+        minAvailableMemoryMb, MEMORY_SAMPLE_INTERVAL_MS, new MemoryMonitor.Listener() {
+          @Override
+          public void memoryStateChanged(boolean low) {
+            buildExecutor.setAdmitting(!low);
+          }
+        });
+    memoryMonitor.start();
+    Compiler.configureStageLimits(commandLineOptions.maxSimultaneousKawaCompiles,
+        commandLineOptions.maxSimultaneousDx, commandLineOptions.childProcessRamMb);
+    Compiler.configureKawaCompilerPool(commandLineOptions.residentKawaCompilers);
+    ProjectBuilder.configureYailGeneratorPool(commandLineOptions.residentYailGenerators);
+    ProjectBuilder.configureKeyStorePool(commandLineOptions.keystorePoolSize,
+        commandLineOptions.keystorePoolRefillPerMinute);
+    DexExecTask.setMaxDexCacheBytes(commandLineOptions.dexCacheSizeMb * 1024L * 1024L);
+    Compiler.configureBuildCache(commandLineOptions.buildCacheDir,
+        commandLineOptions.buildCacheSizeMb);
 
     int port = commandLineOptions.port;
     SelectorThread threadSelector = GrizzlyServerFactory.create("http://localhost:" + port + "/");
@@ -624,11 +966,16 @@ public class BuildServer {
       LOG.info("Maximum simultanous builds = unlimited!");
     } else {
       LOG.info("Maximum simultanous builds = " + commandLineOptions.maxSimultaneousBuilds);
+      LOG.info("Maximum queued builds = " + commandLineOptions.maxQueuedBuilds);
     }
+    LOG.info("Maximum simultanous Kawa compiles = " + Compiler.getKawaStage().getMaxConcurrent());
+    LOG.info("Maximum simultanous DX runs = " + Compiler.getDxStage().getMaxConcurrent());
     LOG.info("Visit: http://" + hostAddress + ":" + port +
       "/buildserver/health for server health");
     LOG.info("Visit: http://" + hostAddress + ":" + port +
       "/buildserver/vars for server values");
+    LOG.info("Visit: http://" + hostAddress + ":" + port +
+      "/buildserver/metrics for build metrics");
     LOG.info("Server running");
   }
 
@@ -16,6 +16,8 @@ import com.google.common.io.Resources;
 
 import com.android.sdklib.build.ApkBuilder;
 
+import org.apache.commons.io.FileUtils;
+
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
@@ -54,10 +56,23 @@ import javax.imageio.ImageIO;
  * @author lizlooney@google.com (Liz Looney)
  */
 public final class Compiler {
-  public static int currentProgress = 10;
+  // Kawa and DX processes can use a lot of memory, so we limit how many builds can run each of
+  // them at a time. The limits are per stage, so a build running DX doesn't hold up a build that
+  // wants to run Kawa. See configureStageLimits().
+  private static volatile StageLimiter kawaStage = new StageLimiter("Kawa", 1);
+  private static volatile StageLimiter dxStage = new StageLimiter("DX", 1);
+
+  // Resident Kawa compiler processes, or null to start a new Kawa process for every build.
+  // See configureKawaCompilerPool().
+  private static volatile KawaCompilerPool kawaCompilerPool = null;
 
-  // Kawa and DX processes can use a lot of memory. We only launch one Kawa or DX process at a time.
-  private static final Object SYNC_KAWA_OR_DX = new Object();
+  // Cache of the compiled and dexed classes of screens and of runtime.scm, or null to compile
+  // everything on every build. See configureBuildCache().
+  private static volatile BuildCache buildCache = null;
+
+  // Hashes of the runtime resources, which don't change while the server is running.
+  private static final ConcurrentMap<String, String> resourceHashes =
+      new ConcurrentHashMap<String, String>();
 
   // TODO(sharon): temporary until we add support for new activities
   private static final String LIST_ACTIVITY_CLASS =
@@ -154,6 +169,10 @@ public final class Compiler {
   private static final ConcurrentMap<String, File> resources =
       new ConcurrentHashMap<String, File>();
 
+  // The directory that resources are extracted to, under their resource paths. Each resource is
+  // extracted once per server run and shared by all builds. Guarded by Compiler.class.
+  private static File resourceDir = null;
+
   // TODO(user,lizlooney): i18n here and in lines below that call String.format(...)
   private static final String ERROR_IN_STAGE =
       "Error: Your build failed due to an error in the %s stage, " +
@@ -173,11 +192,15 @@ public final class Compiler {
   private final boolean isForCompanion;
   // Maximum ram that can be used by a child processes, in MB.
   private final int childProcessRamMb;
+  private final BuildProgress buildProgress;
   private Set<String> librariesNeeded; // Set of component libraries
   private Set<String> nativeLibrariesNeeded; // Set of component native libraries
   private Set<String> assetsNeeded; // Set of component assets
   private File libsDir; // The directory that will contain any native libraries for packaging
   private String dexCacheDir;
+  // The parts of the build that are kept in the build cache. The first one is the runtime, the
+  // others are the screens, in the order of project.getSources(). Empty if there is no cache.
+  private final List<CacheUnit> cacheUnits = Lists.newArrayList();
 
   /*
    * Generate the set of Android permissions needed by this project.
@@ -507,6 +530,7 @@ public final class Compiler {
    * @param userErrors stream to write user-visible error messages
    * @param keystoreFilePath
    * @param childProcessRam   maximum RAM for child processes, in MBs.
+   * @param buildProgress  the progress of the build, which the compiler updates
    * @return  {@code true} if the compilation succeeds, {@code false} otherwise
    * @throws JSONException
    * @throws IOException
@@ -514,12 +538,13 @@ public final class Compiler {
   public static boolean compile(Project project, Set<String> componentTypes,
                                 PrintStream out, PrintStream err, PrintStream userErrors,
                                 boolean isForCompanion, String keystoreFilePath,
-                                int childProcessRam, String dexCacheDir) throws IOException, JSONException {
+                                int childProcessRam, String dexCacheDir,
+                                BuildProgress buildProgress) throws IOException, JSONException {
     long start = System.currentTimeMillis();
 
     // Create a new compiler instance for the compilation
     Compiler compiler = new Compiler(project, componentTypes, out, err, userErrors, isForCompanion,
-                                     childProcessRam, dexCacheDir);
+                                     childProcessRam, dexCacheDir, buildProgress);
 
     // Get names of component-required libraries and assets.
     compiler.generateLibraryNames();
@@ -531,12 +556,14 @@ public final class Compiler {
 
     // Prepare application icon.
     out.println("________Preparing application icon");
+    long stageStart = System.currentTimeMillis();
     File resDir = createDirectory(buildDir, "res");
     File drawableDir = createDirectory(resDir, "drawable");
     if (!compiler.prepareApplicationIcon(new File(drawableDir, "ya.png"))) {
       return false;
     }
-    setProgress(10);
+    stageStart = recordStage("icon", stageStart);
+    compiler.setProgress(10, "manifest");
 
     // Create anim directory and animation xml files
     out.println("________Creating animation xml");
@@ -551,15 +578,17 @@ public final class Compiler {
     if (permissionsNeeded == null) {
       return false;
     }
-    setProgress(15);
+    compiler.setProgress(15, "manifest");
 
     // Generate AndroidManifest.xml
     out.println("________Generating manifest file");
     File manifestFile = new File(buildDir, "AndroidManifest.xml");
+    stageStart = System.currentTimeMillis();
     if (!compiler.writeAndroidManifest(manifestFile, permissionsNeeded)) {
       return false;
     }
-    setProgress(20);
+    recordStage("manifest", stageStart);
+    compiler.setProgress(20, "kawa");
 
     // Insert native libraries
     out.println("________Attaching native libraries");
@@ -573,13 +602,17 @@ public final class Compiler {
       return false;
     }
 
+    // Create a temp directory for this build. Child processes use it as their java.io.tmpdir so
+    // concurrent builds never share scratch files.
+    File tmpDir = createDirectory(buildDir, "tmp");
+
     // Create class files.
     out.println("________Compiling source files");
     File classesDir = createDirectory(buildDir, "classes");
-    if (!compiler.generateClasses(classesDir)) {
+    if (!compiler.generateClasses(classesDir, tmpDir)) {
       return false;
     }
-    setProgress(35);
+    compiler.setProgress(35, "dx");
 
     // Invoke dx on class files
     out.println("________Invoking DX");
@@ -598,22 +631,23 @@ public final class Compiler {
     // method of identifying via a hash of the path won't work when files
     // are copied into temporary storage) and processed via a hacked up version of
     // Android SDK's Dex Ant task
-    File tmpDir = createDirectory(buildDir, "tmp");
     String dexedClasses = tmpDir.getAbsolutePath() + File.separator + "classes.dex";
-    if (!compiler.runDx(classesDir, dexedClasses)) {
+    if (!compiler.runDx(classesDir, dexedClasses, tmpDir)) {
       return false;
     }
-    setProgress(85);
+    compiler.setProgress(85, "aapt");
 
     // Invoke aapt to package everything up
     out.println("________Invoking AAPT");
     File deployDir = createDirectory(buildDir, "deploy");
     String tmpPackageName = deployDir.getAbsolutePath() + File.separatorChar +
         project.getProjectName() + ".ap_";
+    stageStart = System.currentTimeMillis();
     if (!compiler.runAaptPackage(manifestFile, resDir, tmpPackageName)) {
       return false;
     }
-    setProgress(90);
+    stageStart = recordStage("aapt", stageStart);
+    compiler.setProgress(90, "apkbuilder");
 
     // Seal the apk with ApkBuilder
     out.println("________Invoking ApkBuilder");
@@ -622,21 +656,24 @@ public final class Compiler {
     if (!compiler.runApkBuilder(apkAbsolutePath, tmpPackageName, dexedClasses)) {
       return false;
     }
-    setProgress(95);
+    stageStart = recordStage("apkbuilder", stageStart);
+    compiler.setProgress(95, "jarsigner");
 
     // Sign the apk file
     out.println("________Signing the apk file");
     if (!compiler.runJarSigner(apkAbsolutePath, keystoreFilePath)) {
       return false;
     }
+    stageStart = recordStage("jarsigner", stageStart);
 
     // ZipAlign the apk file
     out.println("________ZipAligning the apk file");
     if (!compiler.runZipAlign(apkAbsolutePath, tmpDir)) {
       return false;
     }
+    recordStage("zipalign", stageStart);
 
-    setProgress(100);
+    compiler.setProgress(100, "compiled");
 
     out.println("Build finished in " +
         ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
@@ -644,6 +681,15 @@ public final class Compiler {
     return true;
   }
 
+  /*
+   * Records the time since stageStart as the duration of a stage, and returns the current time.
+   */
+  private static long recordStage(String stage, long stageStart) {
+    long now = System.currentTimeMillis();
+    BuildMetrics.recordStage(stage, now - stageStart);
+    return now;
+  }
+
   /*
    * Creates all the animation xml files.
    */
@@ -726,6 +772,13 @@ public final class Compiler {
   Compiler(Project project, Set<String> componentTypes, PrintStream out, PrintStream err,
            PrintStream userErrors, boolean isForCompanion,
            int childProcessMaxRam, String dexCacheDir) {
+    this(project, componentTypes, out, err, userErrors, isForCompanion, childProcessMaxRam,
+        dexCacheDir, new BuildProgress());
+  }
+
+  private Compiler(Project project, Set<String> componentTypes, PrintStream out, PrintStream err,
+           PrintStream userErrors, boolean isForCompanion,
+           int childProcessMaxRam, String dexCacheDir, BuildProgress buildProgress) {
     this.project = project;
     this.componentTypes = componentTypes;
     this.out = out;
@@ -734,13 +787,14 @@ public final class Compiler {
     this.isForCompanion = isForCompanion;
     this.childProcessRamMb = childProcessMaxRam;
     this.dexCacheDir = dexCacheDir;
+    this.buildProgress = buildProgress;
   }
 
   /*
    * Runs the Kawa compiler in a separate process to generate classes. Returns false if not able to
    * create a class file for every source file in the project.
    */
-  private boolean generateClasses(File classesDir) {
+  private boolean generateClasses(File classesDir, File tmpDir) {
     try {
       List<Project.SourceDescriptor> sources = project.getSources();
       List<String> sourceFileNames = Lists.newArrayListWithCapacity(sources.size());
@@ -802,35 +856,69 @@ public final class Compiler {
       System.out.println("Libraries Classpath = " + classpath);
 
       String yailRuntime = getResource(YAIL_RUNTIME);
+      String packagePrefix = Signatures.getPackageName(project.getMainClass()) + ".";
+
+      // With a build cache, restore the classes of the screens that haven't changed and compile
+      // only the others. compileFileNames is null if there is nothing to compile at all.
+      List<String> compileFileNames = sourceFileNames;
+      BuildCache cache = buildCache;
+      if (cache != null) {
+        compileFileNames = restoreCachedClasses(cache, sourceFileNames, classFileNames,
+            classesDir, tmpDir, packagePrefix);
+      }
       List<String> kawaCommandArgs = Lists.newArrayList();
       int mx = childProcessRamMb - 200;
       Collections.addAll(kawaCommandArgs,
           System.getProperty("java.home") + "/bin/java",
           "-mx" + mx + "M",
+          "-Djava.io.tmpdir=" + tmpDir.getAbsolutePath(),
           "-cp", classpath,
           "kawa.repl",
           "-f", yailRuntime,
           "-d", classesDir.getAbsolutePath(),
-          "-P", Signatures.getPackageName(project.getMainClass()) + ".",
+          "-P", packagePrefix,
           "-C");
       // TODO(lizlooney) - we are currently using (and have always used) absolute paths for the
       // source file names. The resulting .class files contain references to the source file names,
       // including the name of the tmp directory that contains them. We may be able to avoid that
       // by using source file names that are relative to the project root and using the project
       // root as the working directory for the Kawa compiler process.
-      kawaCommandArgs.addAll(sourceFileNames);
+      kawaCommandArgs.addAll(compileFileNames == null
+          ? Collections.<String>emptyList() : compileFileNames);
       kawaCommandArgs.add(yailRuntime);
       String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
 
-      long start = System.currentTimeMillis();
       // Capture Kawa compiler stderr. The ODE server parses out the warnings and errors and adds
       // them to the protocol buffer for logging purposes. (See
       // buildserver/ProjectBuilder.processCompilerOutout.
       ByteArrayOutputStream kawaOutputStream = new ByteArrayOutputStream();
       boolean kawaSuccess;
-      synchronized (SYNC_KAWA_OR_DX) {
-        kawaSuccess = Execution.execute(null, kawaCommandLine,
-            System.out, new PrintStream(kawaOutputStream));
+      long kawaWaitMillis = 0;
+      long start = System.currentTimeMillis();
+      if (compileFileNames == null) {
+        out.println("All classes were restored from the build cache");
+        kawaSuccess = true;
+      } else {
+        StageLimiter stage = kawaStage;
+        kawaWaitMillis = stage.acquire();
+        start = System.currentTimeMillis();
+        try {
+          KawaCompilerPool pool = kawaCompilerPool;
+          // The resident compilers need at least one file to compile. When only runtime.scm is
+          // needed, the one-shot Kawa process compiles it.
+          Boolean residentSuccess = (pool == null || compileFileNames.isEmpty()) ? null
+              : pool.compile(classpath, yailRuntime, mx, classesDir, packagePrefix,
+                  compileFileNames, System.out, new PrintStream(kawaOutputStream));
+          if (residentSuccess != null) {
+            kawaSuccess = residentSuccess;
+          } else {
+            kawaOutputStream.reset();
+            kawaSuccess = Execution.execute(null, kawaCommandLine,
+                System.out, new PrintStream(kawaOutputStream));
+          }
+        } finally {
+          stage.release();
+        }
       }
       if (!kawaSuccess) {
         LOG.log(Level.SEVERE, "Kawa compile has failed.");
@@ -838,9 +926,13 @@ public final class Compiler {
       String kawaOutput = kawaOutputStream.toString();
       out.print(kawaOutput);
       String kawaCompileTimeMessage = "Kawa compile time: " +
-          ((System.currentTimeMillis() - start) / 1000.0) + " seconds";
+          ((System.currentTimeMillis() - start) / 1000.0) + " seconds" +
+          " (waited " + (kawaWaitMillis / 1000.0) + " seconds to start)";
       out.println(kawaCompileTimeMessage);
       LOG.info(kawaCompileTimeMessage);
+      if (compileFileNames != null) {
+        BuildMetrics.recordStage("kawa", System.currentTimeMillis() - start);
+      }
 
       // Check that all of the class files were created.
       // If they weren't, return with an error.
@@ -854,6 +946,10 @@ public final class Compiler {
           return false;
         }
       }
+
+      if (cache != null) {
+        collectCompiledClasses(classesDir, classFileNames);
+      }
     } catch (IOException e) {
       e.printStackTrace();
       userErrors.print(String.format(ERROR_IN_STAGE, "compile"));
@@ -863,6 +959,92 @@ public final class Compiler {
     return true;
   }
 
+  /*
+   * Works out the build cache keys of the runtime and of each screen, and copies the classes of
+   * the ones that are in the cache into classesDir. Returns the source files that still need to
+   * be compiled, or null if runtime.scm doesn't need to be compiled either.
+   */
+  private List<String> restoreCachedClasses(BuildCache cache, List<String> sourceFileNames,
+      List<String> classFileNames, File classesDir, File tmpDir, String packagePrefix)
+      throws IOException {
+    // The compiled classes depend on runtime.scm, on the libraries they are compiled against,
+    // and on the tools used to compile and dex them.
+    List<String> runtimeInputs = Lists.newArrayList("runtime");
+    List<String> resourcePaths = Lists.newArrayList(YAIL_RUNTIME, KAWA_RUNTIME, ACRA_RUNTIME,
+        SIMPLE_ANDROID_RUNTIME_JAR, ANDROID_RUNTIME, DX_JAR);
+    for (String library : Sets.newTreeSet(librariesNeeded)) {
+      resourcePaths.add(RUNTIME_FILES_DIR + library);
+    }
+    for (String resourcePath : resourcePaths) {
+      runtimeInputs.add(resourcePath);
+      runtimeInputs.add(getResourceHash(resourcePath));
+    }
+    String runtimeKey = BuildCache.key(runtimeInputs.toArray(new String[runtimeInputs.size()]));
+    File cacheDir = createDirectory(tmpDir, "cache");
+    cacheUnits.add(restoreCacheUnit(cache, runtimeKey, new File(cacheDir, "runtime"),
+        null, classesDir));
+
+    String componentSet = Sets.newTreeSet(componentTypes).toString();
+    List<String> compileFileNames = Lists.newArrayList();
+    for (int i = 0; i < sourceFileNames.size(); i++) {
+      String sourceFileName = sourceFileNames.get(i);
+      String classFileName = classFileNames.get(i);
+      String screenKey = BuildCache.key("screen", runtimeKey, componentSet, packagePrefix,
+          classFileName.substring(classesDir.getAbsolutePath().length()),
+          BuildCache.hash(new File(sourceFileName)));
+      CacheUnit unit = restoreCacheUnit(cache, screenKey, new File(cacheDir, "screen" + i),
+          classFileName, classesDir);
+      cacheUnits.add(unit);
+      if (!unit.cached) {
+        compileFileNames.add(sourceFileName);
+      }
+    }
+    if (compileFileNames.isEmpty() && cacheUnits.get(0).cached) {
+      return null;
+    }
+    out.println("Compiling " + compileFileNames.size() + " of " + sourceFileNames.size()
+        + " screens, the others were restored from the build cache");
+    return compileFileNames;
+  }
+
+  private static CacheUnit restoreCacheUnit(BuildCache cache, String key, File unitDir,
+      String classFileName, File classesDir) throws IOException {
+    CacheUnit unit = new CacheUnit(key, unitDir, classFileName);
+    unit.cached = cache.restore(key, unitDir);
+    if (unit.cached) {
+      FileUtils.copyDirectory(unit.getClassesDir(), classesDir);
+    }
+    return unit;
+  }
+
+  /*
+   * Copies the classes compiled for each screen (and for runtime.scm) that wasn't in the build
+   * cache out of classesDir, so that they can be dexed and cached separately.
+   */
+  private void collectCompiledClasses(File classesDir, List<String> classFileNames)
+      throws IOException {
+    String classesPath = classesDir.getAbsolutePath();
+    for (File classFile : FileUtils.listFiles(classesDir, null, true)) {
+      // Kawa names the classes of a screen Screen1.class and Screen1$*.class. Everything that
+      // doesn't belong to a screen belongs to the runtime.
+      CacheUnit owner = cacheUnits.get(0);
+      for (CacheUnit unit : cacheUnits.subList(1, cacheUnits.size())) {
+        String screenClass = unit.classFileName.substring(0, unit.classFileName.length()
+            - ".class".length());
+        String path = classFile.getAbsolutePath();
+        if (path.equals(unit.classFileName) || path.startsWith(screenClass + "$")) {
+          owner = unit;
+          break;
+        }
+      }
+      if (!owner.cached) {
+        String relativePath = classFile.getAbsolutePath().substring(classesPath.length());
+        Files.createParentDirs(new File(owner.getClassesDir(), relativePath));
+        Files.copy(classFile, new File(owner.getClassesDir(), relativePath));
+      }
+    }
+  }
+
   private boolean runJarSigner(String apkAbsolutePath, String keystoreAbsolutePath) {
     // TODO(user): maybe make a command line flag for the jarsigner location
     String javaHome = System.getProperty("java.home");
@@ -988,9 +1170,18 @@ public final class Compiler {
     return true;
   }
 
-  private boolean runDx(File classesDir, String dexedClasses) {
+  private boolean runDx(File classesDir, String dexedClasses, File tmpDir) {
     List<File> inputList = new ArrayList<File>();
-    inputList.add(classesDir); //this is a directory, and won't be cached into the dex cache
+    if (cacheUnits.isEmpty()) {
+      inputList.add(classesDir); //this is a directory, and won't be cached into the dex cache
+    } else {
+      // Each screen and the runtime are dexed separately, so that their dexed classes can be
+      // cached. dx merges them with the libraries.
+      for (CacheUnit unit : cacheUnits) {
+        inputList.add(unit.getDexedClasses());
+      }
+    }
+    List<File> dexedInputs = Lists.newArrayList(inputList.subList(0, cacheUnits.size()));
     inputList.add(new File(getResource(SIMPLE_ANDROID_RUNTIME_JAR)));
     inputList.add(new File(getResource(KAWA_RUNTIME)));
     inputList.add(new File(getResource(ACRA_RUNTIME)));
@@ -1005,6 +1196,8 @@ public final class Compiler {
     dexTask.setExecutable(getResource(DX_JAR));
     dexTask.setOutput(dexedClasses);
     dexTask.setChildProcessRamMb(childProcessRamMb);
+    dexTask.setTmpDir(tmpDir);
+    dexTask.setDexedInputs(dexedInputs);
     if (dexCacheDir == null) {
       dexTask.setDisableDexMerger(true);
     } else {
@@ -1012,14 +1205,19 @@ public final class Compiler {
       dexTask.setDexedLibs(dexCacheDir);
     }
 
-    long startDx = System.currentTimeMillis();
     // Using System.err and System.out on purpose. Don't want to pollute build messages with
     // tools output
     boolean dxSuccess;
-    synchronized (SYNC_KAWA_OR_DX) {
-      setProgress(50);
-      dxSuccess = dexTask.execute(inputList);
-      setProgress(75);
+    StageLimiter stage = dxStage;
+    long dxWaitMillis = stage.acquire();
+    long startDx = System.currentTimeMillis();
+    try {
+      dxSuccess = dexCacheUnits(tmpDir);
+      setProgress(50, "dx");
+      dxSuccess = dxSuccess && dexTask.execute(inputList);
+      setProgress(75, "dx");
+    } finally {
+      stage.release();
     }
     if (!dxSuccess) {
       LOG.warning("YAIL compiler - DX execution failed.");
@@ -1028,13 +1226,40 @@ public final class Compiler {
       return false;
     }
     String dxTimeMessage = "DX time: " +
-        ((System.currentTimeMillis() - startDx) / 1000.0) + " seconds";
+        ((System.currentTimeMillis() - startDx) / 1000.0) + " seconds" +
+        " (waited " + (dxWaitMillis / 1000.0) + " seconds to start)";
     out.println(dxTimeMessage);
     LOG.info(dxTimeMessage);
+    BuildMetrics.recordStage("dx", System.currentTimeMillis() - startDx);
 
     return true;
   }
 
+  /*
+   * Dexes the classes of each screen (and of runtime.scm) that wasn't in the build cache, and
+   * adds them to the cache.
+   */
+  private boolean dexCacheUnits(File tmpDir) {
+    BuildCache cache = buildCache;
+    for (CacheUnit unit : cacheUnits) {
+      if (unit.cached) {
+        continue;
+      }
+      DexExecTask dexTask = new DexExecTask();
+      dexTask.setExecutable(getResource(DX_JAR));
+      dexTask.setOutput(unit.getDexedClasses().getAbsolutePath());
+      dexTask.setChildProcessRamMb(childProcessRamMb);
+      dexTask.setTmpDir(tmpDir);
+      dexTask.setDisableDexMerger(true);
+      createDirectory(unit.getClassesDir());
+      if (!dexTask.execute(Lists.newArrayList(unit.getClassesDir()))) {
+        return false;
+      }
+      cache.store(unit.key, unit.dir);
+    }
+    return true;
+  }
+
   private boolean runAaptPackage(File manifestFile, File resDir, String tmpPackageName) {
     // Need to make sure assets directory exists otherwise aapt will fail.
     createDirectory(project.getAssetsDirectory());
@@ -1136,33 +1361,56 @@ public final class Compiler {
    *
    * @param resourcePath the name of the resource
    */
-  static synchronized String getResource(String resourcePath) {
+  static String getResource(String resourcePath) {
+    File file = resources.get(resourcePath);
+    if (file == null) {
+      file = extractResource(resourcePath);
+    }
+    return file.getAbsolutePath();
+  }
+
+  /**
+   * Returns a hash of the contents of the given resource, so that cached
+   * build outputs can tell when the runtime they were built against changed.
+   * Caches the hashes, as the resources don't change while we run.
+   *
+   * @param resourcePath the name of the resource
+   */
+  private static String getResourceHash(String resourcePath) throws IOException {
+    String hash = resourceHashes.get(resourcePath);
+    if (hash == null) {
+      hash = BuildCache.hash(new File(getResource(resourcePath)));
+      resourceHashes.put(resourcePath, hash);
+    }
+    return hash;
+  }
+
+  /*
+   * Extracts a resource into resourceDir, unless another build already did.
+   */
+  private static synchronized File extractResource(String resourcePath) {
     try {
       File file = resources.get(resourcePath);
       if (file == null) {
-        String basename = PathUtil.basename(resourcePath);
-        String prefix;
-        String suffix;
-        int lastDot = basename.lastIndexOf(".");
-        if (lastDot != -1) {
-          prefix = basename.substring(0, lastDot);
-          suffix = basename.substring(lastDot);
-        } else {
-          prefix = basename;
-          suffix = "";
+        if (resourceDir == null) {
+          resourceDir = Files.createTempDir();
+          resourceDir.deleteOnExit();
         }
-        while (prefix.length() < 3) {
-          prefix = prefix + "_";
+        file = new File(resourceDir, resourcePath);
+        // Files are deleted on exit in the reverse order of the calls to deleteOnExit, so the
+        // directories are registered before the files in them.
+        for (File dir = file.getParentFile(); !dir.equals(resourceDir);
+             dir = dir.getParentFile()) {
+          dir.deleteOnExit();
         }
-        file = File.createTempFile(prefix, suffix);
-        file.setExecutable(true);
-        file.deleteOnExit();
         file.getParentFile().mkdirs();
         Files.copy(Resources.newInputStreamSupplier(Compiler.class.getResource(resourcePath)),
             file);
+        file.setExecutable(true);
+        file.deleteOnExit();
         resources.put(resourcePath, file);
       }
-      return file.getAbsolutePath();
+      return file;
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -1253,19 +1501,88 @@ public final class Compiler {
     return dir;
   }
 
-  private static int setProgress(int increments) {
-    Compiler.currentProgress = increments;
-    LOG.info("The current progress is "
-              + Compiler.currentProgress + "%");
-    return Compiler.currentProgress;
+  /**
+   * Sets how many builds may run the Kawa compiler and DX at the same time. A value of 0 picks a
+   * default based on the number of processors and the physical memory of the machine.
+   *
+   * @param maxKawa  maximum number of simultaneous Kawa compiles
+   * @param maxDx  maximum number of simultaneous DX runs
+   * @param childProcessRamMb  maximum RAM for child processes, in MBs.
+   */
+  static void configureStageLimits(int maxKawa, int maxDx, int childProcessRamMb) {
+    kawaStage = new StageLimiter("Kawa",
+        maxKawa > 0 ? maxKawa : StageLimiter.defaultLimit(childProcessRamMb));
+    dxStage = new StageLimiter("DX",
+        maxDx > 0 ? maxDx : StageLimiter.defaultLimit(childProcessRamMb));
   }
 
-  public static int getProgress() {
-    if (Compiler.currentProgress==100) {
-      Compiler.currentProgress = 10;
-      return 100;
-    } else {
-      return Compiler.currentProgress;
+  /**
+   * Sets how many resident Kawa compiler processes may be kept. A value of 0 disables them, so
+   * that every build starts a new Kawa process.
+   *
+   * @param maxWorkers  maximum number of resident Kawa compiler processes
+   */
+  static void configureKawaCompilerPool(int maxWorkers) {
+    kawaCompilerPool = (maxWorkers > 0) ? new KawaCompilerPool(maxWorkers) : null;
+  }
+
+  static KawaCompilerPool getKawaCompilerPool() {
+    return kawaCompilerPool;
+  }
+
+  /**
+   * Sets up the build cache, which keeps the compiled and dexed classes of screens that haven't
+   * changed since an earlier build.
+   *
+   * @param directory  the directory to keep the cache in, or null to disable the cache
+   * @param maxMb  the size the cache may use on disk, in MBs
+   */
+  static void configureBuildCache(String directory, int maxMb) {
+    buildCache = (directory == null) ? null
+        : new BuildCache(new File(directory), maxMb * 1024L * 1024L);
+  }
+
+  static BuildCache getBuildCache() {
+    return buildCache;
+  }
+
+  static StageLimiter getKawaStage() {
+    return kawaStage;
+  }
+
+  static StageLimiter getDxStage() {
+    return dxStage;
+  }
+
+  private void setProgress(int progress, String stage) {
+    buildProgress.setProgress(progress, stage);
+  }
+
+  /*
+   * A part of a build that is kept in the build cache: the classes compiled for one screen, or
+   * for runtime.scm, and the result of dexing them.
+   */
+  private static class CacheUnit {
+    private final String key;
+    // Holds the classes in a "classes" directory and the dexed classes in "classes.jar", which
+    // is also how they are stored in the cache.
+    private final File dir;
+    // The main class file of the screen, or null for the runtime.
+    private final String classFileName;
+    private boolean cached;
+
+    CacheUnit(String key, File dir, String classFileName) {
+      this.key = key;
+      this.dir = dir;
+      this.classFileName = classFileName;
+    }
+
+    File getClassesDir() {
+      return new File(dir, "classes");
+    }
+
+    File getDexedClasses() {
+      return new File(dir, "classes.jar");
     }
   }
 }
@@ -18,14 +18,23 @@ package com.google.appinventor.buildserver;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
@@ -44,9 +53,50 @@ public class DexExecTask  {
     private boolean mNoLocals = false;
     private int mChildProcessRamMb = 1024;
     private boolean mDisableDexMerger = false;
-    private static Map<String, String> alreadyChecked = new HashMap<String, String>();
-
-    private static Object semaphore = new Object(); // Used to protect dex cache creation
+    private File mTmpDir;
+    private Collection<File> mDexedInputs = Collections.emptySet();
+    private static final ConcurrentMap<String, String> alreadyChecked =
+        new ConcurrentHashMap<String, String>();
+
+    // Pre-dexed libraries are named dex-cached-<md5 of the library>.jar. While a library is
+    // being pre-dexed, it is written to a temporary file which is renamed when it is complete,
+    // so other builds never see a half-written jar. Next to each one is a file with the md5 of
+    // the pre-dexed jar, which is checked the first time we use the jar, so that a jar left
+    // corrupt by a crash or a full disk is dexed again instead of breaking every build.
+    private static final String DEX_CACHED_PREFIX = "dex-cached-";
+    private static final String DEX_CACHED_SUFFIX = ".jar";
+    private static final String CHECKSUM_SUFFIX = ".md5";
+    private static final String TMP_PREFIX = "tmp-";
+
+    // Pre-dexed libraries whose checksum we checked or wrote.
+    private static final Map<String, Boolean> verifiedEntries =
+        new ConcurrentHashMap<String, Boolean>();
+
+    // Directories from which the temporary files left by earlier processes were deleted.
+    // Guarded by itself.
+    private static final List<String> cleanedDirs = new ArrayList<String>();
+
+    // The size the pre-dexed libraries may use on disk. When they use more, the least recently
+    // used ones are deleted.
+    private static volatile long maxDexCacheBytes = Long.MAX_VALUE;
+
+    // One lock per pre-dexed library, so that builds only wait for each other when they need
+    // the same library pre-dexed.
+    private static final ConcurrentMap<String, Object> entryLocks =
+        new ConcurrentHashMap<String, Object>();
+
+    // Number of builds using each pre-dexed library. A library that is in use is not deleted.
+    // Guarded by itself.
+    private static final Map<String, Integer> entriesInUse = new HashMap<String, Integer>();
+
+    private static final AtomicInteger dexCacheHits = new AtomicInteger(0);
+    private static final AtomicInteger dexCacheMisses = new AtomicInteger(0);
+    private static final AtomicInteger dexCacheEvictions = new AtomicInteger(0);
+    private static final AtomicInteger dexCacheCorruptions = new AtomicInteger(0);
+    private static final AtomicLong dexCacheBytesWritten = new AtomicLong(0);
+    private static final AtomicLong dexCacheBytes = new AtomicLong(0);
+
+    private final List<String> mEntriesUsed = new ArrayList<String>();
 
 
     /**
@@ -93,6 +143,22 @@ public class DexExecTask  {
         mDisableDexMerger = disable;
     }
 
+    /**
+     * Sets the directory dx uses for its temporary files.
+     * @param tmpDir the directory, or null to use the default.
+     */
+    public void setTmpDir(File tmpDir) {
+        mTmpDir = tmpDir;
+    }
+
+    /**
+     * Sets inputs that already contain dexed classes, which don't need to be pre-dexed.
+     * @param dexedInputs the inputs.
+     */
+    public void setDexedInputs(Collection<File> dexedInputs) {
+        mDexedInputs = dexedInputs;
+    }
+
     private boolean preDexLibraries(List<File> inputs) {
         if (mDisableDexMerger || inputs.size() == 1) {
             // only one input, no need to put a pre-dexed version, even if this path is
@@ -100,45 +166,236 @@ public class DexExecTask  {
             return true;
         }
 
-        synchronized(semaphore) {
-
-            final int count = inputs.size();
-            boolean allSuccessful = true;
-            for (int i = 0 ; i < count; i++) {
-                File input = inputs.get(i);
-                if (input.isFile()) {
-                    // check if this libs needs to be pre-dexed
-                    String fileName = getDexFileName(input);
-                    File dexedLib = new File(mDexedLibs, fileName);
-                    String dexedLibPath = dexedLib.getAbsolutePath();
-
-                    if (dexedLib.isFile() == false/*||
-                                                    dexedLib.lastModified() < input.lastModified()*/) {
+        deleteStaleFiles(new File(mDexedLibs));
+        final int count = inputs.size();
+        boolean allSuccessful = true;
+        for (int i = 0 ; i < count; i++) {
+            File input = inputs.get(i);
+            if (input.isFile() && !mDexedInputs.contains(input)) {
+                // check if this libs needs to be pre-dexed
+                String fileName = getDexFileName(input);
+                File dexedLib = new File(mDexedLibs, fileName);
+                useEntry(fileName);
+
+                synchronized (getEntryLock(fileName)) {
+                    if (dexedLib.isFile() && !verifyDexedLib(dexedLib)) {
+                        System.out.println(
+                            String.format("Discarding corrupt Pre-Dexed %1$s", fileName));
+                        dexCacheCorruptions.incrementAndGet();
+                        deleteDexedLib(dexedLib);
+                    }
+                    if (dexedLib.isFile() == false) {
 
                         System.out.println(
                             String.format("Pre-Dexing %1$s -> %2$s",
                               input.getAbsolutePath(), fileName));
-
-                        if (dexedLib.isFile()) {
-                            dexedLib.delete();
+                        dexCacheMisses.incrementAndGet();
+
+                        File tmpLib = new File(mDexedLibs, TMP_PREFIX + UUID.randomUUID() + "-"
+                            + fileName);
+                        boolean dexSuccess = runDx(input, tmpLib.getAbsolutePath(),
+                            false /*showInput*/);
+                        if (dexSuccess) {
+                            long length = tmpLib.length();
+                            // The checksum goes in place first, so that a crash in between
+                            // leaves no jar without one.
+                            dexSuccess = writeChecksum(tmpLib, dexedLib)
+                                && tmpLib.renameTo(dexedLib);
+                            if (dexSuccess) {
+                                verifiedEntries.put(fileName, Boolean.TRUE);
+                                dexCacheBytesWritten.addAndGet(length);
+                            }
+                        }
+                        if (!dexSuccess) {
+                            tmpLib.delete();
                         }
-
-                        boolean dexSuccess = runDx(input, dexedLibPath, false /*showInput*/);
                         allSuccessful = allSuccessful && dexSuccess;
                     } else {
                         System.out.println(
                             String.format("Using Pre-Dexed %1$s <- %2$s",
                               fileName, input.getAbsolutePath()));
+                        dexCacheHits.incrementAndGet();
+                        // The modification time records when the library was last used.
+                        dexedLib.setLastModified(System.currentTimeMillis());
                     }
+                }
 
-                    // replace the input with the pre-dex libs.
-                    inputs.set(i, dexedLib);
+                // replace the input with the pre-dex libs.
+                inputs.set(i, dexedLib);
+            }
+        }
+        evictDexedLibs();
+        return allSuccessful;
+    }
+
+    /*
+     * Returns whether the pre-dexed library has the checksum written next to it when it was
+     * made. Each library is only checked once, as it doesn't change after that.
+     */
+    static boolean verifyDexedLib(File dexedLib) {
+        String fileName = dexedLib.getName();
+        if (verifiedEntries.containsKey(fileName)) {
+            return true;
+        }
+        try {
+            File checksumFile = new File(dexedLib.getParentFile(), fileName + CHECKSUM_SUFFIX);
+            if (!checksumFile.isFile()) {
+                return false;
+            }
+            String expected = new String(Files.readAllBytes(checksumFile.toPath()),
+                StandardCharsets.US_ASCII).trim();
+            if (!expected.equals(checksum(dexedLib))) {
+                return false;
+            }
+            verifiedEntries.put(fileName, Boolean.TRUE);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /*
+     * Writes the checksum of a newly pre-dexed library, at tmpLib, to the file next to where
+     * it will be moved, dexedLib.
+     */
+    static boolean writeChecksum(File tmpLib, File dexedLib) {
+        File dir = dexedLib.getParentFile();
+        File tmpChecksum = new File(dir, TMP_PREFIX + UUID.randomUUID() + CHECKSUM_SUFFIX);
+        try {
+            Files.write(tmpChecksum.toPath(), checksum(tmpLib).getBytes(StandardCharsets.US_ASCII));
+            File checksumFile = new File(dir, dexedLib.getName() + CHECKSUM_SUFFIX);
+            checksumFile.delete();
+            if (tmpChecksum.renameTo(checksumFile)) {
+                return true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        tmpChecksum.delete();
+        return false;
+    }
+
+    private static String checksum(File file) throws IOException {
+        return Hashing.md5().hashBytes(Files.readAllBytes(file.toPath())).toString();
+    }
+
+    /*
+     * Deletes a pre-dexed library and its checksum.
+     */
+    private static boolean deleteDexedLib(File dexedLib) {
+        verifiedEntries.remove(dexedLib.getName());
+        new File(dexedLib.getParentFile(), dexedLib.getName() + CHECKSUM_SUFFIX).delete();
+        return dexedLib.delete();
+    }
+
+    /*
+     * The first time a directory is used, deletes the temporary files that earlier processes
+     * left in it when they crashed, and the checksums of libraries that are gone.
+     */
+    static void deleteStaleFiles(File dir) {
+        synchronized (cleanedDirs) {
+            if (cleanedDirs.contains(dir.getAbsolutePath())) {
+                return;
+            }
+            cleanedDirs.add(dir.getAbsolutePath());
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return;
+            }
+            long startTime = ManagementFactory.getRuntimeMXBean().getStartTime();
+            for (File file : files) {
+                String fileName = file.getName();
+                if (fileName.startsWith(TMP_PREFIX)) {
+                    if (file.lastModified() < startTime) {
+                        file.delete();
+                    }
+                } else if (fileName.endsWith(CHECKSUM_SUFFIX)) {
+                    String libName =
+                        fileName.substring(0, fileName.length() - CHECKSUM_SUFFIX.length());
+                    if (!new File(dir, libName).exists()) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    private static Object getEntryLock(String fileName) {
+        Object lock = entryLocks.get(fileName);
+        if (lock == null) {
+            entryLocks.putIfAbsent(fileName, new Object());
+            lock = entryLocks.get(fileName);
+        }
+        return lock;
+    }
+
+    private void useEntry(String fileName) {
+        synchronized (entriesInUse) {
+            Integer users = entriesInUse.get(fileName);
+            entriesInUse.put(fileName, (users == null) ? 1 : users + 1);
+        }
+        mEntriesUsed.add(fileName);
+    }
+
+    private void releaseEntries() {
+        synchronized (entriesInUse) {
+            for (String fileName : mEntriesUsed) {
+                Integer users = entriesInUse.get(fileName);
+                if (users == null || users <= 1) {
+                    entriesInUse.remove(fileName);
+                } else {
+                    entriesInUse.put(fileName, users - 1);
+                }
+            }
+        }
+        mEntriesUsed.clear();
+    }
+
+    /*
+     * Deletes the least recently used pre-dexed libraries that no build is using, until the
+     * cache fits in maxDexCacheBytes.
+     */
+    private void evictDexedLibs() {
+        File[] files = new File(mDexedLibs).listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return (difference < 0) ? -1 : (difference > 0) ? 1 : 0;
+            }
+        });
+        synchronized (entriesInUse) {
+            long total = 0;
+            for (File file : files) {
+                if (isDexedLib(file.getName())) {
+                    total += file.length();
+                }
+            }
+            for (File file : files) {
+                if (total <= maxDexCacheBytes) {
+                    break;
+                }
+                String fileName = file.getName();
+                if (isDexedLib(fileName) && !entriesInUse.containsKey(fileName)) {
+                    long length = file.length();
+                    if (deleteDexedLib(file)) {
+                        total -= length;
+                        dexCacheEvictions.incrementAndGet();
+                    }
                 }
             }
-            return allSuccessful;
+            dexCacheBytes.set(total);
         }
     }
 
+    private static boolean isDexedLib(String fileName) {
+        return fileName.startsWith(DEX_CACHED_PREFIX) && fileName.endsWith(DEX_CACHED_SUFFIX);
+    }
+
     private String getDexFileName(File inputFile) {
         // get the filename
         String name = inputFile.getName();
@@ -150,7 +407,7 @@ public class DexExecTask  {
 
         String hashed = getHashFor(inputFile);
 
-        return "dex-cached-" + hashed + ".jar";
+        return DEX_CACHED_PREFIX + hashed + DEX_CACHED_SUFFIX;
     }
 
     private String getHashFor(File inputFile) {
@@ -170,14 +427,19 @@ public class DexExecTask  {
     }
 
     public boolean execute(List<File> paths) {
-        // pre dex libraries if needed
-        boolean successPredex = preDexLibraries(paths);
-        if (!successPredex) return false;
+        try {
+            // pre dex libraries if needed
+            boolean successPredex = preDexLibraries(paths);
+            if (!successPredex) return false;
 
-        System.out.println(String.format(
-                "Converting compiled files and external libraries into %1$s...", mOutput));
+            System.out.println(String.format(
+                    "Converting compiled files and external libraries into %1$s...", mOutput));
 
-        return runDx(paths, mOutput, mVerbose /*showInputs*/);
+            return runDx(paths, mOutput, mVerbose /*showInputs*/);
+        } finally {
+            // The pre-dexed libraries may be deleted once dx is done with them.
+            releaseEntries();
+        }
     }
 
     private boolean runDx(File input, String output, boolean showInputs) {
@@ -190,6 +452,9 @@ public class DexExecTask  {
         List<String> commandLineList = new ArrayList<String>();
         commandLineList.add(System.getProperty("java.home") + "/bin/java");
         commandLineList.add("-mx" + mx + "M");
+        if (mTmpDir != null) {
+            commandLineList.add("-Djava.io.tmpdir=" + mTmpDir.getAbsolutePath());
+        }
         commandLineList.add("-jar");
         commandLineList.add(mExecutable);
 
@@ -223,6 +488,45 @@ public class DexExecTask  {
 
     }
 
+    /**
+     * Sets the size the pre-dexed libraries may use on disk.
+     * @param maxBytes the size, in bytes.
+     */
+    public static void setMaxDexCacheBytes(long maxBytes) {
+        maxDexCacheBytes = maxBytes;
+    }
+
+    public static long getMaxDexCacheBytes() {
+        return maxDexCacheBytes;
+    }
+
+    public static int getDexCacheHits() {
+        return dexCacheHits.get();
+    }
+
+    public static int getDexCacheMisses() {
+        return dexCacheMisses.get();
+    }
+
+    public static int getDexCacheEvictions() {
+        return dexCacheEvictions.get();
+    }
+
+    public static int getDexCacheCorruptions() {
+        return dexCacheCorruptions.get();
+    }
+
+    public static long getDexCacheBytesWritten() {
+        return dexCacheBytesWritten.get();
+    }
+
+    /**
+     * Returns the size of the pre-dexed libraries on disk, as of the last build that used them.
+     */
+    public static long getDexCacheBytes() {
+        return dexCacheBytes.get();
+    }
+
     protected String getExecTaskName() {
         return "dx";
     }
@@ -6,8 +6,10 @@
 
 package com.google.appinventor.buildserver;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -16,6 +18,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.lang.reflect.Field;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -90,6 +93,126 @@ public final class Execution {
   private Execution() {
   }
 
+  /*
+   * Waits for a process to finish and returns its exit code. On Linux, the peak resident memory
+   * of the process is sampled while it runs and recorded in BuildMetrics.
+   */
+  private static int waitFor(Process process, String[] command) throws InterruptedException {
+    File status = getProcStatusFile(process);
+    if (status == null) {
+      return process.waitFor();
+    }
+    PeakRssSampler sampler = new PeakRssSampler(status);
+    try {
+      return process.waitFor();
+    } finally {
+      long peakRss = sampler.finish();
+      if (peakRss > 0) {
+        BuildMetrics.recordChildPeakRss(getCommandName(command), peakRss);
+      }
+    }
+  }
+
+  /*
+   * Returns /proc/<pid>/status for the process, or null if it isn't available.
+   */
+  private static File getProcStatusFile(Process process) {
+    if (!new File("/proc/self/status").exists()) {
+      return null;
+    }
+    Object pid = null;
+    try {
+      // Process.pid() exists since Java 9. Before that, the Unix implementation has a pid field.
+      pid = Process.class.getMethod("pid").invoke(process);
+    } catch (Exception e) {
+      try {
+        Field field = process.getClass().getDeclaredField("pid");
+        field.setAccessible(true);
+        pid = field.get(process);
+      } catch (Exception e2) {
+        return null;
+      }
+    }
+    return new File("/proc/" + pid + "/status");
+  }
+
+  /*
+   * Returns a short name for a command: the name of the program, or for java the name of the jar
+   * or main class it runs.
+   */
+  private static String getCommandName(String[] command) {
+    String name = new File(command[0]).getName();
+    if (!name.equals("java")) {
+      return name;
+    }
+    for (int i = 1; i < command.length; i++) {
+      if (command[i].equals("-jar") && i + 1 < command.length) {
+        return name + " " + new File(command[i + 1]).getName();
+      } else if (command[i].equals("-cp") || command[i].equals("-classpath")) {
+        i++;
+      } else if (!command[i].startsWith("-")) {
+        return name + " " + command[i];
+      }
+    }
+    return name;
+  }
+
+  /*
+   * Reads the peak resident memory (VmHWM) of a process every SAMPLE_INTERVAL_MS, until it is
+   * finished.
+   */
+  private static class PeakRssSampler extends Thread {
+    private static final long SAMPLE_INTERVAL_MS = 250;
+
+    private final File status;
+    private volatile long peakRss = 0;
+
+    PeakRssSampler(File status) {
+      this.status = status;
+      setDaemon(true);
+      start();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!isInterrupted()) {
+          sample();
+          Thread.sleep(SAMPLE_INTERVAL_MS);
+        }
+      } catch (InterruptedException e) {
+        // The process is finished.
+      }
+    }
+
+    private void sample() {
+      try {
+        for (String line : Files.readLines(status, Charsets.US_ASCII)) {
+          if (line.startsWith("VmHWM:")) {
+            // For example "VmHWM:    123456 kB"
+            String[] fields = line.trim().split("\\s+");
+            peakRss = Math.max(peakRss, Long.parseLong(fields[1]) * 1024);
+            return;
+          }
+        }
+      } catch (IOException e) {
+        // The process is gone.
+      } catch (RuntimeException e) {
+        // Unexpected format.
+      }
+    }
+
+    long finish() {
+      interrupt();
+      try {
+        join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return peakRss;
+    }
+  }
+
   /**
    * Executes a command in a command shell.
    *
@@ -111,7 +234,7 @@ public final class Execution {
       Process process = Runtime.getRuntime().exec(command, null, workingDir);
       new RedirectStreamHandler(new PrintWriter(out, true), process.getInputStream());
       new RedirectStreamHandler(new PrintWriter(err, true), process.getErrorStream());
-      return process.waitFor() == 0;
+      return waitFor(process, command) == 0;
     } catch (Exception e) {
       LOG.log(Level.WARNING, "____Execution failure: ", e);
       return false;
@@ -135,7 +258,7 @@ public final class Execution {
     Thread outThread = new RedirectStreamToStringBuffer(out, process.getInputStream());
     Thread errThread = new RedirectStreamToStringBuffer(err, process.getErrorStream());
     try {
-      process.waitFor();
+      waitFor(process, command);
       outThread.join();
       errThread.join();
     } catch (InterruptedException e) {
@@ -0,0 +1,255 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of resident Kawa compiler processes.
+ *
+ * <p>Starting a JVM and loading and compiling runtime.scm takes several seconds, and used to
+ * happen on every build. A resident worker (see {@link KawaCompilerWorker}) does that once and
+ * then compiles only the .yail files of each build it is given. The classes it compiled from
+ * runtime.scm are copied into the build's classes directory.</p>
+ *
+ * <p>Workers are tied to the classpath they were started with, since the component libraries on
+ * the classpath vary from build to build. If no worker can be used, {@link #compile} returns null
+ * and the caller should fall back to running Kawa as a one-shot process.</p>
+ */
+final class KawaCompilerPool {
+  // A worker is replaced after this many builds, to bound the growth of Kawa's global state.
+  private static final int MAX_COMPILES_PER_WORKER = 100;
+
+  // How long to wait for a worker to start up or to compile one build.
+  private static final long STARTUP_TIMEOUT_MS = 5 * 60 * 1000;
+  private static final long COMPILE_TIMEOUT_MS = 10 * 60 * 1000;
+
+  // The maximum number of resident workers.
+  private final int maxWorkers;
+
+  // Guarded by this.
+  private final LinkedList<Worker> idleWorkers = new LinkedList<Worker>();
+  private int workerCount = 0;
+
+  // Set if a worker ever fails to start. Starting workers would most likely keep failing, and
+  // every build would pay for the attempt, so the pool stops being used.
+  private volatile boolean disabled = false;
+
+  private final AtomicInteger startedWorkers = new AtomicInteger(0);
+  private final AtomicInteger residentCompiles = new AtomicInteger(0);
+  private final AtomicInteger fallbackCompiles = new AtomicInteger(0);
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KawaCompilerPool.class.getName());
+
+  /**
+   * Creates a KawaCompilerPool.
+   *
+   * @param maxWorkers  the maximum number of resident compiler processes
+   */
+  KawaCompilerPool(int maxWorkers) {
+    this.maxWorkers = maxWorkers;
+  }
+
+  /**
+   * Compiles the given .yail files into classesDir with a resident worker, and copies the
+   * compiled runtime classes into classesDir as well.
+   *
+   * @param classpath  the classpath for the Kawa compiler
+   * @param yailRuntime  the path of runtime.scm
+   * @param childProcessMx  the maximum heap of a worker, in MBs
+   * @param classesDir  the directory to put the class files in
+   * @param packagePrefix  the package prefix for the compiled classes
+   * @param sourceFileNames  the .yail files to compile
+   * @param out  stream for the compiler's standard output
+   * @param err  stream for the compiler's error messages
+   * @return whether the compile succeeded, or null if no resident worker could be used
+   */
+  Boolean compile(String classpath, String yailRuntime, int childProcessMx, File classesDir,
+      String packagePrefix, List<String> sourceFileNames, PrintStream out, PrintStream err) {
+    Worker worker = checkOut(classpath, yailRuntime, childProcessMx);
+    if (worker == null) {
+      fallbackCompiles.incrementAndGet();
+      return null;
+    }
+    boolean reusable = false;
+    try {
+      List<String> kawaArgs = Lists.newArrayList(
+          "-d", classesDir.getAbsolutePath(),
+          "-P", packagePrefix,
+          "-C");
+      kawaArgs.addAll(sourceFileNames);
+      Integer status = worker.run(Joiner.on('\t').join(kawaArgs), out, err, COMPILE_TIMEOUT_MS);
+      if (status == null) {
+        // The worker died or hung. Its output for this build is incomplete, so let the caller
+        // compile the build the old way.
+        fallbackCompiles.incrementAndGet();
+        return null;
+      }
+      reusable = true;
+      residentCompiles.incrementAndGet();
+      boolean success = (status == ResidentProcess.STATUS_OK);
+      if (success) {
+        FileUtils.copyDirectory(worker.runtimeClassesDir, classesDir);
+      }
+      return success;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to copy runtime classes", e);
+      return false;
+    } finally {
+      checkIn(worker, reusable);
+    }
+  }
+
+  private Worker checkOut(String classpath, String yailRuntime, int childProcessMx) {
+    if (disabled) {
+      return null;
+    }
+    synchronized (this) {
+      for (Iterator<Worker> iterator = idleWorkers.iterator(); iterator.hasNext(); ) {
+        Worker worker = iterator.next();
+        if (worker.classpath.equals(classpath) && worker.mx == childProcessMx) {
+          iterator.remove();
+          return worker;
+        }
+      }
+      if (workerCount >= maxWorkers) {
+        // Make room by stopping an idle worker that was started with a different classpath.
+        if (idleWorkers.isEmpty()) {
+          return null;
+        }
+        idleWorkers.removeFirst().destroy();
+        workerCount--;
+      }
+      workerCount++;
+    }
+    Worker worker = Worker.start(classpath, yailRuntime, childProcessMx);
+    if (worker == null) {
+      LOG.severe("Resident Kawa compilers are disabled because a worker failed to start");
+      disabled = true;
+      synchronized (this) {
+        workerCount--;
+      }
+    } else {
+      startedWorkers.incrementAndGet();
+    }
+    return worker;
+  }
+
+  private void checkIn(Worker worker, boolean reusable) {
+    if (reusable && ++worker.compileCount < MAX_COMPILES_PER_WORKER) {
+      synchronized (this) {
+        idleWorkers.addLast(worker);
+      }
+    } else {
+      worker.destroy();
+      synchronized (this) {
+        workerCount--;
+      }
+    }
+  }
+
+  boolean isDisabled() {
+    return disabled;
+  }
+
+  int getMaxWorkers() {
+    return maxWorkers;
+  }
+
+  synchronized int getWorkerCount() {
+    return workerCount;
+  }
+
+  synchronized int getIdleWorkerCount() {
+    return idleWorkers.size();
+  }
+
+  int getStartedWorkers() {
+    return startedWorkers.get();
+  }
+
+  int getResidentCompiles() {
+    return residentCompiles.get();
+  }
+
+  int getFallbackCompiles() {
+    return fallbackCompiles.get();
+  }
+
+  /*
+   * A resident compiler process.
+   */
+  private static class Worker {
+    private final String classpath;
+    private final int mx;
+    private final ResidentProcess process;
+    private final File runtimeClassesDir;
+    private int compileCount = 0;
+
+    private Worker(String classpath, int mx, ResidentProcess process, File runtimeClassesDir) {
+      this.classpath = classpath;
+      this.mx = mx;
+      this.process = process;
+      this.runtimeClassesDir = runtimeClassesDir;
+    }
+
+    static Worker start(String classpath, String yailRuntime, int mx) {
+      File runtimeClassesDir = Files.createTempDir();
+      String workerClasspath = classpath + File.pathSeparator
+          + runtimeClassesDir.getAbsolutePath() + File.pathSeparator
+          + ResidentProcess.getBuildServerClasspathEntry();
+      String[] command = {
+          System.getProperty("java.home") + "/bin/java",
+          "-mx" + mx + "M",
+          "-cp", workerClasspath,
+          KawaCompilerWorker.class.getName(),
+          yailRuntime,
+          runtimeClassesDir.getAbsolutePath()
+      };
+      // The worker reports that it is ready when it has loaded and compiled runtime.scm.
+      ResidentProcess process =
+          ResidentProcess.start("Kawa compiler", command, STARTUP_TIMEOUT_MS);
+      if (process == null) {
+        deleteQuietly(runtimeClassesDir);
+        return null;
+      }
+      return new Worker(classpath, mx, process, runtimeClassesDir);
+    }
+
+    Integer run(String request, PrintStream out, PrintStream err, long timeoutMs) {
+      return process.run(request, out, err, timeoutMs);
+    }
+
+    void destroy() {
+      process.destroy();
+      deleteQuietly(runtimeClassesDir);
+    }
+
+    private static void deleteQuietly(File dir) {
+      try {
+        FileUtils.deleteDirectory(dir);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to delete " + dir, e);
+      }
+    }
+  }
+}
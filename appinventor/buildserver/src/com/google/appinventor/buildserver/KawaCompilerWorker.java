@@ -0,0 +1,173 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.security.Permission;
+
+/**
+ * Main class of a resident Kawa compiler process, started by {@link KawaCompilerPool}.
+ *
+ * <p>The worker loads runtime.scm and compiles it once, when it starts, and then compiles
+ * the .yail files of one build per request read from standard input. Each request is a single
+ * line of tab separated Kawa command line arguments. Requests and their results follow the
+ * protocol described in {@link ResidentProcess}.</p>
+ *
+ * <p>This class runs with the Kawa classpath, not the build server classpath, so it only uses
+ * classes from the JDK and reaches Kawa through reflection.</p>
+ */
+public final class KawaCompilerWorker {
+  // Set while a request is running. Kawa calls System.exit when a compile fails, which we turn
+  // into an exception so the worker survives.
+  private static volatile boolean trapExit = false;
+
+  // Set once an exit has been trapped during the current request. Kawa reports the trapped exit
+  // as an internal error, which the user should not see, so standard error is muted until the
+  // request is done.
+  private static volatile boolean exitTrapped = false;
+
+  private KawaCompilerWorker() {
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args  the path of runtime.scm and the directory to compile it to
+   */
+  public static void main(String[] args) throws Exception {
+    String yailRuntime = args[0];
+    String runtimeClassesDir = args[1];
+    final PrintStream stderr = System.err;
+    System.setErr(new PrintStream(new OutputStream() {
+      @Override
+      public void write(int b) {
+        if (!exitTrapped) {
+          stderr.write(b);
+        }
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        if (!exitTrapped) {
+          stderr.write(b, off, len);
+        }
+      }
+
+      @Override
+      public void flush() {
+        stderr.flush();
+      }
+    }, true));
+    installExitTrap();
+
+    Method processArgs = Class.forName("kawa.repl")
+        .getMethod("processArgs", String[].class, int.class, int.class);
+
+    boolean ready = run(processArgs, new String[] { "-f", yailRuntime })
+        && run(processArgs, new String[] { "-d", runtimeClassesDir, "-C", yailRuntime });
+    finish(ready);
+    if (!ready) {
+      System.exit(1);
+    }
+
+    BufferedReader in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+    String line;
+    while ((line = in.readLine()) != null) {
+      if (line.isEmpty()) {
+        continue;
+      }
+      // Forget the modules compiled for the previous build so that a build of the same project
+      // doesn't see stale module information. runtime.scm stays loaded.
+      clearModules();
+      finish(run(processArgs, line.split("\t")));
+    }
+    System.exit(0);
+  }
+
+  private static boolean run(Method processArgs, String[] kawaArgs) {
+    trapExit = true;
+    try {
+      processArgs.invoke(null, kawaArgs, 0, kawaArgs.length);
+      return true;
+    } catch (InvocationTargetException e) {
+      if (!(e.getCause() instanceof ExitTrappedException)) {
+        e.getCause().printStackTrace();
+      }
+      return false;
+    } catch (Exception e) {
+      e.printStackTrace();
+      return false;
+    } finally {
+      trapExit = false;
+      System.err.flush();
+      exitTrapped = false;
+    }
+  }
+
+  private static void finish(boolean success) {
+    flushKawaPort("outDefault");
+    flushKawaPort("errDefault");
+    System.out.flush();
+    System.err.println(ResidentProcess.DONE);
+    System.err.flush();
+    System.out.println(ResidentProcess.DONE + " "
+        + (success ? ResidentProcess.STATUS_OK : ResidentProcess.STATUS_FAILED));
+    System.out.flush();
+  }
+
+  private static void clearModules() {
+    try {
+      Object moduleManager = Class.forName("gnu.expr.ModuleManager")
+          .getMethod("getInstance").invoke(null);
+      moduleManager.getClass().getMethod("clear").invoke(moduleManager);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  private static void flushKawaPort(String name) {
+    try {
+      Object port = Class.forName("gnu.mapping.OutPort").getMethod(name).invoke(null);
+      port.getClass().getMethod("flush").invoke(port);
+    } catch (Exception e) {
+      // Nothing to flush.
+    }
+  }
+
+  private static void installExitTrap() {
+    try {
+      System.setSecurityManager(new SecurityManager() {
+        @Override
+        public void checkPermission(Permission permission) {
+        }
+
+        @Override
+        public void checkPermission(Permission permission, Object context) {
+        }
+
+        @Override
+        public void checkExit(int status) {
+          if (trapExit) {
+            exitTrapped = true;
+            throw new ExitTrappedException();
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      // Without the trap, a failed compile ends the worker and the pool starts a new one.
+      e.printStackTrace();
+    }
+  }
+
+  private static class ExitTrappedException extends SecurityException {
+  }
+}
@@ -0,0 +1,218 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.X500NameBuilder;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the keystores of projects that don't have one yet, in process.
+ *
+ * <p>Generating the RSA key pair is what takes the time, so a background thread generates key
+ * pairs ahead of time, at a limited rate, and keeps them in a bounded pool. A keystore is made
+ * from a pooled key pair and a certificate for the requester, which is quick. When the pool is
+ * empty the key pair is generated by the build that needs it.</p>
+ *
+ * <p>The keystores are the same as those made by
+ * {@code keytool -genkey -keyalg RSA -validity 10000}: a 2048 bit RSA key with alias
+ * "AndroidKey" and a self-signed certificate, protected by the password "android".</p>
+ */
+final class KeyStorePool {
+  static final String KEY_ALIAS = "AndroidKey";
+  static final String PASSWORD = "android";
+
+  private static final String KEY_ALGORITHM = "RSA";
+  private static final int KEY_SIZE = 2048;
+  private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+
+  // Note: must expire after October 22, 2033, to be in the Android marketplace. Android docs
+  // recommend 10000 as the number of days.
+  private static final long VALIDITY_MS = 10000L * 24 * 60 * 60 * 1000;
+
+  private static final SecureRandom random = new SecureRandom();
+
+  private final BlockingQueue<KeyPair> keyPairs;
+  private final int refillPerMinute;
+
+  private final AtomicInteger hits = new AtomicInteger(0);
+  private final AtomicInteger misses = new AtomicInteger(0);
+  private final AtomicInteger generated = new AtomicInteger(0);
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KeyStorePool.class.getName());
+
+  /**
+   * Creates a KeyStorePool and starts filling it.
+   *
+   * @param size  the maximum number of key pairs kept ready
+   * @param refillPerMinute  the maximum number of key pairs generated per minute, 0 means as
+   *                         fast as one thread can
+   */
+  KeyStorePool(int size, int refillPerMinute) {
+    this.keyPairs = new ArrayBlockingQueue<KeyPair>(size);
+    this.refillPerMinute = refillPerMinute;
+
+    Thread refiller = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        refill();
+      }
+    }, "KeyStorePool");
+    refiller.setDaemon(true);
+    refiller.setPriority(Thread.MIN_PRIORITY);
+    refiller.start();
+  }
+
+  private void refill() {
+    long intervalMs = (refillPerMinute > 0) ? 60000L / refillPerMinute : 0;
+    try {
+      while (true) {
+        long start = System.currentTimeMillis();
+        KeyPair keyPair;
+        try {
+          keyPair = generateKeyPair();
+        } catch (GeneralSecurityException e) {
+          LOG.log(Level.SEVERE, "Unable to generate key pairs for the keystore pool", e);
+          return;
+        }
+        // Waits while the pool is full.
+        keyPairs.put(keyPair);
+        generated.incrementAndGet();
+        long remaining = intervalMs - (System.currentTimeMillis() - start);
+        if (remaining > 0) {
+          Thread.sleep(remaining);
+        }
+      }
+    } catch (InterruptedException e) {
+      // Stop refilling.
+    }
+  }
+
+  /**
+   * Writes a new keystore for the given user, using a pooled key pair when there is one.
+   *
+   * @param userName  the user the keystore is for, which becomes the common name of the
+   *                  certificate
+   * @param keyStoreFile  the file to write the keystore to
+   */
+  void createKeyStore(String userName, File keyStoreFile)
+      throws IOException, GeneralSecurityException {
+    KeyPair keyPair = keyPairs.poll();
+    if (keyPair != null) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+      keyPair = generateKeyPair();
+    }
+    writeKeyStore(keyPair, userName, keyStoreFile);
+  }
+
+  /**
+   * Writes a new keystore for the given user, generating its key pair.
+   *
+   * @param userName  the user the keystore is for, which becomes the common name of the
+   *                  certificate
+   * @param keyStoreFile  the file to write the keystore to
+   */
+  static void createUnpooledKeyStore(String userName, File keyStoreFile)
+      throws IOException, GeneralSecurityException {
+    writeKeyStore(generateKeyPair(), userName, keyStoreFile);
+  }
+
+  private static KeyPair generateKeyPair() throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+    generator.initialize(KEY_SIZE, random);
+    return generator.generateKeyPair();
+  }
+
+  private static void writeKeyStore(KeyPair keyPair, String userName, File keyStoreFile)
+      throws IOException, GeneralSecurityException {
+    // The same name as -dname "CN=<userName>, O=AppInventor for Android, C=US". The attributes
+    // are added in encoding order, which is the reverse of the string form.
+    // US may not the right country to assign it to.
+    X500Name name = new X500NameBuilder(BCStyle.INSTANCE)
+        .addRDN(BCStyle.C, "US")
+        .addRDN(BCStyle.O, "AppInventor for Android")
+        .addRDN(BCStyle.CN, userName)
+        .build();
+    long now = System.currentTimeMillis();
+    X509v3CertificateBuilder certificateBuilder = new JcaX509v3CertificateBuilder(name,
+        new BigInteger(64, random), new Date(now), new Date(now + VALIDITY_MS), name,
+        keyPair.getPublic());
+    X509Certificate certificate;
+    try {
+      ContentSigner signer =
+          new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(keyPair.getPrivate());
+      certificate = new JcaX509CertificateConverter()
+          .getCertificate(certificateBuilder.build(signer));
+    } catch (OperatorCreationException e) {
+      throw new GeneralSecurityException(e);
+    }
+
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    keyStore.load(null, null);
+    keyStore.setKeyEntry(KEY_ALIAS, keyPair.getPrivate(), PASSWORD.toCharArray(),
+        new Certificate[] { certificate });
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(keyStoreFile));
+    try {
+      keyStore.store(out, PASSWORD.toCharArray());
+    } finally {
+      out.close();
+    }
+  }
+
+  int getSize() {
+    return keyPairs.size() + keyPairs.remainingCapacity();
+  }
+
+  int getAvailable() {
+    return keyPairs.size();
+  }
+
+  int getRefillPerMinute() {
+    return refillPerMinute;
+  }
+
+  int getHits() {
+    return hits.get();
+  }
+
+  int getMisses() {
+    return misses.get();
+  }
+
+  int getGenerated() {
+    return generated.get();
+  }
+}
@@ -0,0 +1,240 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * Watches the memory of the build server and of the machine, without forcing garbage
+ * collections, and tells a listener when memory gets low and when it recovers.
+ *
+ * <p>The heap is measured after each garbage collection, using the usage of the heap memory pools
+ * after their last collection, which is the memory really in use rather than what is waiting to
+ * be collected. That measure only changes when a pool is collected, and once builds are held back
+ * little is allocated, so the current heap usage is also taken into account, and if the heap
+ * stays low with no collection for {@link #HEAP_HOLD_MS}, one collection is asked for to measure
+ * it again. The memory available for child processes is sampled periodically from
+ * /proc/meminfo (MemAvailable). On other platforms the operating system bean only gives the
+ * free memory, which leaves out caches that could be reclaimed, so less memory seems available
+ * than really is.</p>
+ */
+final class MemoryMonitor {
+  /**
+   * Receives the changes of the memory state.
+   */
+  interface Listener {
+    void memoryStateChanged(boolean low);
+  }
+
+  // The notification type of com.sun.management.GarbageCollectionNotificationInfo.
+  private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+  // Memory is low again only after it drops this far below the limits, so that builds aren't
+  // admitted and held back on every sample.
+  private static final double RECOVERY_FACTOR = 0.9;
+
+  // How long builds are held back because of the heap before a garbage collection is asked for,
+  // if none happens by itself.
+  static final long HEAP_HOLD_MS = 60 * 1000;
+
+  private final int maxHeapPercent;
+  private final long minAvailableBytes;
+  private final long sampleIntervalMs;
+  private final Listener listener;
+
+  // Guarded by this.
+  private boolean low = false;
+  private long liveHeapBytes = 0;
+  private long availableBytes = -1;
+  private long lastGcMs;
+
+  private final AtomicInteger gcCount = new AtomicInteger(0);
+  private final AtomicInteger lowMemoryEvents = new AtomicInteger(0);
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(MemoryMonitor.class.getName());
+
+  /**
+   * Creates a MemoryMonitor.
+   *
+   * @param maxHeapPercent  memory is low when more than this percentage of the maximum heap is
+   *                        in use after a garbage collection
+   * @param minAvailableMb  memory is low when less than this much memory is available to start
+   *                        child processes, in MBs
+   * @param sampleIntervalMs  how often to sample the available memory, in milliseconds
+   * @param listener  the listener for changes of the memory state
+   */
+  MemoryMonitor(int maxHeapPercent, int minAvailableMb, long sampleIntervalMs,
+      Listener listener) {
+    this.maxHeapPercent = maxHeapPercent;
+    this.minAvailableBytes = minAvailableMb * 1024L * 1024L;
+    this.sampleIntervalMs = sampleIntervalMs;
+    this.listener = listener;
+    this.lastGcMs = System.currentTimeMillis();
+  }
+
+  /**
+   * Starts listening for garbage collections and sampling the available memory.
+   */
+  void start() {
+    NotificationListener gcListener = new NotificationListener() {
+      @Override
+      public void handleNotification(Notification notification, Object handback) {
+        if (GC_NOTIFICATION.equals(notification.getType())) {
+          gcCount.incrementAndGet();
+          synchronized (MemoryMonitor.this) {
+            lastGcMs = System.currentTimeMillis();
+          }
+          update();
+        }
+      }
+    };
+    for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      if (gcBean instanceof NotificationEmitter) {
+        ((NotificationEmitter) gcBean).addNotificationListener(gcListener, null, null);
+      }
+    }
+
+    Thread sampler = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (true) {
+          update();
+          try {
+            Thread.sleep(sampleIntervalMs);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    }, "MemoryMonitor");
+    sampler.setDaemon(true);
+    sampler.start();
+  }
+
+  private void update() {
+    long collectionUsed = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        MemoryUsage usage = pool.getCollectionUsage();
+        if (usage != null) {
+          collectionUsed += usage.getUsed();
+        }
+      }
+    }
+    MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    if (update(collectionUsed, heap.getUsed(), heap.getMax(), getAvailableMemoryBytes(),
+        System.currentTimeMillis())) {
+      LOG.info("Builds have been held back for the heap with no garbage collection, "
+          + "asking for one.");
+      System.gc();
+    }
+  }
+
+  /*
+   * Updates the memory state from the given measures, telling the listener if it changed.
+   * The heap in use is the smaller of its usage after the last collections and its current
+   * usage, which includes garbage, so the state recovers when either is under the limit.
+   * Returns whether a garbage collection should be asked for, to measure the heap again.
+   */
+  boolean update(long collectionUsed, long heapUsed, long max, long available, long now) {
+    long live = Math.min(collectionUsed, heapUsed);
+    boolean changed;
+    boolean nowLow;
+    boolean requestGc = false;
+    synchronized (this) {
+      liveHeapBytes = live;
+      availableBytes = available;
+      double factor = low ? RECOVERY_FACTOR : 1;
+      boolean heapLow = max > 0 && live * 100.0 > max * maxHeapPercent * factor;
+      boolean availableLow = available >= 0 && available * factor < minAvailableBytes;
+      nowLow = heapLow || availableLow;
+      changed = (nowLow != low);
+      low = nowLow;
+      if (heapLow && now - lastGcMs >= HEAP_HOLD_MS) {
+        // Ask again only after another HEAP_HOLD_MS
+        lastGcMs = now;
+        requestGc = true;
+      }
+    }
+    if (changed) {
+      if (nowLow) {
+        lowMemoryEvents.incrementAndGet();
+        LOG.warning("Memory is low: " + live + " of " + max + " heap bytes in use, "
+            + available + " bytes available. Holding back new builds.");
+      } else {
+        LOG.info("Memory has recovered. Admitting new builds.");
+      }
+      listener.memoryStateChanged(nowLow);
+    }
+    return requestGc;
+  }
+
+  /*
+   * Returns the memory available for new processes, in bytes, or -1 if it is not known.
+   */
+  private static long getAvailableMemoryBytes() {
+    File meminfo = new File("/proc/meminfo");
+    if (meminfo.exists()) {
+      try {
+        for (String line : Files.readLines(meminfo, Charsets.US_ASCII)) {
+          if (line.startsWith("MemAvailable:")) {
+            // For example "MemAvailable:   12345678 kB"
+            return Long.parseLong(line.trim().split("\\s+")[1]) * 1024;
+          }
+        }
+      } catch (IOException e) {
+        // Fall back to the operating system bean.
+      } catch (NumberFormatException e) {
+        // Fall back to the operating system bean.
+      }
+    }
+    // This is the free memory, not the available memory: it leaves out caches that could be
+    // reclaimed, so builds may be held back while there is still memory for them.
+    OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+    if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) osBean).getFreePhysicalMemorySize();
+    }
+    return -1;
+  }
+
+  synchronized boolean isLow() {
+    return low;
+  }
+
+  synchronized long getLiveHeapBytes() {
+    return liveHeapBytes;
+  }
+
+  synchronized long getAvailableBytes() {
+    return availableBytes;
+  }
+
+  int getGcCount() {
+    return gcCount.get();
+  }
+
+  int getLowMemoryEvents() {
+    return lowMemoryEvents.get();
+  }
+}
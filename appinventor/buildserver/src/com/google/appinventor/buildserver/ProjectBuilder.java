@@ -24,11 +24,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -47,6 +54,10 @@ public final class ProjectBuilder {
   private File outputApk;
   private File outputKeystore;
   private boolean saveKeystore;
+  private final BuildProgress buildProgress;
+  // Held while a one-shot YailGenerator runs, so that the screens that fall back to it run one at a
+  // time, as they did before the pool.
+  private final Object oneShotYailGeneratorLock = new Object();
 
   // Logging support
   private static final Logger LOG = Logger.getLogger(ProjectBuilder.class.getName());
@@ -72,6 +83,23 @@ public final class ProjectBuilder {
   private static final String ALL_COMPONENT_TYPES =
       Compiler.RUNTIME_FILES_DIR + "simple_components.txt";
 
+  // See configureYailGeneratorPool().
+  private static volatile YailGeneratorPool yailGeneratorPool = null;
+
+  // See configureKeyStorePool().
+  private static volatile KeyStorePool keyStorePool = null;
+
+  public ProjectBuilder() {
+    this(new BuildProgress());
+  }
+
+  /**
+   * Creates a ProjectBuilder that reports the progress of its build to the given BuildProgress.
+   */
+  ProjectBuilder(BuildProgress buildProgress) {
+    this.buildProgress = buildProgress;
+  }
+
   public File getOutputApk() {
     return outputApk;
   }
@@ -128,7 +156,10 @@ public final class ProjectBuilder {
         }
 
         try {
+          long start = System.currentTimeMillis();
+          buildProgress.setProgress(0, "yail");
           genYailFilesIfNecessary(sourceFiles);
+          BuildMetrics.recordStage("yail", System.currentTimeMillis() - start);
         } catch (YailGenerationException e) {
           // Note that we're using a special result code here for the case of a Yail gen error.
           return new Result(Result.YAIL_GENERATION_ERROR, "", e.getMessage(), e.getFormName());
@@ -141,7 +172,10 @@ public final class ProjectBuilder {
         File keyStoreFile = new File(projectRoot, KEYSTORE_FILE_NAME);
         String keyStorePath = keyStoreFile.getPath();
         if (!keyStoreFile.exists()) {
+          long start = System.currentTimeMillis();
+          buildProgress.setProgress(5, "keystore");
           keyStorePath = createKeyStore(userName, projectRoot, KEYSTORE_FILE_NAME);
+          BuildMetrics.recordStage("keystore", System.currentTimeMillis() - start);
           saveKeystore = true;
         }
 
@@ -163,7 +197,7 @@ public final class ProjectBuilder {
         // Invoke YoungAndroid compiler
         boolean success =
             Compiler.compile(project, componentTypes, console, console, userErrors, isForCompanion,
-                             keyStorePath, childProcessRam, dexCachePath);
+                             keyStorePath, childProcessRam, dexCachePath, buildProgress);
         console.close();
         userErrors.close();
 
@@ -179,11 +213,12 @@ public final class ProjectBuilder {
           if (!outputFile.exists()) {
             LOG.warning("Young Android build - " + outputFile + " does not exist");
           } else {
+            // The project root is deleted below, so the results are moved rather than copied.
             outputApk = new File(outputDir, outputFile.getName());
-            Files.copy(outputFile, outputApk);
+            Files.move(outputFile, outputApk);
             if (saveKeystore) {
               outputKeystore = new File(outputDir, KEYSTORE_FILE_NAME);
-              Files.copy(keyStoreFile, outputKeystore);
+              Files.move(keyStoreFile, outputKeystore);
             }
           }
         }
@@ -213,6 +248,7 @@ public final class ProjectBuilder {
             return input.endsWith(FORM_PROPERTIES_EXTENSION) || input.endsWith(YAIL_EXTENSION);
           }
         });
+    List<String> rootPaths = Lists.newArrayList();
     for (String sourceFile : formAndYailSourceFiles) {
       if (sourceFile.endsWith(FORM_PROPERTIES_EXTENSION)) {
         String rootPath = sourceFile.substring(0, sourceFile.length()
@@ -221,10 +257,55 @@ public final class ProjectBuilder {
         // Note: Famous last words: The following contains() makes this method O(n**2) but n should
         // be pretty small.
         if (!sourceFiles.contains(yailFilePath)) {
-          generateYail(rootPath);
+          rootPaths.add(rootPath);
         }
       }
     }
+
+    YailGeneratorPool pool = yailGeneratorPool;
+    if (pool == null || rootPaths.size() < 2) {
+      for (String rootPath : rootPaths) {
+        generateYail(rootPath);
+      }
+      return;
+    }
+
+    // Generate the screens in parallel, on as many resident YailGenerators as the pool allows. A
+    // screen waits for a worker when they are all busy.
+    ExecutorService executor =
+        Executors.newFixedThreadPool(Math.min(rootPaths.size(), pool.getMaxWorkers()));
+    try {
+      List<Future<File>> futures = Lists.newArrayList();
+      for (final String rootPath : rootPaths) {
+        futures.add(executor.submit(new Callable<File>() {
+          @Override
+          public File call() throws Exception {
+            return generateYail(rootPath);
+          }
+        }));
+      }
+      // Report the failure of the first screen that failed, as the serial loop would have.
+      for (Future<File> future : futures) {
+        try {
+          future.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while generating yail", e);
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof YailGenerationException) {
+            throw (YailGenerationException) cause;
+          } else if (cause instanceof IOException) {
+            throw (IOException) cause;
+          } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          throw new RuntimeException(cause);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
   }
 
   private static Set<String> getAllComponentTypes() throws IOException {
@@ -274,30 +355,24 @@ public final class ProjectBuilder {
 
   static String createKeyStore(String userName, File projectRoot, String keystoreFileName)
       throws IOException {
+    Preconditions.checkNotNull(userName);
     File keyStoreFile = new File(projectRoot.getPath(), keystoreFileName);
 
-    /* Note: must expire after October 22, 2033, to be in the Android
-    * marketplace.  Android docs recommend "10000" as the expiration # of
-    * days.
-    *
-    * For DNAME, US may not the right country to assign it to.
-    */
-    String[] keytoolCommandline = {
-        System.getProperty("java.home") + "/bin/keytool",
-        "-genkey",
-        "-keystore", keyStoreFile.getAbsolutePath(),
-        "-alias", "AndroidKey",
-        "-keyalg", "RSA",
-        "-dname", "CN=" + quotifyUserName(userName) + ", O=AppInventor for Android, C=US",
-        "-validity", "10000",
-        "-storepass", "android",
-        "-keypass", "android"
-    };
-
-    if (Execution.execute(null, keytoolCommandline, System.out, System.err)) {
-      if (keyStoreFile.length() > 0) {
-        return keyStoreFile.getAbsolutePath();
+    // The key pair is generated in process, or taken from the keyStorePool, instead of running
+    // keytool -genkey.
+    try {
+      KeyStorePool pool = keyStorePool;
+      if (pool != null) {
+        pool.createKeyStore(userName, keyStoreFile);
+      } else {
+        KeyStorePool.createUnpooledKeyStore(userName, keyStoreFile);
       }
+    } catch (GeneralSecurityException e) {
+      LOG.log(Level.SEVERE, "Unable to create keystore " + keyStoreFile, e);
+      return null;
+    }
+    if (keyStoreFile.length() > 0) {
+      return keyStoreFile.getAbsolutePath();
     }
     return null;
   }
@@ -386,26 +461,6 @@ public final class ProjectBuilder {
     return messages;
   }
 
-  /*
-   * Adds quotes around the given userName and encodes embedded quotes as \".
-   */
-  private static String quotifyUserName(String userName) {
-    Preconditions.checkNotNull(userName);
-    int length = userName.length();
-    StringBuilder sb = new StringBuilder(length + 2);
-    sb.append('"');
-    for (int i = 0; i < length; i++) {
-      char ch = userName.charAt(i);
-      if (ch == '"') {
-        sb.append('\\').append(ch);
-      } else {
-        sb.append(ch);
-      }
-    }
-    sb.append('"');
-    return sb.toString();
-  }
-
   /*
    * Loads the project properties file of a Young Android project.
    */
@@ -418,18 +473,40 @@ public final class ProjectBuilder {
     String codeblocksSourcePath = rootName + CODEBLOCKS_SOURCE_EXTENSION;
     String yailPath = rootName + YAIL_EXTENSION;
 
+    String generatorJar = Compiler.getResource(Compiler.RUNTIME_FILES_DIR + "YailGenerator.jar");
     String[] commandLine = {
       System.getProperty("java.home") + "/bin/java",
-      "-mx1024M",
+      "-mx" + YailGeneratorPool.WORKER_MX + "M",
       "-jar",
-      Compiler.getResource(Compiler.RUNTIME_FILES_DIR + "YailGenerator.jar"),
+      generatorJar,
       new File(formPropertiesPath).getAbsolutePath(),
       new File(codeblocksSourcePath).getAbsolutePath(),
       yailPath
     };
     StringBuffer out = new StringBuffer();
     StringBuffer err = new StringBuffer();
-    int exitValue = Execution.execute(null, commandLine, out, err);
+    int exitValue;
+    YailGeneratorPool pool = yailGeneratorPool;
+    Integer residentExitValue = null;
+    if (pool != null) {
+      ByteArrayOutputStream residentOut = new ByteArrayOutputStream();
+      ByteArrayOutputStream residentErr = new ByteArrayOutputStream();
+      residentExitValue = pool.generate(generatorJar,
+          new File(formPropertiesPath).getAbsolutePath(),
+          new File(codeblocksSourcePath).getAbsolutePath(),
+          yailPath, new PrintStream(residentOut), new PrintStream(residentErr));
+      if (residentExitValue != null) {
+        out.append(residentOut.toString());
+        err.append(residentErr.toString());
+      }
+    }
+    if (residentExitValue != null) {
+      exitValue = residentExitValue;
+    } else {
+      synchronized (oneShotYailGeneratorLock) {
+        exitValue = Execution.execute(null, commandLine, out, err);
+      }
+    }
     if (exitValue == 0) {
       String generatedYailString = out.toString();
       File generatedYailFile = new File(yailPath);
@@ -470,7 +547,36 @@ public final class ProjectBuilder {
     }
   }
 
+  /**
+   * Sets how many resident YailGenerator processes may be kept. A value of 0 disables them, so
+   * that every screen is generated by a new YailGenerator process, one screen at a time.
+   *
+   * @param maxWorkers  maximum number of resident YailGenerator processes
+   */
+  static void configureYailGeneratorPool(int maxWorkers) {
+    yailGeneratorPool = (maxWorkers > 0) ? new YailGeneratorPool(maxWorkers) : null;
+  }
+
+  static YailGeneratorPool getYailGeneratorPool() {
+    return yailGeneratorPool;
+  }
+
+  /**
+   * Sets how many key pairs for new keystores are generated ahead of time. A value of 0 disables
+   * the pool, so that every new keystore generates its key pair during the build.
+   *
+   * @param size  maximum number of key pairs kept ready
+   * @param refillPerMinute  maximum number of key pairs generated per minute, 0 means no limit
+   */
+  static void configureKeyStorePool(int size, int refillPerMinute) {
+    keyStorePool = (size > 0) ? new KeyStorePool(size, refillPerMinute) : null;
+  }
+
+  static KeyStorePool getKeyStorePool() {
+    return keyStorePool;
+  }
+
   public int getProgress() {
-    return Compiler.getProgress();
+    return buildProgress.getProgress();
   }
 }
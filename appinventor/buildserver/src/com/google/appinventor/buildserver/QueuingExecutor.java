@@ -0,0 +1,374 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An {@link Executor} used for executing build tasks using a pool of reusable worker threads.
+ *
+ * <p>This Executor allows only a certain number of simultaneous tasks. Additional tasks are
+ * held in a bounded queue until a worker becomes free, and are rejected only when the queue is
+ * also full.</p>
+ *
+ * <p>The queue is fair across users: a task is ordered by the number of tasks its user already
+ * had waiting or running when it was submitted, and then by arrival. A user who submits many
+ * builds in a row therefore cannot push everyone else to the back of the queue.</p>
+ */
+final class QueuingExecutor implements Executor {
+  // Idle worker threads exit after this long without work.
+  private static final long WORKER_KEEP_ALIVE_MS = 60 * 1000;
+
+  // Weight of the most recently completed task in the average task time.
+  private static final double TASK_TIME_SMOOTHING = 0.2;
+
+  // The maximum number of active tasks. O means unlimited.
+  private final int maxActiveTasks;
+
+  // The maximum number of tasks waiting for a free worker. 0 means tasks are never queued.
+  private final int maxQueuedTasks;
+
+  // All of the following fields are guarded by lock.
+  private final Object lock = new Object();
+  private final PriorityQueue<QueuedTask> queue = new PriorityQueue<QueuedTask>();
+  private final Map<String, Integer> outstandingTasksPerUser = new HashMap<String, Integer>();
+  private long nextSequenceNumber = 0;
+  private int workerCount = 0;
+  private int activeTaskCount = 0;
+  private int maximumQueuedTaskCount = 0;
+  private long averageTaskMillis = 0;
+  // While false, tasks are held in the queue even if a worker is free. See setAdmitting().
+  private boolean admitting = true;
+
+  private final AtomicInteger completedTaskCount = new AtomicInteger(0);
+  private final AtomicInteger workerNumber = new AtomicInteger(0);
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(QueuingExecutor.class.getName());
+
+  /**
+   * A task that has been accepted by the executor. The handle can be used to find out where the
+   * task is in the queue and roughly how long it will wait before it starts.
+   */
+  final class QueuedTask implements Comparable<QueuedTask> {
+    private final Runnable runnable;
+    private final String user;
+    private final int round;
+    private final long sequenceNumber;
+    private final long submitTimeMillis;
+    private volatile long startTimeMillis;
+
+    private QueuedTask(Runnable runnable, String user, int round, long sequenceNumber) {
+      this.runnable = runnable;
+      this.user = user;
+      this.round = round;
+      this.sequenceNumber = sequenceNumber;
+      this.submitTimeMillis = System.currentTimeMillis();
+    }
+
+    @Override
+    public int compareTo(QueuedTask that) {
+      if (round != that.round) {
+        return round < that.round ? -1 : 1;
+      }
+      return sequenceNumber < that.sequenceNumber ? -1
+          : (sequenceNumber == that.sequenceNumber ? 0 : 1);
+    }
+
+    /**
+     * Returns the number of tasks that must start before this one can, or 0 if this task is
+     * running, finished, or will be picked up by the next free worker.
+     */
+    int getQueuePosition() {
+      return QueuingExecutor.this.getQueuePosition(this);
+    }
+
+    /**
+     * Returns an estimate of how long this task will wait before it starts, in milliseconds.
+     */
+    long getEstimatedWaitMillis() {
+      return estimateWaitMillis(getQueuePosition());
+    }
+
+    /**
+     * Returns how long this task waited in the queue, in milliseconds. If the task has not
+     * started yet, returns how long it has waited so far.
+     */
+    long getWaitMillis() {
+      long start = startTimeMillis;
+      return (start == 0 ? System.currentTimeMillis() : start) - submitTimeMillis;
+    }
+  }
+
+  /**
+   * Creates a QueuingExecutor.
+   *
+   * @param maxActiveTasks the maximum number of active tasks, 0 means unlimited
+   * @param maxQueuedTasks the maximum number of tasks waiting for a free worker
+   */
+  QueuingExecutor(int maxActiveTasks, int maxQueuedTasks) {
+    this.maxActiveTasks = maxActiveTasks;
+    this.maxQueuedTasks = maxQueuedTasks;
+  }
+
+  @Override
+  public void execute(Runnable runnable) {
+    submit(null, runnable);
+  }
+
+  /**
+   * Queues the given task on behalf of the given user.
+   *
+   * @param user the user the task is run for, used for fair ordering, may be null
+   * @param runnable the task
+   * @return a handle for the queued task
+   * @throws RejectedExecutionException if all workers are busy and the queue is full, or if
+   *     the executor is not admitting tasks and the queue is full
+   */
+  QueuedTask submit(String user, Runnable runnable) {
+    synchronized (lock) {
+      if (maxActiveTasks != 0
+          && activeTaskCount + queue.size() >= maxActiveTasks + maxQueuedTasks) {
+        // If the executor and its queue are at maximum capacity, reject the task.
+        throw new RejectedExecutionException();
+      }
+      if (!admitting && queue.size() >= maxQueuedTasks) {
+        // No task may start now, and there is no room to wait.
+        throw new RejectedExecutionException();
+      }
+
+      Integer outstanding = outstandingTasksPerUser.get(user);
+      int round = (outstanding == null) ? 0 : outstanding;
+      outstandingTasksPerUser.put(user, round + 1);
+      QueuedTask task = new QueuedTask(runnable, user, round, nextSequenceNumber++);
+      queue.add(task);
+      maximumQueuedTaskCount = Math.max(maximumQueuedTaskCount, getQueuedTaskCountLocked());
+
+      // Start a new worker if the idle workers can't pick up everything in the queue.
+      int idleWorkers = workerCount - activeTaskCount;
+      if (admitting && idleWorkers < queue.size()
+          && (maxActiveTasks == 0 || workerCount < maxActiveTasks)) {
+        startWorker();
+      } else {
+        lock.notifyAll();
+      }
+      return task;
+    }
+  }
+
+  /**
+   * Sets whether queued tasks may start. While the executor is not admitting tasks, running
+   * tasks continue, new tasks wait in the queue, and tasks that don't fit in the queue are
+   * rejected.
+   *
+   * @param admitting whether queued tasks may start
+   */
+  void setAdmitting(boolean admitting) {
+    synchronized (lock) {
+      if (this.admitting == admitting) {
+        return;
+      }
+      this.admitting = admitting;
+      if (admitting) {
+        // Idle workers may have exited while the queue was held.
+        while (workerCount - activeTaskCount < queue.size()
+            && (maxActiveTasks == 0 || workerCount < maxActiveTasks)) {
+          startWorker();
+        }
+        lock.notifyAll();
+      }
+    }
+  }
+
+  boolean isAdmitting() {
+    synchronized (lock) {
+      return admitting;
+    }
+  }
+
+  // Must be called with lock held.
+  private void startWorker() {
+    workerCount++;
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        boolean exited = false;
+        try {
+          QueuedTask task;
+          while ((task = takeTask()) != null) {
+            BuildMetrics.recordQueueWait(task.getWaitMillis());
+            long start = System.currentTimeMillis();
+            try {
+              task.runnable.run();
+            } catch (RuntimeException e) {
+              LOG.log(Level.SEVERE, "Build task threw an exception", e);
+            } finally {
+              finishTask(task, System.currentTimeMillis() - start);
+            }
+          }
+          // takeTask gave up the worker's slot
+          exited = true;
+        } finally {
+          if (!exited) {
+            // A task threw an Error, which kills this worker.
+            workerDied();
+          }
+        }
+      }
+    }, "BuildWorker-" + workerNumber.incrementAndGet());
+    thread.start();
+  }
+
+  /*
+   * Gives up the slot of a worker that died, and replaces it if tasks are waiting.
+   */
+  private void workerDied() {
+    synchronized (lock) {
+      workerCount--;
+      if (admitting && workerCount - activeTaskCount < queue.size()) {
+        startWorker();
+      }
+    }
+  }
+
+  /*
+   * Blocks until a task is available and returns it, or returns null if the calling worker has
+   * been idle for too long and should exit.
+   */
+  private QueuedTask takeTask() {
+    synchronized (lock) {
+      long deadline = System.currentTimeMillis() + WORKER_KEEP_ALIVE_MS;
+      while (queue.isEmpty() || !admitting) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          workerCount--;
+          return null;
+        }
+        try {
+          lock.wait(remaining);
+        } catch (InterruptedException e) {
+          // ignored
+        }
+      }
+      QueuedTask task = queue.poll();
+      task.startTimeMillis = System.currentTimeMillis();
+      activeTaskCount++;
+      return task;
+    }
+  }
+
+  private void finishTask(QueuedTask task, long elapsedMillis) {
+    synchronized (lock) {
+      activeTaskCount--;
+      Integer outstanding = outstandingTasksPerUser.get(task.user);
+      if (outstanding == null || outstanding <= 1) {
+        outstandingTasksPerUser.remove(task.user);
+      } else {
+        outstandingTasksPerUser.put(task.user, outstanding - 1);
+      }
+      if (averageTaskMillis == 0) {
+        averageTaskMillis = elapsedMillis;
+      } else {
+        averageTaskMillis = (long) (TASK_TIME_SMOOTHING * elapsedMillis
+            + (1 - TASK_TIME_SMOOTHING) * averageTaskMillis);
+      }
+    }
+    completedTaskCount.incrementAndGet();
+  }
+
+  private int getQueuePosition(QueuedTask task) {
+    synchronized (lock) {
+      if (task.startTimeMillis != 0) {
+        return 0;
+      }
+      int rank = 1;
+      for (QueuedTask other : queue) {
+        if (other.compareTo(task) < 0) {
+          rank++;
+        }
+      }
+      if (!admitting) {
+        // No task starts until tasks are admitted again.
+        return rank;
+      }
+      if (maxActiveTasks == 0) {
+        return 0;
+      }
+      return Math.max(0, rank - (maxActiveTasks - activeTaskCount));
+    }
+  }
+
+  /**
+   * Returns an estimate, in milliseconds, of how long a task at the given queue position will
+   * wait before it starts, based on the average time of recently completed tasks.
+   */
+  long estimateWaitMillis(int queuePosition) {
+    if (queuePosition <= 0 || maxActiveTasks == 0) {
+      return 0;
+    }
+    synchronized (lock) {
+      long rounds = (queuePosition + maxActiveTasks - 1) / maxActiveTasks;
+      return rounds * averageTaskMillis;
+    }
+  }
+
+  // Must be called with lock held.
+  private int getQueuedTaskCountLocked() {
+    if (!admitting) {
+      return queue.size();
+    }
+    if (maxActiveTasks == 0) {
+      return 0;
+    }
+    return Math.max(0, activeTaskCount + queue.size() - maxActiveTasks);
+  }
+
+  public int getMaxActiveTasks() {
+    return maxActiveTasks;
+  }
+
+  public int getMaxQueuedTasks() {
+    return maxQueuedTasks;
+  }
+
+  public int getActiveTaskCount() {
+    synchronized (lock) {
+      return activeTaskCount;
+    }
+  }
+
+  /**
+   * Returns the number of tasks that are waiting for a free worker.
+   */
+  public int getQueuedTaskCount() {
+    synchronized (lock) {
+      return getQueuedTaskCountLocked();
+    }
+  }
+
+  public int getMaximumQueuedTaskCount() {
+    synchronized (lock) {
+      return maximumQueuedTaskCount;
+    }
+  }
+
+  public int getCompletedTaskCount() {
+    return completedTaskCount.get();
+  }
+
+  public long getAverageTaskMillis() {
+    synchronized (lock) {
+      return averageTaskMillis;
+    }
+  }
+}
@@ -0,0 +1,193 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Joiner;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A child process that stays up between builds and handles one request at a time.
+ *
+ * <p>A request is a single line written to the process's standard input. When the process has
+ * finished a request (or has finished starting up), it writes {@link #DONE} on standard error and
+ * {@link #DONE} followed by a status code on standard output. Everything the process writes
+ * before that is output of the request. The output need not end with a line break, so the marker
+ * is recognized anywhere in a line.</p>
+ *
+ * <p>The main classes of resident processes, such as {@link KawaCompilerWorker}, run without the
+ * build server's libraries and may only use the constants of this class.</p>
+ */
+final class ResidentProcess {
+  static final String DONE = "#|resident-process-done|#";
+  static final int STATUS_OK = 0;
+  static final int STATUS_FAILED = 1;
+
+  // Marks the end of one of the process's output streams.
+  private static final String EOF = new String("EOF");
+
+  private final String name;
+  private final Process process;
+  private final Writer input;
+  private final BlockingQueue<String> outLines = new LinkedBlockingQueue<String>();
+  private final BlockingQueue<String> errLines = new LinkedBlockingQueue<String>();
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ResidentProcess.class.getName());
+
+  private ResidentProcess(String name, Process process) throws IOException {
+    this.name = name;
+    this.process = process;
+    this.input = new OutputStreamWriter(process.getOutputStream());
+    startReader(process.getInputStream(), outLines);
+    startReader(process.getErrorStream(), errLines);
+  }
+
+  /**
+   * Starts a resident process and waits for it to report that it is ready.
+   *
+   * @param name  a name for the process, used in log messages
+   * @param command  the command line of the process
+   * @param startupTimeoutMs  how long to wait for the process to be ready
+   * @return the process, or null if it failed to start
+   */
+  static ResidentProcess start(String name, String[] command, long startupTimeoutMs) {
+    LOG.info("Starting resident " + name + ": " + Joiner.on(" ").join(command));
+    ResidentProcess residentProcess = null;
+    try {
+      residentProcess = new ResidentProcess(name, Runtime.getRuntime().exec(command));
+      Integer status = residentProcess.awaitDone(System.out, System.err, startupTimeoutMs);
+      if (status != null && status == STATUS_OK) {
+        return residentProcess;
+      }
+      LOG.warning("Resident " + name + " failed to start");
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to start resident " + name, e);
+    }
+    if (residentProcess != null) {
+      residentProcess.destroy();
+    }
+    return null;
+  }
+
+  /**
+   * Returns the classpath entry that holds the build server classes, which a resident process
+   * needs in order to run its main class.
+   */
+  static String getBuildServerClasspathEntry() {
+    try {
+      return new File(ResidentProcess.class.getProtectionDomain().getCodeSource()
+          .getLocation().toURI()).getAbsolutePath();
+    } catch (URISyntaxException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Sends a request to the process and waits for it to finish.
+   *
+   * @param request  the request, which must not contain line breaks
+   * @param out  stream for the process's standard output
+   * @param err  stream for the process's standard error
+   * @param timeoutMs  how long to wait for the request to finish
+   * @return the status of the request, or null if the process is no longer usable
+   */
+  Integer run(String request, PrintStream out, PrintStream err, long timeoutMs) {
+    try {
+      input.write(request);
+      input.write('\n');
+      input.flush();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Resident " + name + " is not accepting requests", e);
+      return null;
+    }
+    return awaitDone(out, err, timeoutMs);
+  }
+
+  void destroy() {
+    process.destroy();
+  }
+
+  /*
+   * Copies the process's output until both of its streams report that the current request is
+   * done, and returns the request's status, or null if the process died or timed out.
+   */
+  private Integer awaitDone(PrintStream out, PrintStream err, long timeoutMs) {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    try {
+      if (!copyUntilDone(errLines, err, deadline)) {
+        return null;
+      }
+      String line;
+      while ((line = outLines.poll(deadline - System.currentTimeMillis(),
+          TimeUnit.MILLISECONDS)) != null && line != EOF) {
+        int done = line.indexOf(DONE);
+        if (done >= 0) {
+          // Output without a final line break runs into the marker.
+          out.print(line.substring(0, done));
+          String status = line.substring(done + DONE.length()).trim();
+          return Integer.parseInt(status);
+        }
+        out.println(line);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (NumberFormatException e) {
+      LOG.log(Level.WARNING, "Unexpected status from resident " + name, e);
+    }
+    return null;
+  }
+
+  private static boolean copyUntilDone(BlockingQueue<String> lines, PrintStream to,
+      long deadline) throws InterruptedException {
+    String line;
+    while ((line = lines.poll(deadline - System.currentTimeMillis(),
+        TimeUnit.MILLISECONDS)) != null && line != EOF) {
+      int done = line.indexOf(DONE);
+      if (done >= 0) {
+        to.print(line.substring(0, done));
+        return true;
+      }
+      to.println(line);
+    }
+    return false;
+  }
+
+  private static void startReader(final InputStream stream, final BlockingQueue<String> lines) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+          String line;
+          while ((line = reader.readLine()) != null) {
+            lines.add(line);
+          }
+        } catch (IOException e) {
+          // The process went away.
+        } finally {
+          lines.add(EOF);
+        }
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+  }
+}
@@ -0,0 +1,132 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Limits how many builds may run a given build stage (for example the Kawa compiler or DX) at
+ * the same time, and keeps track of how long builds wait to enter the stage.
+ *
+ * <p>Each stage has its own limit, so a build running DX does not hold up another build that
+ * wants to run Kawa.</p>
+ */
+final class StageLimiter {
+  private final String name;
+  private final int maxConcurrent;
+  private final Semaphore permits;
+
+  private final AtomicInteger activeCount = new AtomicInteger(0);
+  private final AtomicInteger waitingCount = new AtomicInteger(0);
+  private final AtomicInteger entryCount = new AtomicInteger(0);
+  private final AtomicLong totalWaitMillis = new AtomicLong(0);
+  private final AtomicLong maxWaitMillis = new AtomicLong(0);
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(StageLimiter.class.getName());
+
+  /**
+   * Creates a StageLimiter.
+   *
+   * @param name the name of the stage, used in log messages and server variables
+   * @param maxConcurrent the maximum number of builds in the stage at once, must be at least 1
+   */
+  StageLimiter(String name, int maxConcurrent) {
+    if (maxConcurrent < 1) {
+      throw new IllegalArgumentException("maxConcurrent must be at least 1");
+    }
+    this.name = name;
+    this.maxConcurrent = maxConcurrent;
+    this.permits = new Semaphore(maxConcurrent, true);
+  }
+
+  /**
+   * Returns a default limit for stages that launch a child process: one per processor, but no
+   * more than the physical memory of the machine can hold at childProcessRamMb each.
+   */
+  static int defaultLimit(int childProcessRamMb) {
+    int limit = Runtime.getRuntime().availableProcessors();
+    OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+    if (osBean instanceof com.sun.management.OperatingSystemMXBean && childProcessRamMb > 0) {
+      long physicalMb = ((com.sun.management.OperatingSystemMXBean) osBean)
+          .getTotalPhysicalMemorySize() / (1024 * 1024);
+      limit = (int) Math.min(limit, physicalMb / childProcessRamMb);
+    }
+    return Math.max(1, limit);
+  }
+
+  /**
+   * Waits until the stage has room for another build and enters it. Every call must be matched
+   * by a call to {@link #release()}.
+   *
+   * @return the number of milliseconds spent waiting
+   */
+  long acquire() {
+    long start = System.currentTimeMillis();
+    waitingCount.incrementAndGet();
+    try {
+      permits.acquireUninterruptibly();
+    } finally {
+      waitingCount.decrementAndGet();
+    }
+    activeCount.incrementAndGet();
+    entryCount.incrementAndGet();
+    long waited = System.currentTimeMillis() - start;
+    totalWaitMillis.addAndGet(waited);
+    long max;
+    while (waited > (max = maxWaitMillis.get())) {
+      if (maxWaitMillis.compareAndSet(max, waited)) {
+        break;
+      }
+    }
+    if (waited > 0) {
+      LOG.info("Waited " + waited + " ms to enter the " + name + " stage");
+    }
+    BuildMetrics.recordStageWait(name.toLowerCase(), waited);
+    return waited;
+  }
+
+  /**
+   * Leaves the stage, making room for another build.
+   */
+  void release() {
+    activeCount.decrementAndGet();
+    permits.release();
+  }
+
+  String getName() {
+    return name;
+  }
+
+  int getMaxConcurrent() {
+    return maxConcurrent;
+  }
+
+  int getActiveCount() {
+    return activeCount.get();
+  }
+
+  int getWaitingCount() {
+    return waitingCount.get();
+  }
+
+  int getEntryCount() {
+    return entryCount.get();
+  }
+
+  long getTotalWaitMillis() {
+    return totalWaitMillis.get();
+  }
+
+  long getMaxWaitMillis() {
+    return maxWaitMillis.get();
+  }
+}
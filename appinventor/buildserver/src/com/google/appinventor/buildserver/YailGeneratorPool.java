@@ -0,0 +1,211 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Joiner;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A pool of resident YailGenerator processes.
+ *
+ * <p>YailGenerator used to be started as a new JVM for every screen that needed a .yail file. A
+ * resident worker (see {@link YailGeneratorWorker}) is started once and then generates one
+ * screen per request, so the screens of a build can be handed to several warm workers at the
+ * same time. Each worker handles one screen at a time, so the heap limit of a worker is the
+ * memory cap of a single screen.</p>
+ *
+ * <p>When all the workers are busy, {@link #generate} waits for one to be free, so the screens of
+ * a build never start more processes than the pool allows. If no worker can be used, it returns
+ * null and the caller should fall back to running YailGenerator as a one-shot process.</p>
+ */
+final class YailGeneratorPool {
+  // A worker is replaced after this many screens, to bound the growth of YailGenerator's global
+  // state.
+  private static final int MAX_REQUESTS_PER_WORKER = 200;
+
+  // The maximum heap of a worker, in MBs. This is the same as for the one-shot YailGenerator.
+  static final int WORKER_MX = 1024;
+
+  // How long to wait for a worker to start up, to generate one screen, or to be free.
+  private static final long STARTUP_TIMEOUT_MS = 2 * 60 * 1000;
+  private static final long GENERATE_TIMEOUT_MS = 5 * 60 * 1000;
+  private static final long CHECKOUT_TIMEOUT_MS = GENERATE_TIMEOUT_MS;
+
+  // The maximum number of resident workers.
+  private final int maxWorkers;
+
+  // Guarded by this.
+  private final LinkedList<Worker> idleWorkers = new LinkedList<Worker>();
+  private int workerCount = 0;
+
+  // Set if a worker ever fails to start. Starting workers would most likely keep failing, and
+  // every build would pay for the attempt, so the pool stops being used.
+  private volatile boolean disabled = false;
+
+  private final AtomicInteger startedWorkers = new AtomicInteger(0);
+  private final AtomicInteger residentRequests = new AtomicInteger(0);
+  private final AtomicInteger fallbackRequests = new AtomicInteger(0);
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(YailGeneratorPool.class.getName());
+
+  /**
+   * Creates a YailGeneratorPool.
+   *
+   * @param maxWorkers  the maximum number of resident YailGenerator processes
+   */
+  YailGeneratorPool(int maxWorkers) {
+    this.maxWorkers = maxWorkers;
+  }
+
+  /**
+   * Generates the .yail file of one screen with a resident worker.
+   *
+   * @param generatorJar  the path of YailGenerator.jar
+   * @param formPropertiesPath  the path of the screen's form properties file
+   * @param codeblocksSourcePath  the path of the screen's blocks file
+   * @param yailPath  the path of the .yail file
+   * @param out  stream for the generated code
+   * @param err  stream for YailGenerator's error messages
+   * @return the exit code the one-shot YailGenerator would have had, or null if no resident
+   *         worker could be used, or none was free in time
+   */
+  Integer generate(String generatorJar, String formPropertiesPath, String codeblocksSourcePath,
+      String yailPath, PrintStream out, PrintStream err) {
+    Worker worker = checkOut(generatorJar);
+    if (worker == null) {
+      fallbackRequests.incrementAndGet();
+      return null;
+    }
+    boolean reusable = false;
+    try {
+      String request = Joiner.on('\t').join(formPropertiesPath, codeblocksSourcePath, yailPath);
+      Integer status = worker.process.run(request, out, err, GENERATE_TIMEOUT_MS);
+      if (status == null) {
+        // The worker died, ran out of memory, or hung. Let the caller generate the screen the
+        // old way, so that the user gets the same result as before.
+        fallbackRequests.incrementAndGet();
+        return null;
+      }
+      reusable = true;
+      residentRequests.incrementAndGet();
+      return status;
+    } finally {
+      checkIn(worker, reusable);
+    }
+  }
+
+  private Worker checkOut(String generatorJar) {
+    if (disabled) {
+      return null;
+    }
+    synchronized (this) {
+      long deadline = System.currentTimeMillis() + CHECKOUT_TIMEOUT_MS;
+      while (idleWorkers.isEmpty() && workerCount >= maxWorkers) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (disabled || remaining <= 0) {
+          return null;
+        }
+        try {
+          wait(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return null;
+        }
+      }
+      if (!idleWorkers.isEmpty()) {
+        return idleWorkers.removeLast();
+      }
+      workerCount++;
+    }
+    Worker worker = Worker.start(generatorJar);
+    if (worker == null) {
+      LOG.severe("Resident YailGenerators are disabled because a worker failed to start");
+      disabled = true;
+      synchronized (this) {
+        workerCount--;
+        notifyAll();
+      }
+    } else {
+      startedWorkers.incrementAndGet();
+    }
+    return worker;
+  }
+
+  private void checkIn(Worker worker, boolean reusable) {
+    if (reusable && ++worker.requestCount < MAX_REQUESTS_PER_WORKER) {
+      synchronized (this) {
+        idleWorkers.addLast(worker);
+        notifyAll();
+      }
+    } else {
+      worker.process.destroy();
+      synchronized (this) {
+        workerCount--;
+        notifyAll();
+      }
+    }
+  }
+
+  boolean isDisabled() {
+    return disabled;
+  }
+
+  int getMaxWorkers() {
+    return maxWorkers;
+  }
+
+  synchronized int getWorkerCount() {
+    return workerCount;
+  }
+
+  synchronized int getIdleWorkerCount() {
+    return idleWorkers.size();
+  }
+
+  int getStartedWorkers() {
+    return startedWorkers.get();
+  }
+
+  int getResidentRequests() {
+    return residentRequests.get();
+  }
+
+  int getFallbackRequests() {
+    return fallbackRequests.get();
+  }
+
+  /*
+   * A resident YailGenerator process.
+   */
+  private static class Worker {
+    private final ResidentProcess process;
+    private int requestCount = 0;
+
+    private Worker(ResidentProcess process) {
+      this.process = process;
+    }
+
+    static Worker start(String generatorJar) {
+      String[] command = {
+          System.getProperty("java.home") + "/bin/java",
+          "-mx" + WORKER_MX + "M",
+          "-cp", generatorJar + File.pathSeparator + ResidentProcess.getBuildServerClasspathEntry(),
+          YailGeneratorWorker.class.getName(),
+          generatorJar
+      };
+      ResidentProcess process =
+          ResidentProcess.start("YailGenerator", command, STARTUP_TIMEOUT_MS);
+      return (process == null) ? null : new Worker(process);
+    }
+  }
+}
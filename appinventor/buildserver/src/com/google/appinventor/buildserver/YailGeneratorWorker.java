@@ -0,0 +1,124 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.security.Permission;
+import java.util.jar.JarFile;
+
+/**
+ * Main class of a resident YailGenerator process, started by {@link YailGeneratorPool}.
+ *
+ * <p>The worker loads the main class of YailGenerator.jar once, when it starts, and then
+ * generates the .yail file of one screen per request read from standard input. Each request is
+ * a single line with the tab separated arguments that YailGenerator.jar takes on its command
+ * line. The generated code is written on standard output, as the one-shot YailGenerator does, and
+ * the status of the request is the exit code the one-shot YailGenerator would have had. Requests
+ * and their results follow the protocol described in {@link ResidentProcess}.</p>
+ *
+ * <p>This class runs with YailGenerator.jar on its classpath, not the build server classpath,
+ * so it only uses classes from the JDK.</p>
+ */
+public final class YailGeneratorWorker {
+  // Set while a request is running. YailGenerator calls System.exit to report its result, which
+  // we turn into an exception so the worker survives.
+  private static volatile boolean trapExit = false;
+
+  private YailGeneratorWorker() {
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args  the path of YailGenerator.jar
+   */
+  public static void main(String[] args) throws Exception {
+    String mainClassName;
+    JarFile jarFile = new JarFile(args[0]);
+    try {
+      mainClassName = jarFile.getManifest().getMainAttributes().getValue("Main-Class");
+    } finally {
+      jarFile.close();
+    }
+    Method generatorMain = Class.forName(mainClassName).getMethod("main", String[].class);
+    installExitTrap();
+    finish(ResidentProcess.STATUS_OK);
+
+    BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+    String line;
+    while ((line = in.readLine()) != null) {
+      if (line.isEmpty()) {
+        continue;
+      }
+      finish(run(generatorMain, line.split("\t")));
+    }
+    System.exit(0);
+  }
+
+  private static int run(Method generatorMain, String[] generatorArgs) {
+    trapExit = true;
+    try {
+      generatorMain.invoke(null, (Object) generatorArgs);
+      return 0;
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof ExitTrappedException) {
+        return ((ExitTrappedException) e.getCause()).status;
+      }
+      // This is what the JVM would do with an exception thrown out of main.
+      e.getCause().printStackTrace();
+      return 1;
+    } catch (Exception e) {
+      e.printStackTrace();
+      return 1;
+    } finally {
+      trapExit = false;
+    }
+  }
+
+  private static void finish(int status) {
+    System.out.flush();
+    System.err.println(ResidentProcess.DONE);
+    System.err.flush();
+    System.out.println(ResidentProcess.DONE + " " + status);
+    System.out.flush();
+  }
+
+  private static void installExitTrap() {
+    try {
+      System.setSecurityManager(new SecurityManager() {
+        @Override
+        public void checkPermission(Permission permission) {
+        }
+
+        @Override
+        public void checkPermission(Permission permission, Object context) {
+        }
+
+        @Override
+        public void checkExit(int status) {
+          if (trapExit) {
+            throw new ExitTrappedException(status);
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      // Without the trap, a request that exits ends the worker and the pool starts a new one.
+      e.printStackTrace();
+    }
+  }
+
+  private static class ExitTrappedException extends SecurityException {
+    private final int status;
+
+    ExitTrappedException(int status) {
+      this.status = status;
+    }
+  }
+}
@@ -1620,7 +1620,7 @@ list, use the make-yail-list constructor with no arguments.
   (cdr yail-list))
 
 (define (set-yail-list-contents! yail-list contents)
-  (set-cdr! yail-list contents))
+  ((as YailList yail-list):setContents contents))
 
 
 (define (insert-yail-list-header x)
@@ -1719,8 +1719,10 @@ list, use the make-yail-list constructor with no arguments.
 
 
 ;; Implements the Blocks length operation
+;; The YailList keeps an index of its items, so the list operations below
+;; go through its methods instead of walking the contents
 (define (yail-list-length yail-list)
-  (length (yail-list-contents yail-list)))
+  ((as YailList yail-list):size))
 
 ;; These are removed, to simplify the API to lists
 ;; ;; Implements the Blocks first operation
@@ -1765,7 +1767,7 @@ list, use the make-yail-list constructor with no arguments.
                  len
                  (get-display-representation yail-list))
          "Select list item: List index too large")
-    (list-ref (yail-list-contents yail-list) (- index 1)))))
+    ((as YailList yail-list):getItem index))))
 
 
 ;; Implements the Blocks set list item operation
@@ -1784,7 +1786,7 @@ list, use the make-yail-list constructor with no arguments.
                  len
                  (get-display-representation yail-list))
          "List index too large")))
-  (set-car! (list-tail (yail-list-contents yail-list) (- index 1)) value))
+  ((as YailList yail-list):setItem index value))
 
 
 
@@ -1815,8 +1817,7 @@ list, use the make-yail-list constructor with no arguments.
                    len
                    (get-display-representation yail-list))
            "List index too large"))
-      (let ((pair-pointing-to-deletion (list-tail yail-list (- index2 1))))
-        (set-cdr! pair-pointing-to-deletion (cddr pair-pointing-to-deletion))))))
+      ((as YailList yail-list):removeItem index2))))
 
 
 ;; Implements the Blocks insert list item operation
@@ -1845,11 +1846,7 @@ list, use the make-yail-list constructor with no arguments.
                    (get-display-representation yail-list)
                    len+1)
            "List index too large"))
-      (let ((contents (yail-list-contents yail-list)))
-        (if (= index2 1)
-            (set-yail-list-contents! yail-list (cons item contents))
-            (let ((at-item (list-tail contents (- index2 2))))
-              (set-cdr! at-item (cons item (cdr at-item)))))))))
+      ((as YailList yail-list):insertItem index2 item))))
 
 ;; Extends list A by appending the elements of list B to it
 ;; Modifies list A
@@ -1858,15 +1855,8 @@ list, use the make-yail-list constructor with no arguments.
   ;; Unlike Scheme, we copy the tail so there's no shared tail
   ;; between the augmented list and the source of the added elements.
   ;; But like Python, we do a shallow copy, so that substructure is
-  ;; shared.
-  (define (list-copy l)
-    (if (null? l)
-    '()
-    (cons (car l) (list-copy (cdr l)))))
-  ;; We have to operate on the yail-list itself, not the contents, because
-  ;; the contents might be empty
-  (set-cdr! (list-tail yail-list-A (length (yail-list-contents yail-list-A)))
-        (list-copy (yail-list-contents yail-list-B))))
+  ;; shared.  appendContents makes the copy.
+  ((as YailList yail-list-A):appendContents (yail-list-contents yail-list-B)))
 
 
 ;; Extend list A by appending the items to it
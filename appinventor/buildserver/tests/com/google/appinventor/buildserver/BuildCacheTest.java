@@ -0,0 +1,81 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildCache class.
+ *
+ */
+public class BuildCacheTest extends TestCase {
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testKey() {
+    assertEquals(BuildCache.key("a", "b"), BuildCache.key("a", "b"));
+    assertFalse(BuildCache.key("a", "bc").equals(BuildCache.key("ab", "c")));
+  }
+
+  public void testStoreAndRestore() throws Exception {
+    BuildCache cache = new BuildCache(new File(tmpDir, "cache"), 1024 * 1024);
+    File destination = new File(tmpDir, "destination");
+    assertFalse(cache.restore("key", destination));
+    assertEquals(1, cache.getMisses());
+
+    cache.store("key", createEntry("entry", "classes/Screen1.class", "compiled"));
+    assertEquals(1, cache.getEntryCount());
+    assertTrue(cache.restore("key", destination));
+    assertEquals(1, cache.getHits());
+    assertEquals("compiled",
+        Files.toString(new File(destination, "classes/Screen1.class"), Charsets.UTF_8));
+
+    // A new cache in the same directory picks up the stored entry.
+    cache = new BuildCache(new File(tmpDir, "cache"), 1024 * 1024);
+    assertEquals(1, cache.getEntryCount());
+    assertEquals(8, cache.getSizeBytes());
+  }
+
+  public void testLeastRecentlyUsedEntryIsEvicted() throws Exception {
+    BuildCache cache = new BuildCache(new File(tmpDir, "cache"), 20);
+    cache.store("a", createEntry("a", "file", "0123456789"));
+    cache.store("b", createEntry("b", "file", "0123456789"));
+    // Using "a" makes "b" the least recently used entry.
+    assertTrue(cache.restore("a", new File(tmpDir, "restored")));
+
+    cache.store("c", createEntry("c", "file", "0123456789"));
+    assertEquals(2, cache.getEntryCount());
+    assertEquals(1, cache.getEvictions());
+    assertFalse(cache.restore("b", new File(tmpDir, "restored")));
+    assertTrue(cache.restore("a", new File(tmpDir, "restored")));
+    assertTrue(cache.restore("c", new File(tmpDir, "restored")));
+  }
+
+  private File createEntry(String name, String path, String contents) throws IOException {
+    File dir = new File(tmpDir, name);
+    File file = new File(dir, path);
+    Files.createParentDirs(file);
+    Files.write(contents, file, Charsets.UTF_8);
+    return dir;
+  }
+}
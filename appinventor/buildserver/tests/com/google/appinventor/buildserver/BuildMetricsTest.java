@@ -0,0 +1,40 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildMetrics class.
+ *
+ */
+public class BuildMetricsTest extends TestCase {
+  public void testStageHistogram() {
+    BuildMetrics.recordStage("test-stage", 300);
+    BuildMetrics.recordStage("test-stage", 4000);
+    StringBuilder sb = new StringBuilder();
+    BuildMetrics.writeHistograms(sb);
+    String text = sb.toString();
+    assertTrue(text.contains("# TYPE buildserver_stage_duration_seconds histogram\n"));
+    assertTrue(text.contains(
+        "buildserver_stage_duration_seconds_bucket{stage=\"test-stage\",le=\"0.25\"} 0\n"));
+    assertTrue(text.contains(
+        "buildserver_stage_duration_seconds_bucket{stage=\"test-stage\",le=\"0.5\"} 1\n"));
+    assertTrue(text.contains(
+        "buildserver_stage_duration_seconds_bucket{stage=\"test-stage\",le=\"5\"} 2\n"));
+    assertTrue(text.contains(
+        "buildserver_stage_duration_seconds_bucket{stage=\"test-stage\",le=\"+Inf\"} 2\n"));
+    assertTrue(text.contains("buildserver_stage_duration_seconds_sum{stage=\"test-stage\"} 4.3\n"));
+    assertTrue(text.contains("buildserver_stage_duration_seconds_count{stage=\"test-stage\"} 2\n"));
+  }
+
+  public void testGauge() {
+    StringBuilder sb = new StringBuilder();
+    BuildMetrics.writeGauge(sb, "test_ratio", "A ratio.", BuildMetrics.ratio(1, 3));
+    assertEquals("# HELP test_ratio A ratio.\n# TYPE test_ratio gauge\ntest_ratio 0.25\n",
+        sb.toString());
+  }
+}
@@ -0,0 +1,47 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildProgress class.
+ *
+ */
+public class BuildProgressTest extends TestCase {
+  public void testBuildsAreTrackedSeparately() {
+    BuildProgress first = BuildProgress.register("first-build");
+    BuildProgress second = BuildProgress.register(null);
+    assertNotNull(second.getBuildId());
+    assertSame(first, BuildProgress.get("first-build"));
+    assertSame(second, BuildProgress.get(second.getBuildId()));
+
+    first.start();
+    first.setProgress(35, "dx");
+    assertEquals(BuildProgress.State.RUNNING, first.getState());
+    assertEquals(35, first.getProgress());
+    assertEquals("dx", first.getStage());
+    assertEquals(BuildProgress.State.QUEUED, second.getState());
+    assertEquals(0, second.getProgress());
+
+    first.finish();
+    assertEquals(BuildProgress.State.FINISHED, first.getState());
+    assertEquals(100, first.getProgress());
+    assertSame(first, BuildProgress.get("first-build"));
+
+    second.unregister();
+    assertNull(BuildProgress.get(second.getBuildId()));
+  }
+
+  public void testInvalidBuildIdIsRejected() {
+    try {
+      BuildProgress.register("../build");
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
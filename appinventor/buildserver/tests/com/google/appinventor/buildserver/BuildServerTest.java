@@ -0,0 +1,111 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.io.FileUtils;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Tests BuildServer class.
+ *
+ */
+public class BuildServerTest extends TestCase {
+  private File tmpDir;
+  private HttpServer callbackServer;
+  // What the callback received
+  private volatile String transferEncoding;
+  private volatile byte[] body;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    callbackServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    callbackServer.createContext("/callback", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        transferEncoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+        body = ByteStreams.toByteArray(exchange.getRequestBody());
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+      }
+    });
+    callbackServer.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    callbackServer.stop(0);
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testPostZip() throws Exception {
+    // An APK larger than a chunk of the request body
+    byte[] apkContent = new byte[300 * 1024];
+    new Random(42).nextBytes(apkContent);
+    File apk = new File(tmpDir, "Test.apk");
+    Files.write(apkContent, apk);
+    byte[] keystoreContent = "keystore".getBytes("UTF-8");
+    File keystore = new File(tmpDir, "android.keystore");
+    Files.write(keystoreContent, keystore);
+
+    URL callbackUrl = new URL("http://localhost:" + callbackServer.getAddress().getPort()
+        + "/callback");
+    Result result = new Result(Result.SUCCESS, "built", "");
+    assertEquals(200, BuildServer.postZip(callbackUrl, result, apk, keystore));
+
+    // The body was streamed in chunks rather than buffered to learn its length.
+    assertEquals("chunked", transferEncoding);
+    ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(body));
+    ZipEntry entry = zip.getNextEntry();
+    assertEquals("android.keystore", entry.getName());
+    assertTrue(Arrays.equals(keystoreContent, ByteStreams.toByteArray(zip)));
+
+    // The APK is stored as is, with its checksum.
+    entry = zip.getNextEntry();
+    assertEquals("Test.apk", entry.getName());
+    assertEquals(ZipEntry.STORED, entry.getMethod());
+    CRC32 crc = new CRC32();
+    crc.update(apkContent);
+    assertEquals(crc.getValue(), entry.getCrc());
+    assertTrue(Arrays.equals(apkContent, ByteStreams.toByteArray(zip)));
+
+    entry = zip.getNextEntry();
+    assertEquals("build.out", entry.getName());
+    assertTrue(new String(ByteStreams.toByteArray(zip), "UTF-8").contains("built"));
+    assertNull(zip.getNextEntry());
+  }
+
+  public void testPostZipOfFailedBuild() throws Exception {
+    URL callbackUrl = new URL("http://localhost:" + callbackServer.getAddress().getPort()
+        + "/callback");
+    Result result = new Result(Result.GENERAL_FAILURE, "", "failed");
+    assertEquals(200, BuildServer.postZip(callbackUrl, result, null, null));
+
+    ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(body));
+    assertEquals("build.out", zip.getNextEntry().getName());
+    assertNull(zip.getNextEntry());
+  }
+}
@@ -6,11 +6,22 @@
 
 package com.google.appinventor.buildserver;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
 
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Tests Compiler class.
@@ -38,4 +49,43 @@ public class CompilerTest extends TestCase {
     assertTrue(permissions.contains(
         "android.permission.ACCESS_LOCATION_EXTRA_COMMANDS"));
   }
+
+  public void testGetResourceExtractsOnce() throws Exception {
+    // Any resource on the classpath will do.
+    final String resourcePath = "/com/google/appinventor/buildserver/Result.class";
+    int builds = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(builds);
+    List<Future<String>> paths = Lists.newArrayList();
+    try {
+      for (int i = 0; i < builds; i++) {
+        paths.add(executor.submit(new Callable<String>() {
+          @Override
+          public String call() {
+            return Compiler.getResource(resourcePath);
+          }
+        }));
+      }
+      // Every build gets the same file, under the resource path.
+      String path = paths.get(0).get();
+      for (Future<String> other : paths) {
+        assertEquals(path, other.get());
+      }
+      assertTrue(path.endsWith(resourcePath.replace('/', File.separatorChar)));
+    } finally {
+      executor.shutdownNow();
+    }
+
+    File file = new File(paths.get(0).get());
+    long extracted = file.lastModified();
+    InputStream resource = Compiler.class.getResourceAsStream(resourcePath);
+    try {
+      assertTrue(Arrays.equals(ByteStreams.toByteArray(resource), Files.toByteArray(file)));
+    } finally {
+      resource.close();
+    }
+    // Asking again doesn't extract it again.
+    Thread.sleep(1000);
+    assertEquals(file.getAbsolutePath(), Compiler.getResource(resourcePath));
+    assertEquals(extracted, file.lastModified());
+  }
 }
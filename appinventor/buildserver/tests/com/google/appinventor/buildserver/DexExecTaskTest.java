@@ -0,0 +1,83 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the checks DexExecTask makes on its pre-dexed libraries.
+ *
+ */
+public class DexExecTaskTest extends TestCase {
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  // Pre-dexed libraries that were checked are remembered by name, so each test uses new names.
+  private File newDexedLib() {
+    return new File(tmpDir, "dex-cached-" + UUID.randomUUID() + ".jar");
+  }
+
+  public void testChecksumIsVerified() throws Exception {
+    File dexedLib = newDexedLib();
+    File tmpLib = new File(tmpDir, "tmp-1");
+    Files.write("dexed", tmpLib, Charsets.UTF_8);
+    assertTrue(DexExecTask.writeChecksum(tmpLib, dexedLib));
+    assertTrue(tmpLib.renameTo(dexedLib));
+    // A new process checks the library the first time it uses it.
+    assertTrue(DexExecTask.verifyDexedLib(dexedLib));
+
+    File truncatedLib = newDexedLib();
+    Files.write("dexed", tmpLib, Charsets.UTF_8);
+    assertTrue(DexExecTask.writeChecksum(tmpLib, truncatedLib));
+    Files.write("dex", truncatedLib, Charsets.UTF_8);
+    assertFalse(DexExecTask.verifyDexedLib(truncatedLib));
+  }
+
+  public void testLibraryWithoutChecksumIsNotVerified() throws Exception {
+    File dexedLib = newDexedLib();
+    Files.write("dexed", dexedLib, Charsets.UTF_8);
+    assertFalse(DexExecTask.verifyDexedLib(dexedLib));
+  }
+
+  public void testStaleFilesAreDeleted() throws Exception {
+    File staleTmp = new File(tmpDir, "tmp-stale-dex-cached-a.jar");
+    Files.write("partial", staleTmp, Charsets.UTF_8);
+    staleTmp.setLastModified(System.currentTimeMillis() - 24 * 60 * 60 * 1000L);
+    File currentTmp = new File(tmpDir, "tmp-current-dex-cached-b.jar");
+    Files.write("partial", currentTmp, Charsets.UTF_8);
+    File orphanChecksum = new File(tmpDir, "dex-cached-c.jar.md5");
+    Files.write("0", orphanChecksum, Charsets.UTF_8);
+    File dexedLib = new File(tmpDir, "dex-cached-d.jar");
+    Files.write("dexed", dexedLib, Charsets.UTF_8);
+    File checksum = new File(tmpDir, "dex-cached-d.jar.md5");
+    Files.write("0", checksum, Charsets.UTF_8);
+
+    DexExecTask.deleteStaleFiles(tmpDir);
+    // Files written by this process may belong to a build that is running.
+    assertFalse(staleTmp.exists());
+    assertTrue(currentTmp.exists());
+    assertFalse(orphanChecksum.exists());
+    assertTrue(dexedLib.exists());
+    assertTrue(checksum.exists());
+  }
+}
@@ -0,0 +1,77 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests KeyStorePool class.
+ *
+ */
+public class KeyStorePoolTest extends TestCase {
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testUnpooledKeyStore() throws Exception {
+    File keyStoreFile = new File(tmpDir, "android.keystore");
+    KeyStorePool.createUnpooledKeyStore("someone@example.com", keyStoreFile);
+    checkKeyStore(keyStoreFile, "someone@example.com");
+  }
+
+  public void testPooledKeyStore() throws Exception {
+    KeyStorePool pool = new KeyStorePool(1, 0);
+    long deadline = System.currentTimeMillis() + 30000;
+    while (pool.getAvailable() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, pool.getAvailable());
+
+    File keyStoreFile = new File(tmpDir, "android.keystore");
+    pool.createKeyStore("\"Quoted\", Name", keyStoreFile);
+    assertEquals(1, pool.getHits());
+    assertEquals(0, pool.getMisses());
+    checkKeyStore(keyStoreFile, "\"Quoted\", Name");
+  }
+
+  private static void checkKeyStore(File keyStoreFile, String userName) throws Exception {
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    InputStream in = new FileInputStream(keyStoreFile);
+    try {
+      keyStore.load(in, KeyStorePool.PASSWORD.toCharArray());
+    } finally {
+      in.close();
+    }
+    Key key = keyStore.getKey(KeyStorePool.KEY_ALIAS, KeyStorePool.PASSWORD.toCharArray());
+    assertEquals("RSA", key.getAlgorithm());
+
+    X509Certificate certificate =
+        (X509Certificate) keyStore.getCertificate(KeyStorePool.KEY_ALIAS);
+    certificate.verify(certificate.getPublicKey());
+    String expectedName = "CN=" + userName.replace("\"", "\\\"").replace(",", "\\,")
+        + ",O=AppInventor for Android,C=US";
+    assertEquals(expectedName, certificate.getSubjectX500Principal().getName());
+  }
+}
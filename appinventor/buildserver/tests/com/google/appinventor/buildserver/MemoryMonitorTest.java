@@ -0,0 +1,83 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests MemoryMonitor class.
+ *
+ */
+public class MemoryMonitorTest extends TestCase {
+  private static final long MB = 1024L * 1024L;
+  private static final long MAX = 1000 * MB;
+  private static final long AVAILABLE = 4000 * MB;
+
+  private final List<Boolean> states = new ArrayList<Boolean>();
+  private MemoryMonitor monitor;
+  private long start;
+
+  @Override
+  protected void setUp() throws Exception {
+    monitor = new MemoryMonitor(80, 1000, 1000, new MemoryMonitor.Listener() {
+      @Override
+      public void memoryStateChanged(boolean low) {
+        states.add(low);
+      }
+    });
+    start = System.currentTimeMillis();
+  }
+
+  public void testHeapLowAndRecovered() {
+    monitor.update(500 * MB, 600 * MB, MAX, AVAILABLE, start);
+    assertFalse(monitor.isLow());
+    monitor.update(850 * MB, 900 * MB, MAX, AVAILABLE, start);
+    assertTrue(monitor.isLow());
+    // Recovery needs the heap to drop below 90% of the limit
+    monitor.update(750 * MB, 900 * MB, MAX, AVAILABLE, start);
+    assertTrue(monitor.isLow());
+    monitor.update(700 * MB, 900 * MB, MAX, AVAILABLE, start);
+    assertFalse(monitor.isLow());
+    assertEquals(Arrays.asList(true, false), states);
+    assertEquals(1, monitor.getLowMemoryEvents());
+  }
+
+  public void testRecoversFromCurrentHeapWithoutCollection() {
+    monitor.update(850 * MB, 900 * MB, MAX, AVAILABLE, start);
+    assertTrue(monitor.isLow());
+    // The usage after the last collection is stale, but the heap now holds less than that
+    monitor.update(850 * MB, 300 * MB, MAX, AVAILABLE, start + 1000);
+    assertFalse(monitor.isLow());
+    assertEquals(300 * MB, monitor.getLiveHeapBytes());
+  }
+
+  public void testCollectionRequestedAfterHoldTime() {
+    assertFalse(monitor.update(850 * MB, 900 * MB, MAX, AVAILABLE, start));
+    assertFalse(monitor.update(850 * MB, 900 * MB, MAX, AVAILABLE,
+        start + MemoryMonitor.HEAP_HOLD_MS / 2));
+    assertTrue(monitor.update(850 * MB, 900 * MB, MAX, AVAILABLE,
+        start + MemoryMonitor.HEAP_HOLD_MS));
+    // Only once per hold time
+    assertFalse(monitor.update(850 * MB, 900 * MB, MAX, AVAILABLE,
+        start + MemoryMonitor.HEAP_HOLD_MS + 1000));
+    assertTrue(monitor.update(850 * MB, 900 * MB, MAX, AVAILABLE,
+        start + 2 * MemoryMonitor.HEAP_HOLD_MS));
+  }
+
+  public void testAvailableMemoryLow() {
+    monitor.update(100 * MB, 200 * MB, MAX, 900 * MB, start);
+    assertTrue(monitor.isLow());
+    // Held back for available memory, not the heap, so no collection is asked for
+    assertFalse(monitor.update(100 * MB, 200 * MB, MAX, 900 * MB,
+        start + 2 * MemoryMonitor.HEAP_HOLD_MS));
+    monitor.update(100 * MB, 200 * MB, MAX, 1200 * MB, start);
+    assertFalse(monitor.isLow());
+  }
+}
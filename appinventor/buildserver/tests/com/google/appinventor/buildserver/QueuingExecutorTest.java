@@ -0,0 +1,215 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests QueuingExecutor class.
+ *
+ */
+public class QueuingExecutorTest extends TestCase {
+  public void testAdditionalTaskIsRejected() throws Exception {
+    // Create the QueuingExecutor with capacity 10 and no queue.
+    int maxCapacity = 10;
+    QueuingExecutor executor = new QueuingExecutor(maxCapacity, 0);
+
+    // Execute the maximum number of tasks, which will all wait until I release the signal.
+    CountDownLatch started = new CountDownLatch(maxCapacity);
+    CountDownLatch signal = new CountDownLatch(1);
+    for (int i = 0; i < maxCapacity; i++) {
+      executor.execute(new TaskThatWaitsForSignal(started, signal));
+    }
+
+    // Now the executor should be at maximum capacity.
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    assertEquals(maxCapacity, executor.getActiveTaskCount());
+
+    // Try to execute another task. We expect it to be rejected.
+    try {
+      executor.execute(new TaskThatDoesNothing());
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    // Release the signal so the active tasks can complete.
+    signal.countDown();
+  }
+
+  public void testAdditionalTaskIsQueued() throws Exception {
+    QueuingExecutor executor = new QueuingExecutor(1, 2);
+
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch signal = new CountDownLatch(1);
+    executor.execute(new TaskThatWaitsForSignal(started, signal));
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    // The next two tasks wait in the queue, the one after that is rejected.
+    CountDownLatch done = new CountDownLatch(2);
+    QueuingExecutor.QueuedTask first = executor.submit("a", new TaskThatCountsDown(done));
+    QueuingExecutor.QueuedTask second = executor.submit("b", new TaskThatCountsDown(done));
+    assertEquals(1, first.getQueuePosition());
+    assertEquals(2, second.getQueuePosition());
+    assertEquals(2, executor.getQueuedTaskCount());
+    try {
+      executor.execute(new TaskThatDoesNothing());
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    // Once the running task completes, the queued tasks run on the same worker.
+    signal.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(0, first.getQueuePosition());
+    assertEquals(0, executor.getQueuedTaskCount());
+  }
+
+  public void testQueueIsFairAcrossUsers() throws Exception {
+    QueuingExecutor executor = new QueuingExecutor(1, 10);
+
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch signal = new CountDownLatch(1);
+    executor.submit("busy", new TaskThatWaitsForSignal(started, signal));
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    // User "busy" queues three more builds before user "other" queues one. The build for "other"
+    // should run before the second and third queued builds for "busy".
+    List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch done = new CountDownLatch(4);
+    executor.submit("busy", new TaskThatRecordsOrder(order, "busy1", done));
+    executor.submit("busy", new TaskThatRecordsOrder(order, "busy2", done));
+    executor.submit("busy", new TaskThatRecordsOrder(order, "busy3", done));
+    QueuingExecutor.QueuedTask other =
+        executor.submit("other", new TaskThatRecordsOrder(order, "other", done));
+    assertEquals(1, other.getQueuePosition());
+
+    signal.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals("other", order.get(0));
+    assertEquals("busy1", order.get(1));
+    assertEquals("busy2", order.get(2));
+    assertEquals("busy3", order.get(3));
+  }
+
+  public void testTasksAreHeldWhileNotAdmitting() throws Exception {
+    QueuingExecutor executor = new QueuingExecutor(2, 1);
+    executor.setAdmitting(false);
+
+    // The first task waits in the queue even though workers are free, the next is rejected.
+    CountDownLatch done = new CountDownLatch(1);
+    executor.submit("a", new TaskThatCountsDown(done));
+    try {
+      executor.execute(new TaskThatDoesNothing());
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+    assertEquals(1, executor.getQueuedTaskCount());
+
+    // Once tasks are admitted again, the queued task runs.
+    executor.setAdmitting(true);
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(0, executor.getQueuedTaskCount());
+  }
+
+  public void testErrorDoesNotLoseWorker() throws Exception {
+    QueuingExecutor executor = new QueuingExecutor(1, 2);
+
+    // The task that throws an Error holds the only worker until the next task is queued.
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch signal = new CountDownLatch(1);
+    executor.submit("a", new TaskThatThrowsError(started, signal));
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    CountDownLatch done = new CountDownLatch(1);
+    executor.submit("b", new TaskThatCountsDown(done));
+
+    // The worker dies, and another one runs the queued task.
+    signal.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+
+    // The dead worker's slot is free for later tasks.
+    CountDownLatch doneLater = new CountDownLatch(1);
+    executor.submit("c", new TaskThatCountsDown(doneLater));
+    assertTrue(doneLater.await(10, TimeUnit.SECONDS));
+  }
+
+  private static class TaskThatThrowsError extends TaskThatWaitsForSignal {
+    private TaskThatThrowsError(CountDownLatch started, CountDownLatch signal) {
+      super(started, signal);
+    }
+
+    @Override
+    public void run() {
+      super.run();
+      throw new AssertionError("Expected by the test");
+    }
+  }
+
+  private static class TaskThatWaitsForSignal implements Runnable {
+    private final CountDownLatch started;
+    private final CountDownLatch signal;
+    private TaskThatWaitsForSignal(CountDownLatch started, CountDownLatch signal) {
+      this.started = started;
+      this.signal = signal;
+    }
+
+    @Override
+    public void run() {
+      started.countDown();
+      try {
+        // Wait for the signal.
+        signal.await();
+      } catch (InterruptedException e) {
+        // ignored
+      }
+    }
+  }
+
+  private static class TaskThatCountsDown implements Runnable {
+    private final CountDownLatch done;
+    private TaskThatCountsDown(CountDownLatch done) {
+      this.done = done;
+    }
+
+    @Override
+    public void run() {
+      done.countDown();
+    }
+  }
+
+  private static class TaskThatRecordsOrder implements Runnable {
+    private final List<String> order;
+    private final String name;
+    private final CountDownLatch done;
+    private TaskThatRecordsOrder(List<String> order, String name, CountDownLatch done) {
+      this.order = order;
+      this.name = name;
+      this.done = done;
+    }
+
+    @Override
+    public void run() {
+      order.add(name);
+      done.countDown();
+    }
+  }
+
+  private static class TaskThatDoesNothing implements Runnable {
+    @Override
+    public void run() {
+    }
+  }
+}
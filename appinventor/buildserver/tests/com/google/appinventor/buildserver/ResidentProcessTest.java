@@ -0,0 +1,54 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ResidentProcess class.
+ *
+ */
+public class ResidentProcessTest extends TestCase {
+  private static final long TIMEOUT_MS = 10000;
+
+  // A shell process that speaks the resident process protocol. For each request, it echoes the
+  // request on standard output and writes "warning" on standard error, neither followed by a
+  // line break.
+  private static final String SCRIPT =
+      "done='" + ResidentProcess.DONE + "'\n"
+      + "echo \"$done\" >&2\n"
+      + "echo \"$done 0\"\n"
+      + "while read request; do\n"
+      + "  printf 'line\\n%s' \"$request\"\n"
+      + "  printf 'warning' >&2\n"
+      + "  echo \"$done\" >&2\n"
+      + "  echo \"$done 1\"\n"
+      + "done\n";
+
+  public void testOutputWithoutLineBreak() throws Exception {
+    ResidentProcess process = ResidentProcess.start("test",
+        new String[] { "/bin/sh", "-c", SCRIPT }, TIMEOUT_MS);
+    assertNotNull(process);
+    try {
+      for (String request : new String[] { "first", "second" }) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        long start = System.currentTimeMillis();
+        Integer status = process.run(request, new PrintStream(out, true),
+            new PrintStream(err, true), TIMEOUT_MS);
+        assertTrue(System.currentTimeMillis() - start < TIMEOUT_MS);
+        assertEquals(Integer.valueOf(ResidentProcess.STATUS_FAILED), status);
+        assertEquals("line" + System.getProperty("line.separator") + request, out.toString());
+        assertEquals("warning", err.toString());
+      }
+    } finally {
+      process.destroy();
+    }
+  }
+}
@@ -0,0 +1,147 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests YailGeneratorPool class.
+ *
+ */
+public class YailGeneratorPoolTest extends TestCase {
+  private File tmpDir;
+  private String generatorJar;
+
+  /**
+   * Stands in for YailGenerator.jar. It writes the name of the form properties file as the
+   * generated code, without a final line break, and fails for forms named "Bad".
+   */
+  public static final class FakeGenerator {
+    public static void main(String[] args) throws Exception {
+      // Takes a while, so that screens generated at the same time overlap.
+      Thread.sleep(200);
+      String formName = new File(args[0]).getName();
+      if (formName.startsWith("Bad")) {
+        System.err.print("Unable to generate " + formName);
+        System.exit(1);
+      }
+      System.out.print("(yail " + formName + ")");
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    // A jar with FakeGenerator as its main class.
+    String className = FakeGenerator.class.getName();
+    String classFile = className.replace('.', '/') + ".class";
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, className);
+    File jar = new File(tmpDir, "YailGenerator.jar");
+    JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest);
+    InputStream classBytes = FakeGenerator.class.getClassLoader().getResourceAsStream(classFile);
+    try {
+      out.putNextEntry(new JarEntry(classFile));
+      ByteStreams.copy(classBytes, out);
+      out.closeEntry();
+    } finally {
+      classBytes.close();
+      out.close();
+    }
+    generatorJar = jar.getAbsolutePath();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  private Integer generate(YailGeneratorPool pool, String formName, StringBuilder result) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    Integer status = pool.generate(generatorJar,
+        new File(tmpDir, formName + ".scm").getAbsolutePath(),
+        new File(tmpDir, formName + ".bky").getAbsolutePath(),
+        new File(tmpDir, formName + ".yail").getAbsolutePath(),
+        new PrintStream(out, true), new PrintStream(err, true));
+    result.append(out.toString()).append(err.toString());
+    return status;
+  }
+
+  public void testGenerate() throws Exception {
+    YailGeneratorPool pool = new YailGeneratorPool(1);
+    StringBuilder result = new StringBuilder();
+    assertEquals(Integer.valueOf(0), generate(pool, "Screen1", result));
+    assertEquals("(yail Screen1.scm)", result.toString());
+
+    // The worker survives a failed screen and is reused.
+    result.setLength(0);
+    assertEquals(Integer.valueOf(1), generate(pool, "Bad", result));
+    assertEquals("Unable to generate Bad.scm", result.toString());
+    result.setLength(0);
+    assertEquals(Integer.valueOf(0), generate(pool, "Screen2", result));
+    assertEquals("(yail Screen2.scm)", result.toString());
+
+    assertEquals(1, pool.getStartedWorkers());
+    assertEquals(3, pool.getResidentRequests());
+    assertEquals(0, pool.getFallbackRequests());
+  }
+
+  public void testScreensWaitForBusyWorkers() throws Exception {
+    // More screens generated at the same time than the pool has workers, as a build with many
+    // screens does.
+    final YailGeneratorPool pool = new YailGeneratorPool(2);
+    int screens = 6;
+    ExecutorService executor = Executors.newFixedThreadPool(screens);
+    try {
+      List<Future<String>> futures = Lists.newArrayList();
+      for (int i = 0; i < screens; i++) {
+        final String formName = "Screen" + i;
+        futures.add(executor.submit(new Callable<String>() {
+          @Override
+          public String call() {
+            StringBuilder result = new StringBuilder();
+            assertEquals(Integer.valueOf(0), generate(pool, formName, result));
+            return result.toString();
+          }
+        }));
+      }
+      for (int i = 0; i < screens; i++) {
+        assertEquals("(yail Screen" + i + ".scm)", futures.get(i).get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // No screen fell back to a one-shot process, and no more workers were started than allowed.
+    assertEquals(0, pool.getFallbackRequests());
+    assertEquals(screens, pool.getResidentRequests());
+    assertEquals(2, pool.getStartedWorkers());
+    assertEquals(2, pool.getIdleWorkerCount());
+  }
+}
@@ -23,6 +23,7 @@ import com.google.appinventor.components.runtime.util.ErrorMessages;
 import com.google.appinventor.components.runtime.util.FileUtil;
 import com.google.appinventor.components.runtime.util.MediaUtil;
 import com.google.appinventor.components.runtime.util.PaintUtil;
+import com.google.appinventor.components.runtime.util.SpatialGrid;
 
 import android.app.Activity;
 import android.content.Context;
@@ -44,6 +45,8 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -114,11 +117,24 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
   private static final int DEFAULT_BACKGROUND_COLOR = Component.COLOR_WHITE;
   private static final int DEFAULT_TEXTALIGNMENT = Component.ALIGNMENT_CENTER;
   private static final int FLING_INTERVAL = 1000;  // ms
+  private static final int SPRITE_GRID_CELL_SIZE = 64;  // pixels
+
+  private static final Comparator<Sprite> BY_Z = new Comparator<Sprite>() {
+    @Override
+    public int compare(Sprite sprite1, Sprite sprite2) {
+      return Double.compare(sprite1.Z(), sprite2.Z());
+    }
+  };
 
   // Keep track of enclosed sprites.  This list should always be
   // sorted by increasing sprite.Z().
   private final List<Sprite> sprites;
 
+  // The bounding boxes of the sprites, for finding the sprites that a moved
+  // sprite might collide with.  Sprites are added in the same order as to
+  // sprites, so those found with the same Z value are in the order of sprites.
+  private final SpatialGrid<Sprite> spriteGrid;
+
   // Handle touches and drags
   private final MotionEventParser motionEventParser;
 
@@ -672,6 +688,7 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
     FontSize(Component.FONT_DEFAULT_SIZE);
 
     sprites = new LinkedList<Sprite>();
+    spriteGrid = new SpatialGrid<Sprite>(SPRITE_GRID_CELL_SIZE);
     motionEventParser = new MotionEventParser();
     mGestureDetector = new GestureDetector(context, new FlingGestureListener());
   }
@@ -703,6 +720,8 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
    * @param sprite the sprite to add
    */
   void addSprite(Sprite sprite) {
+    spriteGrid.add(sprite, sprite.getBoundingBox(1));
+
     // Add before first element with greater Z value.
     // This ensures not only that items are in increasing Z value
     // but that sprites whose Z values are always equal are
@@ -727,6 +746,17 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
    */
   void removeSprite(Sprite sprite) {
     sprites.remove(sprite);
+    spriteGrid.remove(sprite);
+  }
+
+  /**
+   * Records the position and size of a sprite that has changed, without
+   * checking for collisions.
+   *
+   * @param sprite the sprite whose location or size may have changed
+   */
+  void updateSpriteBounds(Sprite sprite) {
+    spriteGrid.move(sprite, sprite.getBoundingBox(1));
   }
 
   /**
@@ -776,6 +806,7 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
    */
   void registerChange(Sprite sprite) {
     view.invalidate();
+    updateSpriteBounds(sprite);
     findSpriteCollisions(sprite);
   }
 
@@ -795,10 +826,17 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
    * and
    * {@link com.google.appinventor.components.runtime.Sprite#Enabled()}.
    *
+   * <p>Only the sprites whose bounding boxes are near that of the moved
+   * sprite, and those it was colliding with, are checked.  They are checked
+   * in the order of {@link #sprites}.
+   *
    * @param movedSprite the sprite that has just changed position
    */
   protected void findSpriteCollisions(Sprite movedSprite) {
-    for (Sprite sprite : sprites) {
+    List<Sprite> nearbySprites = spriteGrid.find(movedSprite.getBoundingBox(1),
+        new ArrayList<Sprite>(movedSprite.getRegisteredCollisions()));
+    Collections.sort(nearbySprites, BY_Z);  // stable, so keeps the order within a layer
+    for (Sprite sprite : nearbySprites) {
       if (sprite != movedSprite) {
         // Check whether we already raised an event for their collision.
         if (movedSprite.CollidingWith(sprite)) {
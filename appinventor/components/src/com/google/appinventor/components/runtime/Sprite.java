@@ -21,7 +21,9 @@ import com.google.appinventor.components.runtime.util.TimerInternal;
 import android.os.Handler;
 import android.util.Log;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -45,6 +47,11 @@ public abstract class Sprite extends VisibleComponent
   private static final boolean DEFAULT_VISIBLE = true;
   private static final double DEFAULT_Z = 1.0;
 
+  // Whether each class of sprite uses Sprite.containsPoint, which makes it
+  // a rectangle for collision detection
+  private static final Map<Class<?>, Boolean> rectangularClasses =
+      new HashMap<Class<?>, Boolean>();
+
   protected final Canvas canvas;              // enclosing Canvas
   private final TimerInternal timerInternal;  // timer to control movement
   private final Handler androidUIHandler;     // for posting actions
@@ -584,6 +591,14 @@ public abstract class Sprite extends VisibleComponent
     return registeredCollisions.contains(other);
   }
 
+  /**
+   * Returns the sprites this sprite is currently colliding with.  Changes to
+   * the collisions change the returned set.
+   */
+  Set<Sprite> getRegisteredCollisions() {
+    return registeredCollisions;
+  }
+
   /**
    * Moves the sprite back in bounds if part of it extends out of bounds,
    * having no effect otherwise. If the sprite is too wide to fit on the
@@ -661,6 +676,9 @@ public abstract class Sprite extends VisibleComponent
     if (!initialized) {
       // During REPL, components are not initalized, but we still want to repaint the canvas.
       canvas.getView().invalidate();
+      // Keep the canvas's index of sprite positions up to date, so that
+      // initialized sprites collide with this one.
+      canvas.updateSpriteBounds(this);
       return;
     }
     int edge = hitEdge();
@@ -837,6 +855,11 @@ public abstract class Sprite extends VisibleComponent
    * merely see whether the rectangular regions around each intersect, since
    * some types of sprite, such as BallSprite, are not rectangular.
    *
+   * <p>Collisions between balls and rectangular sprites are computed from
+   * their shapes, so that any overlap counts, even one narrower than a
+   * pixel.  Sprites that only touch don't collide.  For other sprites, the points of the intersection of their
+   * bounding boxes are tested with {@link #containsPoint}, one pixel apart.
+   *
    * @param sprite1 one sprite
    * @param sprite2 another sprite
    * @return {@code true} if they are in collision, {@code false} otherwise
@@ -849,6 +872,21 @@ public abstract class Sprite extends VisibleComponent
       return false;
     }
 
+    if (sprite1 instanceof Ball) {
+      Ball ball1 = (Ball) sprite1;
+      if (sprite2 instanceof Ball) {
+        return ballsColliding(ball1, (Ball) sprite2);
+      } else if (isRectangular(sprite2)) {
+        return ballCollidingWithRectangle(ball1, sprite2);
+      }
+    } else if (isRectangular(sprite1)) {
+      if (sprite2 instanceof Ball) {
+        return ballCollidingWithRectangle((Ball) sprite2, sprite1);
+      } else if (isRectangular(sprite2)) {
+        return rectanglesColliding(sprite1, sprite2);
+      }
+    }
+
     // If we get here, rect1 has been mutated to hold the intersection of the
     // two bounding boxes.  Now check every point in the intersection to see if
     // both sprites contain that point.
@@ -863,6 +901,71 @@ public abstract class Sprite extends VisibleComponent
     return false;
   }
 
+  /*
+   * Whether the sprite uses Sprite.containsPoint, and so is the rectangle
+   * (X, Y) to (X + Width, Y + Height), excluding its right and bottom edges.
+   */
+  private static boolean isRectangular(Sprite sprite) {
+    Class<?> spriteClass = sprite.getClass();
+    synchronized (rectangularClasses) {
+      Boolean rectangular = rectangularClasses.get(spriteClass);
+      if (rectangular == null) {
+        try {
+          rectangular = spriteClass.getMethod("containsPoint", double.class, double.class)
+              .getDeclaringClass() == Sprite.class;
+        } catch (NoSuchMethodException e) {
+          rectangular = false;
+        }
+        rectangularClasses.put(spriteClass, rectangular);
+      }
+      return rectangular;
+    }
+  }
+
+  /*
+   * The rectangles share a point if their x and y ranges overlap, however
+   * little.  Testing points one pixel apart finds the same overlaps at whole
+   * pixel positions, but can step over an overlap narrower than a pixel when
+   * the sprites are at fractional positions.
+   */
+  private static boolean rectanglesColliding(Sprite sprite1, Sprite sprite2) {
+    return Math.max(sprite1.xLeft, sprite2.xLeft)
+        < Math.min(sprite1.xLeft + sprite1.Width(), sprite2.xLeft + sprite2.Width())
+        && Math.max(sprite1.yTop, sprite2.yTop)
+        < Math.min(sprite1.yTop + sprite1.Height(), sprite2.yTop + sprite2.Height());
+  }
+
+  /*
+   * Balls collide if the distance between their centers is less than the sum
+   * of their radii.  Balls that only touch don't collide, as with
+   * rectangles.
+   */
+  private static boolean ballsColliding(Ball ball1, Ball ball2) {
+    double dx = (ball1.xLeft + ball1.Radius()) - (ball2.xLeft + ball2.Radius());
+    double dy = (ball1.yTop + ball1.Radius()) - (ball2.yTop + ball2.Radius());
+    double distance = ball1.Radius() + ball2.Radius();
+    return dx * dx + dy * dy < distance * distance;
+  }
+
+  /*
+   * A ball collides with a rectangle if the point of the rectangle nearest
+   * the center of the ball is inside the ball, not on its edge.
+   */
+  private static boolean ballCollidingWithRectangle(Ball ball, Sprite rectangle) {
+    if (rectangle.Width() <= 0 || rectangle.Height() <= 0) {
+      return false;
+    }
+    double xCenter = ball.xLeft + ball.Radius();
+    double yCenter = ball.yTop + ball.Radius();
+    double xNearest = Math.max(rectangle.xLeft,
+        Math.min(xCenter, rectangle.xLeft + rectangle.Width()));
+    double yNearest = Math.max(rectangle.yTop,
+        Math.min(yCenter, rectangle.yTop + rectangle.Height()));
+    double dx = xCenter - xNearest;
+    double dy = yCenter - yNearest;
+    return dx * dx + dy * dy < ball.Radius() * ball.Radius();
+  }
+
   /**
    * Determines whether this sprite intersects with the given rectangle.
    *
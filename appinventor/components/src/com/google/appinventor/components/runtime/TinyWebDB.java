@@ -21,6 +21,7 @@ import com.google.appinventor.components.runtime.collect.Lists;
 import com.google.appinventor.components.runtime.errors.YailRuntimeError;
 import com.google.appinventor.components.runtime.util.AsyncCallbackPair;
 import com.google.appinventor.components.runtime.util.AsynchUtil;
+import com.google.appinventor.components.runtime.util.ErrorMessages;
 import com.google.appinventor.components.runtime.util.JsonUtil;
 import com.google.appinventor.components.runtime.util.WebServiceUtil;
 
@@ -67,7 +68,8 @@ import org.json.JSONException;
     iconName = "images/tinyWebDB.png")
 @SimpleObject
 @UsesPermissions(permissionNames = "android.permission.INTERNET")
-public class TinyWebDB extends AndroidNonvisibleComponent implements Component {
+public class TinyWebDB extends AndroidNonvisibleComponent implements Component,
+    OnDestroyListener, Deleteable {
 
   private static final String LOG_TAG = "TinyWebDB";
   private static final String STOREAVALUE_COMMAND = "storeavalue";
@@ -91,6 +93,7 @@ public class TinyWebDB extends AndroidNonvisibleComponent implements Component {
     // back in the UI thread.  They do this by posting those actions
     // to androidUIHandler.
     androidUIHandler = new Handler();
+    form.registerForOnDestroy(this);
     // We set the initial value of serviceURL to be the
     // demo Web service.
     serviceURL = "http://appinvtinywebdb.appspot.com/";
@@ -153,7 +156,10 @@ public class TinyWebDB extends AndroidNonvisibleComponent implements Component {
   public void StoreValue(final String tag, final Object valueToStore) {
     final Runnable call = new Runnable() {
       public void run() { postStoreValue(tag, valueToStore); }};
-      AsynchUtil.runAsynchronously(call);
+    if (!AsynchUtil.runAsynchronously(this, call)) {
+      form.dispatchErrorOccurredEvent(this, "StoreValue",
+          ErrorMessages.ERROR_TINYWEBDB_TOO_MANY_REQUESTS, tag);
+    }
   }
 
   // Here's part (b): The actual communication, which runs
@@ -259,7 +265,10 @@ public class TinyWebDB extends AndroidNonvisibleComponent implements Component {
   @SimpleFunction
   public void GetValue(final String tag) {
     final Runnable call = new Runnable() { public void run() { postGetValue(tag); }};
-    AsynchUtil.runAsynchronously(call);
+    if (!AsynchUtil.runAsynchronously(this, call)) {
+      form.dispatchErrorOccurredEvent(this, "GetValue",
+          ErrorMessages.ERROR_TINYWEBDB_TOO_MANY_REQUESTS, tag);
+    }
   }
 
   private void postGetValue(final String tag) {
@@ -350,4 +359,18 @@ public class TinyWebDB extends AndroidNonvisibleComponent implements Component {
     // Log.w(LOG_TAG, "calling error event handler: " + message);
     EventDispatcher.dispatchEvent(this, "WebServiceError", message);
   }
+
+  // OnDestroyListener implementation
+
+  @Override
+  public void onDestroy() {
+    AsynchUtil.cancel(this);
+  }
+
+  // Deleteable implementation
+
+  @Override
+  public void onDelete() {
+    AsynchUtil.cancel(this);
+  }
 }
@@ -28,6 +28,7 @@ import com.google.appinventor.components.runtime.util.GingerbreadUtil;
 import com.google.appinventor.components.runtime.util.JsonUtil;
 import com.google.appinventor.components.runtime.util.MediaUtil;
 import com.google.appinventor.components.runtime.util.SdkLevel;
+import com.google.appinventor.components.runtime.util.WebResponseCache;
 import com.google.appinventor.components.runtime.util.YailList;
 
 import android.app.Activity;
@@ -45,6 +46,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.CookieHandler;
 import java.net.HttpURLConnection;
@@ -53,8 +55,11 @@ import java.net.ProtocolException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 /**
  * The Original Web component provided functions for HTTP GET and POST requests.
@@ -72,7 +77,8 @@ import java.util.Map;
 @UsesLibraries(libraries = "json.jar")
 
 
-public class Web extends AndroidNonvisibleComponent implements Component {
+public class Web extends AndroidNonvisibleComponent implements Component,
+    OnDestroyListener, Deleteable {
   /**
    * InvalidRequestHeadersException can be thrown from processRequestHeaders.
    * It is thrown if the list passed to processRequestHeaders contains an item that is not a list.
@@ -129,6 +135,7 @@ public class Web extends AndroidNonvisibleComponent implements Component {
     final boolean allowCookies;
     final boolean saveResponse;
     final String responseFileName;
+    final boolean useCache;
     final Map<String, List<String>> requestHeaders;
     final Map<String, List<String>> cookies;
 
@@ -138,6 +145,7 @@ public class Web extends AndroidNonvisibleComponent implements Component {
       allowCookies = web.allowCookies;
       saveResponse = web.saveResponse;
       responseFileName = web.responseFileName;
+      useCache = web.useCache;
       requestHeaders = processRequestHeaders(web.requestHeaders);
 
       Map<String, List<String>> cookiesTemp = null;
@@ -156,6 +164,13 @@ public class Web extends AndroidNonvisibleComponent implements Component {
 
   private static final String LOG_TAG = "Web";
 
+  private static final int BUFFER_SIZE = 0x2000;
+
+  // Text responses to GET requests, shared by all Web components, for the
+  // UseCache property
+  private static final WebResponseCache responseCache =
+      new WebResponseCache(1024 * 1024, 256 * 1024);
+
   private static final Map<String, String> mimeTypeToExtension;
   static {
     mimeTypeToExtension = Maps.newHashMap();
@@ -182,6 +197,7 @@ public class Web extends AndroidNonvisibleComponent implements Component {
   private YailList requestHeaders = new YailList();
   private boolean saveResponse;
   private String responseFileName = "";
+  private boolean useCache;
 
   /**
    * Creates a new Web component.
@@ -191,6 +207,12 @@ public class Web extends AndroidNonvisibleComponent implements Component {
   public Web(ComponentContainer container) {
     super(container.$form());
     activity = container.$context();
+    form.registerForOnDestroy(this);
+
+    // Before Froyo, reusing connections could corrupt responses.
+    if (SdkLevel.getLevel() < SdkLevel.LEVEL_FROYO) {
+      System.setProperty("http.keepAlive", "false");
+    }
 
     cookieHandler = (SdkLevel.getLevel() >= SdkLevel.LEVEL_GINGERBREAD)
         ? GingerbreadUtil.newCookieManager()
@@ -321,6 +343,27 @@ public class Web extends AndroidNonvisibleComponent implements Component {
     this.responseFileName = responseFileName;
   }
 
+  /**
+   * Returns whether responses to GET requests should be cached.
+   */
+  @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+      description = "Whether text responses to GET requests should be kept, so that a request " +
+      "for the same Url only fetches the response again if it has changed. The kept response " +
+      "is used if the server answers that it hasn't changed.")
+  public boolean UseCache() {
+    return useCache;
+  }
+
+  /**
+   * Specifies whether responses to GET requests should be cached.
+   */
+  @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN,
+      defaultValue = "false")
+  @SimpleProperty
+  public void UseCache(boolean useCache) {
+    this.useCache = useCache;
+  }
+
   @SimpleFunction(description = "Clears all cookies for this Web component.")
   public void ClearCookies() {
     if (cookieHandler != null) {
@@ -349,7 +392,7 @@ public class Web extends AndroidNonvisibleComponent implements Component {
       return;
     }
 
-    AsynchUtil.runAsynchronously(new Runnable() {
+    boolean accepted = AsynchUtil.runAsynchronously(this, new Runnable() {
       @Override
       public void run() {
         try {
@@ -363,6 +406,10 @@ public class Web extends AndroidNonvisibleComponent implements Component {
         }
       }
     });
+    if (!accepted) {
+      form.dispatchErrorOccurredEvent(this, "Get",
+          ErrorMessages.ERROR_WEB_TOO_MANY_REQUESTS, webProps.urlString);
+    }
   }
 
   /**
@@ -419,7 +466,7 @@ public class Web extends AndroidNonvisibleComponent implements Component {
       return;
     }
 
-    AsynchUtil.runAsynchronously(new Runnable() {
+    boolean accepted = AsynchUtil.runAsynchronously(this, new Runnable() {
       @Override
       public void run() {
         try {
@@ -433,6 +480,10 @@ public class Web extends AndroidNonvisibleComponent implements Component {
         }
       }
     });
+    if (!accepted) {
+      form.dispatchErrorOccurredEvent(this, "PostFile",
+          ErrorMessages.ERROR_WEB_TOO_MANY_REQUESTS, webProps.urlString);
+    }
   }
 
   /**
@@ -489,7 +540,7 @@ public class Web extends AndroidNonvisibleComponent implements Component {
       return;
     }
 
-    AsynchUtil.runAsynchronously(new Runnable() {
+    boolean accepted = AsynchUtil.runAsynchronously(this, new Runnable() {
       @Override
       public void run() {
         try {
@@ -503,6 +554,10 @@ public class Web extends AndroidNonvisibleComponent implements Component {
         }
       }
     });
+    if (!accepted) {
+      form.dispatchErrorOccurredEvent(this, "PutFile",
+          ErrorMessages.ERROR_WEB_TOO_MANY_REQUESTS, webProps.urlString);
+    }
   }
 
   /**
@@ -523,7 +578,7 @@ public class Web extends AndroidNonvisibleComponent implements Component {
       return;
     }
 
-    AsynchUtil.runAsynchronously(new Runnable() {
+    boolean accepted = AsynchUtil.runAsynchronously(this, new Runnable() {
       @Override
       public void run() {
         try {
@@ -537,6 +592,10 @@ public class Web extends AndroidNonvisibleComponent implements Component {
         }
       }
     });
+    if (!accepted) {
+      form.dispatchErrorOccurredEvent(this, "Delete",
+          ErrorMessages.ERROR_WEB_TOO_MANY_REQUESTS, webProps.urlString);
+    }
   }
 
   /*
@@ -564,7 +623,7 @@ public class Web extends AndroidNonvisibleComponent implements Component {
       return;
     }
 
-    AsynchUtil.runAsynchronously(new Runnable() {
+    boolean accepted = AsynchUtil.runAsynchronously(this, new Runnable() {
       @Override
       public void run() {
         // Convert text to bytes using the encoding.
@@ -592,6 +651,10 @@ public class Web extends AndroidNonvisibleComponent implements Component {
         }
       }
     });
+    if (!accepted) {
+      form.dispatchErrorOccurredEvent(this, functionName,
+          ErrorMessages.ERROR_WEB_TOO_MANY_REQUESTS, webProps.urlString);
+    }
   }
 
 
@@ -833,10 +896,28 @@ public class Web extends AndroidNonvisibleComponent implements Component {
   private void performRequest(final CapturedProperties webProps, byte[] postData, String postFile, String httpVerb)
       throws IOException {
 
+    // Only text responses to GET requests are cached.
+    boolean cacheable = webProps.useCache && !webProps.saveResponse && httpVerb.equals("GET")
+        && postData == null && postFile == null;
+    WebResponseCache.Response cached = cacheable ? responseCache.get(webProps.urlString) : null;
+
     // Open the connection.
     HttpURLConnection connection = openConnection(webProps, httpVerb);
     if (connection != null) {
+      // The connection is only closed if the request fails. Otherwise it is
+      // kept open, once the response has been read, to be reused by the
+      // next request to the same host.
+      boolean succeeded = false;
       try {
+        if (cached != null) {
+          // Ask for the response only if it has changed.
+          if (cached.etag != null) {
+            connection.addRequestProperty("If-None-Match", cached.etag);
+          }
+          if (cached.lastModified != null) {
+            connection.addRequestProperty("If-Modified-Since", cached.lastModified);
+          }
+        }
         if (postData != null) {
           writeRequestData(connection, postData);
         } else if (postFile != null) {
@@ -844,11 +925,13 @@ public class Web extends AndroidNonvisibleComponent implements Component {
         }
 
         // Get the response.
-        final int responseCode = connection.getResponseCode();
-        final String responseType = getResponseType(connection);
+        int code = connection.getResponseCode();
+        String type = getResponseType(connection);
         processResponseCookies(connection);
 
         if (saveResponse) {
+          final int responseCode = code;
+          final String responseType = type;
           final String path = saveResponseContent(connection, webProps.responseFileName,
               responseType);
 
@@ -860,7 +943,17 @@ public class Web extends AndroidNonvisibleComponent implements Component {
             }
           });
         } else {
-          final String responseContent = getResponseContent(connection);
+          String content = getResponseContent(connection, type);
+          if (cached != null && code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            code = cached.responseCode;
+            type = cached.responseType;
+            content = cached.content;
+          } else if (cacheable) {
+            cacheResponse(connection, webProps.urlString, code, type, content);
+          }
+          final int responseCode = code;
+          final String responseType = type;
+          final String responseContent = content;
 
           // Dispatch the event.
           activity.runOnUiThread(new Runnable() {
@@ -870,13 +963,28 @@ public class Web extends AndroidNonvisibleComponent implements Component {
             }
           });
         }
+        succeeded = true;
 
       } finally {
-        connection.disconnect();
+        if (!succeeded) {
+          connection.disconnect();
+        }
       }
     }
   }
 
+  private static void cacheResponse(HttpURLConnection connection, String urlString,
+      int responseCode, String responseType, String content) {
+    String cacheControl = connection.getHeaderField("Cache-Control");
+    if (responseCode != HttpURLConnection.HTTP_OK
+        || (cacheControl != null && cacheControl.toLowerCase().contains("no-store"))) {
+      responseCache.remove(urlString);
+      return;
+    }
+    responseCache.put(urlString, new WebResponseCache.Response(responseCode, responseType,
+        content, connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified")));
+  }
+
   /**
    * Open a connection to the resource and set the HTTP action to PUT or DELETE if it is one of
    * them. GET would be the default, and POST is set in writeRequestData or writeRequestFile
@@ -899,11 +1007,19 @@ public class Web extends AndroidNonvisibleComponent implements Component {
     }
 
     // Request Headers
+    boolean acceptEncodingSet = false;
     for (Map.Entry<String, List<String>> header : webProps.requestHeaders.entrySet()) {
       String name = header.getKey();
       for (String value : header.getValue()) {
         connection.addRequestProperty(name, value);
       }
+      acceptEncodingSet |= name.equalsIgnoreCase("Accept-Encoding");
+    }
+
+    // Unless the user asked for an encoding, ask for a compressed response,
+    // which getConnectionStream decompresses.
+    if (!acceptEncodingSet) {
+      connection.setRequestProperty("Accept-Encoding", "gzip");
     }
 
     // Cookies
@@ -952,13 +1068,7 @@ public class Web extends AndroidNonvisibleComponent implements Component {
       connection.setChunkedStreamingMode(0);
       BufferedOutputStream out = new BufferedOutputStream(connection.getOutputStream());
       try {
-        while (true) {
-          int b = in.read();
-          if (b == -1) {
-            break;
-          }
-          out.write(b);
-        }
+        copy(in, out);
         out.flush();
       } finally {
         out.close();
@@ -986,13 +1096,14 @@ public class Web extends AndroidNonvisibleComponent implements Component {
     }
   }
 
-  private static String getResponseContent(HttpURLConnection connection) throws IOException {
-    // Use the content encoding to convert bytes to characters.
-    String encoding = connection.getContentEncoding();
-    if (encoding == null) {
-      encoding = "UTF-8";
+  private static String getResponseContent(HttpURLConnection connection, String responseType)
+      throws IOException {
+    InputStream in = getConnectionStream(connection);
+    if (in == null) {
+      return "";
     }
-    InputStreamReader reader = new InputStreamReader(getConnectionStream(connection), encoding);
+    // Use the charset of the content type to convert bytes to characters.
+    InputStreamReader reader = new InputStreamReader(in, getResponseCharset(responseType));
     try {
       int contentLength = connection.getContentLength();
       StringBuilder sb = (contentLength != -1)
@@ -1009,43 +1120,80 @@ public class Web extends AndroidNonvisibleComponent implements Component {
     }
   }
 
+  /*
+   * Returns the charset of the response type, for example "ISO-8859-1" for
+   * "text/html; charset=ISO-8859-1", or UTF-8 if there is none.
+   */
+  private static String getResponseCharset(String responseType) {
+    for (String parameter : responseType.split(";")) {
+      parameter = parameter.trim();
+      if (parameter.toLowerCase().startsWith("charset=")) {
+        String charset = parameter.substring("charset=".length()).replace("\"", "").trim();
+        try {
+          if (Charset.isSupported(charset)) {
+            return charset;
+          }
+        } catch (IllegalCharsetNameException e) {
+          // Use the default.
+        }
+      }
+    }
+    return "UTF-8";
+  }
+
   private static String saveResponseContent(HttpURLConnection connection,
       String responseFileName, String responseType) throws IOException {
     File file = createFile(responseFileName, responseType);
 
-    BufferedInputStream in = new BufferedInputStream(getConnectionStream(connection), 0x1000);
+    // The response is copied to the file as it arrives, a buffer at a time.
+    InputStream in = getConnectionStream(connection);
     try {
-      BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(file), 0x1000);
+      BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
       try {
-        // Copy the contents from the input stream to the output stream.
-        while (true) {
-          int b = in.read();
-          if (b == -1) {
-            break;
-          }
-          out.write(b);
+        if (in != null) {
+          copy(in, out);
         }
         out.flush();
       } finally {
         out.close();
       }
     } finally {
-      in.close();
+      if (in != null) {
+        in.close();
+      }
     }
 
     return file.getAbsolutePath();
   }
 
-  private static InputStream getConnectionStream(HttpURLConnection connection) {
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+  }
+
+  /*
+   * Returns the response, or the error response, decompressed if it is
+   * gzipped. Returns null if there is no response to read.
+   */
+  private static InputStream getConnectionStream(HttpURLConnection connection)
+      throws IOException {
     // According to the Android reference documentation for HttpURLConnection: If the HTTP response
     // indicates that an error occurred, getInputStream() will throw an IOException. Use
     // getErrorStream() to read the error response.
+    InputStream in;
     try {
-      return connection.getInputStream();
+      in = connection.getInputStream();
     } catch (IOException e1) {
       // Use the error response.
-      return connection.getErrorStream();
+      in = connection.getErrorStream();
     }
+    if (in != null && "gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+      in = new GZIPInputStream(in, BUFFER_SIZE);
+    }
+    return in;
   }
 
   private static File createFile(String fileName, String responseType)
@@ -1141,4 +1289,18 @@ public class Web extends AndroidNonvisibleComponent implements Component {
     }
     return null;
   }
+
+  // OnDestroyListener implementation
+
+  @Override
+  public void onDestroy() {
+    AsynchUtil.cancel(this);
+  }
+
+  // Deleteable implementation
+
+  @Override
+  public void onDelete() {
+    AsynchUtil.cancel(this);
+  }
 }
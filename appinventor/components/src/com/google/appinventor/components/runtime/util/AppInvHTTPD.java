@@ -7,8 +7,10 @@
 
 package com.google.appinventor.components.runtime.util;
 import com.google.appinventor.components.runtime.ReplForm;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Formatter;
+import java.util.List;
 import java.util.Properties;
 import java.io.BufferedInputStream;
 import java.io.File;
@@ -34,6 +36,10 @@ import com.google.appinventor.components.runtime.util.AsynchUtil;
 import kawa.standard.Scheme;
 import gnu.expr.Language;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
@@ -120,87 +126,24 @@ public class AppInvHTTPD extends NanoHTTPD {
 
     if (uri.equals("/_newblocks")) { // Handle AJAX calls from the newblocks code
       String inSeq = parms.getProperty("seq", "0");
-      int iseq = Integer.parseInt(inSeq);
       String blockid = parms.getProperty("blockid");
       String code = parms.getProperty("code");
       String inMac = parms.getProperty("mac", "no key provided");
-      String compMac = "";
-      String input_code = code;
-      if (hmacKey != null) {
-        try {
-          Mac hmacSha1 = Mac.getInstance("HmacSHA1");
-          SecretKeySpec key = new SecretKeySpec(hmacKey, "RAW");
-          hmacSha1.init(key);
-          byte [] tmpMac = hmacSha1.doFinal((code + inSeq + blockid).getBytes());
-          StringBuffer sb = new StringBuffer(tmpMac.length * 2);
-          Formatter formatter = new Formatter(sb);
-          for (byte b : tmpMac)
-            formatter.format("%02x", b);
-          compMac = sb.toString();
-        } catch (Exception e) {
-          Log.e(LOG_TAG, "Error working with hmac", e);
-          form.dispatchErrorOccurredEvent(form, "AppInvHTTPD",
-            ErrorMessages.ERROR_REPL_SECURITY_ERROR, "Exception working on HMAC");
-          Response res = new Response(HTTP_OK, MIME_PLAINTEXT, "NOT");
-          return(res);
-        }
-        Log.d(LOG_TAG, "Incoming Mac = " + inMac);
-        Log.d(LOG_TAG, "Computed Mac = " + compMac);
-        Log.d(LOG_TAG, "Incoming seq = " + inSeq);
-        Log.d(LOG_TAG, "Computed seq = " + seq);
-        Log.d(LOG_TAG, "blockid = " + blockid);
-        if (!inMac.equals(compMac)) {
-          Log.e(LOG_TAG, "Hmac does not match");
-          form.dispatchErrorOccurredEvent(form, "AppInvHTTPD",
-            ErrorMessages.ERROR_REPL_SECURITY_ERROR, "Invalid HMAC");
-          Response res = new Response(HTTP_OK, MIME_JSON, "{\"status\" : \"BAD\", \"message\" : \"Security Error: Invalid MAC\"}");
-          return(res);
-        }
-        if ((seq != iseq) && (seq != (iseq+1))) {
-          Log.e(LOG_TAG, "Seq does not match");
-          form.dispatchErrorOccurredEvent(form, "AppInvHTTPD",
-            ErrorMessages.ERROR_REPL_SECURITY_ERROR, "Invalid Seq");
-          Response res = new Response(HTTP_OK, MIME_JSON, "{\"status\" : \"BAD\", \"message\" : \"Security Error: Invalid Seq\"}");
-          return(res);
-        }
-        // Seq Fixup: Sometimes the Companion doesn't increment it's seq if it is in the middle of a project switch
-        // so we tolerate an off-by-one here.
-        if (seq == (iseq+1))
-          Log.e(LOG_TAG, "Seq Fixup Invoked");
-        seq = iseq + 1;
-      } else {                  // No hmacKey
-        Log.e(LOG_TAG, "No HMAC Key");
-        form.dispatchErrorOccurredEvent(form, "AppInvHTTPD",
-          ErrorMessages.ERROR_REPL_SECURITY_ERROR, "No HMAC Key");
-        Response res = new Response(HTTP_OK, MIME_JSON, "{\"status\" : \"BAD\", \"message\" : \"Security Error: No HMAC Key\"}");
+      String error = checkCode(code, inSeq, blockid, inMac);
+      if (error != null) {
+        Response res = new Response(HTTP_OK, MIME_JSON, error);
         return(res);
       }
 
-      code = "(begin (require <com.google.youngandroid.runtime>) (process-repl-input " + blockid + " (begin " +
-        code + " )))";
-
-      Log.d(LOG_TAG, "To Eval: " + code);
-
-      Response res;
-
-      try {
-        // Don't evaluate a simple "#f" which is used by the poller
-        if (input_code.equals("#f")) {
-          Log.e(LOG_TAG, "Skipping evaluation of #f");
-        } else {
-          scheme.eval(code);
-        }
-        res = new Response(HTTP_OK, MIME_JSON, RetValManager.fetch(false));
-      } catch (Throwable ex) {
-        Log.e(LOG_TAG, "newblocks: Scheme Failure", ex);
-        RetValManager.appendReturnValue(blockid, "BAD", ex.toString());
-        res = new Response(HTTP_OK, MIME_JSON, RetValManager.fetch(false));
-      }
+      evalCode(blockid, code);
+      Response res = new Response(HTTP_OK, MIME_JSON, RetValManager.fetch(false));
       res.addHeader("Access-Control-Allow-Origin", "*");
       res.addHeader("Access-Control-Allow-Headers", "origin, content-type");
       res.addHeader("Access-Control-Allow-Methods", "POST,OPTIONS,GET,HEAD,PUT");
       res.addHeader("Allow", "POST,OPTIONS,GET,HEAD,PUT");
       return(res);
+    } else if (uri.equals("/_channel")) { // Persistent connection from newer blocks editors
+      return serveChannel(header, mySocket);
     } else if (uri.equals("/_values")) {
       Response res = new Response(HTTP_OK, MIME_JSON, RetValManager.fetch(true)); // Blocking Fetch
       res.addHeader("Access-Control-Allow-Origin", "*");
@@ -408,6 +351,195 @@ public class AppInvHTTPD extends NanoHTTPD {
     return serveFile( uri, header, rootDir, true );
   }
 
+  /*
+   * Checks the mac and sequence number sent by the blocks editor with code
+   * to evaluate. Returns null if they are good, otherwise the JSON response
+   * to send back.
+   */
+  private String checkCode(String code, String inSeq, String blockid, String inMac) {
+    int iseq;
+    try {
+      iseq = Integer.parseInt(inSeq);
+    } catch (NumberFormatException e) {
+      Log.e(LOG_TAG, "Invalid seq: " + inSeq);
+      return "{\"status\" : \"BAD\", \"message\" : \"Security Error: Invalid Seq\"}";
+    }
+    String compMac = "";
+    if (hmacKey != null) {
+      try {
+        Mac hmacSha1 = Mac.getInstance("HmacSHA1");
+        SecretKeySpec key = new SecretKeySpec(hmacKey, "RAW");
+        hmacSha1.init(key);
+        byte [] tmpMac = hmacSha1.doFinal((code + inSeq + blockid).getBytes());
+        StringBuffer sb = new StringBuffer(tmpMac.length * 2);
+        Formatter formatter = new Formatter(sb);
+        for (byte b : tmpMac)
+          formatter.format("%02x", b);
+        compMac = sb.toString();
+      } catch (Exception e) {
+        Log.e(LOG_TAG, "Error working with hmac", e);
+        form.dispatchErrorOccurredEvent(form, "AppInvHTTPD",
+          ErrorMessages.ERROR_REPL_SECURITY_ERROR, "Exception working on HMAC");
+        return "{\"status\" : \"BAD\", \"message\" : \"Security Error: Exception processing MAC\"}";
+      }
+      Log.d(LOG_TAG, "Incoming Mac = " + inMac);
+      Log.d(LOG_TAG, "Computed Mac = " + compMac);
+      Log.d(LOG_TAG, "Incoming seq = " + inSeq);
+      Log.d(LOG_TAG, "Computed seq = " + seq);
+      Log.d(LOG_TAG, "blockid = " + blockid);
+      if (!inMac.equals(compMac)) {
+        Log.e(LOG_TAG, "Hmac does not match");
+        form.dispatchErrorOccurredEvent(form, "AppInvHTTPD",
+          ErrorMessages.ERROR_REPL_SECURITY_ERROR, "Invalid HMAC");
+        return "{\"status\" : \"BAD\", \"message\" : \"Security Error: Invalid MAC\"}";
+      }
+      if ((seq != iseq) && (seq != (iseq+1))) {
+        Log.e(LOG_TAG, "Seq does not match");
+        form.dispatchErrorOccurredEvent(form, "AppInvHTTPD",
+          ErrorMessages.ERROR_REPL_SECURITY_ERROR, "Invalid Seq");
+        return "{\"status\" : \"BAD\", \"message\" : \"Security Error: Invalid Seq\"}";
+      }
+      // Seq Fixup: Sometimes the Companion doesn't increment it's seq if it is in the middle of a project switch
+      // so we tolerate an off-by-one here.
+      if (seq == (iseq+1))
+        Log.e(LOG_TAG, "Seq Fixup Invoked");
+      seq = iseq + 1;
+      return null;
+    } else {                  // No hmacKey
+      Log.e(LOG_TAG, "No HMAC Key");
+      form.dispatchErrorOccurredEvent(form, "AppInvHTTPD",
+        ErrorMessages.ERROR_REPL_SECURITY_ERROR, "No HMAC Key");
+      return "{\"status\" : \"BAD\", \"message\" : \"Security Error: No HMAC Key\"}";
+    }
+  }
+
+  /*
+   * Evaluates code from the blocks editor for the block with the given id.
+   * The results are left with the RetValManager.
+   */
+  private void evalCode(String blockid, String input_code) {
+    String code = "(begin (require <com.google.youngandroid.runtime>) (process-repl-input " + blockid + " (begin " +
+      input_code + " )))";
+
+    Log.d(LOG_TAG, "To Eval: " + code);
+
+    try {
+      // Don't evaluate a simple "#f" which is used by the poller
+      if (input_code.equals("#f")) {
+        Log.e(LOG_TAG, "Skipping evaluation of #f");
+      } else {
+        scheme.eval(code);
+      }
+    } catch (Throwable ex) {
+      Log.e(LOG_TAG, "newblocks: Scheme Failure", ex);
+      RetValManager.appendReturnValue(blockid, "BAD", ex.toString());
+    }
+  }
+
+  /*
+   * Serves the blocks editor over a WebSocket that stays open for as long as
+   * the editor is connected, instead of a new connection for every block
+   * evaluated and every poll of /_values. The editor sends batches of code,
+   * each a JSON array of objects with the same seq, mac, blockid and code as
+   * a /_newblocks request, and gets a reply to each batch. Return values,
+   * errors and screen changes are sent on the WebSocket as they happen.
+   */
+  private Response serveChannel(Properties header, Socket socket) {
+    String key = header.getProperty("sec-websocket-key");
+    if (key == null || !"websocket".equalsIgnoreCase(header.getProperty("upgrade"))) {
+      return new Response(HTTP_BADREQUEST, MIME_PLAINTEXT, "Expected a WebSocket");
+    }
+    WebSocketConnection channel = null;
+    Thread sender = null;
+    try {
+      socket.setTcpNoDelay(true); // Our messages are small, send them right away
+      channel = WebSocketConnection.accept(socket.getInputStream(), socket.getOutputStream(), key);
+      Log.d(LOG_TAG, "Channel opened");
+      sender = startChannelSender(channel, socket);
+      String batch;
+      while ((batch = channel.readMessage()) != null) {
+        channel.sendMessage("{\"type\" : \"reply\", \"result\" : " + evalBatch(batch) + "}");
+      }
+    } catch (IOException e) {
+      Log.d(LOG_TAG, "Channel failed: " + e);
+    } finally {
+      if (sender != null) {
+        sender.interrupt();
+      }
+      if (channel != null) {
+        channel.close();
+      }
+      try {
+        socket.close();
+      } catch (IOException e) {
+      }
+    }
+    Log.d(LOG_TAG, "Channel closed");
+    Response res = new Response();
+    res.status = HTTP_SWITCHING_PROTOCOLS; // We are done with the socket, nothing more to send
+    return(res);
+  }
+
+  /*
+   * Checks and evaluates a batch of code sent on the channel, stopping at the
+   * first one that fails its check. Returns the JSON response to the batch.
+   */
+  private String evalBatch(String batch) {
+    try {
+      JSONArray evals = new JSONArray(batch);
+      for (int i = 0; i < evals.length(); i++) {
+        JSONObject eval = evals.getJSONObject(i);
+        String code = eval.getString("code");
+        String blockid = eval.getString("blockid");
+        String error = checkCode(code, String.valueOf(eval.get("seq")), blockid,
+          eval.optString("mac", "no key provided"));
+        if (error != null) {
+          return error;
+        }
+        evalCode(blockid, code);
+      }
+    } catch (JSONException e) {
+      Log.e(LOG_TAG, "Invalid batch from the blocks editor", e);
+      return "{\"status\" : \"BAD\", \"message\" : \"Invalid Request\"}";
+    }
+    return RetValManager.fetch(false);
+  }
+
+  /*
+   * Starts a thread that sends return values on the channel as they arrive.
+   * When there are none for ten seconds an empty list is sent, so that a
+   * blocks editor that has gone away is noticed.
+   */
+  private Thread startChannelSender(final WebSocketConnection channel, final Socket socket) {
+    Thread sender = new Thread(new Runnable() {
+        public void run() {
+          List<JSONObject> values = Collections.emptyList();
+          try {
+            while (!Thread.currentThread().isInterrupted()) {
+              values = RetValManager.take(true); // Blocking Fetch
+              if (Thread.currentThread().isInterrupted()) {
+                break;
+              }
+              channel.sendMessage(RetValManager.format(values));
+              values = Collections.emptyList();
+            }
+          } catch (IOException e) {
+            Log.d(LOG_TAG, "Channel send failed: " + e);
+            try {
+              socket.close();     // Wakes up the reading side
+            } catch (IOException ce) {
+            }
+          } finally {
+            // Keep what wasn't sent for the next channel, or /_values
+            RetValManager.putBack(values);
+          }
+        }
+      }, "REPL Channel");
+    sender.setDaemon(true);
+    sender.start();
+    return sender;
+  }
+
   private void copyFile(File infile, File outfile) {
     try {
       FileInputStream in = new FileInputStream(infile);
@@ -7,23 +7,146 @@
 package com.google.appinventor.components.runtime.util;
 
 import android.os.Handler;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Utilities for handling asynchronous calls.
  *
+ * <p>Calls run on a pool of threads shared by the whole app, which reuses
+ * idle threads instead of starting a new thread for each call.  The pool
+ * doesn't limit how many calls run at once, as some calls block for a long
+ * time, such as a BluetoothServer waiting for a connection, and must not
+ * hold up the calls of other components.  Calls made for an owner, usually
+ * a component, run at most {@link #MAX_TASKS_PER_OWNER} at a time, and can
+ * be cancelled together, for example when the component is destroyed.
+ *
  * @author markf@google.com (Mark Friedman)
  */
 
 public class AsynchUtil {
+  private static final String LOG_TAG = "AsynchUtil";
+
+  /**
+   * The most calls of one owner that run at the same time.
+   */
+  public static final int MAX_TASKS_PER_OWNER = 4;
+
+  /**
+   * The most calls of one owner that wait for the owner's running calls.
+   * Calls beyond this are dropped.
+   */
+  public static final int MAX_QUEUED_PER_OWNER = 64;
+
+  // Idle threads end after a while
+  private static final ExecutorService executor = Executors.newCachedThreadPool(
+      new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "AsynchUtil-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  // The calls running on the pool
+  private static final AtomicInteger activeCount = new AtomicInteger();
+
+  // Counts a call while it runs
+  private static class Call implements Runnable {
+    private final Runnable call;
+
+    Call(Runnable call) {
+      this.call = call;
+    }
+
+    @Override
+    public void run() {
+      activeCount.incrementAndGet();
+      try {
+        call.run();
+      } finally {
+        activeCount.decrementAndGet();
+        // Don't carry an interrupt over to the next call on this thread
+        Thread.interrupted();
+      }
+    }
+  }
+
+  // A call made for an owner
+  private static class OwnedCall implements Runnable {
+    private final Object owner;
+    private final Runnable call;
+    // The thread running the call, guarded by this
+    private Thread thread;
+    private boolean cancelled;
+
+    OwnedCall(Object owner, Runnable call) {
+      this.owner = owner;
+      this.call = call;
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        if (cancelled) {
+          return;
+        }
+        thread = Thread.currentThread();
+      }
+      try {
+        call.run();
+      } finally {
+        synchronized (this) {
+          thread = null;
+          // Don't leave the pool's thread interrupted
+          Thread.interrupted();
+        }
+        ownedCallDone(this);
+      }
+    }
+
+    synchronized void cancel() {
+      cancelled = true;
+      if (thread != null) {
+        thread.interrupt();
+      }
+    }
+  }
+
+  // The calls of an owner that are running or waiting to run
+  private static class OwnerCalls {
+    final Set<OwnedCall> running = new HashSet<OwnedCall>();
+    final Queue<OwnedCall> waiting = new LinkedList<OwnedCall>();
+  }
+
+  // Guarded by itself
+  private static final Map<Object, OwnerCalls> ownerCalls =
+      new IdentityHashMap<Object, OwnerCalls>();
+
+  // Calls waiting for their owner's running calls
+  private static final AtomicInteger ownerQueuedCount = new AtomicInteger();
 
   /**
    * Make an asynchronous call in a separate thread.
    * @param call a {@link Runnable} to run in the thread.
    */
   public static void runAsynchronously(final Runnable call) {
-    Thread thread = new Thread(call);
-    thread.start();
+    execute(call);
   }
+
   /**
    * Make an asynchronous call in a separate thread, with a callback that's run on the current
    * Android UI thread.
@@ -46,7 +169,100 @@ public class AsynchUtil {
         }
       }
     };
-    Thread thread = new Thread(runnable);
-    thread.start();
+    runAsynchronously(runnable);
+  }
+
+  /**
+   * Make an asynchronous call in a separate thread on behalf of an owner.
+   * If the owner already has {@link #MAX_TASKS_PER_OWNER} calls running,
+   * the call waits for one of them to finish.
+   * @param owner the owner of the call, usually a component
+   * @param call a {@link Runnable} to run in the thread.
+   * @return {@code false} if the call was dropped because too many calls
+   *         of the owner are waiting, {@code true} otherwise
+   */
+  public static boolean runAsynchronously(Object owner, Runnable call) {
+    OwnedCall ownedCall = new OwnedCall(owner, call);
+    synchronized (ownerCalls) {
+      OwnerCalls calls = ownerCalls.get(owner);
+      if (calls == null) {
+        calls = new OwnerCalls();
+        ownerCalls.put(owner, calls);
+      }
+      if (calls.running.size() >= MAX_TASKS_PER_OWNER) {
+        if (calls.waiting.size() >= MAX_QUEUED_PER_OWNER) {
+          Log.w(LOG_TAG, "Too many calls waiting for " + owner + ", dropping one");
+          return false;
+        }
+        calls.waiting.add(ownedCall);
+        ownerQueuedCount.incrementAndGet();
+        return true;
+      }
+      calls.running.add(ownedCall);
+    }
+    execute(ownedCall);
+    return true;
+  }
+
+  /**
+   * Cancel the calls of an owner: those waiting are dropped and those
+   * running are interrupted.
+   * @param owner the owner of the calls
+   */
+  public static void cancel(Object owner) {
+    OwnerCalls calls;
+    synchronized (ownerCalls) {
+      calls = ownerCalls.remove(owner);
+      if (calls == null) {
+        return;
+      }
+      ownerQueuedCount.addAndGet(-calls.waiting.size());
+    }
+    for (OwnedCall call : calls.running) {
+      call.cancel();
+    }
+  }
+
+  /**
+   * Returns the number of calls waiting for their owner's running calls.
+   */
+  public static int getQueuedCount() {
+    return ownerQueuedCount.get();
+  }
+
+  /**
+   * Returns the number of calls running on the shared threads.
+   */
+  public static int getActiveCount() {
+    return activeCount.get();
+  }
+
+  /*
+   * Runs the next waiting call of the owner, if any, once one of its
+   * calls is done.
+   */
+  private static void ownedCallDone(OwnedCall call) {
+    OwnedCall next = null;
+    synchronized (ownerCalls) {
+      OwnerCalls calls = ownerCalls.get(call.owner);
+      if (calls == null || !calls.running.remove(call)) {
+        // Cancelled
+        return;
+      }
+      next = calls.waiting.poll();
+      if (next != null) {
+        ownerQueuedCount.decrementAndGet();
+        calls.running.add(next);
+      } else if (calls.running.isEmpty()) {
+        ownerCalls.remove(call.owner);
+      }
+    }
+    if (next != null) {
+      execute(next);
+    }
+  }
+
+  private static void execute(Runnable call) {
+    executor.execute(new Call(call));
   }
 }
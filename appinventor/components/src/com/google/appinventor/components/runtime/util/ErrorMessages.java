@@ -123,6 +123,7 @@ public final class ErrorMessages {
   public static final int ERROR_WEB_BUILD_REQUEST_DATA_NOT_TWO_ELEMENTS = 1113;
   public static final int ERROR_WEB_UNABLE_TO_DELETE = 1114;
   public static final int ERROR_WEB_XML_TEXT_DECODE_FAILED = 1115;
+  public static final int ERROR_WEB_TOO_MANY_REQUESTS = 1116;
   // Contact picker (and PhoneNumberPicker) errors
   public static final int ERROR_PHONE_UNSUPPORTED_CONTACT_PICKER = 1107;
   public static final int ERROR_PHONE_UNSUPPORTED_SEARCH_IN_CONTACT_PICKING = 1108;
@@ -180,7 +181,10 @@ public final class ErrorMessages {
   //TextToSpeech errors
   public static final int ERROR_TTS_NOT_READY = 2701;
 
-  // Please start the next group of error numbers at 2801.
+  // TinyWebDB errors
+  public static final int ERROR_TINYWEBDB_TOO_MANY_REQUESTS = 2801;
+
+  // Please start the next group of error numbers at 2901.
 
 
   // Mapping of error numbers to error message format strings.
@@ -386,6 +390,8 @@ public final class ErrorMessages {
         "Unable to build request data: element %s does not contain two elements");
     errorMessages.put(ERROR_WEB_UNABLE_TO_DELETE,
             "Unable to delete a resource with the specified URL: %s");
+    errorMessages.put(ERROR_WEB_TOO_MANY_REQUESTS,
+        "Too many requests are waiting. The request with the specified URL was not made: %s");
     // Contact picker (and PhoneNumberPicker) errors
     errorMessages.put(ERROR_PHONE_UNSUPPORTED_CONTACT_PICKER,
         "The software used in this app cannot extract contacts from this type of phone.");
@@ -452,6 +458,9 @@ public final class ErrorMessages {
     // TextToSpeech errors
     errorMessages.put(ERROR_TTS_NOT_READY,
        "TextToSpeech is not yet ready to perform this operation");
+    // TinyWebDB errors
+    errorMessages.put(ERROR_TINYWEBDB_TOO_MANY_REQUESTS,
+        "Too many requests are waiting. The request for the tag was not made: %s");
   }
 
   private ErrorMessages() {
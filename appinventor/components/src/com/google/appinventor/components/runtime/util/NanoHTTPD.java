@@ -132,7 +132,9 @@ public class NanoHTTPD
 
         /**
          * HTTP response.
-         * Return one of these from serve().
+         * Return one of these from serve(). A response with the status
+         * HTTP_SWITCHING_PROTOCOLS is not sent: it means serve() took over
+         * the socket, for example for a WebSocket, and is done with it.
          */
         public class Response
         {
@@ -206,6 +208,7 @@ public class NanoHTTPD
          * Some HTTP response status codes
          */
         public static final String
+                HTTP_SWITCHING_PROTOCOLS = "101 Switching Protocols",
                 HTTP_OK = "200 OK",
                 HTTP_PARTIALCONTENT = "206 Partial Content",
                 HTTP_RANGE_NOT_SATISFIABLE = "416 Requested Range Not Satisfiable",
@@ -476,7 +479,7 @@ public class NanoHTTPD
                                 Response r = serve( uri, method, header, parms, files, mySocket );
                                 if ( r == null )
                                         sendError( HTTP_INTERNALERROR, "SERVER INTERNAL ERROR: Serve() returned a null response." );
-                                else
+                                else if ( !HTTP_SWITCHING_PROTOCOLS.equals( r.status ))
                                         sendResponse( r.status, r.mimeType, r.header, r.data );
 
                                 in.close();
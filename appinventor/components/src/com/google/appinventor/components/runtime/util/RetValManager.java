@@ -7,6 +7,7 @@
 
 package com.google.appinventor.components.runtime.util;
 import java.util.ArrayList;
+import java.util.List;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -138,11 +139,25 @@ public class RetValManager {
 
   /*
    * fetch -- Fetch all pending results as a JSON encoded array.
+   * A blocking fetch waits up to ten seconds for a result, or until
+   * the calling thread is interrupted.
    *
    * @param block true if we should block waiting for results
    * @return String The JSON encoded array.
    */
   public static String fetch(boolean block) {
+    return format(take(block));
+  }
+
+  /*
+   * take -- Remove all pending results and return them, waiting for them
+   * as a blocking fetch does. A caller that fails to deliver them hands
+   * them back with putBack, so that they aren't lost.
+   *
+   * @param block true if we should block waiting for results
+   * @return List The results, oldest first.
+   */
+  public static List<JSONObject> take(boolean block) {
     long startTime = System.currentTimeMillis();
     synchronized (semaphore) {
       while (currentArray.isEmpty() && block) {
@@ -152,20 +167,53 @@ public class RetValManager {
         try {
           semaphore.wait(TENSECONDS);
         } catch (InterruptedException e) {
+          // Our caller is going away, return what we have
+          Thread.currentThread().interrupt();
+          break;
         }
       }
-      JSONArray arrayoutput = new JSONArray(currentArray);
-      JSONObject output = new JSONObject();
-      try {
-        output.put("status", "OK");
-        output.put("values", arrayoutput);
-      } catch (JSONException e) {
-        Log.e(LOG_TAG, "Error fetching retvals", e);
-        return("{\"status\" : \"BAD\", \"message\" : \"Failure in RetValManager\"}");
-      }
+      List<JSONObject> values = new ArrayList<JSONObject>(currentArray);
       currentArray.clear();       // empty it out
-      return output.toString();
+      return values;
+    }
+  }
+
+  /*
+   * putBack -- Return results that were taken but not delivered, ahead
+   * of any that arrived since.
+   *
+   * @param values The results, as returned by take
+   */
+  public static void putBack(List<JSONObject> values) {
+    if (values.isEmpty()) {
+      return;
+    }
+    synchronized (semaphore) {
+      boolean sendNotify = currentArray.isEmpty();
+      currentArray.addAll(0, values);
+      if (sendNotify) {
+        semaphore.notifyAll();
+      }
+    }
+  }
+
+  /*
+   * format -- Encode results as fetch returns them.
+   *
+   * @param values The results
+   * @return String The JSON encoded array.
+   */
+  public static String format(List<JSONObject> values) {
+    JSONArray arrayoutput = new JSONArray(values);
+    JSONObject output = new JSONObject();
+    try {
+      output.put("status", "OK");
+      output.put("values", arrayoutput);
+    } catch (JSONException e) {
+      Log.e(LOG_TAG, "Error fetching retvals", e);
+      return("{\"status\" : \"BAD\", \"message\" : \"Failure in RetValManager\"}");
     }
+    return output.toString();
   }
 
 }
@@ -0,0 +1,264 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uniform grid of square cells for finding the items whose bounding boxes
+ * intersect a given bounding box, without looking at every item.  Each item
+ * is kept in every cell that its bounding box touches.  Items whose boxes
+ * touch too many cells are kept in a separate list instead, which every
+ * search looks at.
+ *
+ * @param <T> the type of the items
+ */
+public final class SpatialGrid<T> {
+  // Items touching more cells than this are kept in the list of large items
+  private static final int MAX_ITEM_CELLS = 64;
+
+  // Keeps cell coordinates well within the range of an int
+  private static final double MAX_CELL = 1 << 30;
+
+  private static final Comparator<Entry<?>> BY_SEQUENCE = new Comparator<Entry<?>>() {
+    @Override
+    public int compare(Entry<?> entry1, Entry<?> entry2) {
+      return entry1.sequence < entry2.sequence ? -1
+          : entry1.sequence == entry2.sequence ? 0 : 1;
+    }
+  };
+
+  private static class Entry<T> {
+    final T item;
+    final long sequence;
+    double left, top, right, bottom;
+    int minCellX, minCellY, maxCellX, maxCellY;
+    boolean large;
+    // The last search that found this entry
+    int searchMark;
+
+    Entry(T item, long sequence) {
+      this.item = item;
+      this.sequence = sequence;
+    }
+  }
+
+  private final double cellSize;
+  private final Map<T, Entry<T>> entries = new HashMap<T, Entry<T>>();
+  private final Map<Long, List<Entry<T>>> cells = new HashMap<Long, List<Entry<T>>>();
+  private final List<Entry<T>> largeEntries = new ArrayList<Entry<T>>();
+  private long nextSequence;
+  private int nextSearchMark;
+
+  /**
+   * Creates an empty grid.
+   *
+   * @param cellSize the width and height of the cells
+   */
+  public SpatialGrid(double cellSize) {
+    if (!(cellSize > 0)) {
+      throw new IllegalArgumentException("cellSize must be positive: " + cellSize);
+    }
+    this.cellSize = cellSize;
+  }
+
+  /**
+   * Adds an item to the grid, or moves it to the end of the order of the
+   * items if it is already there.
+   *
+   * @param item the item
+   * @param box the bounding box of the item
+   */
+  public void add(T item, BoundingBox box) {
+    remove(item);
+    Entry<T> entry = new Entry<T>(item, nextSequence++);
+    entries.put(item, entry);
+    place(entry, box);
+  }
+
+  /**
+   * Changes the bounding box of an item.  Does nothing if the item is not
+   * in the grid.
+   *
+   * @param item the item
+   * @param box the new bounding box of the item
+   */
+  public void move(T item, BoundingBox box) {
+    Entry<T> entry = entries.get(item);
+    if (entry == null) {
+      return;
+    }
+    if (!entry.large
+        && cell(box.getLeft()) == entry.minCellX && cell(box.getTop()) == entry.minCellY
+        && cell(box.getRight()) == entry.maxCellX && cell(box.getBottom()) == entry.maxCellY) {
+      // Still in the same cells
+      setBox(entry, box);
+      return;
+    }
+    unplace(entry);
+    place(entry, box);
+  }
+
+  /**
+   * Removes an item from the grid, if it is there.
+   *
+   * @param item the item
+   */
+  public void remove(T item) {
+    Entry<T> entry = entries.remove(item);
+    if (entry != null) {
+      unplace(entry);
+    }
+  }
+
+  /**
+   * Returns whether an item is in the grid.
+   *
+   * @param item the item
+   * @return {@code true} if the item is in the grid
+   */
+  public boolean contains(T item) {
+    return entries.containsKey(item);
+  }
+
+  /**
+   * Returns the number of items in the grid.
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Finds the items whose bounding boxes intersect the given bounding box.
+   * The bounding boxes are inclusive, so boxes that share an edge intersect.
+   *
+   * @param box the bounding box to search
+   * @param others more items to return, whether or not their boxes
+   *        intersect, if they are in the grid
+   * @return the items found, each once, in the order they were added
+   */
+  public List<T> find(BoundingBox box, Collection<? extends T> others) {
+    int mark = ++nextSearchMark;
+    List<Entry<T>> found = new ArrayList<Entry<T>>();
+    int minCellX = cell(box.getLeft());
+    int minCellY = cell(box.getTop());
+    int maxCellX = cell(box.getRight());
+    int maxCellY = cell(box.getBottom());
+    if ((long) (maxCellX - minCellX + 1) * (maxCellY - minCellY + 1) > cells.size()) {
+      // Cheaper to look at every item
+      for (Entry<T> entry : entries.values()) {
+        addIfIntersects(entry, box, mark, found);
+      }
+    } else {
+      for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+        for (int cellY = minCellY; cellY <= maxCellY; cellY++) {
+          List<Entry<T>> cellEntries = cells.get(cellKey(cellX, cellY));
+          if (cellEntries != null) {
+            for (Entry<T> entry : cellEntries) {
+              addIfIntersects(entry, box, mark, found);
+            }
+          }
+        }
+      }
+      for (Entry<T> entry : largeEntries) {
+        addIfIntersects(entry, box, mark, found);
+      }
+    }
+    for (T other : others) {
+      Entry<T> entry = entries.get(other);
+      if (entry != null && entry.searchMark != mark) {
+        entry.searchMark = mark;
+        found.add(entry);
+      }
+    }
+
+    Collections.sort(found, BY_SEQUENCE);
+    List<T> items = new ArrayList<T>(found.size());
+    for (Entry<T> entry : found) {
+      items.add(entry.item);
+    }
+    return items;
+  }
+
+  private static <T> void addIfIntersects(Entry<T> entry, BoundingBox box, int mark,
+      List<Entry<T>> found) {
+    if (entry.searchMark != mark
+        && entry.left <= box.getRight() && box.getLeft() <= entry.right
+        && entry.top <= box.getBottom() && box.getTop() <= entry.bottom) {
+      entry.searchMark = mark;
+      found.add(entry);
+    }
+  }
+
+  private void place(Entry<T> entry, BoundingBox box) {
+    setBox(entry, box);
+    entry.minCellX = cell(box.getLeft());
+    entry.minCellY = cell(box.getTop());
+    entry.maxCellX = cell(box.getRight());
+    entry.maxCellY = cell(box.getBottom());
+    long numCells = (long) (entry.maxCellX - entry.minCellX + 1)
+        * (entry.maxCellY - entry.minCellY + 1);
+    entry.large = numCells <= 0 || numCells > MAX_ITEM_CELLS;
+    if (entry.large) {
+      largeEntries.add(entry);
+      return;
+    }
+    for (int cellX = entry.minCellX; cellX <= entry.maxCellX; cellX++) {
+      for (int cellY = entry.minCellY; cellY <= entry.maxCellY; cellY++) {
+        Long key = cellKey(cellX, cellY);
+        List<Entry<T>> cellEntries = cells.get(key);
+        if (cellEntries == null) {
+          cellEntries = new ArrayList<Entry<T>>(4);
+          cells.put(key, cellEntries);
+        }
+        cellEntries.add(entry);
+      }
+    }
+  }
+
+  private void unplace(Entry<T> entry) {
+    if (entry.large) {
+      largeEntries.remove(entry);
+      return;
+    }
+    for (int cellX = entry.minCellX; cellX <= entry.maxCellX; cellX++) {
+      for (int cellY = entry.minCellY; cellY <= entry.maxCellY; cellY++) {
+        Long key = cellKey(cellX, cellY);
+        List<Entry<T>> cellEntries = cells.get(key);
+        if (cellEntries != null) {
+          cellEntries.remove(entry);
+          if (cellEntries.isEmpty()) {
+            cells.remove(key);
+          }
+        }
+      }
+    }
+  }
+
+  private static void setBox(Entry<?> entry, BoundingBox box) {
+    entry.left = box.getLeft();
+    entry.top = box.getTop();
+    entry.right = box.getRight();
+    entry.bottom = box.getBottom();
+  }
+
+  private int cell(double coordinate) {
+    double cell = Math.floor(coordinate / cellSize);
+    // NaN becomes 0
+    return (int) Math.max(-MAX_CELL, Math.min(MAX_CELL, cell));
+  }
+
+  private static Long cellKey(int cellX, int cellY) {
+    return ((long) cellX << 32) | (cellY & 0xffffffffL);
+  }
+}
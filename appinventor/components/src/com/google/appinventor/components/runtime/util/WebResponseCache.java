@@ -0,0 +1,114 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the text responses to GET requests, so that a request can be
+ * made conditional on the response having changed, with the ETag and
+ * Last-Modified headers of the cached response, and the cached response
+ * used if it hasn't.  When the cache is full, the least recently used
+ * responses are dropped.
+ *
+ */
+public final class WebResponseCache {
+
+  /**
+   * A cached response.
+   */
+  public static final class Response {
+    public final int responseCode;
+    public final String responseType;
+    public final String content;
+    // Either can be null, but not both
+    public final String etag;
+    public final String lastModified;
+
+    public Response(int responseCode, String responseType, String content, String etag,
+        String lastModified) {
+      this.responseCode = responseCode;
+      this.responseType = responseType;
+      this.content = content;
+      this.etag = etag;
+      this.lastModified = lastModified;
+    }
+
+    int size() {
+      return 2 * content.length();
+    }
+  }
+
+  private final int maxBytes;
+  private final int maxResponseBytes;
+  private final LinkedHashMap<String, Response> responses =
+      new LinkedHashMap<String, Response>(16, 0.75f, true);
+  private int bytes;
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param maxBytes the most memory used by the cached responses
+   * @param maxResponseBytes the most memory used by one cached response
+   */
+  public WebResponseCache(int maxBytes, int maxResponseBytes) {
+    this.maxBytes = maxBytes;
+    this.maxResponseBytes = maxResponseBytes;
+  }
+
+  /**
+   * Returns the cached response for a URL, or null.
+   *
+   * @param url the URL of the request
+   */
+  public synchronized Response get(String url) {
+    return responses.get(url);
+  }
+
+  /**
+   * Caches a response, if it has an ETag or Last-Modified header and isn't
+   * too large.  Otherwise, any response cached for the URL is dropped.
+   *
+   * @param url the URL of the request
+   * @param response the response
+   */
+  public synchronized void put(String url, Response response) {
+    remove(url);
+    if ((response.etag == null && response.lastModified == null)
+        || response.size() > maxResponseBytes) {
+      return;
+    }
+    responses.put(url, response);
+    bytes += response.size();
+    Iterator<Map.Entry<String, Response>> it = responses.entrySet().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      bytes -= it.next().getValue().size();
+      it.remove();
+    }
+  }
+
+  /**
+   * Drops the response cached for a URL, if any.
+   *
+   * @param url the URL of the request
+   */
+  public synchronized void remove(String url) {
+    Response removed = responses.remove(url);
+    if (removed != null) {
+      bytes -= removed.size();
+    }
+  }
+
+  /**
+   * Returns the number of cached responses.
+   */
+  public synchronized int size() {
+    return responses.size();
+  }
+}
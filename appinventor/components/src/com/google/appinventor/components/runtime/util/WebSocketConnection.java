@@ -0,0 +1,258 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The server end of a WebSocket (RFC 6455) connection, over which text
+ * messages are exchanged in both directions.  The connection is accepted
+ * from within an HTTP request that asked to upgrade to a WebSocket, after
+ * which the socket belongs to the connection.
+ *
+ * <p>Messages are read by one thread, while any thread can send them.
+ * Pings are answered while reading.
+ *
+ */
+public final class WebSocketConnection {
+
+  /**
+   * The longest message read.  Longer messages close the connection.
+   */
+  public static final int MAX_MESSAGE_LENGTH = 16 * 1024 * 1024;
+
+  private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+  private static final int OP_CONTINUATION = 0x0;
+  private static final int OP_TEXT = 0x1;
+  private static final int OP_BINARY = 0x2;
+  private static final int OP_CLOSE = 0x8;
+  private static final int OP_PING = 0x9;
+  private static final int OP_PONG = 0xA;
+
+  private static final char[] BASE64 =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+  private final InputStream in;
+  private final OutputStream out;
+  // Guarded by this
+  private boolean closed;
+
+  /**
+   * Creates a connection over streams on which the handshake is done.
+   *
+   * @param in the stream messages are read from
+   * @param out the stream messages are sent on
+   */
+  public WebSocketConnection(InputStream in, OutputStream out) {
+    this.in = in;
+    this.out = out;
+  }
+
+  /**
+   * Completes the handshake of a request to upgrade to a WebSocket, and
+   * returns the connection.
+   *
+   * @param in the stream of the request, after its headers
+   * @param out the stream of the response
+   * @param key the Sec-WebSocket-Key header of the request
+   */
+  public static WebSocketConnection accept(InputStream in, OutputStream out, String key)
+      throws IOException {
+    String response = "HTTP/1.1 101 Switching Protocols\r\n"
+        + "Upgrade: websocket\r\n"
+        + "Connection: Upgrade\r\n"
+        + "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n"
+        + "\r\n";
+    out.write(response.getBytes("US-ASCII"));
+    out.flush();
+    return new WebSocketConnection(in, out);
+  }
+
+  /**
+   * Returns the Sec-WebSocket-Accept header of the response to a request
+   * with a Sec-WebSocket-Key header.
+   *
+   * @param key the Sec-WebSocket-Key header of the request
+   */
+  public static String acceptKey(String key) {
+    try {
+      MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      return base64(sha1.digest((key.trim() + GUID).getBytes("US-ASCII")));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Reads the next text message.
+   *
+   * @return the message, or null if the other end closed the connection
+   * @throws IOException if the connection fails or breaks the protocol
+   */
+  public String readMessage() throws IOException {
+    ByteArrayOutputStream message = null;
+    while (true) {
+      int first = in.read();
+      if (first < 0) {
+        return null;
+      }
+      boolean fin = (first & 0x80) != 0;
+      int opcode = first & 0x0F;
+      byte[] payload = readPayload();
+      if (opcode == OP_CLOSE) {
+        close();
+        return null;
+      } else if (opcode == OP_PING) {
+        sendFrame(OP_PONG, payload);
+      } else if (opcode == OP_PONG) {
+        // Nothing to do
+      } else if (opcode == OP_TEXT || opcode == OP_BINARY || opcode == OP_CONTINUATION) {
+        if ((opcode == OP_CONTINUATION) != (message != null)) {
+          throw new IOException("Unexpected WebSocket frame");
+        }
+        if (message == null) {
+          message = new ByteArrayOutputStream(payload.length);
+        }
+        if (message.size() + payload.length > MAX_MESSAGE_LENGTH) {
+          throw new IOException("WebSocket message too long");
+        }
+        message.write(payload);
+        if (fin) {
+          return message.toString("UTF-8");
+        }
+      } else {
+        throw new IOException("Unknown WebSocket opcode " + opcode);
+      }
+    }
+  }
+
+  /**
+   * Sends a text message.
+   *
+   * @param message the message
+   * @throws IOException if the connection is closed or fails
+   */
+  public void sendMessage(String message) throws IOException {
+    sendFrame(OP_TEXT, message.getBytes("UTF-8"));
+  }
+
+  /**
+   * Closes the connection, telling the other end if it hasn't closed it.
+   * The socket itself is left to its owner to close.
+   */
+  public synchronized void close() {
+    if (!closed) {
+      try {
+        sendFrame(OP_CLOSE, new byte[0]);
+      } catch (IOException e) {
+        // The other end is already gone
+      }
+      closed = true;
+    }
+  }
+
+  private byte[] readPayload() throws IOException {
+    int second = readByte();
+    boolean masked = (second & 0x80) != 0;
+    long length = second & 0x7F;
+    if (length == 126) {
+      length = (readByte() << 8) | readByte();
+    } else if (length == 127) {
+      length = 0;
+      for (int i = 0; i < 8; i++) {
+        length = (length << 8) | readByte();
+      }
+    }
+    if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+      throw new IOException("WebSocket message too long");
+    }
+    byte[] mask = new byte[4];
+    if (masked) {
+      readFully(mask);
+    }
+    byte[] payload = new byte[(int) length];
+    readFully(payload);
+    if (masked) {
+      for (int i = 0; i < payload.length; i++) {
+        payload[i] ^= mask[i & 3];
+      }
+    }
+    return payload;
+  }
+
+  private int readByte() throws IOException {
+    int b = in.read();
+    if (b < 0) {
+      throw new EOFException();
+    }
+    return b;
+  }
+
+  private void readFully(byte[] buffer) throws IOException {
+    int offset = 0;
+    while (offset < buffer.length) {
+      int count = in.read(buffer, offset, buffer.length - offset);
+      if (count < 0) {
+        throw new EOFException();
+      }
+      offset += count;
+    }
+  }
+
+  private synchronized void sendFrame(int opcode, byte[] payload) throws IOException {
+    if (closed) {
+      throw new IOException("WebSocket closed");
+    }
+    // The frame is written at once, so that it goes out in as few packets as it can
+    int length = payload.length;
+    int headerLength = length < 126 ? 2 : (length <= 0xFFFF ? 4 : 10);
+    byte[] frame = new byte[headerLength + length];
+    frame[0] = (byte) (0x80 | opcode);
+    if (length < 126) {
+      frame[1] = (byte) length;
+    } else if (length <= 0xFFFF) {
+      frame[1] = 126;
+      frame[2] = (byte) (length >> 8);
+      frame[3] = (byte) length;
+    } else {
+      frame[1] = 127;
+      for (int i = 0; i < 8; i++) {
+        frame[9 - i] = (byte) (((long) length) >> (8 * i));
+      }
+    }
+    System.arraycopy(payload, 0, frame, headerLength, length);
+    out.write(frame);
+    out.flush();
+  }
+
+  private static String base64(byte[] bytes) {
+    StringBuilder sb = new StringBuilder((bytes.length + 2) / 3 * 4);
+    for (int i = 0; i < bytes.length; i += 3) {
+      int n = (bytes[i] & 0xFF) << 16;
+      if (i + 1 < bytes.length) {
+        n |= (bytes[i + 1] & 0xFF) << 8;
+      }
+      if (i + 2 < bytes.length) {
+        n |= bytes[i + 2] & 0xFF;
+      }
+      sb.append(BASE64[(n >> 18) & 0x3F]);
+      sb.append(BASE64[(n >> 12) & 0x3F]);
+      sb.append(i + 1 < bytes.length ? BASE64[(n >> 6) & 0x3F] : '=');
+      sb.append(i + 2 < bytes.length ? BASE64[n & 0x3F] : '=');
+    }
+    return sb.toString();
+  }
+}
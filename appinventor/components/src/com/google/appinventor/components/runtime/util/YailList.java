@@ -13,6 +13,7 @@ import gnu.lists.Pair;
 
 import org.json.JSONException;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
@@ -23,11 +24,25 @@ import android.util.Log;
  * by the Kawa framework. YailList is the main list primitive used
  * by App Inventor components.
  *
+ * <p>The items of the list are kept in a chain of Pairs, as Kawa expects,
+ * and the Pairs of the chain are also kept in an array, so that an item can
+ * be reached by its index in constant time. The methods that change the
+ * chain (setContents, setItem, insertItem, removeItem, appendContents and
+ * addItem) keep the array up to date, and the runtime changes YailLists only
+ * through them.
+ *
  */
 public class YailList extends Pair {
 
   private static final String LOG_TAG = "YailList";
 
+  private static final int INITIAL_CELLS = 8;
+
+  // The Pairs of the contents, in order, or null until first needed. The
+  // first numCells are used.
+  private transient Pair[] cells;
+  private transient int numCells;
+
   // Component writers take note!
   // If you want to pass back a list to the blocks language, the
   // straightforward way to do this is simply to pass
@@ -156,7 +171,139 @@ public class YailList extends Pair {
    */
   @Override
   public int size() {
-    return super.size() - 1;
+    ensureCells();
+    return numCells;
+  }
+
+  /**
+   * Return the header of this YailList at index 0, and its items at indices
+   * 1 through size(), like {@link Pair#get}.
+   */
+  @Override
+  public Object get(int index) {
+    if (index == 0) {
+      return car;
+    }
+    return getItem(index);
+  }
+
+  /**
+   * Return the item at the given index, counting from 1.
+   */
+  public Object getItem(int index) {
+    return cell(index).getCar();
+  }
+
+  /**
+   * Replace the item at the given index, counting from 1.
+   */
+  public void setItem(int index, Object value) {
+    cell(index).setCar(value);
+  }
+
+  /**
+   * Insert an item so that it is at the given index, counting from 1.
+   * The index can be from 1 through size() + 1.
+   */
+  public void insertItem(int index, Object item) {
+    ensureCells();
+    if (index < 1 || index > numCells + 1) {
+      throw new IndexOutOfBoundsException("Index " + index + ", size " + numCells);
+    }
+    Pair newCell = new Pair(item, index <= numCells ? cells[index - 1] : LList.Empty);
+    if (index == 1) {
+      cdr = newCell;
+    } else {
+      cells[index - 2].setCdr(newCell);
+    }
+    if (numCells == cells.length) {
+      Pair[] newCells = new Pair[cells.length * 2];
+      System.arraycopy(cells, 0, newCells, 0, numCells);
+      cells = newCells;
+    }
+    System.arraycopy(cells, index - 1, cells, index, numCells - index + 1);
+    cells[index - 1] = newCell;
+    numCells++;
+  }
+
+  /**
+   * Add an item at the end of the list.
+   */
+  public void addItem(Object item) {
+    ensureCells();
+    insertItem(numCells + 1, item);
+  }
+
+  /**
+   * Remove the item at the given index, counting from 1.
+   */
+  public void removeItem(int index) {
+    Pair removed = cell(index);
+    if (index == 1) {
+      cdr = removed.getCdr();
+    } else {
+      cells[index - 2].setCdr(removed.getCdr());
+    }
+    System.arraycopy(cells, index, cells, index - 1, numCells - index);
+    numCells--;
+    cells[numCells] = null;
+  }
+
+  /**
+   * Add the items of a Kawa list at the end of this list. The items are
+   * not copied, but the Pairs holding them are, so the lists don't share
+   * a tail.
+   */
+  public void appendContents(Object contents) {
+    // The contents may be this list's own, so take the items first
+    List<Object> items = new ArrayList<Object>();
+    for (Object next = contents; next instanceof Pair; next = ((Pair) next).getCdr()) {
+      items.add(((Pair) next).getCar());
+    }
+    for (Object item : items) {
+      addItem(item);
+    }
+  }
+
+  /**
+   * Replace the contents of this list with a Kawa list.
+   */
+  public void setContents(Object contents) {
+    cdr = contents;
+    cells = null;
+  }
+
+  private Pair cell(int index) {
+    ensureCells();
+    if (index < 1 || index > numCells) {
+      throw new IndexOutOfBoundsException("Index " + index + ", size " + numCells);
+    }
+    return cells[index - 1];
+  }
+
+  /*
+   * Build the array of Pairs if there is none, or if the chain was changed
+   * at its head or tail by something other than the methods above.
+   */
+  private void ensureCells() {
+    if (cells != null) {
+      if (numCells == 0 ? cdr == LList.Empty
+          : cdr == cells[0] && cells[numCells - 1].getCdr() == LList.Empty) {
+        return;
+      }
+    }
+    Pair[] newCells = new Pair[INITIAL_CELLS];
+    int n = 0;
+    for (Object next = cdr; next instanceof Pair; next = ((Pair) next).getCdr()) {
+      if (n == newCells.length) {
+        Pair[] grown = new Pair[n * 2];
+        System.arraycopy(newCells, 0, grown, 0, n);
+        newCells = grown;
+      }
+      newCells[n++] = (Pair) next;
+    }
+    cells = newCells;
+    numCells = n;
   }
 
   /**
@@ -0,0 +1,155 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.appinventor.components.runtime.util.BoundingBox;
+import com.google.appinventor.components.runtime.util.SpatialGrid;
+
+import android.os.Handler;
+import android.view.View;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.easymock.PowerMock;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times collision checks between many sprites, using the fixtures of
+ * {@link SpriteTest}.  It compares the grid and the exact shape tests
+ * that Canvas and Sprite use with checking every pair of sprites point by
+ * point.
+ *
+ * <p>This isn't run with the other tests, since its name doesn't end in
+ * Test.  Run it with
+ * {@code ant tests -Dtest_name=com.google.appinventor.components.runtime.SpriteCollisionBenchmark}
+ * and read the timings from its output.
+ *
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Canvas.class, Handler.class, Form.class, View.class })
+public class SpriteCollisionBenchmark {
+  private static final int CANVAS_SIZE = 320;
+  private static final int SPRITE_COUNT = 100;
+  private static final int ROUNDS = 20;
+  // Canvas.SPRITE_GRID_CELL_SIZE
+  private static final double CELL_SIZE = 64;
+
+  private final Form formMock = PowerMock.createNiceMock(Form.class);
+  private final View canvasViewMock = PowerMock.createNiceMock(View.class);
+  private final Canvas canvasMock = PowerMock.createNiceMock(Canvas.class);
+  private final Handler handlerMock = PowerMock.createNiceMock(Handler.class);
+
+  @Before
+  public void setUp() throws Exception {
+    EasyMock.expect(canvasMock.getView()).andReturn(canvasViewMock).anyTimes();
+    EasyMock.expect(canvasMock.$form()).andReturn(formMock).anyTimes();
+    EasyMock.replay(canvasViewMock, canvasMock, handlerMock);
+  }
+
+  // Half balls, half rectangles, scattered over the canvas
+  private List<Sprite> createSprites(Random random) {
+    List<Sprite> sprites = new ArrayList<Sprite>();
+    for (int i = 0; i < SPRITE_COUNT; i++) {
+      double x = random.nextInt(CANVAS_SIZE * 10) / 10.0;
+      double y = random.nextInt(CANVAS_SIZE * 10) / 10.0;
+      if (i % 2 == 0) {
+        sprites.add(SpriteTest.createTestBall(5 + random.nextInt(10), x, y));
+      } else {
+        SpriteTest.TestSprite sprite = SpriteTest.TestSprite.createTestSprite(
+            canvasMock, handlerMock, 10 + random.nextInt(30), 10 + random.nextInt(30));
+        sprite.MoveTo(x, y);
+        sprites.add(sprite);
+      }
+    }
+    return sprites;
+  }
+
+  // How Sprite.colliding tested every pair of sprites before it computed
+  // simple shapes exactly
+  private static boolean collidingByPoints(Sprite sprite1, Sprite sprite2) {
+    BoundingBox rect1 = sprite1.getBoundingBox(1);
+    BoundingBox rect2 = sprite2.getBoundingBox(1);
+    if (!rect1.intersectDestructively(rect2)) {
+      return false;
+    }
+    for (double x = rect1.getLeft(); x <= rect1.getRight(); x++) {
+      for (double y = rect1.getTop(); y <= rect1.getBottom(); y++) {
+        if (sprite1.containsPoint(x, y) && sprite2.containsPoint(x, y)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static int countCollisionsByPoints(List<Sprite> sprites) {
+    int collisions = 0;
+    for (Sprite sprite : sprites) {
+      for (Sprite other : sprites) {
+        if (other != sprite && collidingByPoints(sprite, other)) {
+          collisions++;
+        }
+      }
+    }
+    return collisions;
+  }
+
+  private static int countCollisionsByGrid(List<Sprite> sprites) {
+    SpatialGrid<Sprite> grid = new SpatialGrid<Sprite>(CELL_SIZE);
+    for (Sprite sprite : sprites) {
+      grid.add(sprite, sprite.getBoundingBox(1));
+    }
+    List<Sprite> none = Collections.emptyList();
+    int collisions = 0;
+    for (Sprite sprite : sprites) {
+      for (Sprite other : grid.find(sprite.getBoundingBox(1), none)) {
+        if (other != sprite && Sprite.colliding(sprite, other)) {
+          collisions++;
+        }
+      }
+    }
+    return collisions;
+  }
+
+  @Test
+  public void benchmarkCollisions() {
+    List<Sprite> sprites = createSprites(new Random(22));
+
+    // Warm up, and check that the two count about the same collisions.  The
+    // point tests can miss overlaps narrower than a pixel, so they may find
+    // a few fewer.
+    int byPoints = countCollisionsByPoints(sprites);
+    int byGrid = countCollisionsByGrid(sprites);
+    assertEquals(byPoints, byGrid, byGrid / 10 + 2);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      countCollisionsByPoints(sprites);
+    }
+    long pointsNanos = (System.nanoTime() - start) / ROUNDS;
+
+    start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      countCollisionsByGrid(sprites);
+    }
+    long gridNanos = (System.nanoTime() - start) / ROUNDS;
+
+    System.out.println(SPRITE_COUNT + " sprites, " + byGrid + " collisions");
+    System.out.println("  every pair, point by point: " + pointsNanos / 1000 + " us");
+    System.out.println("  grid, exact shapes:         " + gridNanos / 1000 + " us");
+  }
+}
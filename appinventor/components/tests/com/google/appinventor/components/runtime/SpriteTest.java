@@ -20,6 +20,7 @@ import org.junit.runner.RunWith;
 import org.powermock.api.easymock.PowerMock;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
 
 /**
  * Tests Sprite.java.
@@ -101,6 +102,15 @@ public class SpriteTest {
 
   private static final double DELTA = .0001;  // for floating-point comparisons
 
+  // Ball's constructor needs a real Paint and Handler, so make one without it.
+  static Ball createTestBall(int radius, double x, double y) {
+    Ball ball = Whitebox.newInstance(Ball.class);
+    Whitebox.setInternalState(ball, "radius", radius);
+    Whitebox.setInternalState(ball, "xLeft", x, Sprite.class);
+    Whitebox.setInternalState(ball, "yTop", y, Sprite.class);
+    return ball;
+  }
+
   private final Form formMock = PowerMock.createNiceMock(Form.class);
   private final View canvasViewMock = PowerMock.createNiceMock(View.class);
   private final Canvas canvasMock = PowerMock.createNiceMock(Canvas.class);
@@ -274,6 +284,88 @@ public class SpriteTest {
     assertTrue(Sprite.colliding(mouse, cat));
   }
 
+  // Whether the sprites share a point, tested point by point
+  private static boolean collidingByPoints(Sprite sprite1, Sprite sprite2) {
+    for (double x = Math.max(sprite1.X(), sprite2.X()) - 1;
+         x <= Math.min(sprite1.X() + sprite1.Width(), sprite2.X() + sprite2.Width()); x++) {
+      for (double y = Math.max(sprite1.Y(), sprite2.Y()) - 1;
+           y <= Math.min(sprite1.Y() + sprite1.Height(), sprite2.Y() + sprite2.Height()); y++) {
+        if (sprite1.containsPoint(x, y) && sprite2.containsPoint(x, y)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  // At whole and half pixel positions, testing points finds every overlap
+  @Test
+  public void testCollidingRectanglesMatchesPoints() {
+    TestSprite sprite1 = TestSprite.createTestSprite(canvasMock, handlerMock, 10, 15);
+    sprite1.MoveTo(50, 75);
+    TestSprite sprite2 = TestSprite.createTestSprite(canvasMock, handlerMock, 7, 4);
+    for (double x = 40; x <= 70; x += 0.5) {
+      for (double y = 64; y <= 90; y += 0.5) {
+        sprite2.MoveTo(x, y);
+        assertEquals("sprite2 at (" + x + ", " + y + ")",
+            collidingByPoints(sprite1, sprite2), Sprite.colliding(sprite1, sprite2));
+      }
+    }
+  }
+
+  @Test
+  public void testCollidingRectanglesFractionalOffsets() {
+    TestSprite sprite1 = TestSprite.createTestSprite(canvasMock, handlerMock, 1, 1);
+    sprite1.MoveTo(0.5, 0.5);
+    TestSprite sprite2 = TestSprite.createTestSprite(canvasMock, handlerMock, 1, 1);
+
+    // [0.5, 1.5) and [1.2, 2.2) overlap, though they share no whole point
+    sprite2.MoveTo(1.2, 1.2);
+    assertTrue(Sprite.colliding(sprite1, sprite2));
+    assertTrue(Sprite.colliding(sprite2, sprite1));
+
+    // Overlapping by less than a tenth of a pixel
+    sprite2.MoveTo(1.45, -0.3);
+    assertTrue(Sprite.colliding(sprite1, sprite2));
+    assertTrue(Sprite.colliding(sprite2, sprite1));
+
+    // Only touching
+    sprite2.MoveTo(1.5, 0.7);
+    assertFalse(Sprite.colliding(sprite1, sprite2));
+    assertFalse(Sprite.colliding(sprite2, sprite1));
+  }
+
+  @Test
+  public void testCollidingBalls() {
+    Ball ball1 = createTestBall(5, 0, 0);
+
+    // Overlapping
+    assertTrue(Sprite.colliding(ball1, createTestBall(5, 9, 0)));
+    assertTrue(Sprite.colliding(ball1, createTestBall(3, 5, 5)));
+
+    // Only touching
+    assertFalse(Sprite.colliding(ball1, createTestBall(5, 10, 0)));
+    assertFalse(Sprite.colliding(ball1, createTestBall(5, 6, 8)));
+  }
+
+  @Test
+  public void testCollidingBallAndRectangle() {
+    TestSprite rectangle = TestSprite.createTestSprite(canvasMock, handlerMock, 10, 15);
+    rectangle.MoveTo(50, 75);
+
+    // Overlapping the left and right edges
+    assertTrue(Sprite.colliding(rectangle, createTestBall(5, 40.5, 75)));
+    assertTrue(Sprite.colliding(createTestBall(5, 64.5, 75), rectangle));
+
+    // Only touching the left, right and bottom edges
+    assertFalse(Sprite.colliding(rectangle, createTestBall(5, 40, 75)));
+    assertFalse(Sprite.colliding(rectangle, createTestBall(5, 65, 75)));
+    assertFalse(Sprite.colliding(rectangle, createTestBall(5, 55, 85)));
+
+    // Near a corner, but outside it
+    assertFalse(Sprite.colliding(rectangle, createTestBall(5, 64, 84)));
+  }
+
   @Test
   public void testSpriteBiggerThanCanvas() throws Exception {
     // Declare cat
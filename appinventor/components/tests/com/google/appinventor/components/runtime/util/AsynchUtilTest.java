@@ -0,0 +1,155 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests AsynchUtil class.
+ *
+ */
+public class AsynchUtilTest extends TestCase {
+  private static final long TIMEOUT_SECONDS = 10;
+
+  // A call that waits for release, counting the calls running at once
+  private static class BlockingCall implements Runnable {
+    final CountDownLatch release;
+    final CountDownLatch done;
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    final AtomicInteger interrupted = new AtomicInteger();
+
+    BlockingCall(CountDownLatch release, int calls) {
+      this.release = release;
+      this.done = new CountDownLatch(calls);
+    }
+
+    @Override
+    public void run() {
+      int now = running.incrementAndGet();
+      while (true) {
+        int max = maxRunning.get();
+        if (now <= max || maxRunning.compareAndSet(max, now)) {
+          break;
+        }
+      }
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        interrupted.incrementAndGet();
+      } finally {
+        running.decrementAndGet();
+        done.countDown();
+      }
+    }
+  }
+
+  public void testRunAsynchronously() throws Exception {
+    int calls = 24;
+    final CountDownLatch done = new CountDownLatch(calls);
+    for (int i = 0; i < calls; i++) {
+      AsynchUtil.runAsynchronously(new Runnable() {
+        @Override
+        public void run() {
+          done.countDown();
+        }
+      });
+    }
+    assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+  }
+
+  public void testBlockedCallsDontHoldUpOthers() throws Exception {
+    // Calls that block until released, such as a server waiting for a
+    // connection, from many owners at once
+    int owners = 8;
+    int calls = owners * AsynchUtil.MAX_TASKS_PER_OWNER;
+    CountDownLatch release = new CountDownLatch(1);
+    BlockingCall blocked = new BlockingCall(release, 2 * calls);
+    for (int i = 0; i < owners; i++) {
+      Object owner = new Object();
+      for (int j = 0; j < AsynchUtil.MAX_TASKS_PER_OWNER; j++) {
+        assertTrue(AsynchUtil.runAsynchronously(owner, blocked));
+      }
+    }
+    for (int i = 0; i < calls; i++) {
+      AsynchUtil.runAsynchronously(blocked);
+    }
+    waitUntilRunning(blocked, 2 * calls);
+
+    // Other calls still run right away
+    final CountDownLatch done = new CountDownLatch(2);
+    Runnable call = new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    };
+    AsynchUtil.runAsynchronously(call);
+    assertTrue(AsynchUtil.runAsynchronously(new Object(), call));
+    assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+    release.countDown();
+    assertTrue(blocked.done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+  }
+
+  public void testOwnerLimit() throws Exception {
+    Object owner = new Object();
+    int calls = 3 * AsynchUtil.MAX_TASKS_PER_OWNER;
+    CountDownLatch release = new CountDownLatch(1);
+    BlockingCall call = new BlockingCall(release, calls);
+    for (int i = 0; i < calls; i++) {
+      assertTrue(AsynchUtil.runAsynchronously(owner, call));
+    }
+    waitUntilRunning(call, AsynchUtil.MAX_TASKS_PER_OWNER);
+    assertTrue(AsynchUtil.getQueuedCount() >= calls - AsynchUtil.MAX_TASKS_PER_OWNER);
+    assertTrue(AsynchUtil.getActiveCount() >= AsynchUtil.MAX_TASKS_PER_OWNER);
+
+    release.countDown();
+    assertTrue(call.done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(AsynchUtil.MAX_TASKS_PER_OWNER, call.maxRunning.get());
+  }
+
+  public void testCancel() throws Exception {
+    Object owner = new Object();
+    int calls = 2 * AsynchUtil.MAX_TASKS_PER_OWNER;
+    BlockingCall call = new BlockingCall(new CountDownLatch(1), AsynchUtil.MAX_TASKS_PER_OWNER);
+    for (int i = 0; i < calls; i++) {
+      AsynchUtil.runAsynchronously(owner, call);
+    }
+    waitUntilRunning(call, AsynchUtil.MAX_TASKS_PER_OWNER);
+
+    AsynchUtil.cancel(owner);
+    // The running calls are interrupted, and the waiting ones never run
+    assertTrue(call.done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(AsynchUtil.MAX_TASKS_PER_OWNER, call.interrupted.get());
+    Thread.sleep(100);
+    assertEquals(0, call.running.get());
+    assertEquals(AsynchUtil.MAX_TASKS_PER_OWNER, call.maxRunning.get());
+
+    // The owner can make new calls
+    final CountDownLatch done = new CountDownLatch(1);
+    AsynchUtil.runAsynchronously(owner, new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+  }
+
+  private static void waitUntilRunning(BlockingCall call, int count) throws Exception {
+    long deadline = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000;
+    while (call.running.get() < count) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+}
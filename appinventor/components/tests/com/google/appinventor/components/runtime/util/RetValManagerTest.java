@@ -0,0 +1,54 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Tests RetValManager class.
+ *
+ */
+public class RetValManagerTest extends TestCase {
+
+  @Override
+  protected void setUp() throws Exception {
+    RetValManager.take(false);
+  }
+
+  public void testPutBackKeepsOrder() throws Exception {
+    RetValManager.appendReturnValue("1", "OK", "first");
+    List<JSONObject> taken = RetValManager.take(true);
+    assertEquals(1, taken.size());
+    RetValManager.appendReturnValue("2", "OK", "second");
+    // The taken value couldn't be delivered
+    RetValManager.putBack(taken);
+
+    JSONArray values = new JSONObject(RetValManager.fetch(false)).getJSONArray("values");
+    assertEquals(2, values.length());
+    assertEquals("first", values.getJSONObject(0).getString("value"));
+    assertEquals("second", values.getJSONObject(1).getString("value"));
+    assertEquals(0, RetValManager.take(false).size());
+  }
+
+  public void testInterruptedTakeReturns() {
+    Thread.currentThread().interrupt();
+    try {
+      long start = System.currentTimeMillis();
+      assertEquals(0, RetValManager.take(true).size());
+      assertTrue(System.currentTimeMillis() - start < 5000);
+      // The caller still sees that it was interrupted
+      assertTrue(Thread.currentThread().isInterrupted());
+    } finally {
+      Thread.interrupted();
+    }
+  }
+}
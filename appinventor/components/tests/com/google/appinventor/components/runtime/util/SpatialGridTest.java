@@ -0,0 +1,115 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests SpatialGrid class.
+ *
+ */
+public class SpatialGridTest extends TestCase {
+  private static final List<String> NONE = Collections.emptyList();
+
+  private SpatialGrid<String> grid;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    grid = new SpatialGrid<String>(10);
+  }
+
+  private static BoundingBox box(double left, double top, double right, double bottom) {
+    return new BoundingBox(left, top, right, bottom);
+  }
+
+  public void testFind() {
+    grid.add("a", box(0, 0, 5, 5));
+    grid.add("b", box(8, 8, 25, 12));
+    grid.add("c", box(-30, -30, -21, -21));
+    assertEquals(Arrays.asList("a", "b"), grid.find(box(4, 4, 9, 9), NONE));
+    assertEquals(Arrays.asList("b"), grid.find(box(20, 0, 30, 30), NONE));
+    assertEquals(Arrays.asList("c"), grid.find(box(-21, -21, -21, -21), NONE));
+    // Boxes in the same cells that don't intersect aren't found
+    assertEquals(NONE, grid.find(box(6, 0, 7, 7), NONE));
+  }
+
+  public void testSharedEdgeIntersects() {
+    grid.add("a", box(0, 0, 9, 9));
+    assertEquals(Arrays.asList("a"), grid.find(box(9, 9, 15, 15), NONE));
+    assertEquals(NONE, grid.find(box(10, 0, 15, 15), NONE));
+  }
+
+  public void testMoveAndRemove() {
+    grid.add("a", box(0, 0, 5, 5));
+    grid.move("a", box(100, 100, 105, 105));
+    assertEquals(NONE, grid.find(box(0, 0, 5, 5), NONE));
+    assertEquals(Arrays.asList("a"), grid.find(box(101, 101, 102, 102), NONE));
+    grid.move("a", box(102, 102, 106, 106));
+    assertEquals(NONE, grid.find(box(100, 100, 101, 101), NONE));
+
+    grid.remove("a");
+    assertFalse(grid.contains("a"));
+    assertEquals(0, grid.size());
+    assertEquals(NONE, grid.find(box(0, 0, 200, 200), NONE));
+    // Moving an item that isn't there doesn't add it
+    grid.move("a", box(0, 0, 5, 5));
+    assertFalse(grid.contains("a"));
+  }
+
+  public void testOrderAndOthers() {
+    grid.add("a", box(0, 0, 5, 5));
+    grid.add("b", box(0, 0, 5, 5));
+    grid.add("c", box(50, 50, 55, 55));
+    grid.add("a", box(0, 0, 5, 5));
+    // Items are found in the order they were last added, together with the
+    // others that are in the grid
+    assertEquals(Arrays.asList("b", "c", "a"),
+        grid.find(box(0, 0, 1, 1), Arrays.asList("c", "b", "d")));
+  }
+
+  public void testLargeItems() {
+    grid.add("huge", box(-1000, -1000, 1000, 1000));
+    grid.add("a", box(0, 0, 5, 5));
+    assertEquals(Arrays.asList("huge", "a"), grid.find(box(1, 1, 2, 2), NONE));
+    assertEquals(Arrays.asList("huge"), grid.find(box(900, 900, 950, 950), NONE));
+    grid.move("huge", box(2000, 2000, 2001, 2001));
+    assertEquals(Arrays.asList("a"), grid.find(box(-5000, -5000, 1000, 1000), NONE));
+  }
+
+  public void testFindsSameAsScan() {
+    Random random = new Random(42);
+    List<BoundingBox> boxes = new ArrayList<BoundingBox>();
+    for (int i = 0; i < 200; i++) {
+      double left = random.nextDouble() * 300 - 50;
+      double top = random.nextDouble() * 300 - 50;
+      BoundingBox box = box(left, top, left + random.nextInt(40), top + random.nextInt(40));
+      boxes.add(box);
+      grid.add(Integer.toString(i), box);
+    }
+    for (int i = 0; i < 200; i++) {
+      double left = random.nextDouble() * 300 - 50;
+      double top = random.nextDouble() * 300 - 50;
+      BoundingBox query = box(left, top, left + random.nextInt(60), top + random.nextInt(60));
+      List<String> expected = new ArrayList<String>();
+      for (int j = 0; j < boxes.size(); j++) {
+        BoundingBox box = boxes.get(j);
+        if (box(box.getLeft(), box.getTop(), box.getRight(), box.getBottom())
+            .intersectDestructively(query)) {
+          expected.add(Integer.toString(j));
+        }
+      }
+      assertEquals(expected, grid.find(query, NONE));
+    }
+  }
+}
@@ -0,0 +1,63 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests WebResponseCache class.
+ *
+ */
+public class WebResponseCacheTest extends TestCase {
+  private static WebResponseCache.Response response(String content, String etag) {
+    return new WebResponseCache.Response(200, "text/plain", content, etag, null);
+  }
+
+  public void testPutAndGet() {
+    WebResponseCache cache = new WebResponseCache(1000, 100);
+    cache.put("http://a", response("hello", "\"1\""));
+    assertEquals("hello", cache.get("http://a").content);
+    assertEquals("\"1\"", cache.get("http://a").etag);
+    assertNull(cache.get("http://b"));
+
+    cache.put("http://a", response("world", "\"2\""));
+    assertEquals("world", cache.get("http://a").content);
+    assertEquals(1, cache.size());
+  }
+
+  public void testResponsesWithoutValidatorsAreNotCached() {
+    WebResponseCache cache = new WebResponseCache(1000, 100);
+    cache.put("http://a", response("hello", "\"1\""));
+    // A new response without ETag or Last-Modified replaces the cached one
+    cache.put("http://a", response("world", null));
+    assertNull(cache.get("http://a"));
+    cache.put("http://b", new WebResponseCache.Response(200, "", "x", null, "Mon, 1 Jan 2001"));
+    assertNotNull(cache.get("http://b"));
+  }
+
+  public void testLimits() {
+    // Responses use 2 bytes per character
+    WebResponseCache cache = new WebResponseCache(100, 40);
+    cache.put("http://big", response("012345678901234567890", "e"));
+    assertNull(cache.get("http://big"));
+
+    for (int i = 0; i < 5; i++) {
+      cache.put("http://" + i, response("0123456789", "e"));
+    }
+    // Getting 0 makes 1 the least recently used
+    assertNotNull(cache.get("http://0"));
+    cache.put("http://5", response("0123456789", "e"));
+    assertEquals(5, cache.size());
+    assertNull(cache.get("http://1"));
+    assertNotNull(cache.get("http://0"));
+    assertNotNull(cache.get("http://5"));
+
+    cache.remove("http://0");
+    assertNull(cache.get("http://0"));
+    assertEquals(4, cache.size());
+  }
+}
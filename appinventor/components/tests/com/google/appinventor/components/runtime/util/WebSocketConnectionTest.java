@@ -0,0 +1,130 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Tests WebSocketConnection class.
+ *
+ */
+public class WebSocketConnectionTest extends TestCase {
+  private static final byte[] MASK = { 0x37, (byte) 0xfa, 0x21, 0x3d };
+
+  // Writes a frame as a client would, masked
+  private static void frame(ByteArrayOutputStream out, int first, byte[] payload) {
+    out.write(first);
+    if (payload.length < 126) {
+      out.write(0x80 | payload.length);
+    } else {
+      out.write(0x80 | 126);
+      out.write(payload.length >> 8);
+      out.write(payload.length);
+    }
+    out.write(MASK, 0, 4);
+    for (int i = 0; i < payload.length; i++) {
+      out.write(payload[i] ^ MASK[i & 3]);
+    }
+  }
+
+  private static WebSocketConnection connection(ByteArrayOutputStream frames,
+      ByteArrayOutputStream out) {
+    return new WebSocketConnection(new ByteArrayInputStream(frames.toByteArray()), out);
+  }
+
+  public void testAcceptKey() {
+    // The example in RFC 6455
+    assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=",
+        WebSocketConnection.acceptKey("dGhlIHNhbXBsZSBub25jZQ=="));
+  }
+
+  public void testReadMessages() throws IOException {
+    ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    frame(frames, 0x81, "Hello".getBytes("UTF-8"));
+    byte[] longMessage = new byte[1000];
+    Arrays.fill(longMessage, (byte) 'x');
+    frame(frames, 0x81, longMessage);
+    // A fragmented message, with a ping in between
+    frame(frames, 0x01, "Hel".getBytes("UTF-8"));
+    frame(frames, 0x89, "p".getBytes("UTF-8"));
+    frame(frames, 0x80, "lo \u00e9".getBytes("UTF-8"));
+    frame(frames, 0x88, new byte[0]);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    WebSocketConnection connection = connection(frames, out);
+
+    assertEquals("Hello", connection.readMessage());
+    assertEquals(new String(longMessage, "UTF-8"), connection.readMessage());
+    assertEquals("Hello \u00e9", connection.readMessage());
+    assertNull(connection.readMessage());
+    // The ping was answered, and the close returned
+    byte[] sent = out.toByteArray();
+    assertEquals(5, sent.length);
+    assertEquals((byte) 0x8A, sent[0]);
+    assertEquals(1, sent[1]);
+    assertEquals('p', sent[2]);
+    assertEquals((byte) 0x88, sent[3]);
+    assertEquals(0, sent[4]);
+  }
+
+  public void testSendMessage() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    WebSocketConnection connection = connection(new ByteArrayOutputStream(), out);
+    connection.sendMessage("Hi");
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 300; i++) {
+      sb.append('y');
+    }
+    connection.sendMessage(sb.toString());
+    byte[] sent = out.toByteArray();
+    assertEquals(4 + 4 + 300, sent.length);
+    assertEquals((byte) 0x81, sent[0]);
+    assertEquals(2, sent[1]);
+    assertEquals("Hi", new String(sent, 2, 2, "UTF-8"));
+    assertEquals((byte) 0x81, sent[4]);
+    assertEquals(126, sent[5]);
+    assertEquals(300, ((sent[6] & 0xFF) << 8) | (sent[7] & 0xFF));
+
+    connection.close();
+    try {
+      connection.sendMessage("Bye");
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  public void testBadFrames() throws IOException {
+    ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    // A continuation without a message to continue
+    frame(frames, 0x80, "x".getBytes("UTF-8"));
+    try {
+      connection(frames, new ByteArrayOutputStream()).readMessage();
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+
+    // A message cut short
+    frames = new ByteArrayOutputStream();
+    frame(frames, 0x81, "Hello".getBytes("UTF-8"));
+    byte[] truncated = new byte[frames.size() - 2];
+    System.arraycopy(frames.toByteArray(), 0, truncated, 0, truncated.length);
+    WebSocketConnection connection = new WebSocketConnection(
+        new ByteArrayInputStream(truncated), new ByteArrayOutputStream());
+    try {
+      connection.readMessage();
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,101 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import gnu.lists.LList;
+import gnu.lists.Pair;
+
+import junit.framework.TestCase;
+
+/**
+ * Times the item operations of YailList on 10,000 item lists against
+ * walking a plain Pair chain, as list-ref, list-tail and set-cdr! did
+ * before YailList indexed its cells.
+ *
+ * <p>This isn't run with the other tests, since its name doesn't end in
+ * Test.  Run it with
+ * {@code ant tests -Dtest_name=com.google.appinventor.components.runtime.util.YailListBenchmark}
+ * and read the timings from its output.
+ *
+ */
+public class YailListBenchmark extends TestCase {
+  private static final int SIZE = 10000;
+  private static final int ROUNDS = 5;
+
+  private static Object[] items() {
+    Object[] items = new Object[SIZE];
+    for (int i = 0; i < SIZE; i++) {
+      items[i] = i;
+    }
+    return items;
+  }
+
+  // The pair holding item index (from 1) of a chain, found by walking it
+  private static Pair walk(Pair chain, int index) {
+    Pair pair = chain;
+    for (int i = 1; i < index; i++) {
+      pair = (Pair) pair.getCdr();
+    }
+    return pair;
+  }
+
+  // Reads and updates every item, then removes every other item, walking
+  // the chain each time
+  private static long runChain() {
+    Pair chain = (Pair) LList.makeList(items(), 0);
+    long sum = 0;
+    for (int i = 1; i <= SIZE; i++) {
+      sum += (Integer) walk(chain, i).getCar();
+    }
+    for (int i = 1; i <= SIZE; i++) {
+      Pair pair = walk(chain, i);
+      pair.setCar((Integer) pair.getCar() + 1);
+    }
+    for (int i = SIZE; i > 1; i -= 2) {
+      Pair previous = walk(chain, i - 1);
+      previous.setCdr(((Pair) previous.getCdr()).getCdr());
+    }
+    return sum + LList.length(chain);
+  }
+
+  // The same with the indexed YailList
+  private static long runYailList() {
+    YailList list = YailList.makeList(items());
+    long sum = 0;
+    for (int i = 1; i <= SIZE; i++) {
+      sum += (Integer) list.getItem(i);
+    }
+    for (int i = 1; i <= SIZE; i++) {
+      list.setItem(i, (Integer) list.getItem(i) + 1);
+    }
+    for (int i = SIZE; i > 1; i -= 2) {
+      list.removeItem(i);
+    }
+    return sum + list.size();
+  }
+
+  public void testItemOperations() {
+    // Warm up, and check that both do the same work
+    assertEquals(runChain(), runYailList());
+
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      runChain();
+    }
+    long chainNanos = (System.nanoTime() - start) / ROUNDS;
+
+    start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      runYailList();
+    }
+    long yailListNanos = (System.nanoTime() - start) / ROUNDS;
+
+    System.out.println(SIZE + " items: read, update and remove every other one");
+    System.out.println("  Pair chain: " + chainNanos / 1000000 + " ms");
+    System.out.println("  YailList:   " + yailListNanos / 1000000 + " ms");
+  }
+}
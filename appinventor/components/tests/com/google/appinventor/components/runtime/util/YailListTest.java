@@ -7,6 +7,7 @@
 package com.google.appinventor.components.runtime.util;
 
 import gnu.lists.FString;
+import gnu.lists.LList;
 
 import junit.framework.TestCase;
 
@@ -203,4 +204,80 @@ public class YailListTest extends TestCase {
       // this is the intended behavior
     }
   }
+
+  public void testGetAndSetItem() {
+    YailList yailList = YailList.makeList(new Object[] {"a", "b", "c"});
+    assertEquals(YailConstants.YAIL_HEADER, yailList.get(0));
+    assertEquals("a", yailList.getItem(1));
+    assertEquals("c", yailList.get(3));
+    yailList.setItem(2, "x");
+    assertEquals("(a x c)", yailList.toString());
+    try {
+      yailList.getItem(4);
+      fail();
+    } catch (IndexOutOfBoundsException e) {
+      // this is the intended behavior
+    }
+  }
+
+  public void testInsertAndRemoveItem() {
+    YailList yailList = new YailList();
+    yailList.insertItem(1, "b");
+    yailList.insertItem(1, "a");
+    yailList.insertItem(3, "d");
+    yailList.insertItem(3, "c");
+    assertEquals("(a b c d)", yailList.toString());
+    yailList.removeItem(1);
+    yailList.removeItem(3);
+    assertEquals(2, yailList.size());
+    assertEquals("(b c)", yailList.toString());
+    yailList.removeItem(2);
+    yailList.removeItem(1);
+    assertEquals(0, yailList.size());
+    assertEquals("()", yailList.toString());
+    try {
+      yailList.insertItem(2, "x");
+      fail();
+    } catch (IndexOutOfBoundsException e) {
+      // this is the intended behavior
+    }
+  }
+
+  public void testAppendContents() {
+    YailList listA = YailList.makeList(new Object[] {"a", "b"});
+    YailList listB = YailList.makeList(new Object[] {"c"});
+    listA.appendContents(listB.getCdr());
+    listA.appendContents(listA.getCdr());
+    assertEquals("(a b c a b c)", listA.toString());
+    // The lists don't share a tail
+    listB.setItem(1, "x");
+    assertEquals("c", listA.getItem(3));
+  }
+
+  public void testSetContents() {
+    YailList yailList = YailList.makeList(new Object[] {"a", "b"});
+    assertEquals(2, yailList.size());
+    yailList.setContents(LList.list3("x", "y", "z"));
+    assertEquals(3, yailList.size());
+    assertEquals("z", yailList.getItem(3));
+  }
+
+  public void testLargeList() {
+    int size = 10000;
+    YailList yailList = new YailList();
+    for (int i = 0; i < size; i++) {
+      yailList.addItem(i);
+    }
+    for (int i = 1; i <= size; i++) {
+      yailList.setItem(i, (Integer) yailList.getItem(i) + 1);
+    }
+    for (int i = size; i >= 1; i -= 2) {
+      yailList.removeItem(i);
+    }
+    assertEquals(size / 2, yailList.size());
+    for (int i = 1; i <= size / 2; i++) {
+      assertEquals(2 * i - 1, yailList.getItem(i));
+    }
+    assertEquals(size / 2, yailList.toArray().length);
+  }
 }